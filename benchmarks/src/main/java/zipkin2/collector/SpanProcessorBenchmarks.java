@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Measures the overhead of {@link SpanProcessor} stages in {@link Collector#accept(List, Callback)}
+ * against a storage that does nothing. Each stage is a typical pass-through processor, which
+ * inspects every span but returns its input unchanged.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanProcessorBenchmarks {
+  static final StorageComponent NOOP_STORAGE = new StorageComponent() {
+    @Override public SpanStore spanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> Call.create(null);
+    }
+  };
+  static final Callback<Void> NOOP_CALLBACK = new Callback<Void>() {
+    @Override public void onSuccess(Void value) {
+    }
+
+    @Override public void onError(Throwable t) {
+    }
+  };
+  static final SpanProcessor PASS_THROUGH = spans -> {
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      if (spans.get(i).tags().containsKey("password")) throw new AssertionError();
+    }
+    return spans;
+  };
+  static final List<Span> SPANS = new ArrayList<>();
+
+  static {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").ip("172.17.0.13").build();
+    for (int i = 1; i <= 10; i++) {
+      SPANS.add(Span.newBuilder()
+        .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+        .parentId("1")
+        .id(Integer.toHexString(i + 1))
+        .name("get")
+        .kind(Span.Kind.CLIENT)
+        .localEndpoint(frontend)
+        .timestamp(1472470996199000L + i)
+        .duration(207000L)
+        .putTag("http.path", "/api")
+        .build());
+    }
+  }
+
+  Collector noProcessors = newCollector(0);
+  Collector oneProcessor = newCollector(1);
+  Collector threeProcessors = newCollector(3);
+
+  @Benchmark public void accept_noProcessors() {
+    noProcessors.accept(SPANS, NOOP_CALLBACK);
+  }
+
+  @Benchmark public void accept_oneProcessor() {
+    oneProcessor.accept(SPANS, NOOP_CALLBACK);
+  }
+
+  @Benchmark public void accept_threeProcessors() {
+    threeProcessors.accept(SPANS, NOOP_CALLBACK);
+  }
+
+  static Collector newCollector(int processors) {
+    Collector.Builder builder = Collector.newBuilder(SpanProcessorBenchmarks.class)
+      .storage(NOOP_STORAGE);
+    for (int i = 0; i < processors; i++) builder.addProcessor(PASS_THROUGH);
+    return builder.build();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + SpanProcessorBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
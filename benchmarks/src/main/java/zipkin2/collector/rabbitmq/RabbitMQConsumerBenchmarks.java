@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.Collector;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Measures the cost of consuming a message of 10 spans when acknowledged on delivery, versus
+ * acknowledged in batches after storage. The channel is a stand-in for a local broker, so this
+ * excludes network costs, and the storage does nothing.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class RabbitMQConsumerBenchmarks {
+  static final StorageComponent NOOP_STORAGE = new StorageComponent() {
+    @Override public SpanStore spanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> Call.create(null);
+    }
+  };
+  /** Stands in for a channel to a local broker: acknowledgements do nothing. */
+  static final Channel CHANNEL = (Channel) Proxy.newProxyInstance(
+    Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, (proxy, method, args) -> null);
+  static final byte[] MESSAGE;
+
+  static {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").ip("172.17.0.13").build();
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      spans.add(Span.newBuilder()
+        .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+        .parentId("1")
+        .id(Integer.toHexString(i + 1))
+        .name("get")
+        .kind(Span.Kind.CLIENT)
+        .localEndpoint(frontend)
+        .timestamp(1472470996199000L + i)
+        .duration(207000L)
+        .putTag("http.path", "/api")
+        .build());
+    }
+    MESSAGE = SpanBytesEncoder.PROTO3.encodeList(spans);
+  }
+
+  Collector collector = Collector.newBuilder(RabbitMQConsumerBenchmarks.class)
+    .storage(NOOP_STORAGE).build();
+  ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+  {
+    timer.setRemoveOnCancelPolicy(true);
+  }
+  AtomicLong deliveryTag = new AtomicLong();
+
+  RabbitMQCollector.RabbitMQSpanConsumer autoAck = new RabbitMQCollector.RabbitMQSpanConsumer(
+    CHANNEL, collector, CollectorMetrics.NOOP_METRICS);
+  // batch size as if prefetchCount was 100
+  RabbitMQBatchConsumer manualAck = new RabbitMQBatchConsumer(
+    CHANNEL, collector, CollectorMetrics.NOOP_METRICS, NOOP_STORAGE, timer, 25);
+
+  @TearDown public void close() {
+    timer.shutdownNow();
+  }
+
+  @Benchmark public void deliver_autoAck() {
+    autoAck.handleDelivery("zipkin-rabbitmq.0", envelope(), null, MESSAGE.clone());
+  }
+
+  @Benchmark public void deliver_manualAck_batched() {
+    manualAck.handleDelivery("zipkin-rabbitmq.0", envelope(), null, MESSAGE.clone());
+  }
+
+  Envelope envelope() {
+    return new Envelope(deliveryTag.incrementAndGet(), false, "", "zipkin");
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + RabbitMQConsumerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.scribe;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.storage.InMemoryStorage;
+
+/**
+ * Measures a connection that pipelines {@code Log} calls of 10 spans to the Scribe server, which
+ * includes ordering responses and pushing back on the client at {@code maxInFlight}. Spans are
+ * sampled out, so this excludes storage.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class ScribeServerBenchmarks {
+  static final int PIPELINED_CALLS = 100;
+  static final byte[] CALLS;
+
+  static {
+    byte[] frame = ScribeSpanConsumerBenchmarks.FRAME;
+    CALLS = new byte[PIPELINED_CALLS * (4 + frame.length)];
+    for (int i = 0, pos = 0; i < PIPELINED_CALLS; i++) {
+      CALLS[pos++] = (byte) (frame.length >>> 24);
+      CALLS[pos++] = (byte) (frame.length >>> 16);
+      CALLS[pos++] = (byte) (frame.length >>> 8);
+      CALLS[pos++] = (byte) frame.length;
+      System.arraycopy(frame, 0, CALLS, pos, frame.length);
+      pos += frame.length;
+    }
+  }
+
+  @Param({"1", "128"})
+  int maxInFlight;
+
+  ScribeCollector collector;
+  Socket socket;
+  OutputStream out;
+  DataInputStream in;
+  byte[] response = new byte[64];
+
+  @Setup(Level.Trial) public void start() throws IOException {
+    collector = ScribeCollector.newBuilder()
+      .storage(InMemoryStorage.newBuilder().build())
+      .sampler(CollectorSampler.create(0.0f))
+      .port(0)
+      .maxInFlightPerConnection(maxInFlight)
+      .build()
+      .start();
+    socket = new Socket("localhost", collector.port());
+    socket.setTcpNoDelay(true);
+    out = socket.getOutputStream();
+    in = new DataInputStream(socket.getInputStream());
+  }
+
+  @TearDown(Level.Trial) public void close() throws IOException {
+    socket.close();
+    collector.close();
+  }
+
+  @Benchmark @OperationsPerInvocation(PIPELINED_CALLS)
+  public void log_pipelined() throws IOException {
+    out.write(CALLS);
+    for (int i = 0; i < PIPELINED_CALLS; i++) {
+      int length = in.readInt();
+      if (length > response.length) response = new byte[length];
+      in.readFully(response, 0, length);
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + ScribeServerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
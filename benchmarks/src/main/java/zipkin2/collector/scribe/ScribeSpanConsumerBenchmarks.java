@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.scribe;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Callback;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.Collector;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.scribe.generated.LogEntry;
+import zipkin2.collector.scribe.generated.ResultCode;
+import zipkin2.collector.scribe.generated.Scribe;
+import zipkin2.storage.InMemoryStorage;
+
+/**
+ * Measures the cost of decoding a Scribe {@code Log} call of 10 spans, through the Thrift service
+ * versus from the frame directly. Spans are sampled out, so this excludes storage.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class ScribeSpanConsumerBenchmarks {
+  static final byte[] FRAME;
+
+  static {
+    Endpoint frontend = Endpoint.newBuilder().serviceName("frontend").ip("172.17.0.13").build();
+    List<LogEntry> entries = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      Span span = Span.newBuilder()
+        .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+        .parentId("1")
+        .id(Integer.toHexString(i + 1))
+        .name("get")
+        .kind(Span.Kind.CLIENT)
+        .localEndpoint(frontend)
+        .timestamp(1472470996199000L + i)
+        .duration(207000L)
+        .putTag("http.path", "/api")
+        .build();
+      String message = Base64.getMimeEncoder().encodeToString(SpanBytesEncoder.THRIFT.encode(span));
+      entries.add(new LogEntry("zipkin", message));
+    }
+    try {
+      TMemoryBuffer transport = new TMemoryBuffer(4096);
+      TBinaryProtocol protocol = new TBinaryProtocol(transport);
+      protocol.writeMessageBegin(new TMessage("Log", TMessageType.CALL, 1));
+      new Scribe.Log_args(entries).write(protocol);
+      FRAME = new byte[transport.length()];
+      System.arraycopy(transport.getArray(), 0, FRAME, 0, FRAME.length);
+    } catch (TException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static final AsyncMethodCallback<ResultCode> NOOP_HANDLER = new AsyncMethodCallback<ResultCode>() {
+    @Override public void onComplete(ResultCode response) {
+    }
+
+    @Override public void onError(Exception exception) {
+    }
+  };
+
+  static final Callback<Void> NOOP_CALLBACK = new Callback<Void>() {
+    @Override public void onSuccess(Void value) {
+    }
+
+    @Override public void onError(Throwable t) {
+    }
+  };
+
+  ScribeSpanConsumer scribe = new ScribeSpanConsumer(
+    Collector.newBuilder(ScribeSpanConsumerBenchmarks.class)
+      .storage(InMemoryStorage.newBuilder().build())
+      .sampler(CollectorSampler.create(0.0f))
+      .build(), CollectorMetrics.NOOP_METRICS, "zipkin");
+
+  @Benchmark public void log_thriftService() throws TException {
+    TBinaryProtocol protocol = new TBinaryProtocol(new TMemoryInputTransport(FRAME));
+    protocol.readMessageBegin();
+    Scribe.Log_args args = new Scribe.Log_args();
+    args.read(protocol);
+    scribe.Log(args.messages, NOOP_HANDLER);
+  }
+
+  @Benchmark public void log_fromFrame() {
+    ByteBuf frame = Unpooled.wrappedBuffer(FRAME);
+    scribe.log(ScribeLogCall.read(frame, scribe.categoryBytes), NOOP_CALLBACK);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + ScribeSpanConsumerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares a fixed pool of platform threads, like Armeria's default blocking task executor, with
+ * {@link ThreadPerTaskExecutor} when storage is slow. Each operation submits a burst of tasks which
+ * sleep, as a stand-in for a storage call, and waits for all of them to complete.
+ *
+ * <p>{@link ThreadPerTaskExecutor} uses virtual threads on JRE 21+, and platform threads before.
+ * Run this benchmark on both to compare.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class BlockingTaskExecutorBenchmarks {
+  /** Armeria's default maximum of blocking task threads */
+  static final int POOL_SIZE = 200;
+
+  /** Count of storage calls in flight per operation */
+  @Param({"100", "1000"})
+  int burst;
+
+  /** Latency of the fake storage call */
+  @Param({"1"})
+  long storageLatencyMillis;
+
+  ExecutorService threadPool, threadPerTask;
+
+  @Setup public void setup() {
+    AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, "blocking-pool-" + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    pool.allowCoreThreadTimeOut(true);
+    threadPool = pool;
+    threadPerTask = ThreadPerTaskExecutor.create("blocking-task-", 1000);
+  }
+
+  @TearDown public void tearDown() {
+    threadPool.shutdownNow();
+    threadPerTask.shutdownNow();
+  }
+
+  @Benchmark public void threadPool() throws InterruptedException {
+    runBurst(threadPool);
+  }
+
+  @Benchmark public void threadPerTask() throws InterruptedException {
+    runBurst(threadPerTask);
+  }
+
+  void runBurst(ExecutorService executor) throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(burst);
+    for (int i = 0; i < burst; i++) {
+      executor.execute(() -> {
+        try {
+          Thread.sleep(storageLatencyMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          latch.countDown();
+        }
+      });
+    }
+    latch.await();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + BlockingTaskExecutorBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
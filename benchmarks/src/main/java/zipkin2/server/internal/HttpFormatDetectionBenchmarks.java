@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.SpanBytesDecoderDetector;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static zipkin2.storage.cassandra.internal.Resources.resourceToString;
+
+/**
+ * Compares the cost of checking the format of a 1 MiB JSON_V2 message posted to the HTTP
+ * collector, before and after detection was bounded to the first span. Decoding the message is
+ * included for scale.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class HttpFormatDetectionBenchmarks {
+  static final ByteBuffer MESSAGE = ByteBuffer.wrap(megabyteMessage());
+
+  /** Scans the body up to four times: once to detect the list and for each field name. */
+  @Benchmark public SpanBytesDecoder detectFormat_scan() {
+    SpanBytesDecoderDetector.decoderForListMessage(MESSAGE);
+    return contains(MESSAGE, BINARY_ANNOTATION_FIELD_SUFFIX) ? SpanBytesDecoder.JSON_V1 : null;
+  }
+
+  @Benchmark public SpanBytesDecoder detectFormat_firstSpan() {
+    ZipkinHttpCollector.isListMessage(MESSAGE);
+    return ZipkinHttpCollector.testForUnexpectedFormat(SpanBytesDecoder.JSON_V2, MESSAGE);
+  }
+
+  @Benchmark public List<Span> decode() {
+    return SpanBytesDecoder.JSON_V2.decodeList(MESSAGE);
+  }
+
+  static byte[] megabyteMessage() {
+    Span span = SpanBytesDecoder.JSON_V2.decodeOne(
+      resourceToString("/zipkin2-client.json").getBytes(UTF_8));
+    int spanCount = 1024 * 1024 / SpanBytesEncoder.JSON_V2.sizeInBytes(span);
+    List<Span> spans = new ArrayList<>(spanCount);
+    for (int i = 1; i <= spanCount; i++) spans.add(span.toBuilder().id(i).build());
+    return SpanBytesEncoder.JSON_V2.encodeList(spans);
+  }
+
+  // The approach used before: search the body for a field name only in the unexpected format
+  static final byte[] BINARY_ANNOTATION_FIELD_SUFFIX =
+    {'y', 'A', 'n', 'n', 'o', 't', 'a', 't', 'i', 'o', 'n', 's', '"'};
+
+  static boolean contains(ByteBuffer bytes, byte[] subsequence) {
+    bytes:
+    for (int i = 0; i < bytes.remaining() - subsequence.length + 1; i++) {
+      for (int j = 0; j < subsequence.length; j++) {
+        if (bytes.get(bytes.position() + i + j) != subsequence[j]) {
+          continue bytes;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + HttpFormatDetectionBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
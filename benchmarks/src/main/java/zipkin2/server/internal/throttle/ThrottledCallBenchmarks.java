@@ -20,7 +20,9 @@ import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -89,6 +91,48 @@ public class ThrottledCallBenchmarks {
     call.clone().execute();
   }
 
+  /**
+   * Many producers contend for 4 permits, as when collectors accept spans concurrently. This
+   * compares a thread pool sized to the limit with a {@link PermitDispatcher}.
+   */
+  @State(Scope.Benchmark)
+  public static class MultiProducer {
+    ExecutorService fakeCallExecutor;
+    ThreadPoolExecutor threadPool;
+    PermitDispatcher dispatcher;
+    ThrottledCall threadPoolCall, dispatcherCall;
+
+    @Setup public void setup() {
+      fakeCallExecutor = Executors.newFixedThreadPool(4);
+      threadPool = new ThreadPoolExecutor(4, 4, 0, TimeUnit.DAYS, new LinkedBlockingQueue<>(1000));
+      dispatcher = new PermitDispatcher(4, 1000);
+      SimpleLimiter<Void> limiter = SimpleLimiter.newBuilder().limit(FixedLimit.of(1000)).build();
+      LimiterMetrics metrics = new LimiterMetrics(NoopMeterRegistry.get());
+      Predicate<Throwable> isOverCapacity = RejectedExecutionException.class::isInstance;
+      FakeCall fakeCall = new FakeCall(fakeCallExecutor);
+      threadPoolCall =
+        new ThrottledCall(fakeCall, threadPool, limiter, metrics, isOverCapacity);
+      dispatcherCall =
+        new ThrottledCall(fakeCall, dispatcher, limiter, metrics, isOverCapacity, dispatcher);
+    }
+
+    @TearDown public void tearDown() {
+      threadPool.shutdown();
+      dispatcher.close();
+      fakeCallExecutor.shutdown();
+    }
+  }
+
+  @Benchmark @Threads(8)
+  public Object execute_multiProducer_threadPool(MultiProducer state) throws IOException {
+    return state.threadPoolCall.clone().execute();
+  }
+
+  @Benchmark @Threads(8)
+  public Object execute_multiProducer_dispatcher(MultiProducer state) throws IOException {
+    return state.dispatcherCall.clone().execute();
+  }
+
   static final RejectedExecutionException OVER_CAPACITY = new RejectedExecutionException();
 
   static final class FakeCall extends Call.Base<Void> {
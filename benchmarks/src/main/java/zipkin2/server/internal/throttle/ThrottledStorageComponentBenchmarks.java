@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import com.linecorp.armeria.common.metric.NoopMeterRegistry;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Measures span batches stored per millisecond when more callers contend than the throttle allows,
+ * and each storage request has a fixed overhead, regardless of how many spans it includes.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+public class ThrottledStorageComponentBenchmarks {
+  static final List<Span> SPANS = Collections.singletonList(Span.newBuilder()
+    .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+    .id("5b4185666d50f68b")
+    .name("get")
+    .build());
+
+  @Param({"0", "1000"})
+  int coalesceMaxSpans;
+
+  ThrottledStorageComponent throttle;
+  SpanConsumer spanConsumer;
+
+  @Setup public void setup() {
+    throttle = ThrottledStorageComponent.newBuilder()
+      .delegate(new SlowStorage())
+      .meterRegistry(NoopMeterRegistry.get())
+      .minConcurrency(2)
+      .maxConcurrency(2)
+      .maxQueueSize(1000)
+      .coalesceMaxSpans(coalesceMaxSpans)
+      .build();
+    spanConsumer = throttle.spanConsumer();
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    throttle.close();
+  }
+
+  @Benchmark public void accept() throws IOException {
+    spanConsumer.accept(SPANS).execute();
+  }
+
+  /** Each request takes 100us, similar to a round trip to storage on the same network. */
+  static final class SlowStorage extends ForwardingStorageComponent {
+    final StorageComponent delegate = InMemoryStorage.newBuilder().build();
+
+    @Override protected StorageComponent delegate() {
+      return delegate;
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> Call.create(null).map(v -> {
+        LockSupport.parkNanos(100_000);
+        return null;
+      });
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + ThrottledStorageComponentBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.activemq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.Span;
+import zipkin2.SpanBytesDecoderDetector;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.collector.Collector;
+import zipkin2.collector.CollectorMetrics;
+
+import static zipkin2.collector.activemq.ActiveMQSpanConsumer.CLOSED;
+
+/**
+ * Receives up to {@code batchSize} messages in a transacted session, and stores their spans in one
+ * call. Messages are committed after storage accepted the spans. Malformed messages are committed
+ * with their batch, so that they are discarded.
+ *
+ * <p>If storage fails, the session is rolled back. The messages are then redelivered according to
+ * the connection factory's {@link org.apache.activemq.RedeliveryPolicy}, which moves them to the
+ * dead letter queue after its maximum redeliveries.
+ *
+ * <p>JMS sessions are single-threaded, so this runs on a thread per session, which waits for
+ * storage before receiving the next batch. A batch has fewer messages when the next doesn't arrive
+ * within {@link #LINGER_MILLIS}.
+ */
+final class ActiveMQBatchReceiver implements Runnable {
+  static final Logger LOG = LoggerFactory.getLogger(ActiveMQBatchReceiver.class);
+  static final long LINGER_MILLIS = 100;
+
+  final ActiveMQSpanConsumer consumer;
+  final Collector collector;
+  final CollectorMetrics metrics;
+  final QueueSession session;
+  final QueueReceiver receiver;
+  final int batchSize;
+  final SessionBuffer buffer = new SessionBuffer();
+
+  ActiveMQBatchReceiver(ActiveMQSpanConsumer consumer, QueueSession session,
+    QueueReceiver receiver) {
+    this.consumer = consumer;
+    this.collector = consumer.collector;
+    this.metrics = consumer.metrics;
+    this.session = session;
+    this.receiver = receiver;
+    this.batchSize = consumer.batchSize;
+  }
+
+  @Override public void run() {
+    try {
+      while (receiveBatch()) {
+        // until the session is closed
+      }
+    } catch (JMSException e) {
+      if (consumer.checkResult == CLOSED) return;
+      LOG.warn("Stopped receiving from ActiveMQ due to {}", e.getMessage(), e);
+      consumer.checkResult = CheckResult.failed(e);
+    } catch (InterruptedException e) {
+      // closed while waiting for storage: the session was rolled back
+    }
+  }
+
+  /** Returns false when the receiver was closed. */
+  boolean receiveBatch() throws JMSException, InterruptedException {
+    Message message = receiver.receive(); // blocks until there's a message or the session closes
+    if (message == null) return false;
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+    List<Span> spans = new ArrayList<>();
+    for (int messages = 1; ; messages++) {
+      decode(message, spans);
+      if (messages == batchSize) break;
+      long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      // receive(0) would block until the next message
+      message = remainingMillis > 0 ? receiver.receive(remainingMillis) : receiver.receiveNoWait();
+      if (message == null) break;
+    }
+
+    if (store(spans)) {
+      session.commit();
+    } else {
+      session.rollback();
+    }
+    return true;
+  }
+
+  void decode(Message message, List<Span> spans) {
+    metrics.incrementMessages();
+    ByteBuffer body;
+    try {
+      body = buffer.read(message);
+    } catch (Exception e) {
+      body = null;
+    }
+    if (body == null) {
+      metrics.incrementMessagesDropped();
+      return;
+    }
+
+    metrics.incrementBytes(body.remaining());
+    if (!body.hasRemaining()) return; // lenient on empty messages
+
+    int sizeBefore = spans.size();
+    try {
+      // The detector only returns SpanBytesDecoder, which can decode a buffer without copying
+      SpanBytesDecoder decoder =
+        (SpanBytesDecoder) SpanBytesDecoderDetector.decoderForListMessage(body);
+      decoder.decodeList(body, spans);
+    } catch (RuntimeException e) {
+      spans.subList(sizeBefore, spans.size()).clear(); // drop any spans decoded before the error
+      metrics.incrementMessagesDropped();
+      LOG.debug("Cannot decode spans due to {}({})", e.getClass().getSimpleName(), e.getMessage());
+    }
+  }
+
+  /** Returns true if storage accepted the spans. */
+  boolean store(List<Span> spans) throws InterruptedException {
+    StoreCallback callback = new StoreCallback();
+    try {
+      collector.accept(spans, callback, Runnable::run, true);
+    } catch (RuntimeException e) {
+      // the callback was already completed with this error
+    }
+    callback.await();
+    return callback.success;
+  }
+
+  static final class StoreCallback extends CountDownLatch implements Callback<Void> {
+    volatile boolean success;
+
+    StoreCallback() {
+      super(1);
+    }
+
+    @Override public void onSuccess(Void value) {
+      success = true;
+      countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      countDown();
+    }
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 The OpenZipkin Authors
+ * Copyright 2015-2020 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -22,6 +22,7 @@ import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorComponent;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.storage.StorageComponent;
 
 /** This collector consumes encoded binary messages from a ActiveMQ queue. */
@@ -37,6 +38,7 @@ public final class ActiveMQCollector extends CollectorComponent {
     ActiveMQConnectionFactory connectionFactory;
     String queue = "zipkin";
     int concurrency = 1;
+    int batchSize = 1;
 
     @Override public Builder storage(StorageComponent storage) {
       this.delegate.storage(storage);
@@ -48,6 +50,11 @@ public final class ActiveMQCollector extends CollectorComponent {
       return this;
     }
 
+    @Override public Builder addProcessor(SpanProcessor processor) {
+      this.delegate.addProcessor(processor);
+      return this;
+    }
+
     @Override public Builder metrics(CollectorMetrics metrics) {
       if (metrics == null) throw new NullPointerException("metrics == null");
       this.metrics = metrics.forTransport("activemq");
@@ -75,6 +82,25 @@ public final class ActiveMQCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * Maximum count of messages whose spans are stored together. Defaults to 1, which acknowledges
+     * each message when it is received, so it is lost if storage fails.
+     *
+     * <p>When more than one, each session is transacted, and committed after storage accepted the
+     * spans of its batch. A batch is smaller when the next message doesn't arrive within 100ms. If
+     * storage fails, the batch is rolled back, so its messages are redelivered according to the
+     * connection factory's {@link org.apache.activemq.RedeliveryPolicy}.
+     *
+     * <p>A session receives from messages prefetched by the connection factory's {@link
+     * org.apache.activemq.ActiveMQPrefetchPolicy#setQueuePrefetch(int) queue prefetch}, which
+     * should be at least this size.
+     */
+    public Builder batchSize(int batchSize) {
+      if (batchSize < 1) throw new IllegalArgumentException("batchSize < 1");
+      this.batchSize = batchSize;
+      return this;
+    }
+
     @Override public ActiveMQCollector build() {
       if (connectionFactory == null) throw new NullPointerException("connectionFactory == null");
       return new ActiveMQCollector(this);
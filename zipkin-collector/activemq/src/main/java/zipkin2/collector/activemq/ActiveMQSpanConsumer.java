@@ -15,9 +15,11 @@ package zipkin2.collector.activemq;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
@@ -25,21 +27,25 @@ import javax.jms.Queue;
 import javax.jms.QueueReceiver;
 import javax.jms.QueueSession;
 import javax.jms.Session;
-import javax.jms.TextMessage;
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.transport.TransportListener;
 import zipkin2.Callback;
 import zipkin2.CheckResult;
+import zipkin2.Span;
+import zipkin2.SpanBytesDecoderDetector;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorMetrics;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 /**
- * Consumes spans from messages on a ActiveMQ queue. Malformed messages will be discarded. Errors in
- * the storage component will similarly be ignored, with no retry of the message.
+ * Consumes spans from messages on a ActiveMQ queue. Malformed messages will be discarded.
+ *
+ * <p>By default, messages are acknowledged when received. Errors in the storage component will
+ * similarly be ignored, with no retry of the message. When {@code batchSize} is more than one,
+ * messages are instead received by an {@link ActiveMQBatchReceiver}, which commits them after
+ * storage.
  */
-final class ActiveMQSpanConsumer implements TransportListener, MessageListener, Closeable {
+final class ActiveMQSpanConsumer implements TransportListener, Closeable {
   static final Callback<Void> NOOP = new Callback<Void>() {
     @Override public void onSuccess(Void value) {
     }
@@ -56,26 +62,40 @@ final class ActiveMQSpanConsumer implements TransportListener, MessageListener,
   final CollectorMetrics metrics;
 
   final ActiveMQConnection connection;
+  final int batchSize;
   final Map<QueueSession, QueueReceiver> sessionToReceiver = new LinkedHashMap<>();
+  final List<Thread> batchReceivers = new ArrayList<>();
 
   volatile CheckResult checkResult = CheckResult.OK;
 
-  ActiveMQSpanConsumer(Collector collector, CollectorMetrics metrics, ActiveMQConnection conn) {
+  ActiveMQSpanConsumer(Collector collector, CollectorMetrics metrics, ActiveMQConnection conn,
+    int batchSize) {
     this.collector = collector;
     this.metrics = metrics;
     this.connection = conn;
+    this.batchSize = batchSize;
     connection.addTransportListener(this);
   }
 
   /** JMS contract is one session per thread: we need a new session up to our concurrency level. */
   void registerInNewSession(ActiveMQConnection connection, String queue) throws JMSException {
+    boolean transacted = batchSize > 1;
     // Pass redundant info as we can't use default method in activeMQ
-    QueueSession session = connection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+    QueueSession session = connection.createQueueSession(transacted,
+      transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
     // No need to do anything on ActiveMQ side as physical queues are created on demand
     Queue destination = session.createQueue(queue);
     QueueReceiver receiver = session.createReceiver(destination);
-    receiver.setMessageListener(this);
     sessionToReceiver.put(session, receiver);
+    if (!transacted) {
+      receiver.setMessageListener(new SessionListener());
+      return;
+    }
+    Thread thread = new Thread(new ActiveMQBatchReceiver(this, session, receiver),
+      "zipkin-activemq-" + batchReceivers.size());
+    thread.setDaemon(true);
+    batchReceivers.add(thread);
+    thread.start();
   }
 
   @Override public void onCommand(Object o) {
@@ -93,29 +113,33 @@ final class ActiveMQSpanConsumer implements TransportListener, MessageListener,
     checkResult = CheckResult.OK;
   }
 
-  @Override public void onMessage(Message message) {
-    metrics.incrementMessages();
-    byte[] serialized; // TODO: consider how to reuse buffers here
-    try {
-      if (message instanceof BytesMessage) {
-        BytesMessage bytesMessage = (BytesMessage) message;
-        serialized = new byte[(int) bytesMessage.getBodyLength()];
-        bytesMessage.readBytes(serialized);
-      } else if (message instanceof TextMessage) {
-        String text = ((TextMessage) message).getText();
-        serialized = text.getBytes(UTF_8);
-      } else {
+  /** Spans are decoded before returning, so each session can read all messages into one buffer. */
+  final class SessionListener implements MessageListener {
+    final SessionBuffer buffer = new SessionBuffer();
+
+    @Override public void onMessage(Message message) {
+      metrics.incrementMessages();
+      ByteBuffer body;
+      try {
+        body = buffer.read(message);
+      } catch (Exception e) {
+        body = null;
+      }
+      if (body == null) {
         metrics.incrementMessagesDropped();
         return;
       }
-    } catch (Exception e) {
-      metrics.incrementMessagesDropped();
-      return;
+
+      metrics.incrementBytes(body.remaining());
+      if (!body.hasRemaining()) return; // lenient on empty messages
+      collector.acceptSpans(body, ActiveMQSpanConsumer::decodeList, NOOP, Runnable::run);
     }
+  }
 
-    metrics.incrementBytes(serialized.length);
-    if (serialized.length == 0) return; // lenient on empty messages
-    collector.acceptSpans(serialized, NOOP);
+  static List<Span> decodeList(ByteBuffer body) {
+    // The detector only returns SpanBytesDecoder, which can decode a buffer without copying
+    return ((SpanBytesDecoder) SpanBytesDecoderDetector.decoderForListMessage(body))
+      .decodeList(body);
   }
 
   @Override public void close() {
@@ -124,12 +148,14 @@ final class ActiveMQSpanConsumer implements TransportListener, MessageListener,
     connection.removeTransportListener(this);
     try {
       for (Map.Entry<QueueSession, QueueReceiver> sessionReceiver : sessionToReceiver.entrySet()) {
-        sessionReceiver.getValue().setMessageListener(null); // deregister this
-        sessionReceiver.getKey().close();
+        if (batchSize == 1) sessionReceiver.getValue().setMessageListener(null); // deregister
+        sessionReceiver.getKey().close(); // rolls back any uncommitted batch
       }
       connection.close();
     } catch (JMSException ignored) {
       // EmptyCatch ignored
     }
+    // Don't wait for storage of a batch that was rolled back
+    for (Thread batchReceiver : batchReceivers) batchReceiver.interrupt();
   }
 }
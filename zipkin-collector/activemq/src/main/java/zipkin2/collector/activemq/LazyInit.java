@@ -30,7 +30,7 @@ final class LazyInit {
   final CollectorMetrics metrics;
   final ActiveMQConnectionFactory connectionFactory;
   final String queue;
-  final int concurrency;
+  final int concurrency, batchSize;
 
   volatile ActiveMQSpanConsumer result;
 
@@ -40,6 +40,7 @@ final class LazyInit {
     connectionFactory = builder.connectionFactory;
     queue = builder.queue;
     concurrency = builder.concurrency;
+    batchSize = builder.batchSize;
   }
 
   ActiveMQSpanConsumer init() {
@@ -68,7 +69,8 @@ final class LazyInit {
     }
 
     try {
-      ActiveMQSpanConsumer result = new ActiveMQSpanConsumer(collector, metrics, connection);
+      ActiveMQSpanConsumer result =
+        new ActiveMQSpanConsumer(collector, metrics, connection, batchSize);
 
       for (int i = 0; i < concurrency; i++) {
         result.registerInNewSession(connection, queue);
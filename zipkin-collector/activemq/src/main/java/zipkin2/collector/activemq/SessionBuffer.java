@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.activemq;
+
+import java.nio.ByteBuffer;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import zipkin2.internal.Nullable;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads message bodies into an array reused across messages of a session, instead of allocating
+ * one per message. Like the session, this is not thread-safe.
+ */
+final class SessionBuffer {
+  byte[] array = new byte[0];
+
+  /**
+   * Returns the body of a bytes or text message, or null if it is another type. The result is only
+   * valid until the next call.
+   */
+  @Nullable ByteBuffer read(Message message) throws JMSException {
+    if (message instanceof BytesMessage) {
+      BytesMessage bytesMessage = (BytesMessage) message;
+      int length = (int) bytesMessage.getBodyLength();
+      if (array.length < length) array = new byte[length];
+      if (length > 0) bytesMessage.readBytes(array, length);
+      return ByteBuffer.wrap(array, 0, length);
+    } else if (message instanceof TextMessage) {
+      String text = ((TextMessage) message).getText();
+      return ByteBuffer.wrap(text.getBytes(UTF_8));
+    }
+    return null;
+  }
+}
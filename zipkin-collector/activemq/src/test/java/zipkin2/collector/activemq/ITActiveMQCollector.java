@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2019 The OpenZipkin Authors
+ * Copyright 2015-2020 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -223,6 +223,63 @@ public class ITActiveMQCollector {
     assertThat(activemqMetrics.spansDropped()).isZero();
   }
 
+  @Test public void batchSize_storesMessagesTogether() throws Exception {
+    collector.close();
+
+    byte[] message = PROTO3.encodeList(spans);
+    activemq.pushMessage(collector.queue, message);
+    activemq.pushMessage(collector.queue, "malformed".getBytes(UTF_8)); // committed with the batch
+    activemq.pushMessage(collector.queue, message);
+
+    collector = builder().batchSize(3).build().start();
+
+    List<Span> batch = receivedSpans.take();
+    assertThat(batch).hasSize(spans.size() * 2);
+    assertThat(batch.subList(0, spans.size())).containsExactlyElementsOf(spans);
+
+    assertThat(activemqMetrics.messages()).isEqualTo(3);
+    assertThat(activemqMetrics.messagesDropped()).isEqualTo(1);
+    assertThat(activemqMetrics.spans()).isEqualTo(spans.size() * 2);
+
+    collector.close();
+    assertThat(activemq.getMessageCount(collector.queue)).isZero();
+  }
+
+  /** Unlike the default, a batch whose storage failed is rolled back, so that it is redelivered */
+  @Test public void batchSize_redeliversOnSpanStorageException() throws Exception {
+    collector.close();
+
+    AtomicInteger counter = new AtomicInteger();
+    consumer = (input) -> new Call.Base<Void>() {
+      @Override protected Void doExecute() {
+        throw new AssertionError();
+      }
+
+      @Override protected void doEnqueue(Callback<Void> callback) {
+        if (counter.getAndIncrement() == 0) {
+          callback.onError(new RuntimeException("storage fell over"));
+        } else {
+          receivedSpans.add(input);
+          callback.onSuccess(null);
+        }
+      }
+
+      @Override public Call<Void> clone() {
+        throw new AssertionError();
+      }
+    };
+
+    activemq.pushMessage(collector.queue, PROTO3.encodeList(spans));
+
+    collector = builder().batchSize(10).storage(buildStorage(consumer)).build().start();
+
+    assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
+
+    assertThat(activemqMetrics.messages()).isEqualTo(2); // redelivered once
+    assertThat(activemqMetrics.messagesDropped()).isZero();
+    assertThat(activemqMetrics.spansDropped()).isEqualTo(spans.size());
+  }
+
   ActiveMQCollector.Builder builder() {
     return ActiveMQCollector.builder()
       .connectionFactory(activemq.createConnectionFactory())
@@ -15,9 +15,14 @@ package zipkin2.collector;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +31,7 @@ import zipkin2.Span;
 import zipkin2.SpanBytesDecoderDetector;
 import zipkin2.codec.BytesDecoder;
 import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.StorageComponent;
 
 import static java.lang.String.format;
@@ -49,6 +55,28 @@ public class Collector { // not final for mock
     }
   };
 
+  /** Error messages include the IDs of this many spans, followed by "..." if there are more. */
+  static final int LOGGED_SPAN_IDS = 3;
+
+  /**
+   * This is only raised from one place, so we don't need a stack trace. This also reduces
+   * allocations when workers are overloaded.
+   */
+  static final RejectedExecutionException WORKER_QUEUE_FULL =
+    new RejectedExecutionException("Collector worker queue is full") {
+      @Override public synchronized Throwable fillInStackTrace() {
+        return this;
+      }
+    };
+
+  /** Like {@link #WORKER_QUEUE_FULL}, for spans accepted or queued when the collector closes. */
+  static final RejectedExecutionException COLLECTOR_CLOSED =
+    new RejectedExecutionException("Collector is closed") {
+      @Override public synchronized Throwable fillInStackTrace() {
+        return this;
+      }
+    };
+
   /** Needed to scope this to the correct logging category */
   public static Builder newBuilder(Class<?> loggingClass) {
     if (loggingClass == null) throw new NullPointerException("loggingClass == null");
@@ -60,6 +88,9 @@ public class Collector { // not final for mock
     StorageComponent storage;
     CollectorSampler sampler;
     CollectorMetrics metrics;
+    DiskSpool spool;
+    int workers, workerQueueSize;
+    final List<SpanProcessor> processors = new ArrayList<>();
 
     Builder(Logger logger) {
       this.logger = logger;
@@ -86,6 +117,47 @@ public class Collector { // not final for mock
       return this;
     }
 
+    /**
+     * When set, batches rejected due to {@link StorageComponent#isOverCapacity(Throwable)
+     * capacity}, or that fail to store while the storage {@link StorageComponent#check() check}
+     * fails, are appended to this spool for later replay instead of being dropped. Defaults to
+     * none.
+     */
+    public Builder spool(DiskSpool spool) {
+      if (spool == null) throw new NullPointerException("spool == null");
+      this.spool = spool;
+      return this;
+    }
+
+    /**
+     * Adds a processor to run on sampled spans before they are stored. Processors run in the order
+     * they were added.
+     */
+    public Builder addProcessor(SpanProcessor processor) {
+      if (processor == null) throw new NullPointerException("processor == null");
+      processors.add(processor);
+      return this;
+    }
+
+    /**
+     * When positive, spans are stored by this count of worker threads, instead of the executor
+     * passed to {@link Collector#accept(List, Callback, Executor)}. Each span is routed to a worker
+     * by its trace ID, so spans of the same trace are stored in order by the same thread, and
+     * batches queued on a worker are stored together, grouped by trace ID. Defaults to zero.
+     *
+     * <p>Call {@link Collector#close()} to stop the workers.
+     *
+     * @param workers count of worker threads, or zero to use the executor passed to accept.
+     * @param queueSize maximum batches queued per worker before further ones are rejected.
+     */
+    public Builder partitionByTraceId(int workers, int queueSize) {
+      if (workers < 0) throw new IllegalArgumentException("workers < 0");
+      if (workers > 0 && queueSize <= 0) throw new IllegalArgumentException("queueSize <= 0");
+      this.workers = workers;
+      this.workerQueueSize = queueSize;
+      return this;
+    }
+
     public Collector build() {
       return new Collector(this);
     }
@@ -93,16 +165,32 @@ public class Collector { // not final for mock
 
   final Logger logger;
   final CollectorMetrics metrics;
+  final boolean timed, perService;
   final CollectorSampler sampler;
   final StorageComponent storage;
+  final DiskSpool spool; // nullable
+  final PartitionedWorkers workers; // nullable
+  final SpanProcessor[] processors;
 
   Collector(Builder builder) {
     if (builder.logger == null) throw new NullPointerException("logger == null");
     this.logger = builder.logger;
     this.metrics = builder.metrics == null ? CollectorMetrics.NOOP_METRICS : builder.metrics;
+    this.timed = metrics.isTimingEnabled();
+    this.perService = metrics.isPerServiceEnabled();
     if (builder.storage == null) throw new NullPointerException("storage == null");
     this.storage = builder.storage;
     this.sampler = builder.sampler == null ? CollectorSampler.ALWAYS_SAMPLE : builder.sampler;
+    this.spool = builder.spool;
+    this.processors = builder.processors.toArray(new SpanProcessor[0]);
+    this.workers = builder.workers > 0
+      ? new PartitionedWorkers(this, builder.workers, builder.workerQueueSize)
+      : null;
+  }
+
+  /** Stops any {@link Builder#partitionByTraceId(int, int) storage workers}. */
+  public void close() {
+    if (workers != null) workers.close();
   }
 
   public void accept(List<Span> spans, Callback<Void> callback) {
@@ -116,42 +204,200 @@ public class Collector { // not final for mock
    * @param executor the executor used to enqueue the storage request.
    */
   public void accept(List<Span> spans, Callback<Void> callback, Executor executor) {
+    accept(spans, 0, callback, executor);
+  }
+
+  /**
+   * Like {@link #accept(List, Callback, Executor)}, except when {@code durable}, the callback isn't
+   * completed until storage accepted the spans.
+   *
+   * @see #acceptSpans(ByteBuffer, Function, Callback, Executor, boolean)
+   */
+  public void accept(List<Span> spans, Callback<Void> callback, Executor executor,
+    boolean durable) {
+    accept(spans, 0, callback, executor, durable);
+  }
+
+  /**
+   * Like {@link #accept(List, Callback, Executor, boolean)} when durable, for callers that can read
+   * the spans again, such as a consumer that can seek back. When storage is over capacity and the
+   * spans can't be spooled, the callback fails, and the spans aren't counted as dropped. Other
+   * failures are counted and logged as usual, then complete the callback successfully, as reading
+   * the spans again wouldn't store them.
+   *
+   * @see StorageComponent#isOverCapacity(Throwable)
+   */
+  public void acceptRetryable(List<Span> spans, Callback<Void> callback, Executor executor) {
+    accept(spans, 0, new RetryableCallback(callback), executor, true);
+  }
+
+  /** @param messageBytes size of the message the spans were decoded from, or zero if unknown */
+  void accept(List<Span> spans, int messageBytes, Callback<Void> callback, Executor executor) {
+    accept(spans, messageBytes, callback, executor, false);
+  }
+
+  /**
+   * @param durable when true, the callback completes when storage accepted or spooled the spans,
+   * instead of when they were scheduled for storage. Such spans bypass any partitioned workers.
+   */
+  void accept(List<Span> spans, int messageBytes, Callback<Void> callback, Executor executor,
+    boolean durable) {
+    accept(spans, messageBytes, callback, executor, durable, true);
+  }
+
+  /** @param wholeMessage false when the caller counts spans, as these are part of a message */
+  void accept(List<Span> spans, int messageBytes, Callback<Void> callback, Executor executor,
+    boolean durable, boolean wholeMessage) {
     if (spans.isEmpty()) {
       callback.onSuccess(null);
       return;
     }
-    metrics.incrementSpans(spans.size());
+    if (wholeMessage) metrics.incrementSpans(spans.size());
+    if (perService) incrementServiceSpans(spans, messageBytes);
 
+    long startNanos = timed ? System.nanoTime() : 0L;
     List<Span> sampledSpans = sample(spans);
+    if (timed) metrics.recordSampleNanos(System.nanoTime() - startNanos);
     if (sampledSpans.isEmpty()) {
       callback.onSuccess(null);
       return;
     }
 
+    if (processors.length > 0) {
+      try {
+        sampledSpans = process(sampledSpans);
+      } catch (RuntimeException | Error e) {
+        handleProcessError(sampledSpans, e, callback);
+        return;
+      }
+      if (sampledSpans.isEmpty()) {
+        callback.onSuccess(null);
+        return;
+      }
+    }
+
     // In order to ensure callers are not blocked, we swap callbacks when we get to the storage
     // phase of this process. Here, we create a callback whose sole purpose is classifying later
     // errors on this bundle of spans in the same log category. This allows people to only turn on
     // debug logging in one place.
+    if (durable) {
+      storeDurably(sampledSpans, callback, executor);
+      return;
+    }
+    if (workers != null) {
+      enqueueOnWorkers(sampledSpans, callback);
+      return;
+    }
+
     try {
-      executor.execute(new StoreSpans(sampledSpans));
+      executor.execute(new StoreSpans(sampledSpans, NOOP_CALLBACK));
       callback.onSuccess(null);
     } catch (Throwable unexpected) { // ensure if a future is supplied we always set value or error
+      if (storage.isOverCapacity(unexpected) && spool(sampledSpans, unexpected)) {
+        callback.onSuccess(null);
+        return;
+      }
+      callback.onError(unexpected);
+      throw unexpected;
+    }
+  }
+
+  /** Unlike the default, the callback is passed to storage. */
+  void storeDurably(List<Span> sampledSpans, Callback<Void> callback, Executor executor) {
+    try {
+      executor.execute(new StoreSpans(sampledSpans, callback));
+    } catch (Throwable unexpected) { // ensure if a future is supplied we always set value or error
+      if (storage.isOverCapacity(unexpected) && spool(sampledSpans, unexpected)) {
+        callback.onSuccess(null);
+        return;
+      }
       callback.onError(unexpected);
       throw unexpected;
     }
   }
 
+  void enqueueOnWorkers(List<Span> sampledSpans, Callback<Void> callback) {
+    List<Span> rejected;
+    try {
+      rejected = workers.enqueue(sampledSpans);
+    } catch (Throwable unexpected) { // ensure if a future is supplied we always set value or error
+      callback.onError(unexpected);
+      throw unexpected;
+    }
+
+    RejectedExecutionException error = workers.closed ? COLLECTOR_CLOSED : WORKER_QUEUE_FULL;
+    if (rejected.isEmpty()) {
+      callback.onSuccess(null);
+    } else if (rejected.size() < sampledSpans.size()) { // partially accepted
+      new StoreSpans(rejected, NOOP_CALLBACK).onError(error);
+      callback.onSuccess(null);
+    } else if (spool(rejected, error)) {
+      callback.onSuccess(null);
+    } else {
+      callback.onError(error);
+    }
+  }
+
   /** Like {@link #acceptSpans(byte[], BytesDecoder, Callback)}, except using a byte buffer. */
   public void acceptSpans(ByteBuffer encoded, SpanBytesDecoder decoder, Callback<Void> callback,
     Executor executor) {
+    acceptSpans(encoded, decoder::decodeList, callback, executor);
+  }
+
+  /**
+   * Like {@link #acceptSpans(ByteBuffer, SpanBytesDecoder, Callback, Executor)}, except the caller
+   * controls decoding, for example to decode parts of a large message in parallel. Metrics and
+   * errors are handled the same way.
+   *
+   * @param decodeList decodes a list of spans, raising an exception if it is malformed
+   */
+  public void acceptSpans(ByteBuffer encoded, Function<ByteBuffer, List<Span>> decodeList,
+    Callback<Void> callback, Executor executor) {
+    acceptSpans(encoded, decodeList, callback, executor, false);
+  }
+
+  /**
+   * Like {@link #acceptSpans(ByteBuffer, Function, Callback, Executor)}, except when {@code
+   * durable}, the callback isn't completed until storage accepted the spans. If storage fails and
+   * they can't be spooled, the callback fails, so the sender can retry. This is slower, but gives
+   * at-least-once delivery to callers who wait for the callback.
+   *
+   * <p>Durable spans are stored on the executor directly, so bypass any {@link
+   * Builder#partitionByTraceId(int, int) partitioned workers}.
+   */
+  public void acceptSpans(ByteBuffer encoded, Function<ByteBuffer, List<Span>> decodeList,
+    Callback<Void> callback, Executor executor, boolean durable) {
+    acceptSpans(encoded, decodeList, callback, executor, durable, true);
+  }
+
+  /**
+   * Like {@link #acceptSpans(ByteBuffer, Function, Callback, Executor, boolean)}, for a part of a
+   * message split at span boundaries. This doesn't call {@link CollectorMetrics#incrementSpans(int)}
+   * or {@link CollectorMetrics#incrementMessagesDropped()}, as those describe the whole message.
+   * The caller counts them once, for example by counting spans in {@code decodeList}.
+   */
+  public void acceptMessagePart(ByteBuffer encoded, Function<ByteBuffer, List<Span>> decodeList,
+    Callback<Void> callback, Executor executor, boolean durable) {
+    acceptSpans(encoded, decodeList, callback, executor, durable, false);
+  }
+
+  void acceptSpans(ByteBuffer encoded, Function<ByteBuffer, List<Span>> decodeList,
+    Callback<Void> callback, Executor executor, boolean durable, boolean wholeMessage) {
     List<Span> spans;
+    int messageBytes = encoded.remaining();
+    long startNanos = timed ? System.nanoTime() : 0L;
     try {
-      spans = decoder.decodeList(encoded);
+      spans = decodeList.apply(encoded);
     } catch (RuntimeException | Error e) {
-      handleDecodeError(e, callback);
+      if (wholeMessage) {
+        handleDecodeError(e, callback);
+      } else {
+        handleError(e, "Cannot decode spans"::toString, callback);
+      }
       return;
     }
-    accept(spans, callback, executor);
+    if (timed) metrics.recordDecodeNanos(System.nanoTime() - startNanos);
+    accept(spans, messageBytes, callback, executor, durable, wholeMessage);
   }
 
   /**
@@ -182,13 +428,15 @@ public class Collector { // not final for mock
   public void acceptSpans(
     byte[] serializedSpans, BytesDecoder<Span> decoder, Callback<Void> callback) {
     List<Span> spans;
+    long startNanos = timed ? System.nanoTime() : 0L;
     try {
       spans = decodeList(decoder, serializedSpans);
     } catch (RuntimeException | Error e) {
       handleDecodeError(e, callback);
       return;
     }
-    accept(spans, callback);
+    if (timed) metrics.recordDecodeNanos(System.nanoTime() - startNanos);
+    accept(spans, serializedSpans.length, callback, Runnable::run);
   }
 
   List<Span> decodeList(BytesDecoder<Span> decoder, byte[] serialized) {
@@ -211,6 +459,8 @@ public class Collector { // not final for mock
       Span s = input.get(i);
       if (sampler.isSampled(s.traceId(), Boolean.TRUE.equals(s.debug()))) {
         sampled.add(s);
+      } else if (perService) {
+        metrics.incrementServiceSpansDropped(s.localServiceName(), 1);
       }
     }
     int dropped = input.size() - sampled.size();
@@ -218,14 +468,110 @@ public class Collector { // not final for mock
     return sampled;
   }
 
-  class StoreSpans implements Callback<Void>, Runnable {
-    final List<Span> spans;
+  List<Span> process(List<Span> input) {
+    List<Span> result = input;
+    for (SpanProcessor processor : processors) {
+      result = processor.process(result);
+      if (result == null) throw new NullPointerException(processor + " returned null");
+      if (result.isEmpty()) break;
+    }
+    int dropped = input.size() - result.size();
+    if (dropped > 0) {
+      metrics.incrementSpansDropped(dropped);
+      if (perService) incrementServiceSpansDropped(input, result);
+    }
+    return result;
+  }
 
-    StoreSpans(List<Span> spans) {
+  /**
+   * Spans in a message are usually from the same service, so this counts runs of the same service
+   * instead of allocating a map. The message size is attributed evenly across its spans.
+   */
+  void incrementServiceSpans(List<Span> spans, int messageBytes) {
+    int length = spans.size(), bytesPerSpan = messageBytes / length;
+    String serviceName = spans.get(0).localServiceName();
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      String next = spans.get(i).localServiceName();
+      if (!Objects.equals(next, serviceName)) {
+        metrics.incrementServiceSpans(serviceName, count, count * bytesPerSpan);
+        serviceName = next;
+        count = 0;
+      }
+      count++;
+    }
+    int remainder = messageBytes - length * bytesPerSpan;
+    metrics.incrementServiceSpans(serviceName, count, count * bytesPerSpan + remainder);
+  }
+
+  void incrementServiceSpansDropped(List<Span> spans) {
+    String serviceName = spans.get(0).localServiceName();
+    int count = 0;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      String next = spans.get(i).localServiceName();
+      if (!Objects.equals(next, serviceName)) {
+        metrics.incrementServiceSpansDropped(serviceName, count);
+        serviceName = next;
+        count = 0;
+      }
+      count++;
+    }
+    metrics.incrementServiceSpansDropped(serviceName, count);
+  }
+
+  /** Counts spans by service that are in the input, but not the output of processors. */
+  void incrementServiceSpansDropped(List<Span> input, List<Span> output) {
+    Map<String, int[]> dropped = countByService(input);
+    for (Span span : output) {
+      int[] count = dropped.get(span.localServiceName());
+      if (count != null) count[0]--;
+    }
+    incrementServiceSpansDropped(dropped);
+  }
+
+  static Map<String, int[]> countByService(List<Span> spans) {
+    Map<String, int[]> counts = new HashMap<>();
+    for (Span span : spans) {
+      counts.computeIfAbsent(span.localServiceName(), k -> new int[1])[0]++;
+    }
+    return counts;
+  }
+
+  void incrementServiceSpansDropped(Map<String, int[]> dropped) {
+    for (Map.Entry<String, int[]> entry : dropped.entrySet()) {
+      int count = entry.getValue()[0];
+      if (count > 0) metrics.incrementServiceSpansDropped(entry.getKey(), count);
+    }
+  }
+
+  class StoreSpans implements Callback<Void>, Runnable {
+    /**
+     * Storage can hold spans in a more compact form while they wait, so once they are passed to
+     * storage, this only keeps what's needed when errors don't require all spans.
+     */
+    volatile List<Span> spans;
+    final int spanCount;
+    /** Set when {@link #spans} were trimmed, but per-service metrics need to count all of them. */
+    volatile Map<String, int[]> serviceSpanCounts;
+    final Callback<Void> callback;
+    final long startNanos;
+
+    /** @param callback completed after storage, unlike the callback passed to accept */
+    StoreSpans(List<Span> spans, Callback<Void> callback) {
       this.spans = spans;
+      this.spanCount = spans.size();
+      this.callback = callback;
+      this.startNanos = timed ? System.nanoTime() : 0L;
     }
 
     @Override public void run() {
+      List<Span> spans = this.spans;
+      // Logging only needs the first few span IDs, and per-service metrics only the count of each
+      // service. Spooling needs all spans.
+      if (spool == null && spans.size() > LOGGED_SPAN_IDS) {
+        if (perService) serviceSpanCounts = countByService(spans);
+        this.spans = new ArrayList<>(spans.subList(0, LOGGED_SPAN_IDS + 1)); // +1 for "..."
+      }
       try {
         store(spans, this);
       } catch (RuntimeException | Error e) {
@@ -237,10 +583,21 @@ public class Collector { // not final for mock
     }
 
     @Override public void onSuccess(Void value) {
+      if (timed) metrics.recordStorageNanos(System.nanoTime() - startNanos);
+      callback.onSuccess(null);
     }
 
     @Override public void onError(Throwable t) {
-      handleStorageError(spans, t, NOOP_CALLBACK);
+      if (timed) metrics.recordStorageNanos(System.nanoTime() - startNanos);
+      if (shouldSpool(t) && spool(spans, t)) {
+        callback.onSuccess(null);
+        return;
+      }
+      if (callback instanceof RetryableCallback && storage.isOverCapacity(t)) {
+        ((RetryableCallback) callback).retry(t);
+        return;
+      }
+      handleStorageError(spans, spanCount, serviceSpanCounts, t, callback);
     }
 
     @Override public String toString() {
@@ -248,17 +605,83 @@ public class Collector { // not final for mock
     }
   }
 
+  /** Only fails on {@link #retry}, as other errors were already counted and logged. */
+  static final class RetryableCallback implements Callback<Void> {
+    final Callback<Void> delegate;
+
+    RetryableCallback(Callback<Void> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public void onSuccess(Void value) {
+      delegate.onSuccess(value);
+    }
+
+    @Override public void onError(Throwable t) {
+      delegate.onSuccess(null);
+    }
+
+    /** Called instead of counting spans as dropped, as the caller will read them again. */
+    void retry(Throwable t) {
+      delegate.onError(t);
+    }
+
+    @Override public String toString() {
+      return "RetryableCallback(" + delegate + ")";
+    }
+  }
+
+  /**
+   * Returns true if a storage error is transient, so the spans are likely to store on replay.
+   * Otherwise, such as when storage can't map a span, replay would fail the same way.
+   */
+  boolean shouldSpool(Throwable t) {
+    return spool != null && (storage.isOverCapacity(t) || spool.isStorageDown());
+  }
+
+  /** Returns true if the spans were appended to the spool, so are not yet dropped. */
+  boolean spool(List<Span> spans, Throwable e) {
+    if (spool == null) return false;
+    propagateIfFatal(e);
+    if (!spool.append(spans)) return false;
+    if (logger.isDebugEnabled()) {
+      logger.debug(appendSpanIds(spans, new StringBuilder("Spooled spans ")) + " due to "
+        + e.getClass().getSimpleName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
+    }
+    return true;
+  }
+
   void handleDecodeError(Throwable e, Callback<Void> callback) {
     metrics.incrementMessagesDropped();
     handleError(e, "Cannot decode spans"::toString, callback);
   }
 
+  void handleProcessError(List<Span> spans, Throwable e, Callback<Void> callback) {
+    metrics.incrementSpansDropped(spans.size());
+    if (perService) incrementServiceSpansDropped(spans);
+    handleError(e, () -> appendSpanIds(spans, new StringBuilder("Cannot process spans ")), callback);
+  }
+
   /**
    * When storing spans, an exception can be raised before or after the fact. This adds context of
    * span ids to give logs more relevance.
    */
   void handleStorageError(List<Span> spans, Throwable e, Callback<Void> callback) {
-    metrics.incrementSpansDropped(spans.size());
+    handleStorageError(spans, spans.size(), null, e, callback);
+  }
+
+  /**
+   * @param spans possibly only the first spans of {@code spanCount}
+   * @param serviceSpanCounts counts of all spans by service, when {@code spans} are only the first
+   */
+  void handleStorageError(List<Span> spans, int spanCount,
+    @Nullable Map<String, int[]> serviceSpanCounts, Throwable e, Callback<Void> callback) {
+    metrics.incrementSpansDropped(spanCount);
+    if (serviceSpanCounts != null) {
+      incrementServiceSpansDropped(serviceSpanCounts);
+    } else if (perService) {
+      incrementServiceSpansDropped(spans);
+    }
     // The exception could be related to a span being huge. Instead of filling logs,
     // print trace id, span id pairs
     handleError(e, () -> appendSpanIds(spans, new StringBuilder("Cannot store spans ")), callback);
@@ -286,7 +709,7 @@ public class Collector { // not final for mock
     message.append("[");
     int i = 0;
     Iterator<Span> iterator = spans.iterator();
-    while (iterator.hasNext() && i++ < 3) {
+    while (iterator.hasNext() && i++ < LOGGED_SPAN_IDS) {
       message.append(idString(iterator.next()));
       if (iterator.hasNext()) message.append(", ");
     }
@@ -14,6 +14,7 @@
 package zipkin2.collector;
 
 import java.util.List;
+import org.slf4j.LoggerFactory;
 import zipkin2.Component;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.StorageComponent;
@@ -52,6 +53,20 @@ public abstract class CollectorComponent extends Component {
      */
     public abstract Builder sampler(CollectorSampler sampler);
 
+    /**
+     * Adds a {@link SpanProcessor} to run on sampled spans before they are stored. Processors run
+     * in the order they were added.
+     *
+     * <p>Collectors in this project support processors. Others don't unless they override this,
+     * in which case the processor is logged and ignored, so that existing collectors keep working.
+     */
+    public Builder addProcessor(SpanProcessor processor) {
+      if (processor == null) throw new NullPointerException("processor == null");
+      LoggerFactory.getLogger(getClass()).warn(
+        "Ignoring span processor {} as this collector doesn't support processors", processor);
+      return this;
+    }
+
     public abstract CollectorComponent build();
   }
 }
@@ -15,7 +15,9 @@ package zipkin2.collector;
 
 import java.util.Collection;
 import java.util.List;
+import zipkin2.Span;
 import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.SpanConsumer;
 
 /**
@@ -81,6 +83,9 @@ public interface CollectorMetrics {
   /**
    * Increments the count of spans read from a successful message. When bundling is used, accepted
    * spans will be a larger number than successful messages.
+   *
+   * <p>This is called once per message, so implementations can also record the distribution of
+   * spans per message.
    */
   void incrementSpans(int quantity);
 
@@ -89,6 +94,9 @@ public interface CollectorMetrics {
    *
    * <p>Note: this count should relate to the raw data structures, like json or thrift, and discount
    * compression, enveloping, etc.
+   *
+   * <p>This is called once per message, so implementations can also record the distribution of
+   * bytes per message.
    */
   void incrementBytes(int quantity);
 
@@ -98,6 +106,58 @@ public interface CollectorMetrics {
    */
   void incrementSpansDropped(int quantity);
 
+  /**
+   * Returns true if this records metrics by {@link Span#localServiceName()}, such as {@link
+   * #incrementServiceSpans(String, int, int)}. Collectors only group spans by service when this is
+   * true.
+   *
+   * <p>Implementations should bound the count of services tracked, for example with {@link
+   * ServiceCounters}.
+   */
+  default boolean isPerServiceEnabled() {
+    return false;
+  }
+
+  /**
+   * Increments the count of spans from a service read from a successful message.
+   *
+   * @param serviceName the {@link Span#localServiceName()}, or null if unset.
+   * @param bytes the share of the message size attributed to these spans, or zero if unknown.
+   */
+  default void incrementServiceSpans(@Nullable String serviceName, int quantity, int bytes) {
+  }
+
+  /**
+   * Increments the count of spans from a service dropped for any reason.
+   *
+   * @param serviceName the {@link Span#localServiceName()}, or null if unset.
+   */
+  default void incrementServiceSpansDropped(@Nullable String serviceName, int quantity) {
+  }
+
+  /**
+   * Returns true if this records durations, such as {@link #recordDecodeNanos(long)}. Collectors
+   * only read the clock when this is true, so disabled timing costs no more than a field read.
+   */
+  default boolean isTimingEnabled() {
+    return false;
+  }
+
+  /** Records the time taken to decode one message into spans. */
+  default void recordDecodeNanos(long nanos) {
+  }
+
+  /** Records the time taken to apply sampling to the spans of one message. */
+  default void recordSampleNanos(long nanos) {
+  }
+
+  /**
+   * Records the time from when spans were scheduled for storage until the storage call completed,
+   * successfully or not.
+   */
+  default void recordStorageNanos(long nanos) {
+  }
+
   CollectorMetrics NOOP_METRICS =
       new CollectorMetrics() {
 
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.CheckResult;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.StorageComponent;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static zipkin2.Call.propagateIfFatal;
+
+/**
+ * A local write-ahead log of span batches that could not be stored. When {@link
+ * Collector.Builder#spool(DiskSpool) configured}, the collector appends batches here instead of
+ * dropping them when storage is {@link StorageComponent#isOverCapacity(Throwable) over capacity}
+ * or its {@link StorageComponent#check() health check} fails. Other errors, such as a span storage
+ * can't map, would fail again on replay, so aren't spooled. A background thread replays batches
+ * into storage at a bounded rate once its health check passes.
+ *
+ * <p>A message that storage rejects {@value #MAX_REPLAY_ATTEMPTS} times in a row, while healthy
+ * and not over capacity, is skipped and counted as dropped, so that it can't block the spool.
+ *
+ * <h3>Format</h3>
+ *
+ * <p>Batches are encoded as {@link SpanBytesEncoder#PROTO3 PROTO3} lists and appended to segment
+ * files named by a monotonically increasing sequence. Each record is prefixed by its length and
+ * CRC32. A small checkpoint file records the replay position, so that a restart resumes where the
+ * last one left off. On startup, any torn record at the end of a segment is truncated.
+ *
+ * <p>Delivery is at-least-once: a crash between a successful storage call and the checkpoint
+ * update will replay that batch again.
+ */
+public final class DiskSpool implements Closeable {
+  static final Logger LOG = LoggerFactory.getLogger(DiskSpool.class);
+  static final String SEGMENT_SUFFIX = ".spool", CHECKPOINT = "checkpoint";
+  static final int HEADER_SIZE = 8; // length + crc32
+  static final long REPLAY_INTERVAL_MILLIS = 100;
+  static final int MAX_REPLAY_ATTEMPTS = 3;
+  /** How long the result of a storage check is reused when deciding whether to spool. */
+  static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public static Builder newBuilder(Path directory) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    return new Builder(directory);
+  }
+
+  public static final class Builder {
+    final Path directory;
+    StorageComponent storage;
+    long maxBytes = 1024L * 1024 * 1024;
+    int segmentBytes = 64 * 1024 * 1024;
+    int replayMessagesPerSecond = 100;
+
+    Builder(Path directory) {
+      this.directory = directory;
+    }
+
+    /** Where spooled messages are replayed to. Usually the same as the collector's. */
+    public Builder storage(StorageComponent storage) {
+      if (storage == null) throw new NullPointerException("storage == null");
+      this.storage = storage;
+      return this;
+    }
+
+    /** Upper bound of disk used by segments. Appends beyond this are refused. Defaults to 1GiB */
+    public Builder maxBytes(long maxBytes) {
+      if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /** Size at which a new segment is started. Defaults to 64MiB */
+    public Builder segmentBytes(int segmentBytes) {
+      if (segmentBytes <= HEADER_SIZE) throw new IllegalArgumentException("segmentBytes too small");
+      this.segmentBytes = segmentBytes;
+      return this;
+    }
+
+    /** Maximum spooled messages replayed into storage per second. Defaults to 100 */
+    public Builder replayMessagesPerSecond(int replayMessagesPerSecond) {
+      if (replayMessagesPerSecond <= 0) {
+        throw new IllegalArgumentException("replayMessagesPerSecond <= 0");
+      }
+      this.replayMessagesPerSecond = replayMessagesPerSecond;
+      return this;
+    }
+
+    /** Recovers any segments left in the directory. Call {@link #start()} to begin replaying. */
+    public DiskSpool build() {
+      if (storage == null) throw new NullPointerException("storage == null");
+      try {
+        return new DiskSpool(this);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  static final class Segment {
+    final long sequence;
+    final Path path;
+    long size, messages; // messages not yet replayed
+
+    Segment(long sequence, Path path, long size, long messages) {
+      this.sequence = sequence;
+      this.path = path;
+      this.size = size;
+      this.messages = messages;
+    }
+  }
+
+  static final class Record {
+    final byte[] message;
+    final long nextOffset;
+
+    Record(byte[] message, long nextOffset) {
+      this.message = message;
+      this.nextOffset = nextOffset;
+    }
+  }
+
+  final Path directory;
+  final StorageComponent storage;
+  final long maxBytes;
+  final int segmentBytes;
+  final int replayMessagesPerSecond;
+  /** Permits replayed in one tick, which bounds the burst after an idle period. */
+  final double maxReplayPermits;
+  final AtomicLong replayedMessages = new AtomicLong(), replayedSpans = new AtomicLong();
+  final AtomicLong droppedMessages = new AtomicLong(), droppedSpans = new AtomicLong();
+
+  // only used by the replay thread
+  double replayPermits;
+  long replayPermitsNanos;
+  int replayFailures; // of the next message
+
+  // the last storage check, used to decide whether to spool
+  final Object checkLock = new Object();
+  volatile boolean storageDown;
+  volatile long checkedNanos;
+
+  // guarded by this
+  final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  FileChannel writeChannel, readChannel;
+  long nextSequence, readOffset, diskBytes;
+  ScheduledExecutorService replayer;
+  boolean closed;
+
+  // written under lock, but read without for metrics
+  volatile long spooledBytes, spooledMessages;
+
+  DiskSpool(Builder builder) throws IOException {
+    directory = builder.directory;
+    storage = builder.storage;
+    maxBytes = builder.maxBytes;
+    segmentBytes = builder.segmentBytes;
+    replayMessagesPerSecond = builder.replayMessagesPerSecond;
+    maxReplayPermits = Math.max(1.0,
+      replayMessagesPerSecond * REPLAY_INTERVAL_MILLIS / 1000.0);
+    replayPermits = maxReplayPermits;
+    replayPermitsNanos = System.nanoTime();
+    checkedNanos = replayPermitsNanos - CHECK_INTERVAL_NANOS; // so that the first call checks
+    Files.createDirectories(directory);
+    recover();
+  }
+
+  /** Starts replaying spooled messages into storage in the background. */
+  @SuppressWarnings("FutureReturnValueIgnored") // the replayer is shut down instead of cancelled
+  public synchronized DiskSpool start() {
+    if (closed) throw new IllegalStateException("closed");
+    if (replayer != null) return this;
+    replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "zipkin-spool-replay");
+      thread.setDaemon(true);
+      return thread;
+    });
+    replayer.scheduleWithFixedDelay(this::replay, REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS,
+      TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /** Bytes spooled that are not yet replayed. */
+  public long spooledBytes() {
+    return spooledBytes;
+  }
+
+  /** Messages spooled that are not yet replayed. */
+  public long spooledMessages() {
+    return spooledMessages;
+  }
+
+  /** Cumulative count of messages successfully replayed into storage. */
+  public long replayedMessages() {
+    return replayedMessages.get();
+  }
+
+  /** Cumulative count of spans successfully replayed into storage. */
+  public long replayedSpans() {
+    return replayedSpans.get();
+  }
+
+  /** Cumulative count of spooled messages skipped, as storage rejected them on each replay. */
+  public long droppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /** Cumulative count of spans in {@link #droppedMessages() dropped messages}. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /**
+   * Returns true if the storage health check fails. The result is reused for a second, as this is
+   * called for each batch that failed to store.
+   */
+  boolean isStorageDown() {
+    if (System.nanoTime() - checkedNanos < CHECK_INTERVAL_NANOS) return storageDown;
+    synchronized (checkLock) {
+      long now = System.nanoTime();
+      if (now - checkedNanos < CHECK_INTERVAL_NANOS) return storageDown; // checked meanwhile
+      boolean down;
+      try {
+        down = !storage.check().ok();
+      } catch (Throwable e) {
+        propagateIfFatal(e);
+        down = true;
+      }
+      storageDown = down;
+      checkedNanos = now;
+      return down;
+    }
+  }
+
+  /**
+   * Returns true if the spans were appended, or false if the spool is closed, full or could not be
+   * written.
+   *
+   * <p>Appends are written to the page cache, and only forced to disk when a segment is rolled.
+   * So, they survive a crash of this process, but not necessarily of the host.
+   */
+  public boolean append(List<Span> spans) {
+    if (spans.isEmpty()) return true;
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(spans);
+    int recordSize = HEADER_SIZE + message.length;
+    ByteBuffer record = ByteBuffer.allocate(recordSize);
+    record.putInt(message.length).putInt(crc32(message)).put(message).flip();
+
+    synchronized (this) {
+      if (closed || diskBytes + recordSize > maxBytes) return false;
+      try {
+        Segment tail = segments.peekLast();
+        if (writeChannel == null || (tail.size > 0 && tail.size + recordSize > segmentBytes)) {
+          tail = newSegment();
+        }
+        while (record.hasRemaining()) writeChannel.write(record);
+        tail.size += recordSize;
+        tail.messages++;
+        diskBytes += recordSize;
+        spooledBytes += recordSize;
+        spooledMessages++;
+        return true;
+      } catch (IOException e) {
+        LOG.debug("Cannot spool {} spans due to {}", spans.size(), e.getMessage(), e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Replays messages permitted by the time elapsed since the last call, stopping at the first
+   * storage error.
+   */
+  void replay() {
+    long now = System.nanoTime();
+    replayPermits = Math.min(maxReplayPermits,
+      replayPermits + (now - replayPermitsNanos) * replayMessagesPerSecond / 1e9);
+    replayPermitsNanos = now;
+    if (spooledMessages == 0 || replayPermits < 1) return;
+    try {
+      CheckResult check = storage.check();
+      if (!check.ok()) return;
+
+      for (; replayPermits >= 1; replayPermits--) {
+        Record record = next();
+        if (record == null) return;
+
+        List<Span> spans;
+        try {
+          spans = SpanBytesDecoder.PROTO3.decodeList(record.message);
+        } catch (RuntimeException e) { // unexpected as the CRC matched: skip the record
+          LOG.debug("Skipping spooled message that cannot be decoded: {}", e.getMessage(), e);
+          commit(record);
+          continue;
+        }
+
+        try {
+          storage.spanConsumer().accept(spans).execute();
+        } catch (Throwable e) {
+          propagateIfFatal(e);
+          if (storage.isOverCapacity(e) || ++replayFailures < MAX_REPLAY_ATTEMPTS) throw e;
+          // Storage is healthy, yet rejects this message. Skip it so that it can't block others.
+          LOG.debug("Dropping spooled message of {} spans after {} attempts due to {}",
+            spans.size(), replayFailures, e.getMessage(), e);
+          replayFailures = 0;
+          commit(record);
+          droppedMessages.incrementAndGet();
+          droppedSpans.addAndGet(spans.size());
+          continue;
+        }
+        replayFailures = 0;
+        commit(record);
+        replayedMessages.incrementAndGet();
+        replayedSpans.addAndGet(spans.size());
+      }
+    } catch (Throwable e) { // keep the scheduled task alive: we retry on the next tick
+      propagateIfFatal(e);
+      LOG.debug("Cannot replay spooled spans due to {}", e.getMessage(), e);
+    }
+  }
+
+  /** Returns the next record to replay, or null if there is none. */
+  synchronized Record next() throws IOException {
+    while (!closed) {
+      Segment head = segments.peekFirst();
+      if (head == null) return null;
+
+      if (readOffset + HEADER_SIZE <= head.size) {
+        if (readChannel == null) readChannel = FileChannel.open(head.path, READ);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(readChannel, header, readOffset);
+        int length = header.getInt(0), crc = header.getInt(4);
+        if (length >= 0 && readOffset + HEADER_SIZE + length <= head.size) {
+          ByteBuffer message = ByteBuffer.allocate(length);
+          readFully(readChannel, message, readOffset + HEADER_SIZE);
+          if (crc32(message.array()) == crc) {
+            return new Record(message.array(), readOffset + HEADER_SIZE + length);
+          }
+        }
+        // Corruption after recovery is unexpected. Abandon the rest of this segment.
+        LOG.debug("Skipping corrupt spool segment {} at offset {}", head.path, readOffset);
+        spooledBytes -= head.size - readOffset;
+        spooledMessages -= head.messages;
+        head.messages = 0;
+        readOffset = head.size;
+      }
+
+      if (head == segments.peekLast() && writeChannel != null) return null; // still appending
+      removeHead();
+    }
+    return null;
+  }
+
+  /** Advances the replay position past the given record. */
+  synchronized void commit(Record record) throws IOException {
+    if (closed) return;
+    spooledBytes -= record.nextOffset - readOffset;
+    spooledMessages--;
+    Segment head = segments.peekFirst();
+    head.messages--;
+    readOffset = record.nextOffset;
+    writeCheckpoint(head.sequence, readOffset);
+  }
+
+  @Override public void close() throws IOException {
+    ScheduledExecutorService replayer;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      replayer = this.replayer;
+      if (writeChannel != null) writeChannel.close();
+      if (readChannel != null) readChannel.close();
+    }
+    if (replayer != null) replayer.shutdownNow();
+  }
+
+  @Override public String toString() {
+    return "DiskSpool{directory=" + directory + ", maxBytes=" + maxBytes + "}";
+  }
+
+  void removeHead() throws IOException {
+    Segment head = segments.removeFirst();
+    if (readChannel != null) {
+      readChannel.close();
+      readChannel = null;
+    }
+    Files.deleteIfExists(head.path);
+    diskBytes -= head.size;
+    readOffset = 0;
+    Segment next = segments.peekFirst();
+    writeCheckpoint(next != null ? next.sequence : nextSequence, 0);
+  }
+
+  Segment newSegment() throws IOException {
+    if (writeChannel != null) {
+      writeChannel.force(false);
+      writeChannel.close();
+    }
+    long sequence = nextSequence++;
+    Path path = directory.resolve(segmentName(sequence));
+    writeChannel = FileChannel.open(path, CREATE_NEW, WRITE);
+    Segment result = new Segment(sequence, path, 0, 0);
+    segments.addLast(result);
+    return result;
+  }
+
+  void writeCheckpoint(long sequence, long offset) throws IOException {
+    Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(16).putLong(sequence).putLong(offset);
+      buffer.flip();
+      while (buffer.hasRemaining()) channel.write(buffer);
+    }
+    Files.move(tmp, directory.resolve(CHECKPOINT), ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  /**
+   * Loads segments left by a previous process. Consumed segments are deleted, and each remaining
+   * one is scanned so that a torn record, for example from a crash mid-append, is truncated.
+   */
+  synchronized void recover() throws IOException {
+    List<Long> sequences = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        try {
+          sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          LOG.debug("Ignoring unexpected file in spool directory: {}", path);
+        }
+      }
+    }
+    Collections.sort(sequences);
+
+    long checkpointSequence = -1, checkpointOffset = 0;
+    Path checkpoint = directory.resolve(CHECKPOINT);
+    if (Files.exists(checkpoint) && Files.size(checkpoint) == 16) {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+      checkpointSequence = buffer.getLong();
+      checkpointOffset = buffer.getLong();
+    }
+
+    for (long sequence : sequences) {
+      Path path = directory.resolve(segmentName(sequence));
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      if (sequence < checkpointSequence) { // already replayed
+        Files.delete(path);
+        continue;
+      }
+
+      long offset = sequence == checkpointSequence ? checkpointOffset : 0L;
+      long[] scan = scan(path, offset); // {valid size, messages after offset}
+      if (scan[0] <= offset) {
+        Files.delete(path);
+        continue;
+      }
+      if (segments.isEmpty()) readOffset = offset;
+      segments.addLast(new Segment(sequence, path, scan[0], scan[1]));
+      diskBytes += scan[0];
+      spooledBytes += scan[0] - offset;
+      spooledMessages += scan[1];
+    }
+    Segment head = segments.peekFirst();
+    writeCheckpoint(head != null ? head.sequence : nextSequence, readOffset);
+  }
+
+  /** Returns the valid length of the segment and count of messages after the offset. */
+  static long[] scan(Path path, long offset) throws IOException {
+    long position = 0, messages = 0;
+    try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+      long size = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (position + HEADER_SIZE <= size) {
+        header.clear();
+        readFully(channel, header, position);
+        int length = header.getInt(0);
+        if (length < 0 || position + HEADER_SIZE + length > size) break;
+        ByteBuffer message = ByteBuffer.allocate(length);
+        readFully(channel, message, position + HEADER_SIZE);
+        if (crc32(message.array()) != header.getInt(4)) break;
+        position += HEADER_SIZE + length;
+        if (position > offset) messages++;
+      }
+      if (position < size) {
+        LOG.debug("Truncating spool segment {} from {} to {} bytes", path, size, position);
+        channel.truncate(position);
+      }
+    }
+    return new long[] {position, messages};
+  }
+
+  static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) throw new IOException("Unexpected end of spool segment");
+    }
+  }
+
+  static String segmentName(long sequence) {
+    return String.format("%020d%s", sequence, SEGMENT_SUFFIX);
+  }
+
+  static int crc32(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+}
@@ -14,108 +14,215 @@
 package zipkin2.collector;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 public final class InMemoryCollectorMetrics implements CollectorMetrics {
-
-  private final ConcurrentHashMap<String, AtomicInteger> metrics;
-  private final String messages;
-  private final String messagesDropped;
-  private final String bytes;
-  private final String spans;
-  private final String spansDropped;
+  static final int MAX_SERVICES = 1000;
+
+  private final ConcurrentHashMap<String, LongAdder> metrics;
+  private final ConcurrentHashMap<String, Distribution> distributions;
+  private final ServiceCounters services;
+  // Looked up once, so that incrementing doesn't hash strings
+  private final LongAdder messages;
+  private final LongAdder messagesDropped;
+  private final LongAdder bytes;
+  private final LongAdder spans;
+  private final LongAdder spansDropped;
+  private final Distribution messageBytes;
+  private final Distribution messageSpans;
+  private final Distribution decodeNanos;
+  private final Distribution sampleNanos;
+  private final Distribution storageNanos;
 
   public InMemoryCollectorMetrics() {
-    this(new ConcurrentHashMap<>(), null);
+    this(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(),
+      ServiceCounters.create(MAX_SERVICES), null);
   }
 
-  InMemoryCollectorMetrics(ConcurrentHashMap<String, AtomicInteger> metrics, String transport) {
+  InMemoryCollectorMetrics(ConcurrentHashMap<String, LongAdder> metrics,
+    ConcurrentHashMap<String, Distribution> distributions, ServiceCounters services,
+    String transport) {
     this.metrics = metrics;
-    this.messages = scope("messages", transport);
-    this.messagesDropped = scope("messagesDropped", transport);
-    this.bytes = scope("bytes", transport);
-    this.spans = scope("spans", transport);
-    this.spansDropped = scope("spansDropped", transport);
+    this.distributions = distributions;
+    this.services = services;
+    this.messages = counter(scope("messages", transport));
+    this.messagesDropped = counter(scope("messagesDropped", transport));
+    this.bytes = counter(scope("bytes", transport));
+    this.spans = counter(scope("spans", transport));
+    this.spansDropped = counter(scope("spansDropped", transport));
+    this.messageBytes = distribution(scope("messageBytes", transport));
+    this.messageSpans = distribution(scope("messageSpans", transport));
+    this.decodeNanos = distribution(scope("decodeNanos", transport));
+    this.sampleNanos = distribution(scope("sampleNanos", transport));
+    this.storageNanos = distribution(scope("storageNanos", transport));
   }
 
   @Override
   public InMemoryCollectorMetrics forTransport(String transportType) {
     if (transportType == null) throw new NullPointerException("transportType == null");
-    return new InMemoryCollectorMetrics(metrics, transportType);
+    return new InMemoryCollectorMetrics(metrics, distributions, services, transportType);
   }
 
   @Override
   public void incrementMessages() {
-    increment(messages, 1);
+    messages.increment();
   }
 
   public int messages() {
-    return get(messages);
+    return messages.intValue();
   }
 
   @Override
   public void incrementMessagesDropped() {
-    increment(messagesDropped, 1);
+    messagesDropped.increment();
   }
 
   public int messagesDropped() {
-    return get(messagesDropped);
+    return messagesDropped.intValue();
   }
 
   @Override
   public void incrementBytes(int quantity) {
-    increment(bytes, quantity);
+    bytes.add(quantity);
+    messageBytes.record(quantity);
   }
 
   public int bytes() {
-    return get(bytes);
+    return bytes.intValue();
   }
 
   @Override
   public void incrementSpans(int quantity) {
-    increment(spans, quantity);
+    spans.add(quantity);
+    messageSpans.record(quantity);
   }
 
   public int spans() {
-    return get(spans);
+    return spans.intValue();
   }
 
   @Override
   public void incrementSpansDropped(int quantity) {
-    increment(spansDropped, quantity);
+    spansDropped.add(quantity);
   }
 
   public int spansDropped() {
-    return get(spansDropped);
+    return spansDropped.intValue();
   }
 
-  public void clear() {
-    metrics.clear();
+  /** Distribution of {@link #incrementBytes(int) bytes per message}. */
+  public Distribution messageBytes() {
+    return messageBytes;
   }
 
-  private int get(String key) {
-    AtomicInteger atomic = metrics.get(key);
-    return atomic == null ? 0 : atomic.get();
+  /** Distribution of {@link #incrementSpans(int) spans per message}. */
+  public Distribution messageSpans() {
+    return messageSpans;
   }
 
-  private void increment(String key, int quantity) {
-    if (quantity == 0) return;
-    while (true) {
-      AtomicInteger metric = metrics.get(key);
-      if (metric == null) {
-        metric = metrics.putIfAbsent(key, new AtomicInteger(quantity));
-        if (metric == null) return; // won race creating the entry
-      }
+  @Override
+  public boolean isPerServiceEnabled() {
+    return true;
+  }
 
-      while (true) {
-        int oldValue = metric.get();
-        int update = oldValue + quantity;
-        if (metric.compareAndSet(oldValue, update)) return; // won race updating
-      }
-    }
+  @Override
+  public void incrementServiceSpans(String serviceName, int quantity, int bytes) {
+    services.incrementSpans(serviceName, quantity, bytes);
+  }
+
+  @Override
+  public void incrementServiceSpansDropped(String serviceName, int quantity) {
+    services.incrementSpansDropped(serviceName, quantity);
+  }
+
+  /** Counts by service, shared by all transports. */
+  public ServiceCounters services() {
+    return services;
+  }
+
+  @Override
+  public boolean isTimingEnabled() {
+    return true;
+  }
+
+  @Override
+  public void recordDecodeNanos(long nanos) {
+    decodeNanos.record(nanos);
+  }
+
+  public Distribution decodeNanos() {
+    return decodeNanos;
+  }
+
+  @Override
+  public void recordSampleNanos(long nanos) {
+    sampleNanos.record(nanos);
+  }
+
+  public Distribution sampleNanos() {
+    return sampleNanos;
+  }
+
+  @Override
+  public void recordStorageNanos(long nanos) {
+    storageNanos.record(nanos);
+  }
+
+  public Distribution storageNanos() {
+    return storageNanos;
+  }
+
+  /** Resets all metrics, including those of other transports. */
+  public void clear() {
+    metrics.values().forEach(LongAdder::reset);
+    distributions.values().forEach(Distribution::clear);
+    services.clear();
+  }
+
+  private LongAdder counter(String key) {
+    return metrics.computeIfAbsent(key, k -> new LongAdder());
+  }
+
+  private Distribution distribution(String key) {
+    return distributions.computeIfAbsent(key, k -> new Distribution());
   }
 
   static String scope(String key, String transport) {
     return key + (transport == null ? "" : "." + transport);
   }
+
+  /** Lock-free count, total and maximum of recorded values. */
+  public static final class Distribution {
+    final LongAdder count = new LongAdder(), total = new LongAdder();
+    final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    void record(long value) {
+      count.increment();
+      total.add(value);
+      max.accumulate(value);
+    }
+
+    public long count() {
+      return count.sum();
+    }
+
+    public long total() {
+      return total.sum();
+    }
+
+    public long max() {
+      return max.get();
+    }
+
+    void clear() {
+      count.reset();
+      total.reset();
+      max.reset();
+    }
+
+    @Override public String toString() {
+      return "Distribution{count=" + count() + ", total=" + total() + ", max=" + max() + "}";
+    }
+  }
 }
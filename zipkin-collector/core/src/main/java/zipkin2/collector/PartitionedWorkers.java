@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import zipkin2.Span;
+import zipkin2.internal.HexCodec;
+
+/**
+ * Routes spans to a fixed worker thread by the lower 64 bits of their trace ID. As each worker has
+ * its own bounded queue and stores in the order batches arrived, spans of the same trace are stored
+ * in order by the same thread.
+ *
+ * <p>When a worker wakes, it drains what is queued, up to about {@value #MAX_BATCH_SPANS} spans,
+ * and stores it as one batch, sorted so that spans of the same trace are adjacent. This gives
+ * storage a chance to merge writes for the same trace or partition.
+ *
+ * <p>On {@link #close()}, batches still queued are spooled or counted as dropped, like those
+ * rejected by a full queue.
+ */
+final class PartitionedWorkers {
+  static final Comparator<Span> BY_TRACE_ID = Comparator.comparing(Span::traceId);
+  /** Bounds one storage call, as otherwise it could grow to a queue of large messages. */
+  static final int MAX_BATCH_SPANS = 1000;
+
+  final Collector collector;
+  final Worker[] workers;
+  /** Read by enqueue, so that close doesn't drain queues while a batch is being offered. */
+  final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  volatile boolean closed;
+
+  PartitionedWorkers(Collector collector, int count, int queueSize) {
+    this.collector = collector;
+    this.workers = new Worker[count];
+    for (int i = 0; i < count; i++) {
+      workers[i] = new Worker(i, queueSize);
+      workers[i].start();
+    }
+  }
+
+  /** Returns spans whose worker queue was full, or an empty list if all were queued. */
+  List<Span> enqueue(List<Span> spans) {
+    closeLock.readLock().lock();
+    try {
+      if (closed) return spans;
+      return offer(spans);
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  List<Span> offer(List<Span> spans) {
+    if (workers.length == 1) {
+      return workers[0].queue.offer(spans) ? Collections.emptyList() : spans;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    List<Span>[] partitions = new List[workers.length];
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      int partition = partition(span.traceId(), workers.length);
+      if (partitions[partition] == null) partitions[partition] = new ArrayList<>();
+      partitions[partition].add(span);
+    }
+
+    List<Span> rejected = Collections.emptyList();
+    for (int i = 0; i < partitions.length; i++) {
+      if (partitions[i] == null || workers[i].queue.offer(partitions[i])) continue;
+      if (rejected.isEmpty()) rejected = new ArrayList<>();
+      rejected.addAll(partitions[i]);
+    }
+    return rejected;
+  }
+
+  /** Stops the workers, and handles any batches they didn't take as storage errors. */
+  void close() {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    for (Worker worker : workers) worker.interrupt();
+
+    List<List<Span>> remaining = new ArrayList<>();
+    for (Worker worker : workers) worker.queue.drainTo(remaining);
+    for (List<Span> spans : remaining) {
+      collector.new StoreSpans(spans, Collector.NOOP_CALLBACK).onError(Collector.COLLECTOR_CLOSED);
+    }
+  }
+
+  /** Uses only the lower 64 bits, as instrumentation still send mixed trace ID width. */
+  static int partition(String traceId, int count) {
+    long lowTraceId = HexCodec.lowerHexToUnsignedLong(traceId);
+    return Math.floorMod(Long.hashCode(lowTraceId), count);
+  }
+
+  final class Worker extends Thread {
+    final BlockingQueue<List<Span>> queue;
+
+    Worker(int index, int queueSize) {
+      super("zipkin-collector-worker-" + index);
+      setDaemon(true);
+      queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    @Override public void run() {
+      List<List<Span>> drained = new ArrayList<>();
+      while (!closed && !isInterrupted()) {
+        try {
+          drained.add(queue.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        int spanCount = drained.get(0).size();
+        for (List<Span> next; spanCount < MAX_BATCH_SPANS && (next = queue.poll()) != null; ) {
+          drained.add(next);
+          spanCount += next.size();
+        }
+
+        List<Span> batch = drained.get(0);
+        if (drained.size() > 1 || batch.size() > 1) {
+          batch = new ArrayList<>();
+          for (List<Span> spans : drained) batch.addAll(spans);
+          batch.sort(BY_TRACE_ID); // stable, so spans of one trace remain in received order
+        }
+        drained.clear();
+
+        collector.new StoreSpans(batch, Collector.NOOP_CALLBACK).run();
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import zipkin2.internal.Nullable;
+
+/**
+ * Counts spans, bytes and dropped spans by {@link zipkin2.Span#localServiceName() local service
+ * name}, for use in {@link CollectorMetrics} implementations.
+ *
+ * <p>To bound cardinality, at most {@code maxServices} services are tracked. Spans of others are
+ * counted in the {@link #OTHER} bucket. Services counted there are also estimated with a
+ * space-saving sketch (Metwally et al.), so that a noisy service seen after the limit was reached
+ * isn't hidden. Every minute, an untracked service that certainly sent more spans than the
+ * quietest tracked one did since the last {@link #rebalance()} replaces it. The evicted service's
+ * counts are folded into {@link #OTHER}. As each replacement adds a time series, a service must be
+ * noisier, not as noisy, to replace another. Spans counted while their service is evicted may be
+ * lost.
+ *
+ * <p>Counters are {@link LongAdder}s, as many collector threads update the same service at once.
+ */
+public final class ServiceCounters {
+  /**
+   * Bucket for spans of services that exceed {@code maxServices}. This is upper-case, so it can't
+   * clash with a service name, which are {@link zipkin2.Endpoint#serviceName() lower-case}.
+   */
+  public static final String OTHER = "OTHER";
+  /** Name used for spans missing a {@link zipkin2.Span#localServiceName() local service name}. */
+  public static final String UNKNOWN = "unknown";
+
+  static final long REBALANCE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  public static ServiceCounters create(int maxServices) {
+    return create(maxServices, (serviceName, counters) -> {
+    });
+  }
+
+  /**
+   * Like {@link #create(int)}, except {@code onNewService} is invoked once per tracked service,
+   * including {@link #OTHER}, for example to register metrics that read the counters.
+   */
+  public static ServiceCounters create(int maxServices,
+    BiConsumer<String, Counters> onNewService) {
+    return create(maxServices, onNewService, (serviceName, counters) -> {
+    });
+  }
+
+  /**
+   * Like {@link #create(int, BiConsumer)}, except {@code onEvictedService} is invoked when a
+   * service is replaced by a noisier one, for example to unregister its metrics. The service is
+   * passed to {@code onNewService} again if it is tracked again later.
+   */
+  public static ServiceCounters create(int maxServices,
+    BiConsumer<String, Counters> onNewService, BiConsumer<String, Counters> onEvictedService) {
+    if (maxServices <= 0) throw new IllegalArgumentException("maxServices <= 0");
+    if (onNewService == null) throw new NullPointerException("onNewService == null");
+    if (onEvictedService == null) throw new NullPointerException("onEvictedService == null");
+    return new ServiceCounters(maxServices, onNewService, onEvictedService);
+  }
+
+  final int maxServices;
+  final BiConsumer<String, Counters> onNewService, onEvictedService;
+  final ConcurrentHashMap<String, Counters> services = new ConcurrentHashMap<>();
+  final Counters other = new Counters(OTHER);
+  /** Space-saving sketch of spans counted in {@link #OTHER}: estimate and error by service. */
+  final Map<String, long[]> candidates = new HashMap<>();
+  volatile long rebalancedNanos = System.nanoTime();
+
+  ServiceCounters(int maxServices, BiConsumer<String, Counters> onNewService,
+    BiConsumer<String, Counters> onEvictedService) {
+    this.maxServices = maxServices;
+    this.onNewService = onNewService;
+    this.onEvictedService = onEvictedService;
+    onNewService.accept(OTHER, other);
+  }
+
+  /** Returns counters for the service, or {@link #OTHER} if too many services are tracked. */
+  public Counters get(@Nullable String serviceName) {
+    if (serviceName == null || serviceName.isEmpty()) serviceName = UNKNOWN;
+    Counters result = services.get(serviceName);
+    if (result != null) return result;
+    if (services.size() >= maxServices) return other;
+
+    synchronized (this) { // check again, to ensure we only admit up to the limit
+      result = services.get(serviceName);
+      if (result != null) return result;
+      if (services.size() >= maxServices) return other;
+      result = new Counters(serviceName);
+      services.put(serviceName, result);
+    }
+    onNewService.accept(serviceName, result);
+    return result;
+  }
+
+  /** Implements {@link CollectorMetrics#incrementServiceSpans(String, int, int)}. */
+  public void incrementSpans(@Nullable String serviceName, int quantity, int bytes) {
+    Counters counters = get(serviceName);
+    counters.spans.add(quantity);
+    counters.bytes.add(bytes);
+    if (counters == other) offerCandidate(serviceName, quantity);
+    if (System.nanoTime() - rebalancedNanos >= REBALANCE_INTERVAL_NANOS) maybeRebalance();
+  }
+
+  synchronized void maybeRebalance() { // check again, as another thread may have rebalanced
+    if (System.nanoTime() - rebalancedNanos >= REBALANCE_INTERVAL_NANOS) rebalance();
+  }
+
+  /** Adds spans of an untracked service to the sketch, replacing its smallest estimate if full. */
+  void offerCandidate(@Nullable String serviceName, int quantity) {
+    if (serviceName == null || serviceName.isEmpty()) serviceName = UNKNOWN;
+    synchronized (candidates) {
+      long[] estimate = candidates.get(serviceName);
+      if (estimate == null && candidates.size() >= maxServices) {
+        Iterator<Map.Entry<String, long[]>> i = candidates.entrySet().iterator();
+        Map.Entry<String, long[]> min = i.next();
+        while (i.hasNext()) {
+          Map.Entry<String, long[]> next = i.next();
+          if (next.getValue()[0] < min.getValue()[0]) min = next;
+        }
+        estimate = candidates.remove(min.getKey());
+        estimate[1] = estimate[0]; // the new service may have sent as many spans as the old
+      } else if (estimate == null) {
+        estimate = new long[2];
+      }
+      estimate[0] += quantity;
+      candidates.put(serviceName, estimate);
+    }
+  }
+
+  /**
+   * Replaces tracked services with untracked ones that certainly sent more spans since the last
+   * call. This is called every minute while spans are counted.
+   */
+  public synchronized void rebalance() {
+    rebalancedNanos = System.nanoTime();
+    Map<String, Long> noisiest = new LinkedHashMap<>();
+    synchronized (candidates) { // guaranteed counts, noisiest first
+      candidates.entrySet().stream()
+        .sorted(Comparator.comparingLong(e -> e.getValue()[1] - e.getValue()[0]))
+        .forEach(e -> noisiest.put(e.getKey(), e.getValue()[0] - e.getValue()[1]));
+      candidates.clear();
+    }
+
+    List<Counters> quietest = new ArrayList<>(services.values());
+    for (Counters counters : quietest) { // snapshot, as counts change while sorting
+      long spans = counters.spans();
+      counters.recentSpans = spans - counters.spansAtRebalance;
+      counters.spansAtRebalance = spans;
+    }
+    quietest.sort(Comparator.comparingLong(counters -> counters.recentSpans));
+    Iterator<Counters> evict = quietest.iterator();
+    for (Map.Entry<String, Long> candidate : noisiest.entrySet()) {
+      if (!evict.hasNext()) break;
+      Counters evicted = evict.next();
+      if (candidate.getValue() <= evicted.recentSpans) break;
+
+      services.remove(evicted.serviceName);
+      other.spans.add(evicted.spans());
+      other.bytes.add(evicted.bytes());
+      other.spansDropped.add(evicted.spansDropped());
+      onEvictedService.accept(evicted.serviceName, evicted);
+
+      Counters admitted = new Counters(candidate.getKey());
+      services.put(admitted.serviceName, admitted);
+      onNewService.accept(admitted.serviceName, admitted);
+    }
+  }
+
+  /** Implements {@link CollectorMetrics#incrementServiceSpansDropped(String, int)}. */
+  public void incrementSpansDropped(@Nullable String serviceName, int quantity) {
+    get(serviceName).spansDropped.add(quantity);
+  }
+
+  /** Returns all counters, including {@link #OTHER}, ordered by most spans first. */
+  public List<Counters> list() {
+    List<Counters> result = new ArrayList<>(services.size() + 1);
+    result.addAll(services.values());
+    result.add(other);
+    result.sort(Comparator.comparingLong(Counters::spans).reversed());
+    return result;
+  }
+
+  /** Resets all counts, but not which services are tracked. */
+  public synchronized void clear() {
+    synchronized (candidates) {
+      candidates.clear();
+    }
+    for (Map.Entry<String, Counters> entry : services.entrySet()) entry.getValue().clear();
+    other.clear();
+  }
+
+  @Override public String toString() {
+    return "ServiceCounters{maxServices=" + maxServices + "}";
+  }
+
+  public static final class Counters {
+    final String serviceName;
+    final LongAdder spans = new LongAdder(), bytes = new LongAdder();
+    final LongAdder spansDropped = new LongAdder();
+    long spansAtRebalance, recentSpans; // guarded by the enclosing ServiceCounters
+
+    Counters(String serviceName) {
+      this.serviceName = serviceName;
+    }
+
+    public String serviceName() {
+      return serviceName;
+    }
+
+    public long spans() {
+      return spans.sum();
+    }
+
+    /** Approximate as spans in a message share its bytes evenly. */
+    public long bytes() {
+      return bytes.sum();
+    }
+
+    public long spansDropped() {
+      return spansDropped.sum();
+    }
+
+    void clear() {
+      spansAtRebalance = 0;
+      spans.reset();
+      bytes.reset();
+      spansDropped.reset();
+    }
+
+    @Override public String toString() {
+      return "Counters{serviceName=" + serviceName + ", spans=" + spans() + ", bytes=" + bytes()
+        + ", spansDropped=" + spansDropped() + "}";
+    }
+  }
+}
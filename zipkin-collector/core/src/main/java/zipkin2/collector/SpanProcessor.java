@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.List;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * A stage between {@link CollectorSampler sampling} and {@link SpanConsumer#accept(List)
+ * storage}. Processors are chained in the order they were {@link
+ * Collector.Builder#addProcessor(SpanProcessor) added}, each receiving the output of the last.
+ *
+ * <p>Examples include scrubbing sensitive tags, truncating large spans or enriching spans with
+ * deployment metadata. A processor can also route spans elsewhere, for example to a different
+ * system, by returning only the spans that should continue to storage.
+ *
+ * <h3>Implementation notes</h3>
+ *
+ * <p>Processors run on the thread that passed spans to the collector, which may be an event loop.
+ * They should be cheap and must not block.
+ *
+ * <p>To avoid copying, return the input when nothing changed. The input must not be mutated, as it
+ * may be shared with the caller. Spans missing from the result are counted as {@link
+ * CollectorMetrics#incrementSpansDropped(int) dropped}.
+ */
+public interface SpanProcessor {
+  /**
+   * Returns the spans to pass to the next stage. Return the input when unchanged, or an empty list
+   * to drop all spans.
+   *
+   * @param spans sampled spans, never empty.
+   */
+  List<Span> process(List<Span> spans);
+}
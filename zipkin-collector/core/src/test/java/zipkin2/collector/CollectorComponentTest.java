@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import org.junit.Test;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectorComponentTest {
+  /** Collectors built before processors existed don't implement {@code addProcessor}. */
+  static final class LegacyBuilder extends CollectorComponent.Builder {
+    @Override public LegacyBuilder storage(StorageComponent storage) {
+      return this;
+    }
+
+    @Override public LegacyBuilder metrics(CollectorMetrics metrics) {
+      return this;
+    }
+
+    @Override public LegacyBuilder sampler(CollectorSampler sampler) {
+      return this;
+    }
+
+    @Override public CollectorComponent build() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test public void addProcessor_ignoredByDefault() {
+    LegacyBuilder builder = new LegacyBuilder();
+
+    assertThat(builder.addProcessor(spans -> spans)).isSameAs(builder);
+  }
+}
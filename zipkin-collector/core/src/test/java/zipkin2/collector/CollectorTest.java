@@ -13,6 +13,10 @@
  */
 package zipkin2.collector;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 import org.junit.After;
 import org.junit.Before;
@@ -30,12 +34,17 @@ import zipkin2.storage.StorageComponent;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.BACKEND;
 import static zipkin2.TestObjects.CLIENT_SPAN;
 import static zipkin2.TestObjects.TRACE;
 import static zipkin2.TestObjects.UTF_8;
@@ -57,6 +66,9 @@ public class CollectorTest {
 
   @After
   public void after() {
+    // read when each collector is built
+    verify(metrics, atLeastOnce()).isTimingEnabled();
+    verify(metrics, atLeastOnce()).isPerServiceEnabled();
     verifyNoMoreInteractions(metrics, callback);
   }
 
@@ -98,6 +110,46 @@ public class CollectorTest {
     assertThat(storage.getTraces()).containsOnly(TRACE);
   }
 
+  @Test
+  public void acceptSpans_recordsDurations() {
+    InMemoryCollectorMetrics inMemoryMetrics = new InMemoryCollectorMetrics();
+    collector = new Collector.Builder(testLogger)
+      .metrics(inMemoryMetrics)
+      .storage(storage)
+      .build();
+
+    collector.acceptSpans(SpanBytesEncoder.JSON_V2.encodeList(TRACE), callback);
+
+    verify(callback).onSuccess(null);
+    assertThat(inMemoryMetrics.messageSpans().max()).isEqualTo(4);
+    assertThat(inMemoryMetrics.decodeNanos().count()).isEqualTo(1);
+    assertThat(inMemoryMetrics.sampleNanos().count()).isEqualTo(1);
+    assertThat(inMemoryMetrics.storageNanos().count()).isEqualTo(1);
+  }
+
+  @Test
+  public void acceptSpans_countsByService() {
+    InMemoryCollectorMetrics inMemoryMetrics = new InMemoryCollectorMetrics();
+    collector = new Collector.Builder(testLogger)
+      .sampler(CollectorSampler.create(0.0f))
+      .metrics(inMemoryMetrics)
+      .storage(storage)
+      .build();
+
+    Span backend = CLIENT_SPAN.toBuilder().localEndpoint(BACKEND).build();
+    byte[] bytes = SpanBytesEncoder.JSON_V2.encodeList(asList(CLIENT_SPAN, CLIENT_SPAN, backend));
+    collector.acceptSpans(bytes, callback);
+
+    verify(callback).onSuccess(null);
+    assertThat(inMemoryMetrics.services().list())
+      .extracting(ServiceCounters.Counters::serviceName, ServiceCounters.Counters::spans,
+        ServiceCounters.Counters::bytes, ServiceCounters.Counters::spansDropped)
+      .containsExactly(
+        tuple("frontend", 2L, 2L * (bytes.length / 3), 2L),
+        tuple("backend", 1L, (long) (bytes.length - 2 * (bytes.length / 3)), 1L),
+        tuple(ServiceCounters.OTHER, 0L, 0L, 0L));
+  }
+
   @Test
   public void acceptSpans_decodingError() {
     byte[] bytes = "[\"='".getBytes(UTF_8); // screwed up json
@@ -108,6 +160,17 @@ public class CollectorTest {
     verify(metrics).incrementMessagesDropped();
   }
 
+  @Test
+  public void acceptSpans_decodeFunctionError() {
+    collector.acceptSpans(ByteBuffer.allocate(1), buffer -> {
+      throw new IllegalArgumentException("Truncated list");
+    }, callback, Runnable::run);
+
+    verify(callback).onError(any(IllegalArgumentException.class));
+    assertDebugLogIs("Truncated list");
+    verify(metrics).incrementMessagesDropped();
+  }
+
   @Test
   public void accept_storageError() {
     StorageComponent storage = mock(StorageComponent.class);
@@ -126,6 +189,82 @@ public class CollectorTest {
     verify(metrics).incrementSpansDropped(4);
   }
 
+  @Test
+  public void accept_processorsRunInOrder() {
+    Span tagged = CLIENT_SPAN.toBuilder().putTag("env", "prod").build();
+    collector = new Collector.Builder(testLogger)
+      .metrics(metrics)
+      .storage(storage)
+      .addProcessor(spans -> asList(CLIENT_SPAN))
+      .addProcessor(spans -> asList(spans.get(0).toBuilder().putTag("env", "prod").build()))
+      .build();
+
+    collector.accept(TRACE, callback);
+
+    verify(callback).onSuccess(null);
+    verify(metrics).incrementSpans(4);
+    verify(metrics).incrementSpansDropped(3);
+    assertThat(storage.getTraces()).containsOnly(asList(tagged));
+  }
+
+  @Test
+  public void accept_processorDroppingAllSpans() {
+    collector = new Collector.Builder(testLogger)
+      .metrics(metrics)
+      .storage(storage)
+      .addProcessor(spans -> Collections.emptyList())
+      .build();
+
+    collector.accept(TRACE, callback);
+
+    verify(callback).onSuccess(null);
+    assertThat(testLogger.getLoggingEvents()).isEmpty();
+    verify(metrics).incrementSpans(4);
+    verify(metrics).incrementSpansDropped(4);
+    assertThat(storage.getTraces()).isEmpty();
+  }
+
+  @Test
+  public void accept_processorError() {
+    RuntimeException error = new IllegalStateException("no beer");
+    collector = new Collector.Builder(testLogger)
+      .metrics(metrics)
+      .storage(storage)
+      .addProcessor(spans -> {
+        throw error;
+      })
+      .build();
+
+    collector.accept(asList(CLIENT_SPAN), callback);
+
+    verify(callback).onError(error);
+    assertDebugLogIs("Cannot process spans [2] due to IllegalStateException(no beer)");
+    verify(metrics).incrementSpans(1);
+    verify(metrics).incrementSpansDropped(1);
+    assertThat(storage.getTraces()).isEmpty();
+  }
+
+  @Test
+  public void acceptMessagePart_callerCountsMessage() {
+    collector.acceptMessagePart(ByteBuffer.wrap(SpanBytesEncoder.PROTO3.encodeList(TRACE)),
+      SpanBytesDecoder.PROTO3::decodeList, callback, Runnable::run, false);
+
+    verify(callback).onSuccess(null);
+    verify(metrics, never()).incrementSpans(anyInt());
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+  }
+
+  @Test
+  public void acceptMessagePart_decodeError() {
+    collector.acceptMessagePart(ByteBuffer.allocate(1), buffer -> {
+      throw new IllegalArgumentException("Truncated list");
+    }, callback, Runnable::run, false);
+
+    verify(callback).onError(any(IllegalArgumentException.class));
+    assertDebugLogIs("Truncated list");
+    verify(metrics, never()).incrementMessagesDropped();
+  }
+
   @Test
   public void acceptSpans_emptyMessageOk() {
     byte[] bytes = new byte[] {'[', ']'};
@@ -138,18 +277,75 @@ public class CollectorTest {
     assertThat(storage.getTraces()).isEmpty();
   }
 
+  @Test
+  public void acceptSpans_durable_completesAfterStorage() {
+    List<Runnable> tasks = new ArrayList<>();
+    collector.acceptSpans(ByteBuffer.wrap(SpanBytesEncoder.PROTO3.encodeList(TRACE)),
+      SpanBytesDecoder.PROTO3::decodeList, callback, tasks::add, true);
+
+    verifyNoMoreInteractions(callback); // not yet stored
+    tasks.forEach(Runnable::run);
+
+    verify(callback).onSuccess(null);
+    verify(metrics).incrementSpans(4);
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+  }
+
+  @Test
+  public void acceptSpans_durable_storageError() {
+    RuntimeException error = new IllegalStateException("no beer");
+    StorageComponent storage = mock(StorageComponent.class);
+    when(storage.spanConsumer()).thenThrow(error);
+    collector = new Collector.Builder(testLogger).metrics(metrics).storage(storage).build();
+
+    collector.acceptSpans(ByteBuffer.wrap(SpanBytesEncoder.PROTO3.encodeList(TRACE)),
+      SpanBytesDecoder.PROTO3::decodeList, callback, Runnable::run, true);
+
+    verify(callback).onError(error);
+    verify(metrics).incrementSpans(4);
+    verify(metrics).incrementSpansDropped(4);
+  }
+
+  @Test
+  public void acceptRetryable_overCapacity() {
+    RuntimeException error = new RejectedExecutionException("slow down");
+    StorageComponent storage = mock(StorageComponent.class);
+    when(storage.spanConsumer()).thenThrow(error);
+    when(storage.isOverCapacity(error)).thenReturn(true);
+    collector = new Collector.Builder(testLogger).metrics(metrics).storage(storage).build();
+
+    collector.acceptRetryable(TRACE, callback, Runnable::run);
+
+    verify(callback).onError(error);
+    verify(metrics).incrementSpans(4); // not dropped, as the caller reads them again
+  }
+
+  @Test
+  public void acceptRetryable_storageError() {
+    RuntimeException error = new IllegalStateException("no beer");
+    StorageComponent storage = mock(StorageComponent.class);
+    when(storage.spanConsumer()).thenThrow(error);
+    collector = new Collector.Builder(testLogger).metrics(metrics).storage(storage).build();
+
+    collector.acceptRetryable(TRACE, callback, Runnable::run);
+
+    verify(callback).onSuccess(null); // as reading the spans again wouldn't store them
+    verify(metrics).incrementSpans(4);
+    verify(metrics).incrementSpansDropped(4);
+  }
+
   @Test
   public void storeSpansCallback_toStringIncludesSpanIds() {
     Span span2 = CLIENT_SPAN.toBuilder().id("3").build();
     when(collector.idString(span2)).thenReturn("3");
 
-    assertThat(collector.new StoreSpans(asList(CLIENT_SPAN, span2)))
+    assertThat(collector.new StoreSpans(asList(CLIENT_SPAN, span2), Collector.NOOP_CALLBACK))
       .hasToString("StoreSpans([1, 3])");
   }
 
   @Test
   public void storeSpansCallback_toStringIncludesSpanIds_noMoreThan3() {
-    assertThat(unprefixIdString(collector.new StoreSpans(TRACE).toString()))
+    assertThat(unprefixIdString(collector.new StoreSpans(TRACE, Collector.NOOP_CALLBACK).toString()))
       .hasToString("StoreSpans([1, 1, 2, ...])");
   }
 
@@ -157,7 +353,7 @@ public class CollectorTest {
   public void storeSpansCallback_onErrorWithNullMessage() {
     RuntimeException error = new RuntimeException();
 
-    Callback<Void> callback = collector.new StoreSpans(TRACE);
+    Callback<Void> callback = collector.new StoreSpans(TRACE, Collector.NOOP_CALLBACK);
     callback.onError(error);
 
     assertDebugLogIs("Cannot store spans [1, 1, 2, ...] due to RuntimeException()");
@@ -167,13 +363,45 @@ public class CollectorTest {
   @Test
   public void storeSpansCallback_onErrorWithMessage() {
     IllegalArgumentException error = new IllegalArgumentException("no beer");
-    Callback<Void> callback = collector.new StoreSpans(TRACE);
+    Callback<Void> callback = collector.new StoreSpans(TRACE, Collector.NOOP_CALLBACK);
     callback.onError(error);
 
     assertDebugLogIs("Cannot store spans [1, 1, 2, ...] due to IllegalArgumentException(no beer)");
     verify(metrics).incrementSpansDropped(4);
   }
 
+  /** Storage may hold spans in a compact form while they wait, so don't keep them all too. */
+  @Test
+  public void storeSpansCallback_keepsOnlyLoggedSpansWhileStoring() {
+    List<Span> spans = new ArrayList<>(TRACE);
+    spans.addAll(TRACE);
+    Collector.StoreSpans storeSpans = collector.new StoreSpans(spans, Collector.NOOP_CALLBACK);
+
+    storeSpans.run();
+    assertThat(storeSpans.spans).containsExactlyElementsOf(TRACE);
+
+    storeSpans.onError(new RuntimeException());
+    assertDebugLogIs("Cannot store spans [1, 1, 2, ...] due to RuntimeException()");
+    verify(metrics).incrementSpansDropped(8);
+  }
+
+  @Test
+  public void storeSpansCallback_keepsOnlyServiceCountsWhileStoring() {
+    when(metrics.isPerServiceEnabled()).thenReturn(true);
+    collector = new Collector.Builder(testLogger).metrics(metrics).storage(storage).build();
+    List<Span> spans = new ArrayList<>(TRACE);
+    spans.addAll(TRACE);
+    Collector.StoreSpans storeSpans = collector.new StoreSpans(spans, Collector.NOOP_CALLBACK);
+
+    storeSpans.run();
+    assertThat(storeSpans.spans).containsExactlyElementsOf(TRACE);
+
+    storeSpans.onError(new RuntimeException());
+    verify(metrics).incrementSpansDropped(8);
+    verify(metrics).incrementServiceSpansDropped("frontend", 4);
+    verify(metrics).incrementServiceSpansDropped("backend", 4);
+  }
+
   @Test
   public void errorAcceptingSpans_onErrorRejectedExecution() {
     RuntimeException error = new RejectedExecutionException("slow down");
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+public class DiskSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  FlakyStorage flaky = new FlakyStorage(storage);
+  Path directory;
+  DiskSpool spool;
+
+  @Before public void setup() throws IOException {
+    directory = folder.newFolder("spool").toPath();
+    spool = DiskSpool.newBuilder(directory).storage(flaky).build();
+  }
+
+  @After public void close() throws IOException {
+    spool.close();
+  }
+
+  @Test public void replaysIntoStorage() {
+    assertThat(spool.append(TRACE)).isTrue();
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+    assertThat(spool.spooledBytes()).isPositive();
+
+    spool.replay();
+
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+    assertThat(spool.spooledMessages()).isZero();
+    assertThat(spool.spooledBytes()).isZero();
+    assertThat(spool.replayedMessages()).isEqualTo(1);
+    assertThat(spool.replayedSpans()).isEqualTo(TRACE.size());
+  }
+
+  @Test public void doesntReplayWhileUnhealthy() {
+    flaky.healthy = false;
+    spool.append(TRACE);
+
+    spool.replay();
+
+    assertThat(storage.getTraces()).isEmpty();
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+  }
+
+  @Test public void retriesOnStorageError() {
+    flaky.failAccept = true;
+    spool.append(TRACE);
+
+    spool.replay();
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+
+    flaky.failAccept = false;
+    spool.replay();
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+    assertThat(spool.droppedMessages()).isZero();
+  }
+
+  @Test public void skipsMessageStorageRejects() {
+    flaky.failAccept = true;
+    spool.append(asList(CLIENT_SPAN));
+    spool.append(TRACE);
+
+    for (int i = 1; i < DiskSpool.MAX_REPLAY_ATTEMPTS; i++) {
+      spool.replay();
+      assertThat(spool.spooledMessages()).isEqualTo(2);
+    }
+
+    spool.replay(); // last attempt of the first message, which is skipped
+    assertThat(spool.droppedMessages()).isEqualTo(1);
+    assertThat(spool.droppedSpans()).isEqualTo(1);
+    assertThat(spool.spooledMessages()).isEqualTo(1); // the next message got its own attempt
+
+    flaky.failAccept = false;
+    spool.replay();
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+    assertThat(spool.droppedMessages()).isEqualTo(1);
+  }
+
+  @Test public void retriesOverCapacityIndefinitely() {
+    flaky.overCapacity = true;
+    spool.append(TRACE);
+
+    for (int i = 0; i < DiskSpool.MAX_REPLAY_ATTEMPTS * 2; i++) spool.replay();
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+    assertThat(spool.droppedMessages()).isZero();
+
+    flaky.overCapacity = false;
+    spool.replay();
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+  }
+
+  @Test public void replaysSlowerThanTicks() throws IOException {
+    spool.close();
+    spool = DiskSpool.newBuilder(directory).storage(flaky).replayMessagesPerSecond(1).build();
+    spool.append(asList(CLIENT_SPAN));
+    spool.append(TRACE);
+
+    spool.replay();
+    spool.replay(); // less than a second later, so no permit yet
+
+    assertThat(spool.replayedMessages()).isEqualTo(1);
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+  }
+
+  @Test public void refusesAppendsOverMaxBytes() throws IOException {
+    spool.close();
+    int recordSize =
+      DiskSpool.HEADER_SIZE + SpanBytesEncoder.PROTO3.encodeList(asList(CLIENT_SPAN)).length;
+    spool = DiskSpool.newBuilder(directory).storage(flaky).maxBytes(recordSize).build();
+
+    assertThat(spool.append(asList(CLIENT_SPAN))).isTrue();
+    assertThat(spool.append(asList(CLIENT_SPAN))).isFalse();
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+  }
+
+  @Test public void rollsAndDeletesSegments() throws IOException {
+    spool.close();
+    spool = DiskSpool.newBuilder(directory).storage(flaky).segmentBytes(100).build();
+
+    for (int i = 0; i < 3; i++) spool.append(TRACE);
+    assertThat(segmentCount()).isEqualTo(3);
+
+    spool.replay();
+
+    assertThat(spool.spooledMessages()).isZero();
+    assertThat(segmentCount()).isEqualTo(1); // the segment being appended to
+  }
+
+  @Test public void recoversUnreplayedMessages() throws IOException {
+    spool.close();
+    spool = DiskSpool.newBuilder(directory).storage(flaky).segmentBytes(100).build();
+    for (int i = 0; i < 3; i++) spool.append(asList(TRACE.get(i)));
+
+    spool.commit(spool.next()); // replay only the first
+    spool.close();
+
+    spool = DiskSpool.newBuilder(directory).storage(flaky).build();
+    assertThat(spool.spooledMessages()).isEqualTo(2);
+
+    spool.replay();
+    assertThat(storage.getTraces()).flatExtracting(t -> t)
+      .containsExactlyInAnyOrder(TRACE.get(1), TRACE.get(2));
+  }
+
+  @Test public void recoveryTruncatesTornRecord() throws IOException {
+    spool.append(TRACE);
+    spool.append(TRACE);
+    spool.close();
+
+    Path segment = directory.resolve(DiskSpool.segmentName(0));
+    long size = Files.size(segment);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.setLength(size - 3); // simulate a crash mid-append
+    }
+
+    spool = DiskSpool.newBuilder(directory).storage(flaky).build();
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+    assertThat(Files.size(segment)).isEqualTo(size / 2);
+
+    spool.replay();
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+  }
+
+  @Test public void skipsCorruptSegment() throws IOException {
+    spool.append(TRACE);
+    spool.append(TRACE);
+
+    Path segment = directory.resolve(DiskSpool.segmentName(0));
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.seek(DiskSpool.HEADER_SIZE); // corrupt the first message
+      file.write(~file.read());
+    }
+
+    spool.replay();
+
+    assertThat(storage.getTraces()).isEmpty();
+    assertThat(spool.spooledMessages()).isZero();
+    assertThat(spool.spooledBytes()).isZero();
+  }
+
+  @Test public void collectorSpoolsStorageErrors_whenUnhealthy() {
+    flaky.failAccept = true;
+    flaky.healthy = false;
+    Collector collector = Collector.newBuilder(getClass()).storage(flaky).spool(spool).build();
+
+    collector.accept(TRACE, Collector.NOOP_CALLBACK);
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+
+    flaky.failAccept = false;
+    flaky.healthy = true;
+    spool.replay();
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+  }
+
+  @Test public void collectorSpoolsStorageErrors_whenOverCapacity() {
+    flaky.overCapacity = true;
+    Collector collector = Collector.newBuilder(getClass()).storage(flaky).spool(spool).build();
+
+    collector.accept(TRACE, Collector.NOOP_CALLBACK);
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+  }
+
+  /** Spans storage rejects while healthy would fail the same way on replay. */
+  @Test public void collectorDoesntSpoolRejectedSpans() {
+    flaky.failAccept = true;
+    Collector collector = Collector.newBuilder(getClass()).storage(flaky).spool(spool).build();
+
+    collector.accept(TRACE, Collector.NOOP_CALLBACK);
+    assertThat(spool.spooledMessages()).isZero();
+  }
+
+  @Test public void collectorSpoolsOverCapacity() {
+    Collector collector = Collector.newBuilder(getClass()).storage(flaky).spool(spool).build();
+
+    collector.accept(TRACE, Collector.NOOP_CALLBACK, r -> {
+      throw new RejectedExecutionException("slow down");
+    });
+
+    assertThat(spool.spooledMessages()).isEqualTo(1);
+  }
+
+  long segmentCount() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(p -> p.toString().endsWith(DiskSpool.SEGMENT_SUFFIX)).count();
+    }
+  }
+
+  static final class FlakyStorage extends ForwardingStorageComponent {
+    final StorageComponent delegate;
+    volatile boolean healthy = true, failAccept, overCapacity;
+
+    FlakyStorage(StorageComponent delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override protected StorageComponent delegate() {
+      return delegate;
+    }
+
+    @Override public CheckResult check() {
+      return healthy ? CheckResult.OK : CheckResult.failed(new IllegalStateException("down"));
+    }
+
+    @Override public boolean isOverCapacity(Throwable e) {
+      return e instanceof RejectedExecutionException;
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> {
+        if (overCapacity) return new FailedCall(new RejectedExecutionException("slow down"));
+        if (failAccept) return new FailedCall(new IllegalStateException("storage disabled"));
+        return delegate.spanConsumer().accept(spans);
+      };
+    }
+  }
+
+  static final class FailedCall extends Call.Base<Void> {
+    final RuntimeException error;
+
+    FailedCall(RuntimeException error) {
+      this.error = error;
+    }
+
+    @Override protected Void doExecute() {
+      throw error;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      callback.onError(error);
+    }
+
+    @Override public Call<Void> clone() {
+      return new FailedCall(error);
+    }
+  }
+}
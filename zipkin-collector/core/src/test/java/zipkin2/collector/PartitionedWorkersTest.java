@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+public class PartitionedWorkersTest {
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  RecordingStorage recording = new RecordingStorage(storage);
+  Callback<Void> callback = mock(Callback.class);
+  Collector collector;
+
+  @After public void close() {
+    if (collector != null) collector.close();
+  }
+
+  @Test public void partition_sameForTraceIdWidth() {
+    assertThat(PartitionedWorkers.partition("463ac35c9f6413ad48485a3953bb6124", 7))
+      .isEqualTo(PartitionedWorkers.partition("48485a3953bb6124", 7));
+  }
+
+  @Test public void storesOnWorkers() throws Exception {
+    collector = newCollector(4, 10);
+
+    collector.accept(TRACE, callback);
+
+    verify(callback).onSuccess(null);
+    awaitBatches(1); // all spans in the trace are routed to the same worker
+    assertThat(storage.getTraces()).containsOnly(TRACE);
+    assertThat(recording.threads).allMatch(name -> name.startsWith("zipkin-collector-worker-"));
+  }
+
+  @Test public void spansOfTheSameTraceAreGroupedInOrder() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+    recording.block = () -> {
+      blocked.countDown();
+      release.await(1, TimeUnit.SECONDS);
+    };
+    collector = newCollector(1, 10);
+
+    Span otherTrace = CLIENT_SPAN.toBuilder().traceId("1").build();
+    collector.accept(asList(otherTrace), callback); // blocks the worker
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+    recording.block = null;
+
+    collector.accept(asList(TRACE.get(0), otherTrace), callback);
+    collector.accept(asList(TRACE.get(1), TRACE.get(2)), callback);
+    release.countDown();
+
+    awaitBatches(2);
+    assertThat(recording.batches.get(1)) // queued batches were merged and grouped by trace ID
+      .containsExactly(otherTrace, TRACE.get(0), TRACE.get(1), TRACE.get(2));
+  }
+
+  @Test public void mergedBatchesAreCapped() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+    recording.block = () -> {
+      blocked.countDown();
+      release.await(1, TimeUnit.SECONDS);
+    };
+    collector = newCollector(1, 10);
+
+    collector.accept(TRACE, callback); // blocks the worker
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+    recording.block = null;
+
+    int batchSpans = PartitionedWorkers.MAX_BATCH_SPANS * 3 / 5;
+    for (int i = 0; i < 3; i++) {
+      List<Span> spans = new ArrayList<>();
+      for (int j = 1; j <= batchSpans; j++) {
+        spans.add(CLIENT_SPAN.toBuilder().id(i * batchSpans + j).build());
+      }
+      collector.accept(spans, callback);
+    }
+    release.countDown();
+
+    awaitBatches(3); // merging stops once the cap is reached
+    assertThat(recording.batches.get(1)).hasSize(batchSpans * 2);
+    assertThat(recording.batches.get(2)).hasSize(batchSpans);
+  }
+
+  @Test public void rejectsWhenQueueIsFull() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+    recording.block = () -> {
+      blocked.countDown();
+      release.await(1, TimeUnit.SECONDS);
+    };
+    collector = newCollector(1, 1);
+
+    collector.accept(TRACE, callback); // blocks the worker
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+    collector.accept(TRACE, callback); // queued
+    collector.accept(TRACE, callback); // rejected
+    release.countDown();
+
+    verify(callback).onError(Collector.WORKER_QUEUE_FULL);
+  }
+
+  @Test public void close_dropsQueuedBatches() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1), release = new CountDownLatch(1);
+    recording.block = () -> {
+      blocked.countDown();
+      release.await(1, TimeUnit.SECONDS);
+    };
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    collector = Collector.newBuilder(getClass())
+      .storage(recording)
+      .metrics(metrics)
+      .partitionByTraceId(1, 10)
+      .build();
+
+    collector.accept(TRACE, callback); // blocks the worker
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+    collector.accept(asList(CLIENT_SPAN), callback); // queued
+    collector.close();
+    release.countDown();
+
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+    collector.accept(asList(CLIENT_SPAN), callback); // rejected after close
+    verify(callback).onError(Collector.COLLECTOR_CLOSED);
+  }
+
+  void awaitBatches(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (recording.batches.size() < count && System.nanoTime() < deadline) Thread.sleep(10);
+    assertThat(recording.batches).hasSize(count);
+  }
+
+  Collector newCollector(int workers, int queueSize) {
+    return Collector.newBuilder(getClass())
+      .storage(recording)
+      .partitionByTraceId(workers, queueSize)
+      .build();
+  }
+
+  interface Block {
+    void run() throws InterruptedException;
+  }
+
+  static final class RecordingStorage extends ForwardingStorageComponent {
+    final StorageComponent delegate;
+    final List<List<Span>> batches = new CopyOnWriteArrayList<>();
+    final List<String> threads = new CopyOnWriteArrayList<>();
+    volatile Block block;
+
+    RecordingStorage(StorageComponent delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override protected StorageComponent delegate() {
+      return delegate;
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> {
+        batches.add(new ArrayList<>(spans));
+        threads.add(Thread.currentThread().getName());
+        Block block = this.block;
+        if (block != null) {
+          try {
+            block.run();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return delegate.spanConsumer().accept(spans);
+      };
+    }
+  }
+}
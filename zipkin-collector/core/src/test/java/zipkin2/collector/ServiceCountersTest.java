@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class ServiceCountersTest {
+  List<String> added = new ArrayList<>(), evicted = new ArrayList<>();
+  ServiceCounters services = ServiceCounters.create(2, (name, counters) -> added.add(name),
+    (name, counters) -> evicted.add(name));
+
+  @Test public void tracksUpToMaxServices_thenOther() {
+    services.get("frontend").spans.add(1);
+    services.get("backend").spans.add(2);
+    services.get("db").spans.add(3);
+    services.get("cache").spans.add(4);
+
+    assertThat(services.list())
+      .extracting(ServiceCounters.Counters::serviceName, ServiceCounters.Counters::spans)
+      .containsExactly(
+        tuple(ServiceCounters.OTHER, 7L),
+        tuple("backend", 2L),
+        tuple("frontend", 1L));
+  }
+
+  @Test public void notifiesOncePerService() {
+    services.get("frontend");
+    services.get("frontend");
+    services.get("backend");
+    services.get("db");
+
+    assertThat(added).containsExactly(ServiceCounters.OTHER, "frontend", "backend");
+  }
+
+  @Test public void rebalance_replacesQuietestWithNoisierService() {
+    services.incrementSpans("frontend", 5, 50);
+    services.incrementSpans("backend", 1, 10);
+    services.incrementSpans("db", 10, 100); // seen after the limit
+
+    services.rebalance();
+
+    assertThat(evicted).containsExactly("backend");
+    assertThat(added).containsExactly(ServiceCounters.OTHER, "frontend", "backend", "db");
+    assertThat(services.list())
+      .extracting(ServiceCounters.Counters::serviceName, ServiceCounters.Counters::spans,
+        ServiceCounters.Counters::bytes)
+      .containsExactly(
+        tuple(ServiceCounters.OTHER, 11L, 110L), // includes the evicted service
+        tuple("frontend", 5L, 50L),
+        tuple("db", 0L, 0L)); // spans before it was tracked are in OTHER
+
+    services.incrementSpans("db", 1, 10);
+    assertThat(services.get("db").spans()).isEqualTo(1L);
+  }
+
+  @Test public void rebalance_keepsServicesAsNoisy() {
+    services.incrementSpans("frontend", 1, 10);
+    services.incrementSpans("backend", 1, 10);
+    services.incrementSpans("db", 1, 10);
+
+    services.rebalance();
+
+    assertThat(evicted).isEmpty();
+  }
+
+  @Test public void rebalance_comparesSpansSinceLastRebalance() {
+    services.incrementSpans("frontend", 100, 10);
+    services.incrementSpans("backend", 100, 10);
+    services.rebalance();
+
+    services.incrementSpans("frontend", 20, 10);
+    services.incrementSpans("backend", 5, 10);
+    services.incrementSpans("db", 10, 10);
+    services.rebalance();
+
+    assertThat(evicted).containsExactly("backend");
+  }
+
+  /** Many quiet services share the sketch, but only guaranteed counts replace a service. */
+  @Test public void rebalance_ignoresOverestimates() {
+    services.incrementSpans("frontend", 2, 10);
+    services.incrementSpans("backend", 2, 10);
+    for (int i = 0; i < 10; i++) services.incrementSpans("service" + i, 1, 10);
+
+    services.rebalance();
+
+    assertThat(evicted).isEmpty();
+  }
+
+  @Test public void serviceNamedOther() {
+    services.get("other").spans.add(1);
+
+    assertThat(services.get("other")).isNotSameAs(services.other);
+  }
+
+  @Test public void unknownService() {
+    assertThat(services.get(null)).isSameAs(services.get(""));
+    assertThat(services.get(null).serviceName()).isEqualTo(ServiceCounters.UNKNOWN);
+  }
+
+  @Test public void clear_keepsServices() {
+    services.get("frontend").spans.add(1);
+    services.get("backend").spansDropped.add(1);
+
+    services.clear();
+
+    assertThat(services.list())
+      .allSatisfy(counters -> {
+        assertThat(counters.spans()).isZero();
+        assertThat(counters.spansDropped()).isZero();
+      })
+      .hasSize(3);
+  }
+}
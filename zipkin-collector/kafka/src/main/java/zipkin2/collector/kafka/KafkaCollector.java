@@ -28,6 +28,7 @@ import org.apache.kafka.common.KafkaFuture;
 import org.apache.kafka.common.config.ConfigException;
 import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteBufferDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Call;
@@ -36,11 +37,13 @@ import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorComponent;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.StorageComponent;
 
 import static org.apache.kafka.clients.consumer.ConsumerConfig.AUTO_OFFSET_RESET_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG;
+import static org.apache.kafka.clients.consumer.ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG;
@@ -63,8 +66,11 @@ public final class KafkaCollector extends CollectorComponent {
     final Properties properties = new Properties();
     final Collector.Builder delegate = Collector.newBuilder(KafkaCollector.class);
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    KafkaConsumerMetrics consumerMetrics = KafkaConsumerMetrics.NOOP_METRICS;
     String topic = "zipkin";
     int streams = 1;
+    int maxPollsInFlight = 4;
+    int decodeThreads = 0;
 
     @Override
     public Builder storage(StorageComponent storage) {
@@ -78,6 +84,12 @@ public final class KafkaCollector extends CollectorComponent {
       return this;
     }
 
+    @Override
+    public Builder addProcessor(SpanProcessor processor) {
+      delegate.addProcessor(processor);
+      return this;
+    }
+
     @Override
     public Builder metrics(CollectorMetrics metrics) {
       if (metrics == null) throw new NullPointerException("metrics == null");
@@ -86,6 +98,13 @@ public final class KafkaCollector extends CollectorComponent {
       return this;
     }
 
+    /** Receives consumer lag and related metrics. Defaults to no-op. */
+    public Builder consumerMetrics(KafkaConsumerMetrics consumerMetrics) {
+      if (consumerMetrics == null) throw new NullPointerException("consumerMetrics == null");
+      this.consumerMetrics = consumerMetrics;
+      return this;
+    }
+
     /**
      * Topic zipkin spans will be consumed from. Defaults to "zipkin". Multiple topics may be
      * specified if comma delimited.
@@ -116,10 +135,39 @@ public final class KafkaCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * Polls each stream stores at the same time. Offsets of a poll are committed after its spans
+     * are stored, in the order they were polled. Defaults to 4
+     *
+     * <p>When this many polls are in flight, or storage is over capacity, the stream pauses its
+     * partitions so that the backlog stays in Kafka. After a failure, the limit halves and then grows by one for
+     * each poll stored, so that consumption ramps up as storage recovers.
+     */
+    public Builder maxPollsInFlight(int maxPollsInFlight) {
+      if (maxPollsInFlight < 1) throw new IllegalArgumentException("maxPollsInFlight < 1");
+      this.maxPollsInFlight = maxPollsInFlight;
+      return this;
+    }
+
+    /**
+     * Threads that decode records, shared by all streams. Records of a partition are always decoded
+     * by the same thread, so that its spans are stored in the order they were polled. Offsets are
+     * still committed in the order they were polled.
+     *
+     * <p>Defaults to 0, which decodes on the polling thread. Set this when a stream consumes many
+     * partitions and can't keep up decoding their records on one core.
+     */
+    public Builder decodeThreads(int decodeThreads) {
+      if (decodeThreads < 0) throw new IllegalArgumentException("decodeThreads < 0");
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
     /**
      * By default, a consumer will be built from properties derived from builder defaults, as well
-     * as "auto.offset.reset" -> "earliest". Any properties set here will override the consumer
-     * config.
+     * as "auto.offset.reset" -> "earliest" and "enable.auto.commit" -> "false". Offsets are
+     * committed after spans are stored, so enabling auto-commit can lose spans storage rejected.
+     * Any properties set here will override the consumer config.
      *
      * <p>For example: Only consume spans since you connected by setting the below.
      *
@@ -147,8 +195,10 @@ public final class KafkaCollector extends CollectorComponent {
       // https://kafka.apache.org/documentation/#newconsumerconfigs
       properties.put(GROUP_ID_CONFIG, "zipkin");
       properties.put(AUTO_OFFSET_RESET_CONFIG, "earliest");
+      properties.put(ENABLE_AUTO_COMMIT_CONFIG, "false");
       properties.put(KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
-      properties.put(VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+      // Wraps the value the consumer read, as opposed to copying it again
+      properties.put(VALUE_DESERIALIZER_CLASS_CONFIG, ByteBufferDeserializer.class.getName());
     }
   }
 
@@ -211,6 +261,8 @@ public final class KafkaCollector extends CollectorComponent {
     final AtomicReference<CheckResult> failure = new AtomicReference<>();
     final CopyOnWriteArrayList<KafkaCollectorWorker> workers = new CopyOnWriteArrayList<>();
     volatile ExecutorService pool;
+    /** Single threaded, so that each decodes the partitions hashed to it in order. */
+    volatile ExecutorService[] decoders;
 
     LazyKafkaWorkers(Builder builder) {
       this.streams = builder.streams;
@@ -242,16 +294,24 @@ public final class KafkaCollector extends CollectorComponent {
       } catch (InterruptedException e) {
         // at least we tried
       }
+      // Workers wait for decoding before they commit, so only stop decoders after them.
+      for (ExecutorService decoder : decoders) decoder.shutdownNow();
     }
 
     ExecutorService compute() {
       ExecutorService pool =
         streams == 1 ? Executors.newSingleThreadExecutor() : Executors.newFixedThreadPool(streams);
 
+      decoders = new ExecutorService[builder.decodeThreads];
+      for (int i = 0; i < decoders.length; i++) {
+        String name = "zipkin-kafka-decode-" + i;
+        decoders[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, name));
+      }
+
       for (int i = 0; i < streams; i++) {
         // TODO: bad idea to lazy reference properties from a mutable builder
         // copy them here and then pass this to the KafkaCollectorWorker constructor instead
-        KafkaCollectorWorker worker = new KafkaCollectorWorker(builder);
+        KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, decoders);
         workers.add(worker);
         pool.execute(guardFailures(worker));
       }
@@ -13,66 +13,120 @@
  */
 package zipkin2.collector.kafka;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Callback;
 import zipkin2.Span;
+import zipkin2.SpanBytesDecoderDetector;
 import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorMetrics;
+import zipkin2.internal.Nullable;
 
-/** Consumes spans from Kafka messages, ignoring malformed input */
+/**
+ * Consumes spans from Kafka messages, ignoring malformed input.
+ *
+ * <p>Spans of all records a poll returned for a partition are stored in one call. Offsets are
+ * committed in the order they were polled, once storage accepted them. Up to {@code
+ * maxPollsInFlight} polls are stored at the same time. If storage is over capacity, the consumer
+ * seeks back to the first record not yet committed, so delivery is at-least-once. Other storage
+ * failures drop the spans like other collectors do, so that a poll storage always rejects doesn't
+ * stall its partitions.
+ *
+ * <p>Rather than block while storage catches up, assigned partitions are paused. The consumer keeps
+ * polling, so that it stays in its group, but the backlog stays in Kafka. After a storage failure,
+ * consumption resumes after an exponential backoff, with half the polls in flight as before. The
+ * limit grows by one for each poll stored, back to {@code maxPollsInFlight}.
+ *
+ * <p>Records are decoded on the polling thread unless {@code decodeThreads} is set. In that case,
+ * each partition's records are decoded by a thread chosen by the partition, so that one stream can
+ * use several cores when it consumes many partitions.
+ */
 final class KafkaCollectorWorker implements Runnable {
   static final Logger LOG = LoggerFactory.getLogger(KafkaCollectorWorker.class);
-  static final Callback<Void> NOOP =
-      new Callback<Void>() {
-        @Override
-        public void onSuccess(Void value) {}
-
-        @Override
-        public void onError(Throwable t) {}
-      };
+  static final long POLL_TIMEOUT_MILLIS = 1000;
+  /** How long to wait for storage between polls while paused. */
+  static final long PAUSED_POLL_MILLIS = 100;
+  static final long MAX_BACKOFF_MILLIS = 30_000;
+  static final long LAG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
 
   final Properties properties;
   final List<String> topics;
   final Collector collector;
   final CollectorMetrics metrics;
+  final KafkaConsumerMetrics consumerMetrics;
+  final int maxPollsInFlight;
+  /** Empty when records are decoded on the polling thread. */
+  final Executor[] decoders;
   // added for integration tests only, see ITKafkaCollector
   final AtomicReference<List<TopicPartition>> assignedPartitions =
       new AtomicReference<>(Collections.emptyList());
   final AtomicBoolean running = new AtomicBoolean(true);
+  /** Polls not yet committed, in the order they were polled. Only used by the polling thread. */
+  final ArrayDeque<PolledBatch> inFlight = new ArrayDeque<>();
+  // Fields below are only used by the polling thread
+  /** Lowered when storage fails and raised as it recovers, up to {@link #maxPollsInFlight}. */
+  int pollsInFlightLimit;
+  long backoffMillis, resumeNanos, lagRecordedNanos;
+  long lagIntervalNanos = LAG_INTERVAL_NANOS; // tests lower this
+  boolean paused;
 
-  KafkaCollectorWorker(KafkaCollector.Builder builder) {
+  KafkaCollectorWorker(KafkaCollector.Builder builder, Executor[] decoders) {
     properties = builder.properties;
     topics = Arrays.asList(builder.topic.split(","));
     collector = builder.delegate.build();
     metrics = builder.metrics;
+    consumerMetrics = builder.consumerMetrics;
+    maxPollsInFlight = pollsInFlightLimit = builder.maxPollsInFlight;
+    this.decoders = decoders;
   }
 
   @Override
   public void run() {
-    try (KafkaConsumer<byte[], byte[]> kafkaConsumer = new KafkaConsumer<>(properties)) {
+    try (KafkaConsumer<byte[], ByteBuffer> kafkaConsumer = new KafkaConsumer<>(properties)) {
+      run(kafkaConsumer);
+    } finally {
+      LOG.debug("Kafka consumer polling loop stopped. Kafka consumer closed.");
+    }
+  }
+
+  void run(Consumer<byte[], ByteBuffer> kafkaConsumer) {
+    try {
       kafkaConsumer.subscribe(
         topics,
-        // added for integration tests only, see ITKafkaCollector
         new ConsumerRebalanceListener() {
           @Override
           public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // commit what was stored, so that the next owner of these doesn't read them again
+            commitStored(kafkaConsumer, true);
+            partitions.forEach(consumerMetrics::removeLag);
+            // added for integration tests only, see ITKafkaCollector
             // technically we should remove only the revoked partitions but for test purposes it
             // does not matter
             assignedPartitions.set(Collections.emptyList());
@@ -84,40 +138,230 @@ final class KafkaCollectorWorker implements Runnable {
           }
         });
       LOG.debug("Kafka consumer starting polling loop.");
+      resumeNanos = lagRecordedNanos = System.nanoTime();
       while (running.get()) {
-        final ConsumerRecords<byte[], byte[]> consumerRecords = kafkaConsumer.poll(Duration.of(1000, ChronoUnit.MILLIS));
-        LOG.debug("Kafka polling returned batch of {} messages.", consumerRecords.count());
-        for (ConsumerRecord<byte[], byte[]> record : consumerRecords) {
-          final byte[] bytes = record.value();
-          metrics.incrementMessages();
-          metrics.incrementBytes(bytes.length);
-
-          if (bytes.length == 0) continue; // lenient on empty messages
-
-          if (bytes.length < 2) { // need two bytes to check if protobuf
-            metrics.incrementMessagesDropped();
-          } else {
-            // If we received legacy single-span encoding, decode it into a singleton list
-            if (!protobuf3(bytes) && bytes[0] <= 16 && bytes[0] != 12 /* thrift, but not list */) {
-              Span span;
-              try {
-                span = SpanBytesDecoder.THRIFT.decodeOne(bytes);
-              } catch (RuntimeException e) {
-                metrics.incrementMessagesDropped();
-                continue;
-              }
-              collector.accept(Collections.singletonList(span), NOOP);
-            } else {
-              collector.acceptSpans(bytes, NOOP);
-            }
-          }
+        if (!commitStored(kafkaConsumer, false)) rewindWhenStored(kafkaConsumer);
+
+        Duration pollTimeout = Duration.ofMillis(POLL_TIMEOUT_MILLIS);
+        if (isBackpressured()) {
+          pause(kafkaConsumer);
+          awaitStorage();
+          pollTimeout = Duration.ZERO; // only to stay in the group, as partitions are paused
+        } else if (paused) {
+          resume(kafkaConsumer);
         }
+
+        final ConsumerRecords<byte[], ByteBuffer> consumerRecords = kafkaConsumer.poll(pollTimeout);
+        LOG.debug("Kafka polling returned batch of {} messages.", consumerRecords.count());
+        // Partitions assigned during a paused poll aren't paused, so this can exceed the limit.
+        if (!consumerRecords.isEmpty()) inFlight.add(accept(consumerRecords));
+        recordLag(kafkaConsumer);
       }
+      // Commit what was stored before we close, without waiting long for storage.
+      for (PolledBatch batch : inFlight) batch.await(POLL_TIMEOUT_MILLIS);
+      commitStored(kafkaConsumer, true);
     } catch (RuntimeException | Error e) {
       LOG.warn("Unexpected error in polling loop spans", e);
       throw e;
-    } finally {
-      LOG.debug("Kafka consumer polling loop stopped. Kafka consumer closed.");
+    }
+  }
+
+  /**
+   * Decodes each partition's records and stores their spans in one call. Offsets are recorded here,
+   * so that they are committed in the order polled, even when decoding happens on another thread.
+   */
+  PolledBatch accept(ConsumerRecords<byte[], ByteBuffer> consumerRecords) {
+    Set<TopicPartition> partitions = consumerRecords.partitions();
+    PolledBatch batch = new PolledBatch(partitions.size(), consumerMetrics);
+    for (TopicPartition partition : partitions) {
+      List<ConsumerRecord<byte[], ByteBuffer>> records = consumerRecords.records(partition);
+      long firstOffset = records.get(0).offset();
+      long nextOffset = records.get(records.size() - 1).offset() + 1;
+      batch.firstOffsets.put(partition, firstOffset);
+      batch.offsets.put(partition, new OffsetAndMetadata(nextOffset));
+
+      Runnable decodeAndStore = () -> {
+        List<Span> spans = new ArrayList<>();
+        for (ConsumerRecord<byte[], ByteBuffer> record : records) {
+          decode(record.value(), spans);
+        }
+        // We store on the decoding thread, as the storage call is normally asynchronous
+        collector.acceptRetryable(spans, batch, Runnable::run);
+      };
+      if (decoders.length == 0) {
+        decodeAndStore.run();
+        continue;
+      }
+      try {
+        decoders[Math.floorMod(partition.hashCode(), decoders.length)].execute(decodeAndStore);
+      } catch (RejectedExecutionException e) { // closed
+        batch.onError(e);
+      }
+    }
+    return batch;
+  }
+
+  /** Decodes in place, as the buffer wraps an array the consumer allocated for this record. */
+  void decode(@Nullable ByteBuffer buffer, List<Span> spans) {
+    int length = buffer != null ? buffer.remaining() : 0;
+    metrics.incrementMessages();
+    metrics.incrementBytes(length);
+
+    if (length == 0) return; // lenient on empty messages
+
+    if (length < 2) { // need two bytes to check if protobuf
+      metrics.incrementMessagesDropped();
+      return;
+    }
+
+    long startNanos = metrics.isTimingEnabled() ? System.nanoTime() : 0L;
+    int sizeBefore = spans.size();
+    try {
+      // If we received legacy single-span encoding, decode it into a singleton list
+      byte first = buffer.get(buffer.position());
+      if (!protobuf3(buffer) && first <= 16 && first != 12 /* thrift, but not list */) {
+        spans.add(SpanBytesDecoder.THRIFT.decodeOne(buffer));
+      } else {
+        // The detector only returns SpanBytesDecoder, which can decode a buffer without copying
+        SpanBytesDecoder decoder =
+          (SpanBytesDecoder) SpanBytesDecoderDetector.decoderForListMessage(buffer);
+        decoder.decodeList(buffer, spans);
+      }
+    } catch (RuntimeException e) {
+      spans.subList(sizeBefore, spans.size()).clear(); // drop any spans decoded before the error
+      metrics.incrementMessagesDropped();
+      LOG.debug("Cannot decode spans due to {}({})", e.getClass().getSimpleName(), e.getMessage());
+      return;
+    }
+    if (startNanos != 0L) metrics.recordDecodeNanos(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Commits the offsets of polls stored so far, stopping at one still in flight. Returns false if
+   * the oldest poll not committed failed to store.
+   */
+  boolean commitStored(Consumer<byte[], ByteBuffer> kafkaConsumer, boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> offsets = null;
+    PolledBatch batch;
+    boolean failed = false;
+    while ((batch = inFlight.peekFirst()) != null && batch.isDone()) {
+      if (batch.failure != null) {
+        failed = true;
+        break;
+      }
+      inFlight.removeFirst();
+      if (pollsInFlightLimit < maxPollsInFlight) pollsInFlightLimit++; // ramp up after a failure
+      backoffMillis = 0L;
+      if (offsets == null) offsets = new LinkedHashMap<>();
+      offsets.putAll(batch.offsets); // later polls have higher offsets
+    }
+    if (offsets == null) return !failed;
+
+    if (sync) {
+      kafkaConsumer.commitSync(offsets);
+    } else {
+      kafkaConsumer.commitAsync(offsets, (committed, e) -> {
+        // Commit fails when a partition was reassigned, in which case the next owner reads again
+        if (e != null) LOG.debug("Failed to commit offsets {}", committed, e);
+      });
+    }
+    return !failed;
+  }
+
+  /** True when storage is behind or failed, so more records shouldn't be polled yet. */
+  boolean isBackpressured() {
+    if (inFlight.size() >= pollsInFlightLimit) return true;
+    PolledBatch oldest = inFlight.peekFirst();
+    if (oldest != null && oldest.failure != null) return true; // waiting to rewind
+    return System.nanoTime() - resumeNanos < 0; // backing off after a failure
+  }
+
+  void pause(Consumer<byte[], ByteBuffer> kafkaConsumer) {
+    // pause every time, as partitions assigned since the last poll aren't paused
+    kafkaConsumer.pause(kafkaConsumer.assignment());
+    if (paused) return;
+    paused = true;
+    consumerMetrics.incrementPauses();
+    LOG.debug("Pausing consumption as {} polls are waiting for storage", inFlight.size());
+  }
+
+  void resume(Consumer<byte[], ByteBuffer> kafkaConsumer) {
+    kafkaConsumer.resume(kafkaConsumer.paused());
+    paused = false;
+    LOG.debug("Resuming consumption with up to {} polls in flight", pollsInFlightLimit);
+  }
+
+  /** Waits briefly for a poll to be stored, or for a backoff to pass when none are in flight. */
+  void awaitStorage() {
+    for (PolledBatch batch : inFlight) {
+      if (!batch.isDone()) {
+        batch.await(PAUSED_POLL_MILLIS);
+        return;
+      }
+    }
+    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(resumeNanos - System.nanoTime());
+    if (remainingMillis <= 0L) return;
+    try {
+      Thread.sleep(Math.min(remainingMillis, PAUSED_POLL_MILLIS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // the next poll raises InterruptException
+    }
+  }
+
+  /**
+   * Once all polls in flight completed, reads again from the first record of the oldest poll that
+   * wasn't stored. Waiting for later polls ensures their callbacks don't race with reading them
+   * again.
+   */
+  void rewindWhenStored(Consumer<byte[], ByteBuffer> kafkaConsumer) {
+    for (PolledBatch batch : inFlight) {
+      if (!batch.isDone()) return;
+    }
+    Throwable failure = inFlight.peekFirst().failure;
+
+    Map<TopicPartition, Long> firstOffsets = new LinkedHashMap<>();
+    for (PolledBatch batch : inFlight) {
+      batch.firstOffsets.forEach(
+        (partition, offset) -> firstOffsets.merge(partition, offset, Math::min));
+    }
+    inFlight.clear();
+
+    Set<TopicPartition> assignment = kafkaConsumer.assignment();
+    firstOffsets.forEach((partition, offset) -> {
+      if (assignment.contains(partition)) kafkaConsumer.seek(partition, offset);
+    });
+
+    // Back off so that a storage outage doesn't turn into a busy loop, and resume with fewer polls
+    // in flight, in case storage failed due to load.
+    backoffMillis = backoffMillis == 0L
+      ? POLL_TIMEOUT_MILLIS
+      : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    resumeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+    pollsInFlightLimit = Math.max(1, pollsInFlightLimit / 2);
+    LOG.warn("Reading {} again in {}ms as storage is over capacity: {}", firstOffsets.keySet(),
+      backoffMillis, failure.getMessage());
+  }
+
+  /** Periodically records the lag of assigned partitions, when someone is listening. */
+  void recordLag(Consumer<byte[], ByteBuffer> kafkaConsumer) {
+    if (consumerMetrics == KafkaConsumerMetrics.NOOP_METRICS) return;
+    long now = System.nanoTime();
+    if (now - lagRecordedNanos < lagIntervalNanos) return;
+    lagRecordedNanos = now;
+
+    Set<TopicPartition> assignment = kafkaConsumer.assignment();
+    if (assignment.isEmpty()) return;
+    Duration timeout = Duration.ofMillis(POLL_TIMEOUT_MILLIS);
+    try {
+      for (Map.Entry<TopicPartition, Long> entry
+        : kafkaConsumer.endOffsets(assignment, timeout).entrySet()) {
+        long position = kafkaConsumer.position(entry.getKey(), timeout);
+        consumerMetrics.recordLag(entry.getKey(), Math.max(0L, entry.getValue() - position));
+      }
+    } catch (InterruptException e) {
+      throw e;
+    } catch (RuntimeException e) { // ex. timeout: we'll try again later
+      LOG.debug("Cannot read lag of {}", assignment, e);
     }
   }
 
@@ -129,7 +373,48 @@ final class KafkaCollectorWorker implements Runnable {
   }
 
   /* span key or trace ID key */
-  static boolean protobuf3(byte[] bytes) {
-    return bytes[0] == 10 && bytes[1] != 0; // varint follows and won't be zero
+  static boolean protobuf3(ByteBuffer buffer) {
+    int i = buffer.position(); // varint follows and won't be zero
+    return buffer.get(i) == 10 && buffer.get(i + 1) != 0;
+  }
+
+  /** Tracks storage of the spans of one poll, which completes once per partition. */
+  static final class PolledBatch implements Callback<Void> {
+    final KafkaConsumerMetrics consumerMetrics;
+    final long pollNanos = System.nanoTime();
+    /** The offsets to commit, which are after the last record of each partition. */
+    final Map<TopicPartition, OffsetAndMetadata> offsets = new LinkedHashMap<>();
+    final Map<TopicPartition, Long> firstOffsets = new LinkedHashMap<>();
+    final CountDownLatch remaining;
+    volatile Throwable failure;
+
+    PolledBatch(int partitions, KafkaConsumerMetrics consumerMetrics) {
+      this.consumerMetrics = consumerMetrics;
+      remaining = new CountDownLatch(partitions);
+    }
+
+    boolean isDone() {
+      return remaining.getCount() == 0;
+    }
+
+    /** Returns true if all partitions completed within the timeout. */
+    boolean await(long timeoutMillis) {
+      try {
+        return remaining.await(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // the next poll raises InterruptException
+        return false;
+      }
+    }
+
+    @Override public void onSuccess(Void value) {
+      consumerMetrics.recordPollToStoreNanos(System.nanoTime() - pollNanos);
+      remaining.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      failure = t;
+      remaining.countDown();
+    }
   }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.kafka;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Callbacks about how far the Kafka collector is behind its topics, in addition to the {@link
+ * zipkin2.collector.CollectorMetrics collector metrics} every transport reports.
+ *
+ * <p>Callbacks are invoked by polling threads, except {@link #recordPollToStoreNanos(long)}, which
+ * is invoked by the thread that completes a storage call.
+ */
+public interface KafkaConsumerMetrics {
+
+  /**
+   * Records the count of records in a partition after the position of the consumer. This is
+   * recorded periodically for each assigned partition, and grows while consumption is paused.
+   */
+  void recordLag(TopicPartition partition, long lag);
+
+  /** Called when a partition is revoked, so that lag is no longer reported for it. */
+  void removeLag(TopicPartition partition);
+
+  /** Records the time from when records were polled until storage accepted their spans. */
+  void recordPollToStoreNanos(long nanos);
+
+  /** Increments when consumption pauses, because storage is behind or failed. */
+  void incrementPauses();
+
+  KafkaConsumerMetrics NOOP_METRICS = new KafkaConsumerMetrics() {
+    @Override public void recordLag(TopicPartition partition, long lag) {
+    }
+
+    @Override public void removeLag(TopicPartition partition) {
+    }
+
+    @Override public void recordPollToStoreNanos(long nanos) {
+    }
+
+    @Override public void incrementPauses() {
+    }
+
+    @Override public String toString() {
+      return "NoOpKafkaConsumerMetrics";
+    }
+  };
+}
@@ -13,11 +13,13 @@
  */
 package zipkin2.collector.kafka;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -198,9 +200,8 @@ class ITKafkaCollector {
 
     try (KafkaCollector collector = builder.build()) {
       collector.start();
-      assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
-      // the only way we could read this, is if the malformed spans were skipped.
-      assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
+      // the only way we could read these, is if the malformed spans were skipped.
+      assertThat(takeSpans(spans.size() * 2)).containsExactlyElementsOf(concat(spans, spans));
     }
 
     assertThat(kafkaMetrics.messages()).isEqualTo(5);
@@ -220,10 +221,10 @@ class ITKafkaCollector {
       }
 
       @Override protected void doEnqueue(Callback<Void> callback) {
-        if (counter.getAndIncrement() == 1) {
+        if (counter.getAndIncrement() == 0) {
           callback.onError(new RuntimeException("storage fell over"));
         } else {
-          receivedSpans.add(spans);
+          receivedSpans.add(input);
           callback.onSuccess(null);
         }
       }
@@ -235,24 +236,81 @@ class ITKafkaCollector {
     final StorageComponent storage = buildStorage(consumer);
     KafkaCollector.Builder builder = builder("storage_exception").storage(storage);
 
-    produceSpans(THRIFT.encodeList(spans), builder.topic);
     produceSpans(THRIFT.encodeList(spans), builder.topic); // tossed on error
-    produceSpans(THRIFT.encodeList(spans), builder.topic);
 
     try (KafkaCollector collector = builder.build()) {
       collector.start();
-      assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
-      // the only way we could read this, is if the malformed span was skipped.
+      while (counter.get() == 0) Thread.sleep(10);
+      produceSpans(THRIFT.encodeList(spans), builder.topic);
+      // the only way we could read this, is if the failed message was skipped.
       assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
     }
 
-    assertThat(kafkaMetrics.messages()).isEqualTo(3);
+    assertThat(kafkaMetrics.messages()).isEqualTo(2);
     assertThat(kafkaMetrics.messagesDropped()).isZero(); // storage failure isn't a message failure
-    assertThat(kafkaMetrics.bytes()).isEqualTo(THRIFT.encodeList(spans).length * 3);
-    assertThat(kafkaMetrics.spans()).isEqualTo(spans.size() * 3);
+    assertThat(kafkaMetrics.bytes()).isEqualTo(THRIFT.encodeList(spans).length * 2);
+    assertThat(kafkaMetrics.spans()).isEqualTo(spans.size() * 2);
     assertThat(kafkaMetrics.spansDropped()).isEqualTo(spans.size()); // only one dropped
   }
 
+  @Test void readsAgainWhenStorageIsOverCapacity() throws Exception {
+    AtomicInteger counter = new AtomicInteger();
+    consumer = (input) -> new Call.Base<Void>() {
+      @Override protected Void doExecute() {
+        throw new AssertionError();
+      }
+
+      @Override protected void doEnqueue(Callback<Void> callback) {
+        if (counter.getAndIncrement() == 0) {
+          callback.onError(new RejectedExecutionException("storage is over capacity"));
+        } else {
+          receivedSpans.add(input);
+          callback.onSuccess(null);
+        }
+      }
+
+      @Override public Call<Void> clone() {
+        throw new AssertionError();
+      }
+    };
+    final StorageComponent storage = buildStorage(consumer);
+    KafkaCollector.Builder builder = builder("storage_over_capacity").storage(storage);
+
+    produceSpans(THRIFT.encodeList(spans), builder.topic); // read again after the error
+    produceSpans(THRIFT.encodeList(spans), builder.topic);
+    produceSpans(THRIFT.encodeList(spans), builder.topic);
+
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      // the only way we could read these, is if the failed messages were read again
+      assertThat(takeSpans(spans.size() * 3))
+        .containsExactlyElementsOf(concat(spans, concat(spans, spans)));
+    }
+
+    assertThat(counter.get()).isGreaterThan(1);
+    assertThat(kafkaMetrics.messages()).isGreaterThan(3); // includes messages read again
+    assertThat(kafkaMetrics.messagesDropped()).isZero(); // storage failure isn't a message failure
+    assertThat(kafkaMetrics.spansDropped()).isZero(); // as they were read again
+  }
+
+  /** Offsets are committed after storage, so a new consumer doesn't read stored messages again */
+  @Test void commitsOffsetsAfterStorage() throws Exception {
+    KafkaCollector.Builder builder = builder("commits_offsets");
+
+    produceSpans(THRIFT.encodeList(spans), builder.topic);
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
+    }
+
+    List<Span> nextSpans = Arrays.asList(LOTS_OF_SPANS[2], LOTS_OF_SPANS[3]);
+    produceSpans(THRIFT.encodeList(nextSpans), builder.topic);
+    try (KafkaCollector collector = builder.build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(nextSpans);
+    }
+  }
+
   @Test void messagesDistributedAcrossMultipleThreadsSuccessfully() throws Exception {
     KafkaCollector.Builder builder = builder("multi_thread", 2);
 
@@ -334,6 +392,19 @@ class ITKafkaCollector {
     }
   }
 
+  /** Spans of messages consumed in the same poll are stored together. */
+  List<Span> takeSpans(int count) throws InterruptedException {
+    List<Span> result = new ArrayList<>();
+    while (result.size() < count) result.addAll(receivedSpans.take());
+    return result;
+  }
+
+  static List<Span> concat(List<Span> first, List<Span> second) {
+    List<Span> result = new ArrayList<>(first);
+    result.addAll(second);
+    return result;
+  }
+
   void produceSpans(byte[] spans, String topic) {
     produceSpans(spans, topic, 0);
   }
@@ -362,6 +433,10 @@ class ITKafkaCollector {
       @Override public SpanConsumer spanConsumer() {
         return spanConsumer;
       }
+
+      @Override public boolean isOverCapacity(Throwable e) {
+        return e instanceof RejectedExecutionException;
+      }
     };
   }
 }
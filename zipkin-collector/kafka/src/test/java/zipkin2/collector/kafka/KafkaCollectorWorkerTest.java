@@ -0,0 +1,316 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.collector.InMemoryCollectorMetrics;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+import static zipkin2.TestObjects.UTF_8;
+import static zipkin2.codec.SpanBytesEncoder.PROTO3;
+
+@Timeout(60)
+class KafkaCollectorWorkerTest {
+  static final TopicPartition PARTITION = new TopicPartition("zipkin", 0);
+
+  MockConsumer<byte[], ByteBuffer> kafkaConsumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  InMemoryCollectorMetrics kafkaMetrics = metrics.forTransport("kafka");
+  List<List<Span>> storageCalls = new CopyOnWriteArrayList<>();
+  List<String> storageThreads = new CopyOnWriteArrayList<>();
+  AtomicInteger failures = new AtomicInteger();
+  AtomicReference<RuntimeException> failure =
+    new AtomicReference<>(new RejectedExecutionException("storage is over capacity"));
+  ExecutorService[] decoders = {};
+  AtomicBoolean holdStorage = new AtomicBoolean();
+  List<Callback<Void>> heldCallbacks = new CopyOnWriteArrayList<>();
+  Map<TopicPartition, Long> lag = new ConcurrentHashMap<>();
+  AtomicInteger pauses = new AtomicInteger();
+  KafkaConsumerMetrics consumerMetrics = new KafkaConsumerMetrics() {
+    @Override public void recordLag(TopicPartition partition, long value) {
+      lag.put(partition, value);
+    }
+
+    @Override public void removeLag(TopicPartition partition) {
+      lag.remove(partition);
+    }
+
+    @Override public void recordPollToStoreNanos(long nanos) {
+    }
+
+    @Override public void incrementPauses() {
+      pauses.incrementAndGet();
+    }
+  };
+  SpanConsumer spanConsumer = spans -> new Call.Base<Void>() {
+    @Override protected Void doExecute() {
+      throw new AssertionError();
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      storageThreads.add(Thread.currentThread().getName());
+      if (holdStorage.get()) {
+        storageCalls.add(spans);
+        heldCallbacks.add(callback);
+      } else if (failures.getAndDecrement() > 0) {
+        callback.onError(failure.get());
+      } else {
+        storageCalls.add(spans);
+        callback.onSuccess(null);
+      }
+    }
+
+    @Override public Call<Void> clone() {
+      throw new AssertionError();
+    }
+  };
+  KafkaCollectorWorker worker;
+  Thread thread;
+
+  @AfterEach void stop() throws InterruptedException {
+    worker.stop();
+    thread.join();
+    for (ExecutorService decoder : decoders) decoder.shutdownNow();
+  }
+
+  @Test void storesPollOfPartitionInOneCall() throws Exception {
+    start(Collections.singletonList(() -> {
+      assign();
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+      addRecord(1, PROTO3.encodeList(spans(2, 4)));
+      addRecord(2, PROTO3.encodeList(spans(4, 6)));
+    }));
+
+    awaitCommitted(3);
+    assertThat(storageCalls).containsExactly(spans(0, 6));
+    assertThat(kafkaMetrics.messages()).isEqualTo(3);
+    assertThat(kafkaMetrics.spans()).isEqualTo(6);
+  }
+
+  @Test void skipsMalformedRecords() throws Exception {
+    start(Collections.singletonList(() -> {
+      assign();
+      addRecord(0, "malformed".getBytes(UTF_8));
+      addRecord(1, PROTO3.encodeList(spans(0, 2)));
+    }));
+
+    awaitCommitted(2);
+    assertThat(storageCalls).containsExactly(spans(0, 2));
+    assertThat(kafkaMetrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void skipsSpansDecodedBeforeAnError() throws Exception {
+    byte[] message = PROTO3.encodeList(spans(0, 2));
+    start(Collections.singletonList(() -> {
+      assign();
+      addRecord(0, Arrays.copyOf(message, message.length - 1)); // truncated in the second span
+      addRecord(1, PROTO3.encodeList(spans(2, 4)));
+    }));
+
+    awaitCommitted(2);
+    assertThat(storageCalls).containsExactly(spans(2, 4));
+    assertThat(kafkaMetrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void decodesOnThreadOfPartition() throws Exception {
+    decoders = new ExecutorService[] {
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "decode-0")),
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "decode-1"))
+    };
+    int decoder = Math.floorMod(PARTITION.hashCode(), decoders.length);
+    List<Runnable> pollTasks = new ArrayList<>();
+    pollTasks.add(() -> {
+      assign();
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+    });
+    pollTasks.add(() -> addRecord(1, PROTO3.encodeList(spans(2, 4))));
+    start(pollTasks);
+
+    awaitCommitted(2);
+    assertThat(storageCalls).containsExactly(spans(0, 2), spans(2, 4)); // in order polled
+    assertThat(storageThreads).containsOnly("decode-" + decoder);
+  }
+
+  @Test void readsAgainWhenStorageFails() throws Exception {
+    failures.set(1);
+    AtomicLong positionAfterFailure = new AtomicLong(-1);
+    List<Runnable> pollTasks = new ArrayList<>();
+    pollTasks.add(() -> {
+      assign();
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+      addRecord(1, PROTO3.encodeList(spans(2, 4)));
+    });
+    pollTasks.add(() -> { // the mock doesn't retain records, so add them again
+      positionAfterFailure.set(kafkaConsumer.position(PARTITION));
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+      addRecord(1, PROTO3.encodeList(spans(2, 4)));
+    });
+    start(pollTasks);
+
+    awaitCommitted(2);
+    assertThat(positionAfterFailure.get()).isZero();
+    assertThat(storageCalls).containsExactly(spans(0, 4));
+    assertThat(kafkaMetrics.spansDropped()).isZero(); // as they were read again
+  }
+
+  /** Guards against errors that leak from storage, such as InvalidQueryException */
+  @Test void skipsWhenStorageRejectsSpans() throws Exception {
+    failures.set(1);
+    failure.set(new IllegalStateException("storage fell over"));
+    List<Runnable> pollTasks = new ArrayList<>();
+    pollTasks.add(() -> {
+      assign();
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+    });
+    pollTasks.add(() -> addRecord(1, PROTO3.encodeList(spans(2, 4))));
+    start(pollTasks);
+
+    awaitCommitted(2);
+    assertThat(storageCalls).containsExactly(spans(2, 4));
+    assertThat(kafkaMetrics.spansDropped()).isEqualTo(2);
+    assertThat(pauses.get()).isZero(); // no backoff
+  }
+
+  /** Records stay in Kafka while storage is behind, as opposed to polling more of them. */
+  @Test void pausesWhenPollsInFlightReachLimit() throws Exception {
+    holdStorage.set(true);
+    List<Runnable> pollTasks = new ArrayList<>();
+    pollTasks.add(() -> {
+      assign();
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+    });
+    pollTasks.add(() -> addRecord(1, PROTO3.encodeList(spans(2, 4))));
+    pollTasks.add(() -> addRecord(2, PROTO3.encodeList(spans(4, 6))));
+    start(pollTasks, 2);
+
+    while (kafkaConsumer.paused().isEmpty()) Thread.sleep(10);
+    assertThat(storageCalls).containsExactly(spans(0, 2), spans(2, 4));
+    assertThat(pauses.get()).isEqualTo(1);
+
+    holdStorage.set(false);
+    heldCallbacks.forEach(callback -> callback.onSuccess(null));
+    awaitCommitted(3); // resumed
+    assertThat(storageCalls).containsExactly(spans(0, 2), spans(2, 4), spans(4, 6));
+  }
+
+  @Test void pausesWhileBackingOffFromStorageFailure() throws Exception {
+    failures.set(1);
+    start(Collections.singletonList(() -> {
+      assign();
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+    }));
+
+    while (kafkaConsumer.paused().isEmpty()) Thread.sleep(10);
+    assertThat(pauses.get()).isEqualTo(1);
+    assertThat(worker.pollsInFlightLimit).isEqualTo(2); // halved
+  }
+
+  @Test void recordsLag() throws Exception {
+    start(Collections.singletonList(() -> {
+      assign();
+      kafkaConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 10L));
+      addRecord(0, PROTO3.encodeList(spans(0, 2)));
+      addRecord(1, PROTO3.encodeList(spans(2, 4)));
+    }));
+
+    awaitCommitted(2);
+    while (!Long.valueOf(8L).equals(lag.get(PARTITION))) Thread.sleep(10);
+  }
+
+  void start(List<Runnable> pollTasks) {
+    start(pollTasks, 4);
+  }
+
+  void start(List<Runnable> pollTasks, int maxPollsInFlight) {
+    pollTasks.forEach(kafkaConsumer::schedulePollTask);
+    worker = new KafkaCollectorWorker(KafkaCollector.builder()
+      .storage(buildStorage(spanConsumer))
+      .metrics(metrics)
+      .consumerMetrics(consumerMetrics)
+      .maxPollsInFlight(maxPollsInFlight), decoders);
+    worker.lagIntervalNanos = 0L;
+    thread = new Thread(() -> worker.run(kafkaConsumer));
+    thread.start();
+  }
+
+  void assign() {
+    kafkaConsumer.rebalance(Collections.singletonList(PARTITION));
+    kafkaConsumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+  }
+
+  void addRecord(long offset, byte[] value) {
+    kafkaConsumer.addRecord(new ConsumerRecord<>(
+      PARTITION.topic(), PARTITION.partition(), offset, null, ByteBuffer.wrap(value)));
+  }
+
+  void awaitCommitted(long offset) throws InterruptedException {
+    while (true) {
+      OffsetAndMetadata committed = // the mock's methods are synchronized
+        kafkaConsumer.committed(Collections.singleton(PARTITION)).get(PARTITION);
+      if (committed != null && committed.offset() == offset) return;
+      Thread.sleep(10);
+    }
+  }
+
+  static List<Span> spans(int from, int to) {
+    List<Span> result = new ArrayList<>();
+    for (int i = from; i < to; i++) result.add(LOTS_OF_SPANS[i]);
+    return result;
+  }
+
+  static StorageComponent buildStorage(final SpanConsumer spanConsumer) {
+    return new ForwardingStorageComponent() {
+      @Override protected StorageComponent delegate() {
+        throw new AssertionError();
+      }
+
+      @Override public SpanConsumer spanConsumer() {
+        return spanConsumer;
+      }
+
+      @Override public boolean isOverCapacity(Throwable e) {
+        return e instanceof RejectedExecutionException;
+      }
+    };
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.rabbitmq;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.SpanBytesDecoderDetector;
+import zipkin2.collector.Collector;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Consumes spans from messages on a RabbitMQ queue, acknowledging messages after their spans are
+ * stored. Malformed messages are acknowledged, so that they are discarded.
+ *
+ * <p>Deliveries are accumulated until there are {@code batchSize} messages, or {@link
+ * #LINGER_MILLIS} passed, and their spans stored in one call. Batches are acknowledged in the order
+ * they were delivered, with {@code multiple=true}, so that several batches can be stored at the
+ * same time. Other storage errors reject the batch without requeue, so that a broken storage
+ * doesn't redeliver it in a loop.
+ *
+ * <p>If storage is over capacity, the batch is requeued after an exponential backoff, rather than
+ * immediately redelivered to a storage that can't keep up. Until then, the batch holds back the
+ * acknowledgement of later ones, so once {@code basicQos} messages are unacknowledged, the broker
+ * stops delivering to this consumer.
+ */
+final class RabbitMQBatchConsumer extends DefaultConsumer {
+  static final Logger LOG = LoggerFactory.getLogger(RabbitMQBatchConsumer.class);
+  static final long LINGER_MILLIS = 100;
+  static final long INITIAL_BACKOFF_MILLIS = 1000;
+  static final long MAX_BACKOFF_MILLIS = 30_000;
+
+  final Collector collector;
+  final CollectorMetrics metrics;
+  final StorageComponent storage;
+  final ScheduledExecutorService timer;
+  final int batchSize;
+  // guarded by this
+  /** Batches not yet acknowledged, in the order they were delivered. */
+  final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+  Batch pending;
+  /** Requeues the first batch in flight after a backoff, when storage was over capacity. */
+  ScheduledFuture<?> requeue;
+  long backoffMillis;
+
+  /**
+   * @param timer flushes batches that don't fill in time. Most batches fill first, so this should
+   * {@linkplain java.util.concurrent.ScheduledThreadPoolExecutor#setRemoveOnCancelPolicy(boolean)
+   * remove cancelled tasks}.
+   */
+  RabbitMQBatchConsumer(Channel channel, Collector collector, CollectorMetrics metrics,
+    StorageComponent storage, ScheduledExecutorService timer, int batchSize) {
+    super(channel);
+    this.collector = collector;
+    this.metrics = metrics;
+    this.storage = storage;
+    this.timer = timer;
+    this.batchSize = batchSize;
+  }
+
+  @Override public synchronized void handleDelivery(String tag, Envelope envelope,
+    BasicProperties props, byte[] body) {
+    metrics.incrementMessages();
+    metrics.incrementBytes(body.length);
+
+    Batch batch = pending;
+    if (batch == null) {
+      pending = batch = new Batch();
+      Batch toFlush = batch;
+      try {
+        batch.lingerTimeout =
+          timer.schedule(() -> flush(toFlush), LINGER_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) { // closed: unacknowledged messages are redelivered
+        return;
+      }
+    }
+    batch.lastDeliveryTag = envelope.getDeliveryTag();
+    if (body.length > 0) decode(body, batch.spans); // lenient on empty messages
+    if (++batch.messages >= batchSize) flush(batch);
+  }
+
+  void decode(byte[] body, List<Span> spans) {
+    try {
+      spans.addAll(SpanBytesDecoderDetector.decoderForListMessage(body).decodeList(body));
+    } catch (RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      LOG.debug("Cannot decode spans due to {}({})", e.getClass().getSimpleName(), e.getMessage());
+    }
+  }
+
+  synchronized void flush(Batch batch) {
+    if (batch != pending) return; // already flushed
+    pending = null;
+    // Don't retain the spans in the timer until it would have flushed them
+    if (batch.lingerTimeout != null) batch.lingerTimeout.cancel(false);
+    inFlight.add(batch);
+    try {
+      collector.accept(batch.spans, batch, Runnable::run, true);
+    } catch (RuntimeException e) {
+      // the batch was already completed with this error
+    }
+  }
+
+  /**
+   * Acknowledges batches whose storage completed, stopping at the first still in flight, or at one
+   * to requeue after a backoff.
+   *
+   * @param backedOff true when called after the backoff, so over capacity batches are requeued
+   */
+  synchronized void acknowledgeCompleted(boolean backedOff) {
+    long ackTag = -1L;
+    Batch batch;
+    while ((batch = inFlight.peekFirst()) != null && batch.done) {
+      if (batch.failure == null) {
+        inFlight.removeFirst();
+        ackTag = batch.lastDeliveryTag; // later batches have higher tags
+        backoffMillis = 0L;
+        continue;
+      }
+      if (ackTag != -1L) ack(ackTag);
+      ackTag = -1L;
+      boolean overCapacity = storage.isOverCapacity(batch.failure);
+      if (overCapacity && !backedOff) {
+        scheduleRequeue(batch.failure);
+        return; // stays first, so that later batches aren't acknowledged with it
+      }
+      inFlight.removeFirst();
+      nack(batch.lastDeliveryTag, overCapacity);
+    }
+    if (ackTag != -1L) ack(ackTag);
+  }
+
+  void scheduleRequeue(Throwable failure) {
+    if (requeue != null) return; // already backing off
+    backoffMillis = backoffMillis == 0L
+      ? INITIAL_BACKOFF_MILLIS
+      : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    try {
+      requeue = timer.schedule(this::requeueAfterBackoff, backoffMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) { // closed: unacknowledged messages are redelivered
+      return;
+    }
+    LOG.warn("Requeuing messages in {}ms as storage is over capacity: {}", backoffMillis,
+      failure.getMessage());
+  }
+
+  /** Requeues batches that completed while backing off, but not those that complete later. */
+  synchronized void requeueAfterBackoff() {
+    requeue = null;
+    acknowledgeCompleted(true);
+  }
+
+  void ack(long deliveryTag) {
+    try {
+      getChannel().basicAck(deliveryTag, true);
+    } catch (IOException | RuntimeException e) { // ex. channel closed: messages are redelivered
+      LOG.debug("Cannot acknowledge messages up to {}", deliveryTag, e);
+    }
+  }
+
+  void nack(long deliveryTag, boolean requeue) {
+    try {
+      getChannel().basicNack(deliveryTag, true, requeue);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Cannot reject messages up to {}", deliveryTag, e);
+    }
+  }
+
+  /** Delivery tags are scoped to the channel, so forget batches of one that shut down. */
+  @Override public synchronized void handleShutdownSignal(String tag, ShutdownSignalException sig) {
+    pending = null;
+    inFlight.clear();
+    if (requeue != null) requeue.cancel(false);
+    requeue = null;
+  }
+
+  final class Batch implements Callback<Void> {
+    final List<Span> spans = new ArrayList<>();
+    int messages;
+    long lastDeliveryTag;
+    ScheduledFuture<?> lingerTimeout;
+    // guarded by the consumer
+    boolean done;
+    Throwable failure;
+
+    @Override public void onSuccess(Void value) {
+      complete(null);
+    }
+
+    @Override public void onError(Throwable t) {
+      complete(t);
+    }
+
+    void complete(Throwable failure) {
+      synchronized (RabbitMQBatchConsumer.this) {
+        done = true;
+        this.failure = failure;
+        acknowledgeCompleted(false);
+      }
+    }
+  }
+}
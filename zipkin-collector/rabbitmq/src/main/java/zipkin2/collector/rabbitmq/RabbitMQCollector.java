@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import zipkin2.Call;
@@ -33,6 +35,7 @@ import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorComponent;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.storage.StorageComponent;
 
 /** This collector consumes encoded binary messages from a RabbitMQ queue. */
@@ -57,10 +60,13 @@ public final class RabbitMQCollector extends CollectorComponent {
     ConnectionFactory connectionFactory = new ConnectionFactory();
     Address[] addresses;
     int concurrency = 1;
+    int prefetchCount = 0;
+    StorageComponent storage;
 
     @Override
     public Builder storage(StorageComponent storage) {
       this.delegate.storage(storage);
+      this.storage = storage;
       return this;
     }
 
@@ -70,6 +76,12 @@ public final class RabbitMQCollector extends CollectorComponent {
       return this;
     }
 
+    @Override
+    public Builder addProcessor(SpanProcessor processor) {
+      this.delegate.addProcessor(processor);
+      return this;
+    }
+
     @Override
     public Builder metrics(CollectorMetrics metrics) {
       if (metrics == null) throw new NullPointerException("metrics == null");
@@ -88,6 +100,20 @@ public final class RabbitMQCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * Messages each consumer receives before acknowledging any. Defaults to 0, which acknowledges
+     * messages when they are delivered, so that they are lost if storage fails.
+     *
+     * <p>When positive, messages are acknowledged after their spans are stored. Deliveries are
+     * stored in batches of up to a quarter of this count, so that several batches are stored at
+     * the same time. Batches storage rejects as over capacity are requeued.
+     */
+    public Builder prefetchCount(int prefetchCount) {
+      if (prefetchCount < 0) throw new IllegalArgumentException("prefetchCount < 0");
+      this.prefetchCount = prefetchCount;
+      return this;
+    }
+
     public Builder connectionFactory(ConnectionFactory connectionFactory) {
       if (connectionFactory == null) throw new NullPointerException("connectionFactory == null");
       this.connectionFactory = connectionFactory;
@@ -152,6 +178,8 @@ public final class RabbitMQCollector extends CollectorComponent {
     final Builder builder;
     final AtomicReference<CheckResult> failure = new AtomicReference<>();
     volatile Connection connection;
+    /** Flushes batches of deliveries when {@link Builder#prefetchCount} is set. */
+    volatile ScheduledExecutorService timer;
 
     // TODO: bad idea to lazy reference properties from a mutable builder
     // copy them here and then pass this to the KafkaCollectorWorker ctor instead
@@ -173,6 +201,8 @@ public final class RabbitMQCollector extends CollectorComponent {
     void close() throws IOException {
       Connection maybeConnection = connection;
       if (maybeConnection != null) maybeConnection.close();
+      ScheduledExecutorService maybeTimer = timer;
+      if (maybeTimer != null) maybeTimer.shutdownNow();
     }
 
     Connection compute() {
@@ -192,6 +222,16 @@ public final class RabbitMQCollector extends CollectorComponent {
       }
       Collector collector = builder.delegate.build();
       CollectorMetrics metrics = builder.metrics;
+      int prefetchCount = builder.prefetchCount;
+      if (prefetchCount > 0) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+          Thread thread = new Thread(r, "zipkin-rabbitmq-flush");
+          thread.setDaemon(true);
+          return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true); // most batches flush before their timeout
+        this.timer = timer;
+      }
 
       for (int i = 0; i < builder.concurrency; i++) {
         String consumerTag = "zipkin-rabbitmq." + i;
@@ -199,8 +239,15 @@ public final class RabbitMQCollector extends CollectorComponent {
           // this sets up a channel for each consumer thread.
           // We don't track channels, as the connection will close its channels implicitly
           Channel channel = connection.createChannel();
-          RabbitMQSpanConsumer consumer = new RabbitMQSpanConsumer(channel, collector, metrics);
-          channel.basicConsume(builder.queue, true, consumerTag, consumer);
+          if (prefetchCount == 0) {
+            RabbitMQSpanConsumer consumer = new RabbitMQSpanConsumer(channel, collector, metrics);
+            channel.basicConsume(builder.queue, true, consumerTag, consumer);
+            continue;
+          }
+          channel.basicQos(prefetchCount);
+          RabbitMQBatchConsumer consumer = new RabbitMQBatchConsumer(channel, collector, metrics,
+            builder.storage, this.timer, Math.max(1, prefetchCount / 4));
+          channel.basicConsume(builder.queue, false, consumerTag, consumer);
         } catch (IOException e) {
           throw new IllegalStateException("Failed to start RabbitMQ consumer " + consumerTag, e);
         }
@@ -228,8 +275,11 @@ public final class RabbitMQCollector extends CollectorComponent {
   }
 
   /**
-   * Consumes spans from messages on a RabbitMQ queue. Malformed messages will be discarded. Errors
-   * in the storage component will similarly be ignored, with no retry of the message.
+   * Consumes spans from messages on a RabbitMQ queue, when messages are acknowledged on delivery.
+   * Malformed messages will be discarded. Errors in the storage component will similarly be
+   * ignored, with no retry of the message.
+   *
+   * @see RabbitMQBatchConsumer
    */
   static class RabbitMQSpanConsumer extends DefaultConsumer {
     final Collector collector;
@@ -19,6 +19,7 @@ import com.rabbitmq.client.ConnectionFactory;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -192,6 +193,41 @@ class ITRabbitMQCollector {
     assertThat(rabbitmqMetrics.spansDropped()).isEqualTo(spans.size()); // only one dropped
   }
 
+  /** With manual acknowledgement, messages storage rejected as over capacity are redelivered. */
+  @Test void requeuesOnOverCapacity_prefetchCount() throws Exception {
+    AtomicInteger counter = new AtomicInteger();
+    consumer = (input) -> new Call.Base<Void>() {
+      @Override protected Void doExecute() {
+        throw new AssertionError();
+      }
+
+      @Override protected void doEnqueue(Callback<Void> callback) {
+        if (counter.getAndIncrement() == 0) {
+          callback.onError(new RejectedExecutionException("over capacity"));
+        } else {
+          receivedSpans.add(input);
+          callback.onSuccess(null);
+        }
+      }
+
+      @Override public Call<Void> clone() {
+        throw new AssertionError();
+      }
+    };
+    RabbitMQCollector.Builder builder =
+      builder("over_capacity").storage(buildStorage(consumer)).prefetchCount(4);
+
+    produceSpans(THRIFT.encodeList(spans), builder.queue);
+
+    try (RabbitMQCollector collector = builder.build()) {
+      collector.start();
+      assertThat(receivedSpans.take()).containsExactlyElementsOf(spans);
+    }
+
+    assertThat(rabbitmqMetrics.messages()).isEqualTo(2); // delivered twice
+    assertThat(rabbitmqMetrics.spansDropped()).isEqualTo(spans.size());
+  }
+
   /**
    * The {@code toString()} of {@link Component} implementations appear in health check endpoints.
    * Since these are likely to be exposed in logs and other monitoring tools, care should be taken
@@ -234,6 +270,10 @@ class ITRabbitMQCollector {
       @Override public SpanConsumer spanConsumer() {
         return spanConsumer;
       }
+
+      @Override public boolean isOverCapacity(Throwable e) {
+        return e instanceof RejectedExecutionException;
+      }
     };
   }
 }
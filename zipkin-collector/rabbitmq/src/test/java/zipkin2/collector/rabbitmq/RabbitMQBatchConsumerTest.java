@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.collector.Collector;
+import zipkin2.collector.InMemoryCollectorMetrics;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+import static zipkin2.codec.SpanBytesEncoder.PROTO3;
+
+public class RabbitMQBatchConsumerTest {
+  Channel channel = mock(Channel.class);
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  List<List<Span>> storageCalls = new CopyOnWriteArrayList<>();
+  List<Callback<Void>> storageCallbacks = new CopyOnWriteArrayList<>();
+  StorageComponent storage = new ForwardingStorageComponent() {
+    @Override protected StorageComponent delegate() {
+      throw new AssertionError();
+    }
+
+    @Override public boolean isOverCapacity(Throwable e) {
+      return e instanceof RejectedExecutionException;
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> new Call.Base<Void>() {
+        @Override protected Void doExecute() {
+          throw new AssertionError();
+        }
+
+        @Override protected void doEnqueue(Callback<Void> callback) {
+          storageCalls.add(spans);
+          storageCallbacks.add(callback);
+        }
+
+        @Override public Call<Void> clone() {
+          throw new AssertionError();
+        }
+      };
+    }
+  };
+  Collector collector = Collector.newBuilder(getClass()).storage(storage).metrics(metrics).build();
+  List<Long> backoffs = new CopyOnWriteArrayList<>();
+  List<Runnable> requeues = new CopyOnWriteArrayList<>();
+  ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1) {
+    /** Captures requeues, so that tests run them instead of waiting for the backoff. */
+    @Override public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      if (unit.toMillis(delay) == RabbitMQBatchConsumer.LINGER_MILLIS) {
+        return super.schedule(command, delay, unit);
+      }
+      backoffs.add(unit.toMillis(delay));
+      requeues.add(command);
+      return super.schedule(() -> {
+      }, 1, TimeUnit.DAYS);
+    }
+  };
+  RabbitMQBatchConsumer consumer =
+    new RabbitMQBatchConsumer(channel, collector, metrics, storage, timer, 2);
+
+  @After public void close() {
+    timer.shutdownNow();
+  }
+
+  @Test public void storesBatchInOneCall() throws Exception {
+    deliver(1, PROTO3.encodeList(asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1])));
+    deliver(2, PROTO3.encodeList(asList(LOTS_OF_SPANS[2])));
+
+    assertThat(storageCalls).containsExactly(
+      asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]));
+    verifyNoInteractions(channel); // not yet stored
+
+    storageCallbacks.get(0).onSuccess(null);
+    verify(channel).basicAck(2, true);
+  }
+
+  @Test public void acksMalformedMessages() throws Exception {
+    deliver(1, "malformed".getBytes());
+    deliver(2, new byte[0]);
+
+    verify(channel).basicAck(2, true);
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test public void flushesAfterLinger() throws Exception {
+    deliver(1, PROTO3.encodeList(asList(LOTS_OF_SPANS[0])));
+
+    while (storageCallbacks.isEmpty()) Thread.sleep(10);
+    storageCallbacks.get(0).onSuccess(null);
+    verify(channel, timeout(1000)).basicAck(1, true);
+  }
+
+  @Test public void acksInDeliveryOrder() throws Exception {
+    for (int tag = 1; tag <= 4; tag++) {
+      deliver(tag, PROTO3.encodeList(asList(LOTS_OF_SPANS[tag])));
+    }
+    assertThat(storageCallbacks).hasSize(2);
+
+    storageCallbacks.get(1).onSuccess(null);
+    verifyNoInteractions(channel); // the first batch is still in flight
+
+    storageCallbacks.get(0).onSuccess(null);
+    verify(channel).basicAck(4, true);
+    verifyNoMoreInteractions(channel);
+  }
+
+  @Test public void requeuesWhenOverCapacity() throws Exception {
+    deliver(1, PROTO3.encodeList(asList(LOTS_OF_SPANS[0])));
+    deliver(2, PROTO3.encodeList(asList(LOTS_OF_SPANS[1])));
+    deliver(3, PROTO3.encodeList(asList(LOTS_OF_SPANS[2])));
+    deliver(4, PROTO3.encodeList(asList(LOTS_OF_SPANS[3])));
+
+    storageCallbacks.get(0).onSuccess(null);
+    storageCallbacks.get(1).onError(new RejectedExecutionException("over capacity"));
+
+    verify(channel).basicAck(2, true);
+    verifyNoMoreInteractions(channel); // not redelivered until after the backoff
+    assertThat(backoffs).containsExactly(RabbitMQBatchConsumer.INITIAL_BACKOFF_MILLIS);
+
+    requeues.get(0).run();
+    verify(channel).basicNack(4, true, true);
+  }
+
+  @Test public void requeue_holdsBackLaterBatches() throws Exception {
+    for (int tag = 1; tag <= 6; tag++) {
+      deliver(tag, PROTO3.encodeList(asList(LOTS_OF_SPANS[tag])));
+    }
+
+    storageCallbacks.get(0).onError(new RejectedExecutionException("over capacity"));
+    storageCallbacks.get(1).onSuccess(null);
+    storageCallbacks.get(2).onError(new RejectedExecutionException("over capacity"));
+    verifyNoInteractions(channel); // acknowledging later batches would acknowledge the first
+
+    requeues.get(0).run(); // batches completed while backing off are requeued without another
+    verify(channel).basicNack(2, true, true);
+    verify(channel).basicAck(4, true);
+    verify(channel).basicNack(6, true, true);
+    assertThat(backoffs).hasSize(1);
+  }
+
+  @Test public void requeue_backsOffExponentially() throws Exception {
+    for (int tag = 1; tag <= 8; tag++) {
+      deliver(tag, PROTO3.encodeList(asList(LOTS_OF_SPANS[tag])));
+    }
+
+    for (int i = 0; i < 3; i++) {
+      storageCallbacks.get(i).onError(new RejectedExecutionException("over capacity"));
+      requeues.get(i).run();
+    }
+    storageCallbacks.get(3).onSuccess(null); // resets the backoff
+    deliver(9, PROTO3.encodeList(asList(LOTS_OF_SPANS[9])));
+    deliver(10, PROTO3.encodeList(asList(LOTS_OF_SPANS[10])));
+    storageCallbacks.get(4).onError(new RejectedExecutionException("over capacity"));
+
+    long initial = RabbitMQBatchConsumer.INITIAL_BACKOFF_MILLIS;
+    assertThat(backoffs).containsExactly(initial, initial * 2, initial * 4, initial);
+  }
+
+  @Test public void rejectsOnOtherStorageErrors() throws Exception {
+    deliver(1, PROTO3.encodeList(asList(LOTS_OF_SPANS[0])));
+    deliver(2, PROTO3.encodeList(asList(LOTS_OF_SPANS[1])));
+
+    storageCallbacks.get(0).onError(new IllegalStateException("storage fell over"));
+
+    verify(channel).basicNack(2, true, false);
+  }
+
+  void deliver(long deliveryTag, byte[] body) {
+    consumer.handleDelivery("zipkin-rabbitmq.0",
+      new Envelope(deliveryTag, false, "", "zipkin"), null, body);
+  }
+}
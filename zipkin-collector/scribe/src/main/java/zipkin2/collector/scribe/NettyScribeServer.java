@@ -22,22 +22,36 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static zipkin2.Call.propagateIfFatal;
 
 final class NettyScribeServer {
-  final int port;
+  static final Logger LOG = LoggerFactory.getLogger(NettyScribeServer.class);
+
+  final int port, maxConnections, maxInFlightPerConnection;
   final ScribeSpanConsumer scribe;
+  final AtomicInteger connections = new AtomicInteger();
 
   volatile EventLoopGroup bossGroup;
   volatile Channel channel;
 
   NettyScribeServer(int port, ScribeSpanConsumer scribe) {
+    this(port, 0, ScribeCollector.DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION, scribe);
+  }
+
+  NettyScribeServer(int port, int maxConnections, int maxInFlightPerConnection,
+    ScribeSpanConsumer scribe) {
     this.port = port;
+    this.maxConnections = maxConnections;
+    this.maxInFlightPerConnection = maxInFlightPerConnection;
     this.scribe = scribe;
   }
 
   void start() {
+    // Like Armeria's, these groups use the native transport, such as epoll, when available.
     bossGroup = EventLoopGroups.newEventLoopGroup(1);
     EventLoopGroup workerGroup = CommonPools.workerGroup();
 
@@ -47,9 +61,10 @@ final class NettyScribeServer {
         .channel(EventLoopGroups.serverChannelType(bossGroup))
         .childHandler(new ChannelInitializer<SocketChannel>() {
           @Override protected void initChannel(SocketChannel ch) {
+            if (!tryAcquireConnection(ch)) return;
             ch.pipeline()
               .addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4))
-              .addLast(new ScribeInboundHandler(scribe));
+              .addLast(new ScribeInboundHandler(scribe, maxInFlightPerConnection));
           }
         })
         .bind(port)
@@ -61,6 +76,21 @@ final class NettyScribeServer {
     }
   }
 
+  /** Closes the connection if there are already {@link #maxConnections}. */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  boolean tryAcquireConnection(Channel ch) {
+    if (maxConnections == 0) return true;
+    if (connections.incrementAndGet() > maxConnections) {
+      connections.decrementAndGet();
+      LOG.debug("Closing connection from {} as there are already {} connections",
+        ch.remoteAddress(), maxConnections);
+      ch.close();
+      return false;
+    }
+    ch.closeFuture().addListener(f -> connections.decrementAndGet());
+    return true;
+  }
+
   @SuppressWarnings("FutureReturnValueIgnored")
   void close() {
     if (channel == null) return;
@@ -18,6 +18,7 @@ import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorComponent;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.StorageComponent;
 
@@ -27,6 +28,7 @@ import zipkin2.storage.StorageComponent;
  * to an {@link SpanConsumer#accept asynchronous span consumer}.
  */
 public final class ScribeCollector extends CollectorComponent {
+  static final int DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION = 128;
 
   public static Builder newBuilder() {
     return new Builder();
@@ -38,6 +40,7 @@ public final class ScribeCollector extends CollectorComponent {
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
     String category = "zipkin";
     int port = 9410;
+    int maxConnections = 0, maxInFlightPerConnection = DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION;
 
     @Override public Builder storage(StorageComponent storage) {
       delegate.storage(storage);
@@ -56,6 +59,11 @@ public final class ScribeCollector extends CollectorComponent {
       return this;
     }
 
+    @Override public Builder addProcessor(SpanProcessor processor) {
+      delegate.addProcessor(processor);
+      return this;
+    }
+
     /** Category zipkin spans will be consumed from. Defaults to "zipkin" */
     public Builder category(String category) {
       if (category == null) throw new NullPointerException("category == null");
@@ -69,6 +77,29 @@ public final class ScribeCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * Maximum count of connections accepted at the same time. Connections over this are closed.
+     * Defaults to zero, which means unlimited.
+     */
+    public Builder maxConnections(int maxConnections) {
+      if (maxConnections < 0) throw new IllegalArgumentException("maxConnections < 0");
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * Maximum count of {@code Log} calls a connection can pipeline before it receives responses.
+     * At this limit, the connection isn't read until a response is sent, which pushes back on the
+     * client. Defaults to 128.
+     */
+    public Builder maxInFlightPerConnection(int maxInFlightPerConnection) {
+      if (maxInFlightPerConnection < 1) {
+        throw new IllegalArgumentException("maxInFlightPerConnection < 1");
+      }
+      this.maxInFlightPerConnection = maxInFlightPerConnection;
+      return this;
+    }
+
     @Override public ScribeCollector build() {
       return new ScribeCollector(this);
     }
@@ -77,7 +108,8 @@ public final class ScribeCollector extends CollectorComponent {
   final NettyScribeServer server;
 
   ScribeCollector(Builder builder) {
-    server = new NettyScribeServer(builder.port,
+    server = new NettyScribeServer(builder.port, builder.maxConnections,
+      builder.maxInFlightPerConnection,
       new ScribeSpanConsumer(builder.delegate.build(), builder.metrics, builder.category));
   }
 
@@ -31,10 +31,10 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.EventLoop;
-import java.util.HashMap;
-import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import zipkin2.Callback;
+import zipkin2.collector.scribe.generated.ResultCode;
 
 import static zipkin2.Call.propagateIfFatal;
 
@@ -53,19 +53,39 @@ final class ScribeInboundHandler extends ChannelInboundHandlerAdapter {
     .set(HttpHeaderNames.USER_AGENT, "Zipkin/ScribeInboundHandler")
     .build();
 
+  final ScribeSpanConsumer scribe;
   final THttpService scribeService;
+  final int maxInFlight;
 
-  ScribeInboundHandler(ScribeSpanConsumer scribe) {
+  ScribeInboundHandler(ScribeSpanConsumer scribe, int maxInFlight) {
+    this.scribe = scribe;
+    this.maxInFlight = maxInFlight;
     scribeService = THttpService.of(scribe);
   }
 
-  Map<Integer, ByteBuf> pendingResponses = new HashMap<>();
+  /**
+   * Responses that complete before an earlier call's wait here, so that responses are sent in the
+   * order of calls. The response to call {@code i} is at {@code i & (length - 1)}, and the ring
+   * grows when more calls than its length are in flight.
+   */
+  ByteBuf[] pendingResponses = new ByteBuf[16];
   int nextResponseIndex = 0;
-  int previouslySentResponseIndex = -1;
+  int nextSendIndex = 0;
 
   @Override public void channelRead(ChannelHandlerContext ctx, Object payload) {
     assert payload instanceof ByteBuf;
-    HttpRequest request = HttpRequest.of(THRIFT_HEADERS, HttpData.wrap((ByteBuf) payload));
+    ByteBuf frame = (ByteBuf) payload;
+    ScribeLogCall call = ScribeLogCall.read(frame, scribe.categoryBytes);
+    if (call != null) {
+      try {
+        log(ctx, call);
+      } finally {
+        frame.release(); // messages are decoded before log returns
+      }
+      return;
+    }
+
+    HttpRequest request = HttpRequest.of(THRIFT_HEADERS, HttpData.wrap(frame));
     ServiceRequestContextBuilder requestContextBuilder = ServiceRequestContext.builder(request)
       .service(scribeService)
       .alloc(ctx.alloc());
@@ -85,7 +105,7 @@ final class ScribeInboundHandler extends ChannelInboundHandlerAdapter {
       return;
     }
 
-    int responseIndex = nextResponseIndex++;
+    int responseIndex = startCall(ctx);
 
     response.aggregateWithPooledObjects(ctx.executor(), ctx.alloc()).handle((msg, t) -> {
       if (t != null) {
@@ -97,20 +117,73 @@ final class ScribeInboundHandler extends ChannelInboundHandlerAdapter {
         ByteBuf returned = ctx.alloc().buffer(content.length() + 4);
         returned.writeInt(content.length());
         returned.writeBytes(content.byteBuf());
-        if (responseIndex == previouslySentResponseIndex + 1) {
-          ctx.writeAndFlush(returned);
-          previouslySentResponseIndex++;
+        sendResponse(ctx, responseIndex, returned);
+      }
 
-          flushResponses(ctx);
+      return null;
+    });
+  }
+
+  /** Handles a {@code Log} call without the overhead of the Thrift service. */
+  void log(ChannelHandlerContext ctx, ScribeLogCall call) {
+    int responseIndex = startCall(ctx);
+    scribe.log(call, new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        respond(call.writeReply(ctx.alloc(), ResultCode.OK));
+      }
+
+      @Override public void onError(Throwable t) {
+        respond(call.writeInternalError(ctx.alloc()));
+      }
+
+      void respond(ByteBuf returned) {
+        if (ctx.executor().inEventLoop()) {
+          sendResponse(ctx, responseIndex, returned);
         } else {
-          pendingResponses.put(responseIndex, returned);
+          ctx.executor().execute(() -> sendResponse(ctx, responseIndex, returned));
         }
       }
-
-      return null;
     });
   }
 
+  /**
+   * Returns the index of the response to a new call. When {@link #maxInFlight} calls await a
+   * response, this stops reading from the connection until one is sent.
+   */
+  int startCall(ChannelHandlerContext ctx) {
+    int inFlight = nextResponseIndex - nextSendIndex;
+    if (inFlight == pendingResponses.length) growPendingResponses();
+    if (inFlight + 1 >= maxInFlight) ctx.channel().config().setAutoRead(false);
+    return nextResponseIndex++;
+  }
+
+  void growPendingResponses() {
+    ByteBuf[] grown = new ByteBuf[pendingResponses.length * 2];
+    for (int i = nextSendIndex; i != nextResponseIndex; i++) {
+      grown[i & (grown.length - 1)] = pendingResponses[i & (pendingResponses.length - 1)];
+    }
+    pendingResponses = grown;
+  }
+
+  void sendResponse(ChannelHandlerContext ctx, int responseIndex, ByteBuf returned) {
+    if (responseIndex != nextSendIndex) {
+      pendingResponses[responseIndex & (pendingResponses.length - 1)] = returned;
+      return;
+    }
+
+    ctx.write(returned);
+    int mask = pendingResponses.length - 1;
+    while (++nextSendIndex != nextResponseIndex && pendingResponses[nextSendIndex & mask] != null) {
+      ctx.write(pendingResponses[nextSendIndex & mask]);
+      pendingResponses[nextSendIndex & mask] = null;
+    }
+    ctx.flush();
+
+    if (!ctx.channel().config().isAutoRead() && nextResponseIndex - nextSendIndex < maxInFlight) {
+      ctx.channel().config().setAutoRead(true);
+    }
+  }
+
   @Override public void channelInactive(ChannelHandlerContext ctx) {
     release();
   }
@@ -122,21 +195,12 @@ final class ScribeInboundHandler extends ChannelInboundHandlerAdapter {
     closeOnFlush(ctx.channel());
   }
 
-  void flushResponses(ChannelHandlerContext ctx) {
-    while (!pendingResponses.isEmpty()) {
-      ByteBuf response = pendingResponses.remove(previouslySentResponseIndex + 1);
-      if (response == null) {
-        return;
-      }
-
-      ctx.writeAndFlush(response);
-      previouslySentResponseIndex++;
-    }
-  }
-
   void release() {
-    pendingResponses.values().forEach(ByteBuf::release);
-    pendingResponses.clear();
+    for (int i = 0; i < pendingResponses.length; i++) {
+      if (pendingResponses[i] == null) continue;
+      pendingResponses[i].release();
+      pendingResponses[i] = null;
+    }
   }
 
   /**
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.scribe;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TType;
+import zipkin2.collector.scribe.generated.LogEntry;
+import zipkin2.collector.scribe.generated.ResultCode;
+import zipkin2.internal.Nullable;
+
+/**
+ * A Scribe {@code Log} call read from a {@code TBinaryProtocol} frame without decoding each {@link
+ * LogEntry#message} into a string. Instead, {@link #messages} are slices of the frame, so that
+ * spans can be base64 decoded from them directly.
+ *
+ * <p>Frames this doesn't understand, such as another method or protocol, are left for the Thrift
+ * service to handle.
+ */
+final class ScribeLogCall {
+  static final int VERSION_1 = 0x80010000, VERSION_MASK = 0xffff0000;
+  static final byte[] LOG = {'L', 'o', 'g'};
+
+  /**
+   * Returns the call in the frame, or null if it isn't a well-formed {@code Log} call. The result
+   * is only valid until the frame is released.
+   *
+   * @param category the UTF-8 encoded category of entries to read
+   */
+  @Nullable static ScribeLogCall read(ByteBuf frame, ByteBuf category) {
+    ByteBuf in = frame.duplicate();
+    try {
+      int seqId;
+      int size = in.readInt();
+      if (size < 0) { // strict: version and message type, then name
+        if ((size & VERSION_MASK) != VERSION_1 || (byte) size != TMessageType.CALL) return null;
+        if (!readLog(in, in.readInt())) return null;
+        seqId = in.readInt();
+      } else { // old: name, then message type
+        if (!readLog(in, size) || in.readByte() != TMessageType.CALL) return null;
+        seqId = in.readInt();
+      }
+
+      List<ByteBuf> messages = null;
+      for (byte type; (type = in.readByte()) != TType.STOP; ) { // fields of Log_args
+        if (in.readShort() != 1 || type != TType.LIST) {
+          if (!skip(in, type)) return null;
+          continue;
+        }
+        if (in.readByte() != TType.STRUCT) return null;
+        int count = in.readInt();
+        if (count < 0) return null;
+        messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          if (!readLogEntry(in, category, messages)) return null;
+        }
+      }
+      if (messages == null || in.isReadable()) return null;
+      return new ScribeLogCall(seqId, messages);
+    } catch (IndexOutOfBoundsException e) { // truncated
+      return null;
+    }
+  }
+
+  static boolean readLog(ByteBuf in, int nameLength) {
+    if (nameLength != LOG.length) return false;
+    for (byte b : LOG) {
+      if (in.readByte() != b) return false;
+    }
+    return true;
+  }
+
+  /** Adds the message of the entry when it is in the category. */
+  static boolean readLogEntry(ByteBuf in, ByteBuf category, List<ByteBuf> messages) {
+    ByteBuf entryCategory = null, message = null;
+    for (byte type; (type = in.readByte()) != TType.STOP; ) {
+      short id = in.readShort();
+      if (type != TType.STRING || (id != 1 && id != 2)) {
+        if (!skip(in, type)) return false;
+        continue;
+      }
+      int length = in.readInt();
+      if (length < 0) return false;
+      if (id == 1) {
+        entryCategory = in.readSlice(length);
+      } else {
+        message = in.readSlice(length);
+      }
+    }
+    if (entryCategory == null || !ByteBufUtil.equals(entryCategory, category)) return true;
+    if (message == null) return false; // let the Thrift service fail on it
+    messages.add(message);
+    return true;
+  }
+
+  /** Skips a field of a type a {@link LogEntry} could be extended with, or returns false. */
+  static boolean skip(ByteBuf in, byte type) {
+    switch (type) {
+      case TType.BOOL:
+      case TType.BYTE:
+        in.skipBytes(1);
+        return true;
+      case TType.I16:
+        in.skipBytes(2);
+        return true;
+      case TType.I32:
+        in.skipBytes(4);
+        return true;
+      case TType.I64:
+      case TType.DOUBLE:
+        in.skipBytes(8);
+        return true;
+      case TType.STRING:
+        int length = in.readInt();
+        if (length < 0) return false;
+        in.skipBytes(length);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  final int seqId;
+  /** Base64 encoded messages of entries in the category */
+  final List<ByteBuf> messages;
+
+  ScribeLogCall(int seqId, List<ByteBuf> messages) {
+    this.seqId = seqId;
+    this.messages = messages;
+  }
+
+  /** Writes the reply frame Thrift would, given {@code TBinaryProtocol} with strict writes. */
+  ByteBuf writeReply(ByteBufAllocator alloc, ResultCode resultCode) {
+    ByteBuf reply = writeMessageBegin(alloc, TMessageType.REPLY);
+    reply.writeByte(TType.I32).writeShort(0).writeInt(resultCode.getValue()); // success
+    reply.writeByte(TType.STOP);
+    return writeFrameLength(reply);
+  }
+
+  /** Like the Thrift service, this doesn't include the message of the error. */
+  ByteBuf writeInternalError(ByteBufAllocator alloc) {
+    ByteBuf reply = writeMessageBegin(alloc, TMessageType.EXCEPTION);
+    reply.writeByte(TType.I32).writeShort(2).writeInt(TApplicationException.INTERNAL_ERROR);
+    reply.writeByte(TType.STOP);
+    return writeFrameLength(reply);
+  }
+
+  ByteBuf writeMessageBegin(ByteBufAllocator alloc, byte type) {
+    ByteBuf reply = alloc.buffer(32);
+    reply.writeInt(0); // placeholder for the frame length
+    reply.writeInt(VERSION_1 | type).writeInt(LOG.length).writeBytes(LOG).writeInt(seqId);
+    return reply;
+  }
+
+  static ByteBuf writeFrameLength(ByteBuf reply) {
+    return reply.setInt(0, reply.readableBytes() - 4);
+  }
+}
@@ -14,7 +14,12 @@
 package zipkin2.collector.scribe;
 
 import com.linecorp.armeria.common.CommonPools;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -29,14 +34,26 @@ import zipkin2.collector.scribe.generated.ResultCode;
 import zipkin2.collector.scribe.generated.Scribe;
 
 final class ScribeSpanConsumer implements Scribe.AsyncIface {
+  /** Values of the base64 alphabet, or -1 for other characters, which MIME decoding ignores. */
+  static final byte[] BASE64_VALUES = new byte[256];
+
+  static {
+    Arrays.fill(BASE64_VALUES, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+  }
+
   final Collector collector;
   final CollectorMetrics metrics;
   final String category;
+  final ByteBuf categoryBytes;
 
   ScribeSpanConsumer(Collector collector, CollectorMetrics metrics, String category) {
     this.collector = collector;
     this.metrics = metrics;
     this.category = category;
+    this.categoryBytes =
+      Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(category.getBytes(StandardCharsets.UTF_8)));
   }
 
   @Override
@@ -60,7 +77,7 @@ final class ScribeSpanConsumer implements Scribe.AsyncIface {
       metrics.incrementBytes(byteCount);
     }
 
-    collector.accept(spans, new Callback<Void>() {
+    accept(spans, new Callback<Void>() {
       @Override public void onSuccess(Void value) {
         resultHandler.onComplete(ResultCode.OK);
       }
@@ -69,7 +86,85 @@ final class ScribeSpanConsumer implements Scribe.AsyncIface {
         Exception error = t instanceof Exception ? (Exception) t : new RuntimeException(t);
         resultHandler.onError(error);
       }
+    });
+  }
+
+  /**
+   * Like {@link #Log}, except messages are base64 decoded from the frame into one array, which each
+   * span is decoded from in turn. This avoids converting each message to a string and back.
+   */
+  void log(ScribeLogCall call, Callback<Void> callback) {
+    metrics.incrementMessages();
+    List<Span> spans = new ArrayList<>(call.messages.size());
+    int byteCount = 0;
+    try {
+      int maxLength = 0;
+      for (ByteBuf message : call.messages) {
+        maxLength = Math.max(maxLength, message.readableBytes());
+      }
+      byte[] decoded = new byte[maxLength / 4 * 3 + 2];
+      for (ByteBuf message : call.messages) {
+        int length = decodeBase64(message, decoded);
+        byteCount += length;
+        spans.add(SpanBytesDecoder.THRIFT.decodeOne(ByteBuffer.wrap(decoded, 0, length)));
+      }
+    } catch (RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      callback.onError(e);
+      return;
+    } finally {
+      metrics.incrementBytes(byteCount);
+    }
+
+    accept(spans, callback);
+  }
+
+  void accept(List<Span> spans, Callback<Void> callback) {
     // Collectors may not be asynchronous so switch to blocking executor here.
-    }, CommonPools.blockingTaskExecutor());
+    collector.accept(spans, callback, CommonPools.blockingTaskExecutor());
+  }
+
+  /**
+   * Decodes base64 the same way as {@link Base64#getMimeDecoder()}, returning the length written to
+   * {@code decoded}. Finagle's zipkin tracer uses MIME encoding, which adds line breaks.
+   */
+  static int decodeBase64(ByteBuf encoded, byte[] decoded) {
+    if (encoded.hasArray()) { // read the array directly, as ByteBuf.getByte checks each index
+      int offset = encoded.arrayOffset() + encoded.readerIndex();
+      return decodeBase64(encoded.array(), offset, offset + encoded.readableBytes(), decoded);
+    }
+    byte[] copy = ByteBufUtil.getBytes(encoded); // one bulk copy out of a direct buffer
+    return decodeBase64(copy, 0, copy.length, decoded);
+  }
+
+  static int decodeBase64(byte[] encoded, int offset, int end, byte[] decoded) {
+    int bits = 0, count = 0, length = 0;
+    for (int i = offset; i < end; i++) {
+      byte b = encoded[i];
+      if (b == '=') { // padding ends the data
+        if (count < 2 || (count == 2 && (i + 1 == end || encoded[i + 1] != '='))) {
+          throw new IllegalArgumentException("Illegal base64 padding at index " + (i - offset));
+        }
+        break;
+      }
+      int value = BASE64_VALUES[b & 0xff];
+      if (value == -1) continue; // ex. a line break
+      bits = bits << 6 | value;
+      if (++count == 4) {
+        decoded[length++] = (byte) (bits >> 16);
+        decoded[length++] = (byte) (bits >> 8);
+        decoded[length++] = (byte) bits;
+        bits = count = 0;
+      }
+    }
+    if (count == 1) {
+      throw new IllegalArgumentException("Last unit does not have enough valid bits");
+    } else if (count == 2) {
+      decoded[length++] = (byte) (bits >> 4);
+    } else if (count == 3) {
+      decoded[length++] = (byte) (bits >> 10);
+      decoded[length++] = (byte) (bits >> 2);
+    }
+    return length;
   }
 }
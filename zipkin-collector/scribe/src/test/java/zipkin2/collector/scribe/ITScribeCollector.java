@@ -14,12 +14,22 @@
 package zipkin2.collector.scribe;
 
 import com.linecorp.armeria.common.CommonPools;
+import java.io.InputStream;
+import java.net.Socket;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
 import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.junit.jupiter.api.AfterAll;
@@ -35,9 +45,11 @@ import zipkin2.collector.scribe.generated.LogEntry;
 import zipkin2.collector.scribe.generated.ResultCode;
 import zipkin2.collector.scribe.generated.Scribe;
 
+import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -69,8 +81,17 @@ class ITScribeCollector {
   @Test void normal() throws Exception {
     // Java version of this sample code
     // https://github.com/facebookarchive/scribe/wiki/Logging-Messages
+    log(false);
+  }
+
+  @Test void strict() throws Exception {
+    log(true);
+  }
+
+  void log(boolean strict) throws Exception {
+    clearInvocations(collector, metrics);
     TTransport transport = new TFramedTransport(new TSocket("localhost", server.port()));
-    TProtocol protocol = new TBinaryProtocol(transport, false, false);
+    TProtocol protocol = new TBinaryProtocol(transport, strict, strict);
     Scribe.Iface client = new Scribe.Client(protocol);
 
     List<LogEntry> entries = TestObjects.TRACE.stream()
@@ -93,6 +114,76 @@ class ITScribeCollector {
     verify(metrics, times(2)).incrementMessages();
   }
 
+  /** Responses must be in request order even when storage completes them out of order. */
+  @Test void pipelined_respondsInOrder() throws Exception {
+    int calls = 20;
+    AtomicInteger accepted = new AtomicInteger();
+    ScheduledExecutorService storage = Executors.newSingleThreadScheduledExecutor();
+    Collector slowCollector = mock(Collector.class);
+    doAnswer(invocation -> {
+      Callback<Void> callback = invocation.getArgument(1);
+      int delay = (calls - accepted.incrementAndGet()) % 4; // later calls often finish first
+      storage.schedule(() -> callback.onSuccess(null), delay, TimeUnit.MILLISECONDS);
+      return null;
+    }).when(slowCollector).accept(any(), any(), any());
+
+    NettyScribeServer pipelined = new NettyScribeServer(0, 0, 2,
+      new ScribeSpanConsumer(slowCollector, metrics, "zipkin"));
+    pipelined.start();
+    try (Socket socket = new Socket("localhost", pipelined.port())) {
+      TMemoryBuffer requests = new TMemoryBuffer(1024);
+      for (int seqId = 0; seqId < calls; seqId++) writeLog(requests, seqId);
+      socket.getOutputStream().write(requests.getArray(), 0, requests.length());
+
+      TProtocol responses = new TBinaryProtocol(
+        new TFramedTransport(new TIOStreamTransport(socket.getInputStream())));
+      for (int seqId = 0; seqId < calls; seqId++) {
+        TMessage message = responses.readMessageBegin();
+        assertThat(message.seqid).isEqualTo(seqId);
+        Scribe.Log_result result = new Scribe.Log_result();
+        result.read(responses);
+        responses.readMessageEnd();
+        assertThat(result.success).isEqualTo(ResultCode.OK);
+      }
+    } finally {
+      pipelined.close();
+      storage.shutdownNow();
+    }
+    assertThat(accepted).hasValue(calls);
+  }
+
+  @Test void maxConnections_closesExtraConnections() throws Exception {
+    NettyScribeServer limited = new NettyScribeServer(0, 1, 128,
+      new ScribeSpanConsumer(collector, metrics, "zipkin"));
+    limited.start();
+    try (TSocket first = new TSocket("localhost", limited.port())) {
+      TTransport transport = new TFramedTransport(first);
+      transport.open();
+      Scribe.Iface client = new Scribe.Client(new TBinaryProtocol(transport));
+      assertThat(client.Log(singletonList(logEntry(TestObjects.CLIENT_SPAN)))).isEqualTo(ResultCode.OK);
+
+      try (Socket second = new Socket("localhost", limited.port())) {
+        InputStream in = second.getInputStream();
+        assertThat(in.read()).isEqualTo(-1); // closed by the server
+      }
+
+      // The first connection is still usable
+      assertThat(client.Log(singletonList(logEntry(TestObjects.CLIENT_SPAN)))).isEqualTo(ResultCode.OK);
+    } finally {
+      limited.close();
+    }
+  }
+
+  /** Writes a framed, strict {@code Log} call with the given sequence ID. */
+  static void writeLog(TTransport out, int seqId) throws Exception {
+    TFramedTransport framed = new TFramedTransport(out);
+    TProtocol protocol = new TBinaryProtocol(framed);
+    protocol.writeMessageBegin(new TMessage("Log", TMessageType.CALL, seqId));
+    new Scribe.Log_args().setMessages(singletonList(logEntry(TestObjects.CLIENT_SPAN))).write(protocol);
+    protocol.writeMessageEnd();
+    framed.flush();
+  }
+
   static LogEntry logEntry(Span span) {
     return new LogEntry()
       .setCategory("zipkin")
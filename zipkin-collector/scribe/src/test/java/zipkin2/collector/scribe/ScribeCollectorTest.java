@@ -58,6 +58,18 @@ class ScribeCollectorTest {
     }
   }
 
+  @Test void maxConnections_notNegative() {
+    assertThatThrownBy(() -> ScribeCollector.newBuilder().maxConnections(-1))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("maxConnections < 0");
+  }
+
+  @Test void maxInFlightPerConnection_atLeastOne() {
+    assertThatThrownBy(() -> ScribeCollector.newBuilder().maxInFlightPerConnection(0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("maxInFlightPerConnection < 1");
+  }
+
   /**
    * The {@code toString()} of {@link Component} implementations appear in health check endpoints.
    * Since these are likely to be exposed in logs and other monitoring tools, care should be taken
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.scribe;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.junit.jupiter.api.Test;
+import zipkin2.collector.scribe.generated.LogEntry;
+import zipkin2.collector.scribe.generated.ResultCode;
+import zipkin2.collector.scribe.generated.Scribe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ScribeLogCallTest {
+  ByteBuf category = Unpooled.wrappedBuffer("zipkin".getBytes(UTF_8));
+  List<LogEntry> entries = Arrays.asList(
+    new LogEntry("zipkin", "c3Bhbg=="),
+    new LogEntry("notzipkin", "aGVsbG8="),
+    new LogEntry("zipkin", "c3Bhbjg=")
+  );
+
+  @Test void read_strict() throws Exception {
+    ScribeLogCall call = ScribeLogCall.read(logCall(true, 42, entries), category);
+
+    assertThat(call.seqId).isEqualTo(42);
+    assertThat(call.messages).extracting(m -> m.toString(UTF_8))
+      .containsExactly("c3Bhbg==", "c3Bhbjg=");
+  }
+
+  @Test void read_old() throws Exception {
+    ScribeLogCall call = ScribeLogCall.read(logCall(false, 42, entries), category);
+
+    assertThat(call.seqId).isEqualTo(42);
+    assertThat(call.messages).extracting(m -> m.toString(UTF_8))
+      .containsExactly("c3Bhbg==", "c3Bhbjg=");
+  }
+
+  @Test void read_noEntriesInCategory() throws Exception {
+    ScribeLogCall call =
+      ScribeLogCall.read(logCall(true, 1, Arrays.asList(entries.get(1))), category);
+
+    assertThat(call.messages).isEmpty();
+  }
+
+  /** Let the Thrift service fail the same way as before */
+  @Test void read_entryWithoutMessage() throws Exception {
+    assertThat(ScribeLogCall.read(
+      logCall(true, 1, Arrays.asList(new LogEntry().setCategory("zipkin"))), category)).isNull();
+  }
+
+  @Test void read_truncated() throws Exception {
+    ByteBuf frame = logCall(true, 1, entries);
+
+    assertThat(ScribeLogCall.read(frame.slice(0, frame.readableBytes() - 1), category)).isNull();
+  }
+
+  @Test void read_otherMethod() throws Exception {
+    TMemoryBuffer transport = new TMemoryBuffer(64);
+    TBinaryProtocol protocol = new TBinaryProtocol(transport);
+    protocol.writeMessageBegin(new TMessage("Ping", TMessageType.CALL, 1));
+    new Scribe.Log_args(entries).write(protocol);
+
+    assertThat(ScribeLogCall.read(frame(transport), category)).isNull();
+  }
+
+  @Test void writeReply_sameAsThrift() throws Exception {
+    ScribeLogCall call = ScribeLogCall.read(logCall(true, 42, entries), category);
+
+    TMemoryBuffer transport = new TMemoryBuffer(64);
+    TBinaryProtocol protocol = new TBinaryProtocol(transport);
+    protocol.writeMessageBegin(new TMessage("Log", TMessageType.REPLY, 42));
+    new Scribe.Log_result().setSuccess(ResultCode.OK).write(protocol);
+
+    assertThat(call.writeReply(ByteBufAllocator.DEFAULT, ResultCode.OK))
+      .isEqualTo(withFrameLength(transport));
+  }
+
+  @Test void writeInternalError_sameAsThrift() throws Exception {
+    ScribeLogCall call = ScribeLogCall.read(logCall(true, 42, entries), category);
+
+    TMemoryBuffer transport = new TMemoryBuffer(64);
+    TBinaryProtocol protocol = new TBinaryProtocol(transport);
+    protocol.writeMessageBegin(new TMessage("Log", TMessageType.EXCEPTION, 42));
+    new TApplicationException(TApplicationException.INTERNAL_ERROR).write(protocol);
+
+    assertThat(call.writeInternalError(ByteBufAllocator.DEFAULT))
+      .isEqualTo(withFrameLength(transport));
+  }
+
+  static ByteBuf logCall(boolean strict, int seqId, List<LogEntry> entries) throws Exception {
+    TMemoryBuffer transport = new TMemoryBuffer(64);
+    TBinaryProtocol protocol = new TBinaryProtocol(transport, strict, strict);
+    protocol.writeMessageBegin(new TMessage("Log", TMessageType.CALL, seqId));
+    new Scribe.Log_args(entries).write(protocol);
+    return frame(transport);
+  }
+
+  static ByteBuf frame(TMemoryBuffer transport) {
+    return Unpooled.wrappedBuffer(transport.getArray(), 0, transport.length());
+  }
+
+  static ByteBuf withFrameLength(TMemoryBuffer transport) {
+    return Unpooled.buffer().writeInt(transport.length())
+      .writeBytes(transport.getArray(), 0, transport.length());
+  }
+}
@@ -13,10 +13,12 @@
  */
 package zipkin2.collector.scribe;
 
+import io.netty.buffer.Unpooled;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.apache.thrift.async.AsyncMethodCallback;
 import org.junit.jupiter.api.Test;
 import zipkin2.Call;
@@ -37,6 +39,7 @@ import zipkin2.v1.V1SpanConverter;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.awaitility.Awaitility.await;
 
 class ScribeSpanConsumerTest {
@@ -247,6 +250,79 @@ class ScribeSpanConsumerTest {
     assertThat(scribeMetrics.spansDropped()).isZero();
   }
 
+  @Test void log_entriesWithSpansAreConsumed() throws Exception {
+    ScribeSpanConsumer scribe = newScribeSpanConsumer("zipkin", consumer);
+
+    String encoded = Base64.getMimeEncoder().encodeToString(bytes); // has line breaks
+    CaptureAsyncMethodCallback callback = log(scribe, encoded, encodedSpan);
+    callback.latch.await(10, TimeUnit.SECONDS);
+    assertThat(callback.resultCode).isEqualTo(ResultCode.OK);
+
+    // Storage finishes after callback so wait for it.
+    await().untilAsserted(() -> assertThat(storage.getTraces()).containsExactly(asList(v2)));
+
+    assertThat(scribeMetrics.messages()).isEqualTo(1);
+    assertThat(scribeMetrics.messagesDropped()).isZero();
+    assertThat(scribeMetrics.bytes()).isEqualTo(bytes.length * 2);
+    assertThat(scribeMetrics.spans()).isEqualTo(2);
+  }
+
+  @Test void log_malformedDataIsDropped() {
+    ScribeSpanConsumer scribe = newScribeSpanConsumer("zipkin", consumer);
+
+    CaptureAsyncMethodCallback callback = log(scribe, encodedSpan, "notbase64");
+    assertThat(callback.error).isInstanceOf(IllegalArgumentException.class);
+
+    assertThat(scribeMetrics.messages()).isEqualTo(1);
+    assertThat(scribeMetrics.messagesDropped()).isEqualTo(1);
+    assertThat(scribeMetrics.spans()).isZero();
+  }
+
+  @Test void decodeBase64_sameAsMimeDecoder() {
+    byte[] decoded = new byte[bytes.length];
+    for (int length = 0; length <= 10; length++) {
+      byte[] input = Arrays.copyOf(bytes, length);
+      for (String encoded : asList(
+        Base64.getEncoder().encodeToString(input),
+        Base64.getEncoder().withoutPadding().encodeToString(input),
+        Base64.getMimeEncoder(4, new byte[] {'\r', '\n'}).encodeToString(input) + "\n")) {
+        int decodedLength =
+          ScribeSpanConsumer.decodeBase64(Unpooled.wrappedBuffer(encoded.getBytes(UTF_8)), decoded);
+
+        assertThat(Arrays.copyOf(decoded, decodedLength))
+          .isEqualTo(Base64.getMimeDecoder().decode(encoded))
+          .isEqualTo(input);
+      }
+    }
+  }
+
+  @Test void decodeBase64_malformed() {
+    for (String encoded : asList("notbase64", "c3Bhbg=", "c3Bhb===")) {
+      assertThatThrownBy(() -> Base64.getMimeDecoder().decode(encoded))
+        .isInstanceOf(IllegalArgumentException.class);
+      assertThatThrownBy(() -> ScribeSpanConsumer.decodeBase64(
+        Unpooled.wrappedBuffer(encoded.getBytes(UTF_8)), new byte[16]))
+        .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  static CaptureAsyncMethodCallback log(ScribeSpanConsumer scribe, String... messages) {
+    ScribeLogCall call = new ScribeLogCall(1, Arrays.stream(messages)
+      .map(m -> Unpooled.wrappedBuffer(m.getBytes(UTF_8)))
+      .collect(Collectors.toList()));
+    CaptureAsyncMethodCallback callback = new CaptureAsyncMethodCallback();
+    scribe.log(call, new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        callback.onComplete(ResultCode.OK);
+      }
+
+      @Override public void onError(Throwable t) {
+        callback.onError((Exception) t);
+      }
+    });
+    return callback;
+  }
+
   ScribeSpanConsumer newScribeSpanConsumer(String category, SpanConsumer spanConsumer) {
     ScribeCollector.Builder builder = ScribeCollector.newBuilder()
       .category(category)
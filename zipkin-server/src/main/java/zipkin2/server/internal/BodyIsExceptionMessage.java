@@ -13,6 +13,7 @@
  */
 package zipkin2.server.internal;
 
+import com.linecorp.armeria.common.ContentTooLargeException;
 import com.linecorp.armeria.common.HttpMethod;
 import com.linecorp.armeria.common.HttpRequest;
 import com.linecorp.armeria.common.HttpResponse;
@@ -23,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 import static com.linecorp.armeria.common.HttpStatus.BAD_REQUEST;
 import static com.linecorp.armeria.common.HttpStatus.INTERNAL_SERVER_ERROR;
+import static com.linecorp.armeria.common.HttpStatus.REQUEST_ENTITY_TOO_LARGE;
 import static com.linecorp.armeria.common.MediaType.ANY_TEXT_TYPE;
 
 final class BodyIsExceptionMessage implements ExceptionHandlerFunction {
@@ -37,6 +39,8 @@ final class BodyIsExceptionMessage implements ExceptionHandlerFunction {
     if (message == null) message = cause.getClass().getSimpleName();
     if (cause instanceof IllegalArgumentException) {
       return HttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, message);
+    } else if (cause instanceof ContentTooLargeException) { // includes after decompression
+      return HttpResponse.of(REQUEST_ENTITY_TOO_LARGE, ANY_TEXT_TYPE, "Request body too large\n");
     } else {
       LOGGER.warn("Unexpected error handling request.", cause);
 
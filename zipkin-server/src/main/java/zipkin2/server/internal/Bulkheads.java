@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.ServiceRequestContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import zipkin2.internal.Nullable;
+
+/**
+ * Separate thread pools for each kind of blocking work, so that one can't delay another. For
+ * example, a slow dependency link query can otherwise occupy the threads that store spans.
+ *
+ * <p>Work without a bulkhead runs on Armeria's blocking task executor, which is the default.
+ */
+public final class Bulkheads implements AutoCloseable {
+  static final Bulkheads NONE = new Bulkheads(null, null, null);
+
+  /**
+   * Each workload has a number of threads, or zero to use Armeria's blocking task executor, and the
+   * size of the queue of tasks waiting for one of these threads.
+   */
+  static Bulkheads create(MeterRegistry registry, int queryThreads, int queryQueueSize,
+    int collectorThreads, int collectorQueueSize, int healthThreads, int healthQueueSize) {
+    return new Bulkheads(
+      Bulkhead.create(registry, "query", queryThreads, queryQueueSize),
+      Bulkhead.create(registry, "collector", collectorThreads, collectorQueueSize),
+      Bulkhead.create(registry, "health", healthThreads, healthQueueSize));
+  }
+
+  @Nullable final Bulkhead query, collector, health;
+
+  Bulkheads(@Nullable Bulkhead query, @Nullable Bulkhead collector, @Nullable Bulkhead health) {
+    this.query = query;
+    this.collector = collector;
+    this.health = health;
+  }
+
+  /** Runs query API requests, which read from storage. */
+  public Executor query(ServiceRequestContext ctx) {
+    return executor(query, ctx);
+  }
+
+  /** Runs HTTP and gRPC collector requests, which write to storage. */
+  public Executor collector(ServiceRequestContext ctx) {
+    return executor(collector, ctx);
+  }
+
+  /** Runs health checks of components, such as storage. */
+  public Executor health(ServiceRequestContext ctx) {
+    return executor(health, ctx);
+  }
+
+  /** The result is context aware, so that tasks continue the trace of the request. */
+  static Executor executor(@Nullable Bulkhead bulkhead, ServiceRequestContext ctx) {
+    return ctx.makeContextAware(bulkhead != null ? bulkhead : ctx.blockingTaskExecutor());
+  }
+
+  @Override public void close() {
+    if (query != null) query.pool.shutdown();
+    if (collector != null) collector.pool.shutdown();
+    if (health != null) health.pool.shutdown();
+  }
+
+  @Override public String toString() {
+    return "Bulkheads{query=" + query + ", collector=" + collector + ", health=" + health + "}";
+  }
+
+  /** A fixed size pool, which records how long tasks wait for a thread. */
+  static final class Bulkhead implements Executor {
+    @Nullable static Bulkhead create(MeterRegistry registry, String name, int threads,
+      int queueSize) {
+      if (threads < 0) throw new IllegalArgumentException(name + " threads < 0");
+      if (threads == 0) return null;
+      if (queueSize < 1) throw new IllegalArgumentException(name + " queueSize < 1");
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueSize), new NamedThreadFactory("zipkin-" + name));
+      Bulkhead result = new Bulkhead(name, pool,
+        Timer.builder("zipkin_bulkhead.queue_time")
+          .description("time tasks waited for a thread")
+          .tag("pool", name)
+          .register(registry),
+        Counter.builder("zipkin_bulkhead.rejections")
+          .description("cumulative amount of tasks rejected because the queue was full")
+          .tag("pool", name)
+          .register(registry));
+      Gauge.builder("zipkin_bulkhead.active_threads", pool, ThreadPoolExecutor::getActiveCount)
+        .description("number of threads running tasks")
+        .tag("pool", name)
+        .register(registry);
+      Gauge.builder("zipkin_bulkhead.queue_size", pool, p -> p.getQueue().size())
+        .description("number of tasks waiting for a thread")
+        .tag("pool", name)
+        .register(registry);
+      return result;
+    }
+
+    final String name;
+    final ThreadPoolExecutor pool;
+    final Timer queueTime;
+    final Counter rejections;
+
+    Bulkhead(String name, ThreadPoolExecutor pool, Timer queueTime, Counter rejections) {
+      this.name = name;
+      this.pool = pool;
+      this.queueTime = queueTime;
+      this.rejections = rejections;
+    }
+
+    @Override public void execute(Runnable task) {
+      long enqueued = System.nanoTime();
+      try {
+        pool.execute(() -> {
+          queueTime.record(System.nanoTime() - enqueued, TimeUnit.NANOSECONDS);
+          task.run();
+        });
+      } catch (RejectedExecutionException e) {
+        rejections.increment();
+        throw e;
+      }
+    }
+
+    @Override public String toString() {
+      return "Bulkhead{name=" + name + ", threads=" + pool.getCorePoolSize()
+        + ", queueSize=" + (pool.getQueue().size() + pool.getQueue().remainingCapacity()) + "}";
+    }
+  }
+}
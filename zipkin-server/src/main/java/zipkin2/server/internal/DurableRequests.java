@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.common.RequestHeaders;
+import com.linecorp.armeria.common.util.TimeoutMode;
+import com.linecorp.armeria.server.ServiceRequestContext;
+import io.netty.util.AsciiString;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits requests that asked for their spans to be stored before a response. By default, the HTTP
+ * and gRPC collectors respond once spans are scheduled for storage, so a client never learns if
+ * storage failed. A client that needs at-least-once delivery sends the {@link #HEADER} and retries
+ * any request that doesn't succeed.
+ *
+ * <p>Such requests hold resources until storage responds, so only {@code maxInFlight} are allowed
+ * at a time, and each has a deadline. This ensures a slow storage backend doesn't pile up durable
+ * requests at the cost of fire-and-forget clients.
+ */
+final class DurableRequests {
+  static final AsciiString HEADER = AsciiString.cached("zipkin-durable");
+
+  static boolean isDurable(RequestHeaders headers) {
+    return "true".equalsIgnoreCase(headers.get(HEADER));
+  }
+
+  final int maxInFlight;
+  final long timeoutMillis;
+  final AtomicInteger inFlight = new AtomicInteger();
+
+  DurableRequests(int maxInFlight, long timeoutMillis) {
+    this.maxInFlight = maxInFlight;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns false if there are already {@code maxInFlight} durable requests. Otherwise, sets the
+   * deadline of the request, which counts until its log is complete.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored") // no known action to take following .thenRun
+  boolean tryAcquire(ServiceRequestContext ctx) {
+    if (inFlight.incrementAndGet() > maxInFlight) {
+      inFlight.decrementAndGet();
+      return false;
+    }
+    ctx.log().whenComplete().thenRun(inFlight::decrementAndGet);
+    if (timeoutMillis > 0) ctx.setRequestTimeoutMillis(TimeoutMode.SET_FROM_START, timeoutMillis);
+    return true;
+  }
+
+  @Override public String toString() {
+    return "DurableRequests{maxInFlight=" + maxInFlight + ", timeoutMillis=" + timeoutMillis + "}";
+  }
+}
@@ -31,6 +31,7 @@ import zipkin2.server.internal.ui.ZipkinUiConfiguration;
 @Import({
   ArmeriaAutoConfiguration.class,
   ZipkinConfiguration.class,
+  ZipkinVirtualThreadsConfiguration.class, // before storage, so MySQL can use its executor
   ZipkinHttpConfiguration.class,
   ZipkinUiConfiguration.class,
   ZipkinCassandra3StorageConfiguration.class,
@@ -41,6 +42,7 @@ import zipkin2.server.internal.ui.ZipkinUiConfiguration;
   ZipkinQueryApiV2.class,
   ZipkinHttpCollector.class,
   ZipkinGrpcCollector.class,
+  ZipkinSpoolConfiguration.class,
   ZipkinActiveMQCollectorConfiguration.class,
   ZipkinKafkaCollectorConfiguration.class,
   ZipkinRabbitMQCollectorConfiguration.class,
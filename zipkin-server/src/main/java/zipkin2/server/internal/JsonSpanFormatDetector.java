@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.nio.ByteBuffer;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.internal.Nullable;
+
+/**
+ * Classifies a JSON list of spans as v1 or v2 by the field names of its first span. Unlike
+ * searching the whole message for field names, the cost of this doesn't grow with message size.
+ *
+ * <p>Only field names are compared, so tag values can't be mistaken for one. Values are skipped,
+ * not parsed: malformed input is left for the decoder.
+ */
+final class JsonSpanFormatDetector {
+  // Fields only in v2
+  static final byte[] LOCAL_ENDPOINT = bytes("localEndpoint");
+  static final byte[] REMOTE_ENDPOINT = bytes("remoteEndpoint");
+  static final byte[] TAGS = bytes("tags");
+  // Fields only in v1
+  static final byte[] BINARY_ANNOTATIONS = bytes("binaryAnnotations");
+  static final byte[] ANNOTATIONS = bytes("annotations"), ENDPOINT = bytes("endpoint");
+
+  /**
+   * Returns {@link SpanBytesDecoder#JSON_V1} or {@link SpanBytesDecoder#JSON_V2}, or null if the
+   * first span has no field specific to either, or isn't a JSON object in a list.
+   */
+  @Nullable static SpanBytesDecoder detect(ByteBuffer list) {
+    int i = skipWhitespace(list, list.position());
+    if (!is(list, i, '[')) return null;
+    i = skipWhitespace(list, i + 1);
+    if (!is(list, i, '{')) return null;
+
+    for (i++; ; i++) { // i is after the opening brace or a comma
+      i = skipWhitespace(list, i);
+      int keyEnd = skipString(list, i);
+      if (keyEnd == -1) return null; // end of the span or malformed
+      int value = skipColon(list, keyEnd);
+      if (value == -1) return null;
+
+      int keyStart = i + 1, keyLength = keyEnd - 1 - keyStart;
+      if (equals(list, keyStart, keyLength, LOCAL_ENDPOINT)
+        || equals(list, keyStart, keyLength, REMOTE_ENDPOINT)
+        || equals(list, keyStart, keyLength, TAGS)) {
+        return SpanBytesDecoder.JSON_V2;
+      }
+      if (equals(list, keyStart, keyLength, BINARY_ANNOTATIONS)) return SpanBytesDecoder.JSON_V1;
+      // Both versions have annotations, but only v1 annotations have an endpoint
+      if (equals(list, keyStart, keyLength, ANNOTATIONS) && hasAnnotationEndpoint(list, value)) {
+        return SpanBytesDecoder.JSON_V1;
+      }
+
+      i = skipWhitespace(list, skipValue(list, value));
+      if (!is(list, i, ',')) return null;
+    }
+  }
+
+  /** Returns true if any object in the array starting at {@code i} has an endpoint field. */
+  static boolean hasAnnotationEndpoint(ByteBuffer list, int i) {
+    if (!is(list, i, '[')) return false;
+    for (i++; ; i++) { // i is after the opening bracket or a comma
+      i = skipWhitespace(list, i);
+      if (!is(list, i, '{')) return false;
+      for (i++; ; i++) { // fields of the annotation
+        i = skipWhitespace(list, i);
+        int keyEnd = skipString(list, i);
+        if (keyEnd == -1) break;
+        if (equals(list, i + 1, keyEnd - 1 - (i + 1), ENDPOINT)) return true;
+        int value = skipColon(list, keyEnd);
+        if (value == -1) return false;
+        i = skipWhitespace(list, skipValue(list, value));
+        if (!is(list, i, ',')) break;
+      }
+      if (!is(list, i, '}')) return false;
+      i = skipWhitespace(list, i + 1);
+      if (!is(list, i, ',')) return false;
+    }
+  }
+
+  /** Returns the index of the value after the colon following {@code i}, or -1. */
+  static int skipColon(ByteBuffer list, int i) {
+    i = skipWhitespace(list, i);
+    if (!is(list, i, ':')) return -1;
+    return skipWhitespace(list, i + 1);
+  }
+
+  /** Returns the index after the value starting at {@code i}, or -1 if it isn't terminated. */
+  static int skipValue(ByteBuffer list, int i) {
+    if (i == -1 || i >= list.limit()) return -1;
+    byte b = list.get(i);
+    if (b == '"') return skipString(list, i);
+    if (b != '{' && b != '[') { // number, boolean or null
+      while (i < list.limit() && !isDelimiter(list.get(i))) i++;
+      return i;
+    }
+    int depth = 0;
+    while (i < list.limit()) {
+      b = list.get(i);
+      if (b == '"') {
+        i = skipString(list, i);
+        if (i == -1) return -1;
+        continue;
+      }
+      if (b == '{' || b == '[') {
+        depth++;
+      } else if ((b == '}' || b == ']') && --depth == 0) {
+        return i + 1;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  /** Returns the index after the closing quote of a string starting at {@code i}, or -1. */
+  static int skipString(ByteBuffer list, int i) {
+    if (!is(list, i, '"')) return -1;
+    for (i++; i < list.limit(); i++) {
+      byte b = list.get(i);
+      if (b == '\\') {
+        i++;
+      } else if (b == '"') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  static int skipWhitespace(ByteBuffer list, int i) {
+    if (i == -1) return -1;
+    while (i < list.limit() && isWhitespace(list.get(i))) i++;
+    return i;
+  }
+
+  static boolean is(ByteBuffer list, int i, char c) {
+    return i != -1 && i < list.limit() && list.get(i) == c;
+  }
+
+  static boolean equals(ByteBuffer list, int start, int length, byte[] field) {
+    if (length != field.length) return false;
+    for (int i = 0; i < field.length; i++) {
+      if (list.get(start + i) != field[i]) return false;
+    }
+    return true;
+  }
+
+  static boolean isDelimiter(byte b) {
+    return b == ',' || b == '}' || b == ']' || isWhitespace(b);
+  }
+
+  static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  static byte[] bytes(String field) {
+    byte[] result = new byte[field.length()];
+    for (int i = 0; i < result.length; i++) result[i] = (byte) field.charAt(i);
+    return result;
+  }
+
+  JsonSpanFormatDetector() {
+  }
+}
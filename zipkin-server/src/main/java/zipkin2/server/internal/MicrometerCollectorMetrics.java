@@ -14,12 +14,21 @@
 package zipkin2.server.internal;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.ServiceCounters;
 import zipkin2.internal.Nullable;
 
+import static java.util.Arrays.asList;
+
 /**
  * This is a simple metric service that exports the following to the "/metrics" endpoint:
  *
@@ -39,22 +48,60 @@ import zipkin2.internal.Nullable;
  * </ul>
  * </pre>
  *
+ * <p>Unless histograms are disabled, the following are also exported, but only to metrics systems
+ * which support them, such as Prometheus:
+ *
+ * <pre>
+ * <ul>
+ *     <li>zipkin_collector.spans_per_message - distribution of spans in a message</li>
+ *     <li>zipkin_collector.bytes_per_message - distribution of bytes in a message</li>
+ *     <li>zipkin_collector.decode_duration - time to decode a message into spans</li>
+ *     <li>zipkin_collector.sample_duration - time to sample the spans in a message</li>
+ *     <li>zipkin_collector.storage_duration - time from scheduling spans for storage until the
+ * storage call completes</li>
+ * </ul>
+ * </pre>
+ *
+ * <p>When {@link ServiceCounters} are supplied, spans are also counted by service name across all
+ * transports. See {@link #registerServiceMeters(MeterRegistry, ServiceCounters.Counters)}.
+ *
  * See https://docs.spring.io/spring-boot/docs/current/reference/html/production-ready-metrics.html
  */
 public final class MicrometerCollectorMetrics implements CollectorMetrics {
   final MeterRegistry registryInstance;
   final Counter messages, messagesDropped, bytes, spans, spansDropped;
   final AtomicInteger messageBytes, messageSpans;
+  final boolean histograms;
+  @Nullable final ServiceCounters services;
+  // null when histograms are disabled
+  @Nullable final DistributionSummary bytesPerMessage, spansPerMessage;
+  @Nullable final Timer decodeDuration, sampleDuration, storageDuration;
 
   public MicrometerCollectorMetrics(MeterRegistry registry) {
-    this(null, registry);
+    this(registry, true, null);
+  }
+
+  /**
+   * @param histograms false avoids the cost of reading the clock and recording histograms of
+   * durations and message sizes.
+   * @param services when present, spans are also counted by service name. Create this with {@link
+   * #registerServiceMeters(MeterRegistry, ServiceCounters.Counters)} as the listener.
+   */
+  public MicrometerCollectorMetrics(MeterRegistry registry, boolean histograms,
+    @Nullable ServiceCounters services) {
+    this(null, registry, histograms, services);
   }
 
-  MicrometerCollectorMetrics(@Nullable String transport, MeterRegistry meterRegistry) {
+  MicrometerCollectorMetrics(@Nullable String transport, MeterRegistry meterRegistry,
+    boolean histograms, @Nullable ServiceCounters services) {
     this.registryInstance = meterRegistry;
+    this.histograms = histograms;
+    this.services = services;
     if (transport == null) {
       messages = messagesDropped = bytes = spans = spansDropped = null;
       messageBytes = messageSpans = null;
+      bytesPerMessage = spansPerMessage = null;
+      decodeDuration = sampleDuration = storageDuration = null;
       return;
     }
     this.messages =
@@ -96,12 +143,94 @@ public final class MicrometerCollectorMetrics implements CollectorMetrics {
         .tag("transport", transport)
         .baseUnit("bytes")
         .register(registryInstance);
+
+    if (!histograms) {
+      bytesPerMessage = spansPerMessage = null;
+      decodeDuration = sampleDuration = storageDuration = null;
+      return;
+    }
+    this.spansPerMessage =
+      DistributionSummary.builder("zipkin_collector.spans_per_message")
+        .description("distribution of spans in a message")
+        .tag("transport", transport)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(1D)
+        .maximumExpectedValue(10_000D)
+        .register(registryInstance);
+    this.bytesPerMessage =
+      DistributionSummary.builder("zipkin_collector.bytes_per_message")
+        .description("distribution of bytes in a message")
+        .tag("transport", transport)
+        .baseUnit("bytes")
+        .publishPercentileHistogram()
+        .minimumExpectedValue(64D)
+        .maximumExpectedValue(64D * 1024 * 1024)
+        .register(registryInstance);
+    this.decodeDuration = timer("zipkin_collector.decode_duration",
+      "time to decode a message into spans", transport);
+    this.sampleDuration = timer("zipkin_collector.sample_duration",
+      "time to sample the spans in a message", transport);
+    this.storageDuration = timer("zipkin_collector.storage_duration",
+      "time from scheduling spans for storage until the storage call completes", transport);
+  }
+
+  Timer timer(String name, String description, String transport) {
+    return Timer.builder(name)
+      .description(description)
+      .tag("transport", transport)
+      .publishPercentileHistogram()
+      .minimumExpectedValue(Duration.ofNanos(1000))
+      .maximumExpectedValue(Duration.ofSeconds(30))
+      .register(registryInstance);
   }
 
   @Override
   public MicrometerCollectorMetrics forTransport(String transportType) {
     if (transportType == null) throw new NullPointerException("transportType == null");
-    return new MicrometerCollectorMetrics(transportType, registryInstance);
+    return new MicrometerCollectorMetrics(transportType, registryInstance, histograms, services);
+  }
+
+  /**
+   * Registers the following meters, tagged with the service name:
+   *
+   * <pre>
+   * <ul>
+   *     <li>zipkin_collector.service.spans - cumulative spans received from the service</li>
+   *     <li>zipkin_collector.service.bytes - cumulative bytes received from the service,
+   * approximated by sharing message bytes evenly across its spans</li>
+   *     <li>zipkin_collector.service.spans_dropped - cumulative spans dropped from the service</li>
+   * </ul>
+   * </pre>
+   */
+  public static void registerServiceMeters(MeterRegistry registry,
+    ServiceCounters.Counters counters) {
+    FunctionCounter.builder("zipkin_collector.service.spans", counters,
+      ServiceCounters.Counters::spans)
+      .description("cumulative amount of spans received from a service")
+      .tag("service", counters.serviceName())
+      .register(registry);
+    FunctionCounter.builder("zipkin_collector.service.bytes", counters,
+      ServiceCounters.Counters::bytes)
+      .description("approximate cumulative amount of bytes received from a service")
+      .tag("service", counters.serviceName())
+      .baseUnit("bytes")
+      .register(registry);
+    FunctionCounter.builder("zipkin_collector.service.spans_dropped", counters,
+      ServiceCounters.Counters::spansDropped)
+      .description("cumulative amount of spans received from a service that were later dropped")
+      .tag("service", counters.serviceName())
+      .register(registry);
+  }
+
+  /** Removes meters added by {@link #registerServiceMeters}, when the service is evicted. */
+  public static void removeServiceMeters(MeterRegistry registry,
+    ServiceCounters.Counters counters) {
+    for (String name : asList("zipkin_collector.service.spans", "zipkin_collector.service.bytes",
+      "zipkin_collector.service.spans_dropped")) {
+      for (Meter meter : registry.find(name).tag("service", counters.serviceName()).meters()) {
+        registry.remove(meter);
+      }
+    }
   }
 
   @Override
@@ -121,6 +250,7 @@ public final class MicrometerCollectorMetrics implements CollectorMetrics {
     checkScoped();
     messageSpans.set(quantity);
     spans.increment(quantity);
+    if (spansPerMessage != null) spansPerMessage.record(quantity);
   }
 
   @Override
@@ -128,6 +258,7 @@ public final class MicrometerCollectorMetrics implements CollectorMetrics {
     checkScoped();
     messageBytes.set(quantity);
     bytes.increment(quantity);
+    if (bytesPerMessage != null) bytesPerMessage.record(quantity);
   }
 
   @Override
@@ -136,6 +267,41 @@ public final class MicrometerCollectorMetrics implements CollectorMetrics {
     spansDropped.increment(quantity);
   }
 
+  @Override
+  public boolean isPerServiceEnabled() {
+    return services != null;
+  }
+
+  @Override
+  public void incrementServiceSpans(@Nullable String serviceName, int quantity, int bytes) {
+    services.incrementSpans(serviceName, quantity, bytes);
+  }
+
+  @Override
+  public void incrementServiceSpansDropped(@Nullable String serviceName, int quantity) {
+    services.incrementSpansDropped(serviceName, quantity);
+  }
+
+  @Override
+  public boolean isTimingEnabled() {
+    return decodeDuration != null;
+  }
+
+  @Override
+  public void recordDecodeNanos(long nanos) {
+    decodeDuration.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void recordSampleNanos(long nanos) {
+    sampleDuration.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void recordStorageNanos(long nanos) {
+    storageDuration.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
   void checkScoped() {
     if (messages == null) {
       throw new IllegalStateException("always scope with ActuateCollectorMetrics.forTransport");
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.common.ContentTooLargeException;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.encoding.StreamDecoder;
+import com.linecorp.armeria.common.encoding.StreamDecoderFactory;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.SnappyFrameDecoder;
+import io.netty.handler.codec.compression.ZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import zipkin2.internal.Nullable;
+
+import static zipkin2.Call.propagateIfFatal;
+
+/**
+ * Decompresses HTTP collector request bodies according to their Content-Encoding. Besides gzip,
+ * this supports deflate, snappy (framing format) and, when zstd-jni is on the classpath, zstd.
+ * Other encodings can be added by registering a {@link StreamDecoderFactory} bean.
+ *
+ * <p>Compressed input is fed to the decoder in small slices and the output size checked after
+ * each, so that a small malicious body can't inflate to more than about {@code maxBytes}.
+ *
+ * <p>When there's a meter registry, the following are exported, tagged by encoding:
+ *
+ * <pre>
+ * <ul>
+ *     <li>zipkin_collector.http.compression_ratio - distribution of decompressed to compressed
+ * bytes in a message</li>
+ *     <li>zipkin_collector.http.decompression_duration - time to decompress a message</li>
+ * </ul>
+ * </pre>
+ */
+final class RequestDecompressor {
+  /**
+   * Deflate can expand about 1000x, so this bounds the excess of a slice past the limit to about
+   * 4 MiB.
+   */
+  static final int SLICE_BYTES = 4096;
+
+  static RequestDecompressor create(Iterable<StreamDecoderFactory> customFactories, int maxBytes,
+    @Nullable MeterRegistry registry) {
+    Map<String, StreamDecoderFactory> factories = new LinkedHashMap<>();
+    // Unlike ZlibCodecFactory, don't accept concatenated gzip, so that truncation can be detected
+    put(factories, netty("gzip", () -> new JdkZlibDecoder(ZlibWrapper.GZIP)));
+    put(factories, netty("x-gzip", () -> new JdkZlibDecoder(ZlibWrapper.GZIP)));
+    // Some clients send raw deflate instead of zlib, so accept both
+    put(factories, netty("deflate", () -> new JdkZlibDecoder(ZlibWrapper.ZLIB_OR_NONE)));
+    put(factories, netty("snappy", SnappyFrameDecoder::new));
+    if (ZstdStreamDecoder.isAvailable()) put(factories, ZstdStreamDecoder.factory(maxBytes));
+    for (StreamDecoderFactory factory : customFactories) put(factories, factory);
+    return new RequestDecompressor(factories, maxBytes, registry);
+  }
+
+  final Map<String, StreamDecoderFactory> factories;
+  final Map<String, Meters> meters = new LinkedHashMap<>();
+  final int maxBytes;
+
+  RequestDecompressor(Map<String, StreamDecoderFactory> factories, int maxBytes,
+    @Nullable MeterRegistry registry) {
+    this.factories = factories;
+    this.maxBytes = maxBytes;
+    if (registry == null) return;
+    for (String encoding : factories.keySet()) {
+      meters.put(encoding, new Meters(registry, encoding));
+    }
+  }
+
+  /**
+   * Returns a decompressor for one request body, or null if it isn't compressed.
+   *
+   * @throws IllegalArgumentException if the encoding isn't supported
+   */
+  @Nullable Decompression newDecompression(@Nullable String contentEncoding,
+    ByteBufAllocator alloc) {
+    if (contentEncoding == null) return null;
+    String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+    if (encoding.isEmpty() || encoding.equals("identity")) return null;
+    StreamDecoderFactory factory = factories.get(encoding);
+    if (factory == null) {
+      throw new IllegalArgumentException("Unsupported Content-Encoding: " + contentEncoding + "\n");
+    }
+    return new Decompression(encoding, factory.newDecoder(alloc), alloc, maxBytes,
+      meters.get(encoding));
+  }
+
+  /** Returns the encodings supported, in the order they were registered. */
+  Iterable<String> encodings() {
+    return factories.keySet();
+  }
+
+  @Override public String toString() {
+    return "RequestDecompressor{encodings=" + factories.keySet() + ", maxBytes=" + maxBytes + "}";
+  }
+
+  static final class Meters {
+    final DistributionSummary compressionRatio;
+    final Timer duration;
+
+    Meters(MeterRegistry registry, String encoding) {
+      compressionRatio = DistributionSummary.builder("zipkin_collector.http.compression_ratio")
+        .description("distribution of decompressed to compressed bytes in a message")
+        .tag("encoding", encoding)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(1D)
+        .maximumExpectedValue(1000D)
+        .register(registry);
+      duration = Timer.builder("zipkin_collector.http.decompression_duration")
+        .description("time to decompress a message")
+        .tag("encoding", encoding)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofNanos(1000))
+        .maximumExpectedValue(Duration.ofSeconds(30))
+        .register(registry);
+    }
+  }
+
+  /**
+   * Decompresses one request body, in one or more chunks. The input is released by each call, and
+   * the caller owns the output.
+   *
+   * <p>Call {@link #finish()} at the end of the body, or {@link #abort()} if it won't be read, so
+   * that decoders release any resources they hold.
+   */
+  static final class Decompression implements StreamDecoder {
+    final String encoding;
+    final StreamDecoder decoder;
+    final ByteBufAllocator alloc;
+    final int maxBytes;
+    @Nullable final Meters meters;
+    long compressedBytes, decompressedBytes, durationNanos;
+    boolean finished;
+
+    Decompression(String encoding, StreamDecoder decoder, ByteBufAllocator alloc, int maxBytes,
+      @Nullable Meters meters) {
+      this.encoding = encoding;
+      this.decoder = decoder;
+      this.alloc = alloc;
+      this.maxBytes = maxBytes;
+      this.meters = meters;
+    }
+
+    /**
+     * Decompresses a complete body.
+     *
+     * @throws IllegalArgumentException if the body is malformed
+     * @throws ContentTooLargeException if it decompresses to more than the maximum size
+     */
+    HttpData decompress(HttpData compressed) {
+      HttpData result = decode(compressed), last = finish();
+      if (last.isEmpty()) return result;
+      if (result.isEmpty()) return last;
+      try (HttpData first = result; HttpData second = last) {
+        ByteBuf joined = alloc.buffer(first.length() + second.length());
+        joined.writeBytes(first.byteBuf()).writeBytes(second.byteBuf());
+        return HttpData.wrap(joined);
+      }
+    }
+
+    /** Like {@link #decompress(HttpData)}, except more of the body can follow. */
+    @Override public HttpData decode(HttpData compressed) {
+      ByteBuf in = compressed.byteBuf();
+      compressedBytes += in.readableBytes();
+      ByteBuf out = null;
+      long start = meters != null ? System.nanoTime() : 0L;
+      try {
+        while (in.isReadable()) {
+          int sliceBytes = Math.min(SLICE_BYTES, in.readableBytes());
+          out = append(out, decoder.decode(HttpData.wrap(in.readRetainedSlice(sliceBytes))));
+        }
+        return out != null ? HttpData.wrap(out) : HttpData.empty();
+      } catch (Throwable t) {
+        if (out != null) out.release();
+        abort();
+        throw malformedOrRethrow(t);
+      } finally {
+        compressed.close();
+        if (meters != null) durationNanos += System.nanoTime() - start;
+      }
+    }
+
+    /** Returns any remaining output, then records metrics. */
+    @Override public HttpData finish() {
+      finished = true;
+      long start = meters != null ? System.nanoTime() : 0L;
+      ByteBuf out;
+      try {
+        out = append(null, decoder.finish());
+      } catch (Throwable t) {
+        throw malformedOrRethrow(t);
+      } finally {
+        if (meters != null) durationNanos += System.nanoTime() - start;
+      }
+      if (meters != null && compressedBytes > 0) {
+        meters.compressionRatio.record((double) decompressedBytes / compressedBytes);
+        meters.duration.record(durationNanos, TimeUnit.NANOSECONDS);
+      }
+      return out != null ? HttpData.wrap(out) : HttpData.empty();
+    }
+
+    /** Releases the decoder when the body won't be finished, for example if it was aborted. */
+    void abort() {
+      if (finished) return;
+      finished = true;
+      if (!(decoder instanceof AutoCloseable)) return;
+      try {
+        ((AutoCloseable) decoder).close();
+      } catch (Throwable t) {
+        propagateIfFatal(t);
+        // EmptyCatch ignored
+      }
+    }
+
+    /** Appends the decoded data to the output, failing if the body is now too large. */
+    @Nullable ByteBuf append(@Nullable ByteBuf out, HttpData decoded) {
+      if (decoded.isEmpty()) {
+        decoded.close();
+        return out;
+      }
+      decompressedBytes += decoded.length();
+      if (maxBytes > 0 && decompressedBytes > maxBytes) {
+        decoded.close();
+        throw ContentTooLargeException.get();
+      }
+      if (out == null) return decoded.byteBuf(); // take ownership instead of copying
+      try (HttpData data = decoded) {
+        return out.writeBytes(data.byteBuf());
+      }
+    }
+
+    RuntimeException malformedOrRethrow(Throwable t) {
+      propagateIfFatal(t);
+      if (t instanceof ContentTooLargeException) return (ContentTooLargeException) t;
+      return new IllegalArgumentException("gzip".equals(encoding) || "x-gzip".equals(encoding)
+        ? "Cannot gunzip spans" : "Cannot decompress " + encoding + " spans", t);
+    }
+  }
+
+  static void put(Map<String, StreamDecoderFactory> factories, StreamDecoderFactory factory) {
+    factories.put(factory.encodingHeaderValue().toLowerCase(Locale.ROOT), factory);
+  }
+
+  /** Returns a factory of decoders that run the Netty handler on an embedded channel. */
+  static StreamDecoderFactory netty(String encoding, Supplier<ChannelHandler> handler) {
+    return new StreamDecoderFactory() {
+      @Override public String encodingHeaderValue() {
+        return encoding;
+      }
+
+      @Override public StreamDecoder newDecoder(ByteBufAllocator alloc) {
+        return new EmbeddedChannelStreamDecoder(handler.get(), alloc);
+      }
+
+      @Override public String toString() {
+        return encoding;
+      }
+    };
+  }
+
+  static final class EmbeddedChannelStreamDecoder implements StreamDecoder, AutoCloseable {
+    final ChannelHandler handler;
+    final EmbeddedChannel channel;
+    final ByteBufAllocator alloc;
+    boolean hasInput;
+
+    EmbeddedChannelStreamDecoder(ChannelHandler handler, ByteBufAllocator alloc) {
+      this.handler = handler;
+      this.channel = new EmbeddedChannel(handler);
+      this.channel.config().setAllocator(alloc);
+      this.alloc = alloc;
+    }
+
+    @Override public HttpData decode(HttpData compressed) {
+      hasInput |= !compressed.isEmpty();
+      channel.writeInbound(compressed.byteBuf());
+      return readOutput();
+    }
+
+    @Override public HttpData finish() {
+      HttpData result = channel.finish() ? readOutput() : HttpData.empty();
+      // The zlib decoder waits for more input instead of failing on a truncated stream
+      if (hasInput && handler instanceof ZlibDecoder && !((ZlibDecoder) handler).isClosed()) {
+        result.close();
+        throw new DecompressionException("truncated");
+      }
+      return result;
+    }
+
+    /** Releases any input or output buffered by the channel. */
+    @Override public void close() {
+      channel.finishAndReleaseAll();
+    }
+
+    /** Returns the handler output, joined when there's more than one buffer. */
+    HttpData readOutput() {
+      ByteBuf first = channel.readInbound();
+      if (first == null) return HttpData.empty();
+      ByteBuf next = channel.readInbound();
+      if (next == null) return HttpData.wrap(first);
+      ByteBuf result = alloc.buffer(first.readableBytes() + next.readableBytes());
+      result.writeBytes(first);
+      first.release();
+      do {
+        result.writeBytes(next);
+        next.release();
+      } while ((next = channel.readInbound()) != null);
+      return HttpData.wrap(result);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.ServiceRequestContext;
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.collector.Collector;
+import zipkin2.internal.Nullable;
+
+/**
+ * Decodes large messages off the event loop, so that they don't delay other requests it serves.
+ * This is shared by the HTTP and gRPC collectors.
+ *
+ * <p>Messages of at least {@code offloadBytes} are decoded on a fork-join pool. JSON_V2 and PROTO3
+ * messages of at least {@code parallelBytes} are also split at span boundaries, so that parts are
+ * decoded in parallel before they are concatenated in their original order.
+ */
+final class SpanDecodePool implements AutoCloseable {
+  /** Parts smaller than this aren't worth the overhead of a task. */
+  static final int MIN_PART_BYTES = 64 * 1024;
+
+  static SpanDecodePool create(int offloadBytes, int parallelBytes, int threads) {
+    if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(threads, p -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+      thread.setName("zipkin-decode-" + thread.getPoolIndex());
+      return thread;
+    }, null, false);
+    return new SpanDecodePool(pool, offloadBytes, parallelBytes);
+  }
+
+  final ForkJoinPool pool;
+  final int offloadBytes, parallelBytes;
+
+  SpanDecodePool(ForkJoinPool pool, int offloadBytes, int parallelBytes) {
+    this.pool = pool;
+    this.offloadBytes = offloadBytes;
+    this.parallelBytes = parallelBytes;
+  }
+
+  /**
+   * Like {@link Collector#acceptSpans(ByteBuffer, SpanBytesDecoder, Callback, Executor)}, except
+   * large messages are decoded on this pool.
+   *
+   * @param message released by this method, or after it is decoded
+   * @param ctx when present, the decode task continues its trace
+   */
+  void acceptSpans(Collector collector, ByteBuf message, SpanBytesDecoder decoder,
+    Callback<Void> callback, Executor executor, @Nullable ServiceRequestContext ctx) {
+    acceptSpans(collector, message, decoder, callback, executor, ctx, false);
+  }
+
+  /**
+   * @param durable see {@link Collector#acceptSpans(ByteBuffer, java.util.function.Function,
+   * Callback, Executor, boolean)}
+   */
+  void acceptSpans(Collector collector, ByteBuf message, SpanBytesDecoder decoder,
+    Callback<Void> callback, Executor executor, @Nullable ServiceRequestContext ctx,
+    boolean durable) {
+    int length = message.readableBytes();
+    if (offloadBytes <= 0 || length < offloadBytes) {
+      try {
+        collector.acceptSpans(message.nioBuffer(), decoder::decodeList, callback, executor,
+          durable);
+      } finally {
+        message.release();
+      }
+      return;
+    }
+
+    Runnable decodeAndAccept = () -> {
+      try {
+        if (parallelBytes > 0 && length >= parallelBytes && isSplittable(decoder)) {
+          collector.acceptSpans(message.nioBuffer(),
+            encoded -> decodeParallel(decoder, message), callback, executor, durable);
+        } else {
+          collector.acceptSpans(message.nioBuffer(), decoder::decodeList, callback, executor,
+            durable);
+        }
+      } finally {
+        message.release();
+      }
+    };
+
+    try {
+      (ctx != null ? ctx.makeContextAware(pool) : pool).execute(decodeAndAccept);
+    } catch (RejectedExecutionException e) { // closed
+      message.release();
+      callback.onError(e);
+    }
+  }
+
+  /** Must be called on a thread of this pool, as it joins decode tasks. */
+  List<Span> decodeParallel(SpanBytesDecoder decoder, ByteBuf message) {
+    int partBytes = Math.max(MIN_PART_BYTES,
+      message.readableBytes() / (pool.getParallelism() * 2)); // extra parts balance load
+    SpanListSplitter splitter = SpanListSplitter.split(decoder, message, partBytes);
+    if (splitter.batchCount == 0) return Collections.emptyList();
+    if (splitter.batchCount == 1) return decoder.decodeList(splitter.batch(0));
+
+    List<ForkJoinTask<List<Span>>> parts = new ArrayList<>(splitter.batchCount);
+    for (int i = 0; i < splitter.batchCount; i++) {
+      int index = i; // copying JSON parts is also done in parallel
+      parts.add(ForkJoinTask.adapt(() -> decoder.decodeList(splitter.batch(index))).fork());
+    }
+
+    List<Span> result = null;
+    for (ForkJoinTask<List<Span>> part : parts) {
+      List<Span> spans;
+      try {
+        spans = part.join();
+      } catch (RuntimeException e) {
+        throw unwrapJoinException(e);
+      }
+      if (result == null) {
+        result = new ArrayList<>(spans.size() * parts.size());
+      }
+      result.addAll(spans);
+    }
+    return result;
+  }
+
+  @Override public void close() {
+    pool.shutdown();
+  }
+
+  @Override public String toString() {
+    return "SpanDecodePool{offloadBytes=" + offloadBytes + ", parallelBytes=" + parallelBytes
+      + ", parallelism=" + pool.getParallelism() + "}";
+  }
+
+  /**
+   * When a task fails on another thread, {@link ForkJoinTask#join()} throws a copy of its exception,
+   * whose message is the original's {@code toString()}. This returns the original, so that callers
+   * see messages like "Malformed reading List<Span> from json".
+   */
+  static RuntimeException unwrapJoinException(RuntimeException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException && cause.getClass() == e.getClass()
+      && cause.toString().equals(e.getMessage())) {
+      return (RuntimeException) cause;
+    }
+    return e;
+  }
+
+  static boolean isSplittable(SpanBytesDecoder decoder) {
+    return decoder == SpanBytesDecoder.JSON_V2 || decoder == SpanBytesDecoder.PROTO3;
+  }
+}
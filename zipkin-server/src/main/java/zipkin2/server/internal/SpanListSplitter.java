@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * Splits a list of spans into smaller lists of the same encoding as bytes arrive. This allows a
+ * large message to be decoded and stored in batches, without buffering the whole message.
+ *
+ * <p>Elements are found by scanning, not decoding: a JSON list is split on balanced braces outside
+ * of strings, and a proto3 list on its length-prefixed fields. Malformed spans are left for the
+ * decoder to reject.
+ *
+ * <p>Batches hold at least one span and are otherwise cut as soon as they reach {@code
+ * batchBytes}. So, besides the current batch, this only buffers a partially received span.
+ */
+abstract class SpanListSplitter {
+  static SpanListSplitter create(SpanBytesDecoder decoder, int batchBytes) {
+    if (batchBytes <= 0) throw new IllegalArgumentException("batchBytes <= 0");
+    switch (decoder) {
+      case JSON_V2:
+        return new JsonListSplitter(batchBytes);
+      case PROTO3:
+        return new Proto3ListSplitter(batchBytes);
+      default:
+        throw new UnsupportedOperationException("Cannot split " + decoder + " lists");
+    }
+  }
+
+  /**
+   * Splits a complete message into lists of about {@code batchBytes}, which can be decoded
+   * independently. The message is copied once, as scanning reads a byte array. Unlike {@link
+   * #write}, batches are not copied again until {@link #batch(int)}: proto3 batches are slices of
+   * that copy, and JSON batches are copied to add brackets.
+   *
+   * @throws IllegalArgumentException if the input isn't a list in the expected encoding
+   */
+  static SpanListSplitter split(SpanBytesDecoder decoder, ByteBuf message, int batchBytes) {
+    SpanListSplitter splitter = create(decoder, batchBytes);
+    splitter.ranges = new int[16];
+    splitter.write(message, null);
+    splitter.finish(null);
+    return splitter;
+  }
+
+  final SpanBytesDecoder decoder;
+  final int batchBytes;
+  int[] ranges; // when splitting a complete message, pairs of batch start and end
+  int batchCount;
+
+  byte[] buf = new byte[1024];
+  int length, pos; // pos is the next byte to scan
+  long bytesWritten;
+  int elementStart = -1, batchStart = -1, batchEnd, batchSpans;
+
+  SpanListSplitter(SpanBytesDecoder decoder, int batchBytes) {
+    this.decoder = decoder;
+    this.batchBytes = batchBytes;
+  }
+
+  /**
+   * Reads the readable bytes of the chunk, passing any completed batches to the consumer. Batches
+   * don't share the buffer of this splitter, so the consumer can decode them later.
+   *
+   * @throws IllegalArgumentException if the input isn't a list in the expected encoding
+   */
+  final void write(ByteBuf chunk, Consumer<ByteBuffer> batches) {
+    int readable = chunk.readableBytes();
+    if (readable == 0) return;
+    compact();
+    if (length + readable > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + readable));
+    }
+    chunk.getBytes(chunk.readerIndex(), buf, length, readable);
+    length += readable;
+    bytesWritten += readable;
+    scan(batches);
+  }
+
+  /**
+   * Passes the last batch, if any, to the consumer.
+   *
+   * @throws IllegalArgumentException if the input was truncated
+   */
+  final void finish(Consumer<ByteBuffer> batches) {
+    if (!isComplete()) throw malformed();
+    if (batchSpans > 0) emit(batches);
+  }
+
+  /** Scans from {@link #pos} to {@link #length}, calling {@link #endElement} for each element. */
+  abstract void scan(Consumer<ByteBuffer> batches);
+
+  /** True if the input so far is a complete list, including an empty message. */
+  abstract boolean isComplete();
+
+  /** Returns a list message, in the same encoding as the input, holding elements in the range. */
+  abstract ByteBuffer batch(int start, int end);
+
+  /** Like {@link #batch(int, int)}, except the result doesn't share {@link #buf}. */
+  abstract ByteBuffer copyOfBatch(int start, int end);
+
+  /** Returns a batch of a message passed to {@link #split}. */
+  final ByteBuffer batch(int index) {
+    if (index >= batchCount) throw new IndexOutOfBoundsException(index + " >= " + batchCount);
+    return batch(ranges[index * 2], ranges[index * 2 + 1]);
+  }
+
+  final void endElement(int end, Consumer<ByteBuffer> batches) {
+    if (batchSpans++ == 0) batchStart = elementStart;
+    batchEnd = end;
+    elementStart = -1;
+    if (batchEnd - batchStart >= batchBytes) emit(batches);
+  }
+
+  final void emit(Consumer<ByteBuffer> batches) {
+    int start = batchStart;
+    batchSpans = 0;
+    batchStart = -1;
+    if (ranges == null) { // buf is reused as more bytes arrive
+      batches.accept(copyOfBatch(start, batchEnd));
+      return;
+    }
+    if (batchCount * 2 == ranges.length) ranges = Arrays.copyOf(ranges, ranges.length * 2);
+    ranges[batchCount * 2] = start;
+    ranges[batchCount * 2 + 1] = batchEnd;
+    batchCount++;
+  }
+
+  /** Discards bytes that are not part of the current batch or element. */
+  final void compact() {
+    int keepFrom = batchSpans > 0 ? batchStart : elementStart != -1 ? elementStart : pos;
+    if (keepFrom == 0) return;
+    System.arraycopy(buf, keepFrom, buf, 0, length - keepFrom);
+    length -= keepFrom;
+    pos -= keepFrom;
+    if (elementStart != -1) elementStart -= keepFrom;
+    if (batchStart != -1) batchStart -= keepFrom;
+    batchEnd -= keepFrom;
+  }
+
+  final IllegalArgumentException malformed() {
+    return new IllegalArgumentException("Expected a " + decoder + " encoded list\n");
+  }
+
+  static final class JsonListSplitter extends SpanListSplitter {
+    static final int BEFORE_LIST = 0, IN_LIST = 1, IN_ELEMENT = 2, AFTER_LIST = 3;
+
+    int state = BEFORE_LIST, depth;
+    boolean inString, escaped;
+
+    JsonListSplitter(int batchBytes) {
+      super(SpanBytesDecoder.JSON_V2, batchBytes);
+    }
+
+    @Override void scan(Consumer<ByteBuffer> batches) {
+      for (; pos < length; pos++) {
+        byte b = buf[pos];
+        switch (state) {
+          case BEFORE_LIST:
+            if (b == '[') {
+              state = IN_LIST;
+            } else if (!isWhitespace(b)) {
+              throw malformed();
+            }
+            break;
+          case IN_LIST: // between elements
+            if (b == '{') {
+              state = IN_ELEMENT;
+              elementStart = pos;
+              depth = 1;
+            } else if (b == ']') {
+              state = AFTER_LIST;
+            } else if (b != ',' && !isWhitespace(b)) {
+              throw malformed();
+            }
+            break;
+          case IN_ELEMENT:
+            if (inString) {
+              if (escaped) {
+                escaped = false;
+              } else if (b == '\\') {
+                escaped = true;
+              } else if (b == '"') {
+                inString = false;
+              }
+            } else if (b == '"') {
+              inString = true;
+            } else if (b == '{' || b == '[') {
+              depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+              state = IN_LIST;
+              endElement(pos + 1, batches);
+            }
+            break;
+          default: // AFTER_LIST
+            if (!isWhitespace(b)) throw malformed();
+        }
+      }
+    }
+
+    @Override boolean isComplete() {
+      return state == AFTER_LIST || bytesWritten == 0;
+    }
+
+    /** Elements after the first keep the commas which separated them in the input. */
+    @Override ByteBuffer batch(int start, int end) {
+      int size = end - start;
+      byte[] result = new byte[size + 2];
+      result[0] = '[';
+      System.arraycopy(buf, start, result, 1, size);
+      result[size + 1] = ']';
+      return ByteBuffer.wrap(result);
+    }
+
+    @Override ByteBuffer copyOfBatch(int start, int end) {
+      return batch(start, end);
+    }
+
+    static boolean isWhitespace(byte b) {
+      return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+  }
+
+  /** Each span is field 1 of {@code ListOfSpans}, so concatenated fields are also a list. */
+  static final class Proto3ListSplitter extends SpanListSplitter {
+    static final int KEY = 0, LENGTH = 1, VALUE = 2;
+    static final byte SPAN_KEY = (1 << 3) | 2; // field 1, length-delimited wire type
+
+    int state = KEY, valueLength, shift, remaining;
+
+    Proto3ListSplitter(int batchBytes) {
+      super(SpanBytesDecoder.PROTO3, batchBytes);
+    }
+
+    @Override void scan(Consumer<ByteBuffer> batches) {
+      while (pos < length) {
+        switch (state) {
+          case KEY:
+            if (buf[pos] != SPAN_KEY) throw malformed();
+            elementStart = pos++;
+            state = LENGTH;
+            valueLength = shift = 0;
+            break;
+          case LENGTH:
+            byte b = buf[pos++];
+            if (shift == 28 && (b & 0xf8) != 0) throw malformed(); // over 31 bits
+            valueLength |= (b & 0x7f) << shift;
+            shift += 7;
+            if ((b & 0x80) != 0) break;
+            remaining = valueLength;
+            state = VALUE;
+            if (remaining == 0) endValue(batches);
+            break;
+          default: // VALUE
+            int skip = Math.min(remaining, length - pos);
+            pos += skip;
+            remaining -= skip;
+            if (remaining == 0) endValue(batches);
+        }
+      }
+    }
+
+    void endValue(Consumer<ByteBuffer> batches) {
+      state = KEY;
+      endElement(pos, batches);
+    }
+
+    @Override boolean isComplete() {
+      return state == KEY;
+    }
+
+    /** Doesn't copy, as no brackets are needed. */
+    @Override ByteBuffer batch(int start, int end) {
+      return ByteBuffer.wrap(buf, start, end - start).slice();
+    }
+
+    @Override ByteBuffer copyOfBatch(int start, int end) {
+      return ByteBuffer.wrap(Arrays.copyOfRange(buf, start, end));
+    }
+  }
+}
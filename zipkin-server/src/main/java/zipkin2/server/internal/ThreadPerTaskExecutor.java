@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import zipkin2.internal.Nullable;
+
+/**
+ * Runs tasks on threads started on demand, bounding concurrency with a semaphore instead of a count
+ * of pooled threads. No threads are kept while idle, and a slow storage backend can use up to
+ * {@code maxConcurrency} threads instead of exhausting a small fixed pool.
+ *
+ * <p>Tasks that exceed {@code maxConcurrency} wait in a queue, without blocking the caller, which
+ * may be an event loop. A thread that completes a task runs the next waiting one instead of
+ * exiting, so that a burst of tasks doesn't start a thread per task. Delayed and periodic tasks are
+ * timed by a single scheduler thread, then run like any other task. The scheduler thread never
+ * waits for a task: a fixed-delay task schedules its next run when it completes.
+ *
+ * <p>On JRE 21+, threads are virtual, so are cheap to start and park while blocked on I/O. Before
+ * that, they are platform daemon threads.
+ */
+public final class ThreadPerTaskExecutor extends AbstractExecutorService
+  implements ScheduledExecutorService {
+  /** Returns an executor of virtual threads, or platform threads before JRE 21. */
+  public static ThreadPerTaskExecutor create(String threadNamePrefix, int maxConcurrency) {
+    if (maxConcurrency <= 0) throw new IllegalArgumentException("maxConcurrency <= 0");
+    ThreadFactory threadFactory = virtualThreadFactory(threadNamePrefix);
+    boolean virtual = threadFactory != null;
+    if (!virtual) threadFactory = platformThreadFactory(threadNamePrefix);
+    return new ThreadPerTaskExecutor(threadFactory, maxConcurrency, virtual);
+  }
+
+  final ThreadFactory threadFactory;
+  final int maxConcurrency;
+  final boolean virtual;
+  final Semaphore permits;
+  final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+  final ScheduledThreadPoolExecutor scheduler;
+  final AtomicInteger active = new AtomicInteger();
+  volatile boolean shutdown;
+
+  ThreadPerTaskExecutor(ThreadFactory threadFactory, int maxConcurrency, boolean virtual) {
+    this.threadFactory = threadFactory;
+    this.maxConcurrency = maxConcurrency;
+    this.virtual = virtual;
+    this.permits = new Semaphore(maxConcurrency);
+    this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "zipkin-blocking-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /** Count of tasks currently running. */
+  public int activeCount() {
+    return active.get();
+  }
+
+  /** Count of tasks waiting for a permit. */
+  public int pendingCount() {
+    return pending.size();
+  }
+
+  @Override public void execute(Runnable task) {
+    if (task == null) throw new NullPointerException("task == null");
+    if (shutdown) throw new RejectedExecutionException(this + " is shutdown");
+    pending.add(task);
+    drain();
+  }
+
+  /** Starts pending tasks while there are permits. Called on submit and when a task completes. */
+  void drain() {
+    while (!pending.isEmpty() && permits.tryAcquire()) {
+      Runnable task = pending.poll();
+      if (task == null) { // another thread took it
+        permits.release();
+        continue;
+      }
+      active.incrementAndGet();
+      try {
+        threadFactory.newThread(() -> run(task)).start();
+      } catch (RuntimeException | Error e) {
+        active.decrementAndGet();
+        permits.release();
+        throw e;
+      }
+    }
+  }
+
+  /** Runs the task, then any waiting, so that a burst doesn't start a thread per task. */
+  void run(Runnable task) {
+    try {
+      do {
+        task.run();
+      } while ((task = pending.poll()) != null);
+    } finally {
+      active.decrementAndGet();
+      permits.release();
+      drain(); // in case a task was added after the last poll, but before the release
+      if (shutdown) signalIfTerminated();
+    }
+  }
+
+  @Override public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    if (command == null) throw new NullPointerException("command == null");
+    return scheduler.schedule(() -> execute(command), delay, unit);
+  }
+
+  @Override public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay,
+    TimeUnit unit) {
+    if (callable == null) throw new NullPointerException("callable == null");
+    DelayedTask<V> task = new DelayedTask<>(callable);
+    task.schedule(unit.toNanos(delay));
+    return task;
+  }
+
+  @Override public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+    long period, TimeUnit unit) {
+    if (command == null) throw new NullPointerException("command == null");
+    return scheduler.scheduleAtFixedRate(() -> execute(command), initialDelay, period, unit);
+  }
+
+  @Override public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+    long delay, TimeUnit unit) {
+    if (command == null) throw new NullPointerException("command == null");
+    if (delay <= 0) throw new IllegalArgumentException("delay <= 0");
+    DelayedTask<Void> task = new DelayedTask<>(command, unit.toNanos(delay));
+    task.schedule(unit.toNanos(initialDelay));
+    return task;
+  }
+
+  /**
+   * A task whose delay is timed by the scheduler thread, but which runs like any other task. When
+   * periodic, the next run is scheduled after the last completes, so the scheduler never waits.
+   */
+  final class DelayedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+    final long delayNanos; // between runs, or zero when this runs once
+    volatile ScheduledFuture<?> timer;
+
+    DelayedTask(Callable<V> callable) {
+      super(callable);
+      this.delayNanos = 0L;
+    }
+
+    DelayedTask(Runnable command, long delayNanos) {
+      super(command, null);
+      this.delayNanos = delayNanos;
+    }
+
+    void schedule(long delayNanos) {
+      timer = scheduler.schedule(() -> execute(this), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override public void run() {
+      if (delayNanos == 0L) {
+        super.run();
+      } else if (runAndReset() && !shutdown) {
+        try {
+          schedule(delayNanos);
+        } catch (RejectedExecutionException e) { // shutdown while running
+          cancel(false);
+        }
+      }
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean result = super.cancel(mayInterruptIfRunning);
+      timer.cancel(false);
+      return result;
+    }
+
+    @Override public long getDelay(TimeUnit unit) {
+      return timer.getDelay(unit);
+    }
+
+    @Override public int compareTo(Delayed o) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+
+  @Override public void shutdown() {
+    shutdown = true;
+    scheduler.shutdown();
+    signalIfTerminated();
+  }
+
+  @Override public List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> result = new ArrayList<>(scheduler.shutdownNow());
+    for (Runnable task; (task = pending.poll()) != null; ) result.add(task);
+    signalIfTerminated();
+    return result;
+  }
+
+  @Override public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override public boolean isTerminated() {
+    return shutdown && scheduler.isTerminated() && active.get() == 0 && pending.isEmpty();
+  }
+
+  @Override public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (!scheduler.awaitTermination(timeout, unit)) return false;
+    synchronized (this) {
+      while (!isTerminated()) {
+        long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) return false;
+        TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+      }
+    }
+    return true;
+  }
+
+  synchronized void signalIfTerminated() {
+    if (isTerminated()) notifyAll();
+  }
+
+  @Override public String toString() {
+    return "ThreadPerTaskExecutor{maxConcurrency=" + maxConcurrency + ", virtual=" + virtual + "}";
+  }
+
+  static ThreadFactory platformThreadFactory(String threadNamePrefix) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return r -> {
+      Thread thread = new Thread(r, threadNamePrefix + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** Uses reflection as this code is compiled for Java 8. */
+  @Nullable static ThreadFactory virtualThreadFactory(String threadNamePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, threadNamePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
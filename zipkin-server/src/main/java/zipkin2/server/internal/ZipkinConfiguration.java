@@ -16,11 +16,13 @@ package zipkin2.server.internal;
 import brave.Tracing;
 import io.micrometer.core.instrument.MeterRegistry;
 import java.util.List;
+import java.util.Optional;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.BeanFactoryAware;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -31,7 +33,9 @@ import org.springframework.context.annotation.Import;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.ServiceCounters;
 import zipkin2.server.internal.brave.TracingStorageComponent;
+import zipkin2.server.internal.throttle.PriorityClassifier;
 import zipkin2.server.internal.throttle.ThrottledStorageComponent;
 import zipkin2.server.internal.throttle.ZipkinStorageThrottleProperties;
 import zipkin2.storage.InMemoryStorage;
@@ -49,8 +53,42 @@ public class ZipkinConfiguration {
     return CollectorSampler.create(rate);
   }
 
-  @Bean CollectorMetrics metrics(MeterRegistry registry) {
-    return new MicrometerCollectorMetrics(registry);
+  @Bean CollectorMetrics metrics(MeterRegistry registry,
+    @Value("${zipkin.collector.metrics-histograms:true}") boolean histograms,
+    Optional<ServiceCounters> services) {
+    return new MicrometerCollectorMetrics(registry, histograms, services.orElse(null));
+  }
+
+  @Bean(destroyMethod = "close") SpanDecodePool spanDecodePool(
+    @Value("${zipkin.collector.decode.offload-bytes:1048576}") int offloadBytes,
+    @Value("${zipkin.collector.decode.parallel-bytes:4194304}") int parallelBytes,
+    @Value("${zipkin.collector.decode.threads:0}") int threads) {
+    return SpanDecodePool.create(offloadBytes, parallelBytes, threads);
+  }
+
+  @Bean(destroyMethod = "close") Bulkheads bulkheads(MeterRegistry registry,
+    @Value("${zipkin.bulkhead.query.threads:0}") int queryThreads,
+    @Value("${zipkin.bulkhead.query.queue-size:1000}") int queryQueueSize,
+    @Value("${zipkin.bulkhead.collector.threads:0}") int collectorThreads,
+    @Value("${zipkin.bulkhead.collector.queue-size:10000}") int collectorQueueSize,
+    @Value("${zipkin.bulkhead.health.threads:0}") int healthThreads,
+    @Value("${zipkin.bulkhead.health.queue-size:100}") int healthQueueSize) {
+    return Bulkheads.create(registry, queryThreads, queryQueueSize, collectorThreads,
+      collectorQueueSize, healthThreads, healthQueueSize);
+  }
+
+  @Bean DurableRequests durableRequests(
+    @Value("${zipkin.collector.durable.max-in-flight-requests:64}") int maxInFlight,
+    @Value("${zipkin.collector.durable.timeout:10000}") long timeoutMillis) {
+    return new DurableRequests(maxInFlight, timeoutMillis);
+  }
+
+  @Bean @ConditionalOnExpression("${zipkin.collector.metrics-max-services:100} > 0")
+  ServiceCounters serviceCounters(MeterRegistry registry,
+    @Value("${zipkin.collector.metrics-max-services:100}") int maxServices) {
+    return ServiceCounters.create(maxServices,
+      (serviceName, counters) -> MicrometerCollectorMetrics.registerServiceMeters(registry, counters),
+      (serviceName, counters) -> MicrometerCollectorMetrics.removeServiceMeters(registry, counters));
   }
 
   @EnableConfigurationProperties(ZipkinStorageThrottleProperties.class)
@@ -68,14 +106,16 @@ public class ZipkinConfiguration {
 
     @Override public Object postProcessAfterInitialization(Object bean, String beanName) {
       if (bean instanceof StorageComponent) {
-        ZipkinStorageThrottleProperties throttleProperties =
-          beanFactory.getBean(ZipkinStorageThrottleProperties.class);
-        return new ThrottledStorageComponent((StorageComponent) bean,
-          beanFactory.getBean(MeterRegistry.class),
-          beanFactory.containsBean("tracing") ? beanFactory.getBean(Tracing.class) : null,
-          throttleProperties.getMinConcurrency(),
-          throttleProperties.getMaxConcurrency(),
-          throttleProperties.getMaxQueueSize());
+        ThrottledStorageComponent.Builder builder =
+          beanFactory.getBean(ZipkinStorageThrottleProperties.class).toBuilder()
+            .delegate((StorageComponent) bean)
+            .meterRegistry(beanFactory.getBean(MeterRegistry.class));
+        if (beanFactory.containsBean("tracing")) {
+          builder.tracing(beanFactory.getBean(Tracing.class));
+        }
+        beanFactory.getBeanProvider(PriorityClassifier.class)
+          .ifAvailable(builder::priorityClassifier);
+        return builder.build();
       }
       return bean;
     }
@@ -14,13 +14,35 @@
 package zipkin2.server.internal;
 
 import com.linecorp.armeria.common.CommonPools;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpHeaders;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpResponseWriter;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.ResponseHeaders;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaMessageDeframerHandler;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaMessageFramer;
+import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
+import com.linecorp.armeria.common.grpc.protocol.DeframedMessage;
+import com.linecorp.armeria.common.grpc.protocol.GrpcHeaderNames;
+import com.linecorp.armeria.common.grpc.protocol.StatusMessageEscaper;
+import com.linecorp.armeria.common.stream.HttpDeframer;
+import com.linecorp.armeria.common.stream.SubscriptionOption;
+import com.linecorp.armeria.server.AbstractHttpService;
+import com.linecorp.armeria.server.ServerListener;
 import com.linecorp.armeria.server.ServiceRequestContext;
 import com.linecorp.armeria.server.grpc.protocol.AbstractUnsafeUnaryGrpcService;
 import com.linecorp.armeria.spring.ArmeriaServerConfigurator;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import zipkin2.Callback;
@@ -28,6 +50,8 @@ import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.DiskSpool;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.storage.StorageComponent;
 
 /** Collector for receiving spans on a gRPC endpoint. */
@@ -35,26 +59,47 @@ import zipkin2.storage.StorageComponent;
 final class ZipkinGrpcCollector {
 
   @Bean ArmeriaServerConfigurator grpcCollectorConfigurator(StorageComponent storage,
-    CollectorSampler sampler, CollectorMetrics metrics) {
+    CollectorSampler sampler, CollectorMetrics metrics, Optional<DiskSpool> spool,
+    ObjectProvider<SpanProcessor> processors, SpanDecodePool decodePool,
+    DurableRequests durableRequests, Bulkheads bulkheads,
+    @Value("${zipkin.collector.partitioned-workers:0}") int workers,
+    @Value("${zipkin.collector.partitioned-worker-queue-size:1000}") int workerQueueSize,
+    @Value("${zipkin.collector.grpc.stream.max-in-flight-messages:8}") int maxInFlightMessages,
+    @Value("${zipkin.collector.grpc.stream.ack-every-messages:100}") int ackEveryMessages,
+    @Value("${zipkin.collector.grpc.stream.max-message-bytes:4194304}") int maxMessageBytes) {
     CollectorMetrics grpcMetrics = metrics.forTransport("grpc");
-    Collector collector = Collector.newBuilder(getClass())
+    Collector.Builder builder = Collector.newBuilder(getClass())
       .storage(storage)
       .sampler(sampler)
       .metrics(grpcMetrics)
-      .build();
+      .partitionByTraceId(workers, workerQueueSize);
+    spool.ifPresent(builder::spool);
+    processors.orderedStream().forEach(builder::addProcessor);
+    Collector collector = builder.build();
 
-    return sb ->
-      sb.service("/zipkin.proto3.SpanService/Report", new SpanService(collector, grpcMetrics));
+    return sb -> sb
+      .service("/zipkin.proto3.SpanService/Report", new SpanService(collector, grpcMetrics, decodePool,
+        durableRequests, bulkheads))
+      .service("/zipkin.proto3.SpanService/ReportStream", new SpanStreamService(collector,
+        grpcMetrics, decodePool, bulkheads, maxInFlightMessages, ackEveryMessages, maxMessageBytes))
+      .serverListener(ServerListener.builder().whenStopped(s -> collector.close()).build());
   }
 
   static final class SpanService extends AbstractUnsafeUnaryGrpcService {
 
     final Collector collector;
     final CollectorMetrics metrics;
+    final SpanDecodePool decodePool;
+    final DurableRequests durableRequests;
+    final Bulkheads bulkheads;
 
-    SpanService(Collector collector, CollectorMetrics metrics) {
+    SpanService(Collector collector, CollectorMetrics metrics, SpanDecodePool decodePool,
+      DurableRequests durableRequests, Bulkheads bulkheads) {
       this.collector = collector;
       this.metrics = metrics;
+      this.decodePool = decodePool;
+      this.durableRequests = durableRequests;
+      this.bulkheads = bulkheads;
     }
 
     @Override protected CompletableFuture<ByteBuf> handleMessage(ByteBuf bytes) {
@@ -65,21 +110,229 @@ final class ZipkinGrpcCollector {
         return CompletableFuture.completedFuture(bytes); // lenient on empty messages
       }
 
-      try {
-        CompletableFutureCallback result = new CompletableFutureCallback();
+      CompletableFutureCallback result = new CompletableFutureCallback();
+      ServiceRequestContext ctx = ServiceRequestContext.currentOrNull();
 
-        // collector.accept might block so need to move off the event loop. We make sure the
-        // callback is context aware to continue the trace.
-        Executor executor = ServiceRequestContext.mapCurrent(
-          ctx -> ctx.makeContextAware(ctx.blockingTaskExecutor()),
-          CommonPools::blockingTaskExecutor);
+      // When durable, the response waits for storage, so that the client can retry on failure
+      boolean durable = ctx != null && DurableRequests.isDurable(ctx.request().headers());
+      if (durable && !durableRequests.tryAcquire(ctx)) {
+        bytes.release();
+        result.onError(new ArmeriaStatusException(14 /* UNAVAILABLE */,
+          "Too many durable requests"));
+        return result;
+      }
 
-        collector.acceptSpans(bytes.nioBuffer(), SpanBytesDecoder.PROTO3, result, executor);
+      // collector.accept might block so need to move off the event loop. We make sure the
+      // callback is context aware to continue the trace.
+      Executor executor = ctx != null
+        ? bulkheads.collector(ctx)
+        : CommonPools.blockingTaskExecutor();
 
-        return result;
-      } finally {
+      // releases the bytes, which may be after decoding on another thread
+      decodePool.acceptSpans(collector, bytes, SpanBytesDecoder.PROTO3, result, executor, ctx,
+        durable);
+
+      return result;
+    }
+  }
+
+  /**
+   * Accepts a long-lived stream of {@code ListOfSpans} messages, as if this was defined in the
+   * {@code SpanService}:
+   *
+   * <pre>{@code
+   * rpc ReportStream(stream ListOfSpans) returns (stream ReportResponse);
+   * }</pre>
+   *
+   * <p>At most {@code maxInFlight} messages are read ahead of storage. Until one of these is
+   * stored, the stream isn't read further, so HTTP/2 flow control slows the client down to what
+   * storage can keep up with. Like durable requests, stored messages bypass any partitioned
+   * workers.
+   *
+   * <p>An empty {@code ReportResponse} is sent each time another {@code ackEvery} messages in a
+   * row were accepted. When the stream has the {@link DurableRequests#HEADER}, a message that
+   * storage fails ends the stream with an error status. Otherwise, it is dropped and counted like
+   * in other collectors, and the stream continues. The stream ends with an OK status when the
+   * client closes it and remaining messages are accepted. If a message can't be decoded, the
+   * stream ends with an error status instead. The client can resend messages sent after the last
+   * acknowledgement, which may duplicate some.
+   */
+  static final class SpanStreamService extends AbstractHttpService {
+    static final ResponseHeaders RESPONSE_HEADERS = ResponseHeaders.of(HttpStatus.OK,
+      HttpHeaderNames.CONTENT_TYPE, "application/grpc+proto",
+      GrpcHeaderNames.GRPC_ENCODING, "identity");
+
+    final Collector collector;
+    final CollectorMetrics metrics;
+    final SpanDecodePool decodePool;
+    final Bulkheads bulkheads;
+    final int maxInFlight, ackEvery, maxMessageBytes;
+
+    SpanStreamService(Collector collector, CollectorMetrics metrics, SpanDecodePool decodePool,
+      Bulkheads bulkheads, int maxInFlight, int ackEvery, int maxMessageBytes) {
+      if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight < 1");
+      if (ackEvery < 1) throw new IllegalArgumentException("ackEvery < 1");
+      this.collector = collector;
+      this.metrics = metrics;
+      this.decodePool = decodePool;
+      this.bulkheads = bulkheads;
+      this.maxInFlight = maxInFlight;
+      this.ackEvery = ackEvery;
+      this.maxMessageBytes = maxMessageBytes;
+    }
+
+    @Override protected HttpResponse doPost(ServiceRequestContext ctx, HttpRequest req) {
+      // The stream is long-lived, so only bound the size of each message
+      ctx.clearRequestTimeout();
+      ctx.setMaxRequestLength(0);
+
+      HttpResponseWriter response = HttpResponse.streaming();
+      response.write(RESPONSE_HEADERS);
+      HttpDeframer<DeframedMessage> deframer =
+        HttpDeframer.of(new ArmeriaMessageDeframerHandler(maxMessageBytes), ctx.alloc());
+      req.subscribe(deframer, ctx.eventLoop(), SubscriptionOption.WITH_POOLED_OBJECTS);
+      deframer.subscribe(new SpanStreamSubscriber(this, ctx, response), ctx.eventLoop(),
+        SubscriptionOption.WITH_POOLED_OBJECTS);
+      return response;
+    }
+  }
+
+  /** State of one stream, which is only accessed on its event loop. */
+  static final class SpanStreamSubscriber implements Subscriber<DeframedMessage> {
+    final SpanStreamService service;
+    final ServiceRequestContext ctx;
+    final HttpResponseWriter response;
+    final ArmeriaMessageFramer framer;
+    final Executor executor;
+    /** Indexed by message sequence modulo maxInFlight, true when accepted out of order. */
+    final boolean[] accepted;
+    final boolean durable;
+
+    Subscription subscription;
+    long received, acceptedInOrder;
+    boolean requestDone, done;
+
+    SpanStreamSubscriber(SpanStreamService service, ServiceRequestContext ctx,
+      HttpResponseWriter response) {
+      this.service = service;
+      this.ctx = ctx;
+      this.response = response;
+      this.framer = new ArmeriaMessageFramer(ctx.alloc(), 0 /* unbounded */, false);
+      // collector.accept might block so need to move off the event loop. We make sure the
+      // callback is context aware to continue the trace.
+      this.executor = service.bulkheads.collector(ctx);
+      this.accepted = new boolean[service.maxInFlight];
+      // A stream is bounded by maxInFlight, so isn't counted against durable requests
+      this.durable = DurableRequests.isDurable(ctx.request().headers());
+    }
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(service.maxInFlight);
+    }
+
+    @Override public void onNext(DeframedMessage message) {
+      ByteBuf bytes = message.buf();
+      if (done) {
         bytes.release();
+        return;
       }
+      service.metrics.incrementMessages();
+      service.metrics.incrementBytes(bytes.readableBytes());
+
+      long sequence = received++;
+      if (!bytes.isReadable()) { // lenient on empty messages
+        bytes.release();
+        onAccepted(sequence);
+        return;
+      }
+
+      // releases the bytes, which may be after decoding on another thread. Storage always
+      // completes the callback, so that demand isn't replenished until the message is stored.
+      StreamMessage streamMessage = new StreamMessage(sequence);
+      service.decodePool.acceptSpans(service.collector, bytes, SpanBytesDecoder.PROTO3,
+        streamMessage, streamMessage, ctx, true);
+    }
+
+    /**
+     * Completes one message on the event loop. This is also its executor, in order to tell
+     * storage failures from ones before the spans were scheduled, such as decoding.
+     */
+    final class StreamMessage implements Callback<Void>, Executor {
+      final long sequence;
+      volatile boolean scheduled;
+
+      StreamMessage(long sequence) {
+        this.sequence = sequence;
+      }
+
+      @Override public void execute(Runnable command) {
+        scheduled = true; // before, as storage can fail before execute returns
+        try {
+          executor.execute(command);
+        } catch (RuntimeException | Error e) {
+          scheduled = false;
+          throw e;
+        }
+      }
+
+      @Override public void onSuccess(Void value) {
+        ctx.eventLoop().execute(() -> onAccepted(sequence));
+      }
+
+      @Override public void onError(Throwable t) {
+        // The collector already counted and logged dropped spans
+        if (scheduled && !durable) {
+          onSuccess(null);
+          return;
+        }
+        ctx.eventLoop().execute(() -> fail(t));
+      }
+    }
+
+    void onAccepted(long sequence) {
+      if (done) return;
+      accepted[(int) (sequence % accepted.length)] = true;
+      int slot;
+      while (acceptedInOrder < received
+        && accepted[slot = (int) (acceptedInOrder % accepted.length)]) {
+        accepted[slot] = false;
+        if (++acceptedInOrder % service.ackEvery == 0) {
+          response.write(framer.writePayload(Unpooled.EMPTY_BUFFER));
+        }
+        if (!requestDone) subscription.request(1); // replace the accepted message
+      }
+      maybeComplete();
+    }
+
+    @Override public void onError(Throwable t) {
+      fail(t);
+    }
+
+    @Override public void onComplete() {
+      requestDone = true;
+      maybeComplete();
+    }
+
+    void maybeComplete() {
+      if (done || !requestDone || acceptedInOrder < received) return;
+      done = true;
+      response.write(HttpHeaders.of(GrpcHeaderNames.GRPC_STATUS, "0"));
+      response.close();
+    }
+
+    void fail(Throwable t) {
+      if (done) return;
+      done = true;
+      // The collector counts a message it couldn't decode as dropped. Others in flight are still
+      // stored, and unreadable frames were never counted as messages.
+      if (subscription != null) subscription.cancel();
+      int code = t instanceof ArmeriaStatusException ? ((ArmeriaStatusException) t).getCode()
+        : t instanceof IllegalArgumentException ? 3 /* INVALID_ARGUMENT */ : 13 /* INTERNAL */;
+      String message = t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+      response.write(HttpHeaders.of(GrpcHeaderNames.GRPC_STATUS, Integer.toString(code),
+        GrpcHeaderNames.GRPC_MESSAGE, StatusMessageEscaper.escape(message)));
+      response.close();
     }
   }
 
@@ -13,28 +13,41 @@
  */
 package zipkin2.server.internal;
 
-import com.linecorp.armeria.client.encoding.StreamDecoderFactory;
 import com.linecorp.armeria.common.AggregatedHttpRequest;
+import com.linecorp.armeria.common.ByteBufAccessMode;
 import com.linecorp.armeria.common.HttpData;
 import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpObject;
 import com.linecorp.armeria.common.HttpRequest;
 import com.linecorp.armeria.common.HttpResponse;
 import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.RequestHeaders;
 import com.linecorp.armeria.common.ResponseHeaders;
+import com.linecorp.armeria.common.encoding.StreamDecoderFactory;
+import com.linecorp.armeria.common.stream.SubscriptionOption;
 import com.linecorp.armeria.server.ServiceRequestContext;
 import com.linecorp.armeria.server.annotation.Consumes;
 import com.linecorp.armeria.server.annotation.ConsumesJson;
 import com.linecorp.armeria.server.annotation.ExceptionHandler;
 import com.linecorp.armeria.server.annotation.Post;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import zipkin2.Callback;
 import zipkin2.Span;
@@ -44,26 +57,55 @@ import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.DiskSpool;
+import zipkin2.collector.SpanProcessor;
+import zipkin2.internal.Nullable;
 import zipkin2.storage.StorageComponent;
 
 import static zipkin2.Call.propagateIfFatal;
 
 @ConditionalOnProperty(name = "zipkin.collector.http.enabled", matchIfMissing = true)
 @ExceptionHandler(BodyIsExceptionMessage.class)
-public class ZipkinHttpCollector {
+public class ZipkinHttpCollector implements AutoCloseable {
   static final Logger LOGGER = LoggerFactory.getLogger(ZipkinHttpCollector.class);
   static volatile CollectorMetrics metrics;
   final Collector collector;
+  final SpanDecodePool decodePool;
+  final RequestDecompressor decompressor;
+  final DurableRequests durableRequests;
+  final Bulkheads bulkheads;
+  final int streamingBatchBytes;
 
   @SuppressWarnings("StaticAssignmentInConstructor")
-  ZipkinHttpCollector(
-    StorageComponent storage, CollectorSampler sampler, CollectorMetrics metrics) {
+  ZipkinHttpCollector(StorageComponent storage, CollectorSampler sampler,
+    CollectorMetrics metrics, Optional<DiskSpool> spool,
+    ObjectProvider<SpanProcessor> processors, SpanDecodePool decodePool,
+    DurableRequests durableRequests, Bulkheads bulkheads,
+    ObjectProvider<StreamDecoderFactory> decoderFactories, Optional<MeterRegistry> meterRegistry,
+    @Value("${zipkin.collector.partitioned-workers:0}") int workers,
+    @Value("${zipkin.collector.partitioned-worker-queue-size:1000}") int workerQueueSize,
+    @Value("${zipkin.collector.http.streaming-batch-bytes:0}") int streamingBatchBytes,
+    @Value("${zipkin.collector.http.max-decompressed-bytes:67108864}") int maxDecompressedBytes) {
     metrics = metrics.forTransport("http");
-    collector =
-      Collector.newBuilder(getClass()).storage(storage).sampler(sampler).metrics(metrics).build();
+    Collector.Builder builder =
+      Collector.newBuilder(getClass()).storage(storage).sampler(sampler).metrics(metrics)
+        .partitionByTraceId(workers, workerQueueSize);
+    spool.ifPresent(builder::spool);
+    processors.orderedStream().forEach(builder::addProcessor);
+    collector = builder.build();
+    this.decodePool = decodePool;
+    this.durableRequests = durableRequests;
+    this.bulkheads = bulkheads;
+    this.decompressor = RequestDecompressor.create(decoderFactories.orderedStream()::iterator,
+      maxDecompressedBytes, meterRegistry.orElse(null));
+    this.streamingBatchBytes = streamingBatchBytes;
     ZipkinHttpCollector.metrics = metrics; // converter instances aren't injected by Spring
   }
 
+  @Override public void close() {
+    collector.close();
+  }
+
   @Post("/api/v2/spans")
   public HttpResponse uploadSpans(ServiceRequestContext ctx, HttpRequest req) {
     return validateAndStoreSpans(SpanBytesDecoder.JSON_V2, ctx, req);
@@ -98,12 +140,28 @@ public class ZipkinHttpCollector {
     return validateAndStoreSpans(SpanBytesDecoder.THRIFT, ctx, req);
   }
 
-  /** This synchronously decodes the message so that users can see data errors. */
+  /**
+   * This synchronously decodes the message so that users can see data errors. When the request has
+   * the {@link DurableRequests#HEADER}, the response also waits for storage.
+   */
   @SuppressWarnings("FutureReturnValueIgnored")
   // TODO: errorprone wants us to check this future before returning, but what would be a sensible
   // check? Say it is somehow canceled, would we take action? Would callback.onError() be redundant?
   HttpResponse validateAndStoreSpans(SpanBytesDecoder decoder, ServiceRequestContext ctx,
     HttpRequest req) {
+    boolean durable = DurableRequests.isDurable(req.headers());
+    if (durable && !durableRequests.tryAcquire(ctx)) {
+      req.abort();
+      return HttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE, MediaType.ANY_TEXT_TYPE,
+        "Too many durable requests\n");
+    }
+
+    // Durable requests are buffered, as the response waits for all spans to be stored
+    if (!durable && streamingBatchBytes > 0
+      && (decoder == SpanBytesDecoder.JSON_V2 || decoder == SpanBytesDecoder.PROTO3)) {
+      return streamAndStoreSpans(decoder, ctx, req);
+    }
+
     CompletableCallback result = new CompletableCallback();
 
     req.aggregateWithPooledObjects(ctx.eventLoop(), ctx.alloc()).handle((msg, t) -> {
@@ -114,7 +172,7 @@ public class ZipkinHttpCollector {
 
       final HttpData requestContent;
       try {
-        requestContent = UnzippingBytesRequestConverter.convertRequest(ctx, msg);
+        requestContent = UnzippingBytesRequestConverter.convertRequest(ctx, msg, decompressor);
       } catch (Throwable t1) {
         propagateIfFatal(t1);
         result.onError(t1);
@@ -130,14 +188,9 @@ public class ZipkinHttpCollector {
 
         final ByteBuffer nioBuffer = content.byteBuf().nioBuffer();
 
-        try {
-          SpanBytesDecoderDetector.decoderForListMessage(nioBuffer);
-        } catch (IllegalArgumentException e) {
+        if (!isListMessage(nioBuffer)) {
           result.onError(new IllegalArgumentException("Expected a " + decoder + " encoded list\n"));
           return null;
-        } catch (Throwable t1) {
-          result.onError(t1);
-          return null;
         }
 
         SpanBytesDecoder unexpectedDecoder = testForUnexpectedFormat(decoder, nioBuffer);
@@ -149,9 +202,10 @@ public class ZipkinHttpCollector {
 
         // collector.accept might block so need to move off the event loop. We make sure the
         // callback is context aware to continue the trace.
-        Executor executor = ctx.makeContextAware(ctx.blockingTaskExecutor());
-        try {
-          collector.acceptSpans(nioBuffer, decoder, result, executor);
+        Executor executor = bulkheads.collector(ctx);
+        try { // large messages are decoded on another thread, so pass a reference to the content
+          decodePool.acceptSpans(collector, content.byteBuf(ByteBufAccessMode.RETAINED_DUPLICATE),
+            decoder, result, executor, ctx, durable);
         } catch (Throwable t1) {
           result.onError(t1);
           return null;
@@ -164,47 +218,61 @@ public class ZipkinHttpCollector {
     return HttpResponse.from(result);
   }
 
+  /**
+   * Unlike {@link #validateAndStoreSpans}, this decodes and stores spans in batches as the body
+   * arrives, so memory used doesn't grow with the size of the message. The response waits until
+   * all batches were stored. The trade-off is that a malformed span fails the request after any
+   * spans before it were accepted.
+   */
+  HttpResponse streamAndStoreSpans(SpanBytesDecoder decoder, ServiceRequestContext ctx,
+    HttpRequest req) {
+    CompletableCallback result = new CompletableCallback();
+    StreamingSpansSubscriber subscriber;
+    try {
+      subscriber = new StreamingSpansSubscriber(collector, decoder, streamingBatchBytes,
+        decompressor, ctx, bulkheads.collector(ctx), req, result);
+    } catch (IllegalArgumentException e) { // unsupported encoding
+      req.abort();
+      result.onError(e);
+      return HttpResponse.from(result);
+    }
+    req.subscribe(subscriber, ctx.eventLoop(), SubscriptionOption.WITH_POOLED_OBJECTS);
+    return HttpResponse.from(result);
+  }
+
   static void maybeLog(String prefix, ServiceRequestContext ctx, AggregatedHttpRequest request) {
+    maybeLog(prefix, ctx, request.headers());
+  }
+
+  static void maybeLog(String prefix, ServiceRequestContext ctx, RequestHeaders headers) {
     if (!LOGGER.isDebugEnabled()) return;
     LOGGER.debug("{} sent by clientAddress->{}, userAgent->{}",
-      prefix, ctx.clientAddress(), request.headers().get(HttpHeaderNames.USER_AGENT)
+      prefix, ctx.clientAddress(), headers.get(HttpHeaderNames.USER_AGENT)
     );
   }
 
   /**
-   * Some formats clash on partial data. For example, a v1 and v2 span is identical if only the span
-   * name is sent. This looks for unexpected data format.
+   * Returns true if the first bytes are that of a json, proto3 or thrift list. Unlike {@link
+   * SpanBytesDecoderDetector#decoderForListMessage(ByteBuffer)}, this doesn't scan the body, as
+   * the format was already chosen by the request path and content-type.
    */
-  static SpanBytesDecoder testForUnexpectedFormat(BytesDecoder<Span> decoder, ByteBuffer body) {
-    if (decoder == SpanBytesDecoder.JSON_V2) {
-      if (contains(body, BINARY_ANNOTATION_FIELD_SUFFIX)) {
-        return SpanBytesDecoder.JSON_V1;
-      }
-    } else if (decoder == SpanBytesDecoder.JSON_V1) {
-      if (contains(body, ENDPOINT_FIELD_SUFFIX) || contains(body, TAGS_FIELD)) {
-        return SpanBytesDecoder.JSON_V2;
-      }
-    }
-    return null;
+  static boolean isListMessage(ByteBuffer body) {
+    byte first = body.get(body.position());
+    if (first == '[' || first == 12 /* List[ThriftSpan] */) return true;
+    if (first == 11) return true; // openzipkin/zipkin-reporter-java#133
+    // proto3 span key, followed by a varint that won't be zero
+    return first == 10 && body.remaining() > 1 && body.get(body.position() + 1) != 0;
   }
 
-  static final byte[] BINARY_ANNOTATION_FIELD_SUFFIX =
-    {'y', 'A', 'n', 'n', 'o', 't', 'a', 't', 'i', 'o', 'n', 's', '"'};
-  // copy-pasted from SpanBytesDecoderDetector, to avoid making it public
-  static final byte[] ENDPOINT_FIELD_SUFFIX = {'E', 'n', 'd', 'p', 'o', 'i', 'n', 't', '"'};
-  static final byte[] TAGS_FIELD = {'"', 't', 'a', 'g', 's', '"'};
-
-  static boolean contains(ByteBuffer bytes, byte[] subsequence) {
-    bytes:
-    for (int i = 0; i < bytes.remaining() - subsequence.length + 1; i++) {
-      for (int j = 0; j < subsequence.length; j++) {
-        if (bytes.get(bytes.position() + i + j) != subsequence[j]) {
-          continue bytes;
-        }
-      }
-      return true;
-    }
-    return false;
+  /**
+   * Some formats clash on partial data. For example, a v1 and v2 span is identical if only the span
+   * name is sent. This looks for unexpected data format in the first span.
+   */
+  @Nullable static SpanBytesDecoder testForUnexpectedFormat(BytesDecoder<Span> decoder,
+    ByteBuffer body) {
+    if (decoder != SpanBytesDecoder.JSON_V2 && decoder != SpanBytesDecoder.JSON_V1) return null;
+    SpanBytesDecoder detected = JsonSpanFormatDetector.detect(body);
+    return detected != null && detected != decoder ? detected : null;
   }
 }
 
@@ -234,17 +302,26 @@ final class CompletableCallback extends CompletableFuture<HttpResponse>
 
 final class UnzippingBytesRequestConverter {
 
-  static HttpData convertRequest(ServiceRequestContext ctx, AggregatedHttpRequest request) {
+  static HttpData convertRequest(ServiceRequestContext ctx, AggregatedHttpRequest request,
+    RequestDecompressor decompressor) {
     ZipkinHttpCollector.metrics.incrementMessages();
     String encoding = request.headers().get(HttpHeaderNames.CONTENT_ENCODING);
     HttpData content = request.content();
-    if (!content.isEmpty() && encoding != null && encoding.contains("gzip")) {
-      content = StreamDecoderFactory.gzip().newDecoder(ctx.alloc()).decode(content);
-      // The implementation of the armeria decoder is to return an empty body on failure
-      if (content.isEmpty()) {
-        ZipkinHttpCollector.maybeLog("Malformed gzip body", ctx, request);
+    if (!content.isEmpty()) {
+      RequestDecompressor.Decompression decompression;
+      try {
+        decompression = decompressor.newDecompression(encoding, ctx.alloc());
+      } catch (IllegalArgumentException e) {
         content.close();
-        throw new IllegalArgumentException("Cannot gunzip spans");
+        throw e;
+      }
+      if (decompression != null) {
+        try {
+          content = decompression.decompress(content);
+        } catch (RuntimeException e) {
+          ZipkinHttpCollector.maybeLog("Malformed or oversized " + encoding + " body", ctx, request);
+          throw e;
+        }
       }
     }
 
@@ -259,3 +336,203 @@ final class UnzippingBytesRequestConverter {
     return content;
   }
 }
+
+/**
+ * Passes batches of spans to the collector as the request body arrives. The next chunk of the body
+ * is only requested while fewer than {@value #MAX_IN_FLIGHT_BATCHES} batches are being decoded or
+ * stored, so slow storage slows the client instead of buffering the body.
+ *
+ * <p>Batches are decoded on the collector executor, off the event loop. They are stored like
+ * durable requests, so that the subscriber knows when a batch no longer uses memory. Unlike a
+ * durable request, a storage error doesn't fail the response, as it was already counted and logged.
+ */
+final class StreamingSpansSubscriber implements Subscriber<HttpObject> {
+  /** Allows one batch to be decoded or stored while the next is read. */
+  static final int MAX_IN_FLIGHT_BATCHES = 2;
+
+  final Collector collector;
+  final SpanBytesDecoder decoder;
+  final ServiceRequestContext ctx;
+  final RequestHeaders headers;
+  final CompletableCallback result;
+  final Executor executor;
+  final SpanListSplitter splitter;
+  @Nullable final RequestDecompressor.Decompression unzipper;
+  final AtomicInteger spans = new AtomicInteger(); // incremented when a batch is decoded
+
+  // only accessed on the event loop
+  Subscription subscription;
+  int bytes, batches, inFlight;
+  boolean requested, bodyComplete, done;
+
+  /** @throws IllegalArgumentException if the content encoding isn't supported */
+  StreamingSpansSubscriber(Collector collector, SpanBytesDecoder decoder, int batchBytes,
+    RequestDecompressor decompressor, ServiceRequestContext ctx, Executor executor,
+    HttpRequest req, CompletableCallback result) {
+    this.collector = collector;
+    this.decoder = decoder;
+    this.ctx = ctx;
+    this.headers = req.headers();
+    this.result = result;
+    // collector.accept might block, so this is a context aware executor off the event loop
+    this.executor = executor;
+    this.splitter = SpanListSplitter.create(decoder, batchBytes);
+    this.unzipper =
+      decompressor.newDecompression(headers.get(HttpHeaderNames.CONTENT_ENCODING), ctx.alloc());
+  }
+
+  @Override public void onSubscribe(Subscription subscription) {
+    this.subscription = subscription;
+    ZipkinHttpCollector.metrics.incrementMessages();
+    maybeRequest();
+  }
+
+  @Override public void onNext(HttpObject object) {
+    requested = false;
+    if (done || !(object instanceof HttpData)) { // ignore trailers
+      if (object instanceof HttpData) ((HttpData) object).close();
+      return;
+    }
+    HttpData data = (HttpData) object;
+    try {
+      if (unzipper != null) data = unzip(data);
+      write(data);
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      onError(t);
+      return;
+    }
+    maybeRequest();
+  }
+
+  @Override public void onComplete() {
+    if (done) return;
+    bodyComplete = true;
+    try {
+      if (unzipper != null) {
+        write(unzip(null));
+      }
+      splitter.finish(this::acceptBatch);
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      onError(t);
+      return;
+    }
+    maybeSucceed();
+  }
+
+  /** Called by the request or, when a batch isn't accepted, the collector. */
+  @Override public void onError(Throwable t) {
+    if (done) return;
+    done = true;
+    subscription.cancel(); // stop reading the body, as the response already failed
+    if (unzipper != null) unzipper.abort();
+    recordMessage();
+    result.onError(t);
+  }
+
+  void maybeRequest() {
+    if (done || bodyComplete || requested || inFlight >= MAX_IN_FLIGHT_BATCHES) return;
+    requested = true;
+    subscription.request(1);
+  }
+
+  /** Responds once the body was read and all batches were stored. */
+  void maybeSucceed() {
+    if (done || !bodyComplete || inFlight > 0) return;
+    done = true;
+    if (bytes == 0) ZipkinHttpCollector.maybeLog("Empty POST body", ctx, headers);
+    recordMessage();
+    result.onSuccess(null);
+  }
+
+  /** The collector doesn't count spans in a batch, as metrics describe the whole message. */
+  void recordMessage() {
+    ZipkinHttpCollector.metrics.incrementBytes(bytes);
+    int spanCount = spans.get();
+    if (spanCount > 0) ZipkinHttpCollector.metrics.incrementSpans(spanCount);
+  }
+
+  /** Passes {@code null} to finish the stream. The input is released by the decoder. */
+  HttpData unzip(@Nullable HttpData compressed) {
+    try {
+      return compressed != null ? unzipper.decode(compressed) : unzipper.finish();
+    } catch (RuntimeException e) {
+      ZipkinHttpCollector.maybeLog("Malformed or oversized " + unzipper.encoding + " body", ctx,
+        headers);
+      throw e;
+    }
+  }
+
+  void write(HttpData data) {
+    try (HttpData content = data) {
+      bytes += content.length();
+      splitter.write(content.byteBuf(), this::acceptBatch);
+    }
+  }
+
+  void acceptBatch(ByteBuffer nioBuffer) {
+    if (done) return;
+    // Like the buffered path, only look at the first span for an unexpected format
+    SpanBytesDecoder unexpectedDecoder = batches++ == 0
+      ? ZipkinHttpCollector.testForUnexpectedFormat(decoder, nioBuffer) : null;
+    if (unexpectedDecoder != null) {
+      throw new IllegalArgumentException(
+        "Expected a " + decoder + " encoded list, but received: " + unexpectedDecoder + "\n");
+    }
+    executor.execute(new Batch(nioBuffer));
+    inFlight++;
+  }
+
+  /** Called on the event loop when a batch was stored or failed before it was scheduled. */
+  void onBatchDone(@Nullable Throwable error) {
+    inFlight--;
+    if (done) return;
+    if (error != null) { // the message is counted as dropped when the response fails
+      onError(error);
+    } else if (bodyComplete) {
+      maybeSucceed();
+    } else {
+      maybeRequest();
+    }
+  }
+
+  /** Decodes and stores a batch, running storage on the thread that decoded it. */
+  final class Batch implements Runnable, Executor, Callback<Void> {
+    final ByteBuffer nioBuffer;
+    volatile boolean scheduled;
+
+    Batch(ByteBuffer nioBuffer) {
+      this.nioBuffer = nioBuffer;
+    }
+
+    @Override public void run() {
+      collector.acceptMessagePart(nioBuffer, this::decode, this, this, true);
+    }
+
+    List<Span> decode(ByteBuffer encoded) {
+      List<Span> result = decoder.decodeList(encoded);
+      spans.addAndGet(result.size());
+      return result;
+    }
+
+    /** Called with the storage task, as we are already off the event loop. */
+    @Override public void execute(Runnable command) {
+      scheduled = true;
+      command.run();
+    }
+
+    @Override public void onSuccess(Void value) {
+      ctx.eventLoop().execute(() -> onBatchDone(null));
+    }
+
+    /** Storage errors were already counted and logged, so only fail on decode errors. */
+    @Override public void onError(Throwable t) {
+      if (scheduled) {
+        onSuccess(null);
+        return;
+      }
+      ctx.eventLoop().execute(() -> onBatchDone(t));
+    }
+  }
+}
@@ -30,11 +30,13 @@ import java.time.Duration;
 import java.util.Optional;
 import java.util.function.Function;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
 import zipkin2.server.internal.health.ZipkinHealthController;
 import zipkin2.server.internal.prometheus.ZipkinMetricsController;
+import zipkin2.server.internal.throttle.QueryThrottle;
 
 @Configuration(proxyBeanMethods = false)
 public class ZipkinHttpConfiguration {
@@ -48,13 +50,17 @@ public class ZipkinHttpConfiguration {
     Optional<ZipkinMetricsController> metricsController,
     Optional<MeterRegistry> meterRegistry,
     Optional<CollectorRegistry> collectorRegistry,
+    Optional<QueryThrottle> queryThrottle,
     @Value("${zipkin.query.timeout:11s}") Duration queryTimeout) {
     return sb -> {
       httpQuery.ifPresent(h -> {
+        // The timeout is set first, so that it includes any time waiting for the throttle.
         Function<HttpService, HttpService>
           timeoutDecorator = service -> (ctx, req) -> {
           ctx.setRequestTimeout(queryTimeout);
-          return service.serve(ctx, req);
+          return queryThrottle.isPresent()
+            ? queryThrottle.get().serve(service, ctx, req)
+            : service.serve(ctx, req);
         };
         sb.annotatedService(httpQuery.get(), timeoutDecorator);
         sb.annotatedService("/zipkin", httpQuery.get(), timeoutDecorator); // For UI.
@@ -83,6 +89,14 @@ public class ZipkinHttpConfiguration {
     };
   }
 
+  @Bean @ConditionalOnProperty(value = "zipkin.query.throttle.enabled", havingValue = "true")
+  QueryThrottle queryThrottle(MeterRegistry registry,
+    @Value("${zipkin.query.throttle.min-concurrency:5}") int minConcurrency,
+    @Value("${zipkin.query.throttle.max-concurrency:50}") int maxConcurrency,
+    @Value("${zipkin.query.throttle.max-queue-size:50}") int maxQueueSize) {
+    return new QueryThrottle(registry, minConcurrency, maxConcurrency, maxQueueSize);
+  }
+
   /** Configures the server at the last because of the specified {@link Order} annotation. */
   @Order @Bean ArmeriaServerConfigurator corsConfigurator(
     @Value("${zipkin.query.allowed-origins:*}") String allowedOrigins) {
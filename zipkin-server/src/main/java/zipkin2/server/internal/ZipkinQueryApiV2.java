@@ -21,7 +21,6 @@ import com.linecorp.armeria.common.MediaType;
 import com.linecorp.armeria.common.ResponseHeaders;
 import com.linecorp.armeria.common.ResponseHeadersBuilder;
 import com.linecorp.armeria.server.ServiceRequestContext;
-import com.linecorp.armeria.server.annotation.Blocking;
 import com.linecorp.armeria.server.annotation.Default;
 import com.linecorp.armeria.server.annotation.ExceptionHandler;
 import com.linecorp.armeria.server.annotation.Get;
@@ -37,6 +36,9 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import zipkin2.Call;
@@ -50,7 +52,10 @@ import zipkin2.storage.StorageComponent;
 import static com.linecorp.armeria.common.HttpHeaderNames.CACHE_CONTROL;
 import static com.linecorp.armeria.common.HttpStatus.BAD_REQUEST;
 import static com.linecorp.armeria.common.HttpStatus.NOT_FOUND;
+import static com.linecorp.armeria.common.HttpStatus.SERVICE_UNAVAILABLE;
 import static com.linecorp.armeria.common.MediaType.ANY_TEXT_TYPE;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static zipkin2.Call.propagateIfFatal;
 
 @ConditionalOnProperty(name = "zipkin.query.enabled", matchIfMissing = true)
 @ExceptionHandler(BodyIsExceptionMessage.class)
@@ -64,17 +69,20 @@ public class ZipkinQueryApiV2 {
    */
   final int namesMaxAge;
   final List<String> autocompleteKeys;
+  final Bulkheads bulkheads;
 
   volatile int serviceCount; // used as a threshold to start returning cache-control headers
 
   ZipkinQueryApiV2(
     StorageComponent storage,
+    Bulkheads bulkheads,
     @Value("${zipkin.storage.type:mem}") String storageType,
     @Value("${zipkin.query.lookback:86400000}") long defaultLookback, // 1 day in millis
     @Value("${zipkin.query.names-max-age:300}") int namesMaxAge, // 5 minutes
     @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys
   ) {
     this.storage = storage;
+    this.bulkheads = bulkheads;
     this.storageType = storageType;
     this.defaultLookback = defaultLookback;
     this.namesMaxAge = namesMaxAge;
@@ -82,45 +90,46 @@ public class ZipkinQueryApiV2 {
   }
 
   @Get("/api/v2/dependencies")
-  @Blocking
-  public AggregatedHttpResponse getDependencies(
+  public CompletableFuture<AggregatedHttpResponse> getDependencies(
     @Param("endTs") long endTs,
-    @Param("lookback") Optional<Long> lookback) throws IOException {
-    Call<List<DependencyLink>> call =
-      storage.spanStore().getDependencies(endTs, lookback.orElse(defaultLookback));
-    return jsonResponse(DependencyLinkBytesEncoder.JSON_V1.encodeList(call.execute()));
+    @Param("lookback") Optional<Long> lookback, ServiceRequestContext ctx) {
+    return query(ctx, () -> {
+      Call<List<DependencyLink>> call =
+        storage.spanStore().getDependencies(endTs, lookback.orElse(defaultLookback));
+      return jsonResponse(DependencyLinkBytesEncoder.JSON_V1.encodeList(call.execute()));
+    });
   }
 
   @Get("/api/v2/services")
-  @Blocking
-  public AggregatedHttpResponse getServiceNames(ServiceRequestContext ctx) throws IOException {
-    List<String> serviceNames = storage.serviceAndSpanNames().getServiceNames().execute();
-    serviceCount = serviceNames.size();
-    return maybeCacheNames(serviceCount > 3, serviceNames, ctx.alloc());
+  public CompletableFuture<AggregatedHttpResponse> getServiceNames(ServiceRequestContext ctx) {
+    return query(ctx, () -> {
+      List<String> serviceNames = storage.serviceAndSpanNames().getServiceNames().execute();
+      serviceCount = serviceNames.size();
+      return maybeCacheNames(serviceCount > 3, serviceNames, ctx.alloc());
+    });
   }
 
   @Get("/api/v2/spans")
-  @Blocking
-  public AggregatedHttpResponse getSpanNames(
-    @Param("serviceName") String serviceName, ServiceRequestContext ctx)
-    throws IOException {
-    List<String> spanNames = storage.serviceAndSpanNames().getSpanNames(serviceName).execute();
-    return maybeCacheNames(serviceCount > 3, spanNames, ctx.alloc());
+  public CompletableFuture<AggregatedHttpResponse> getSpanNames(
+    @Param("serviceName") String serviceName, ServiceRequestContext ctx) {
+    return query(ctx, () -> {
+      List<String> spanNames = storage.serviceAndSpanNames().getSpanNames(serviceName).execute();
+      return maybeCacheNames(serviceCount > 3, spanNames, ctx.alloc());
+    });
   }
 
   @Get("/api/v2/remoteServices")
-  @Blocking
-  public AggregatedHttpResponse getRemoteServiceNames(
-    @Param("serviceName") String serviceName, ServiceRequestContext ctx)
-    throws IOException {
-    List<String> remoteServiceNames =
-      storage.serviceAndSpanNames().getRemoteServiceNames(serviceName).execute();
-    return maybeCacheNames(serviceCount > 3, remoteServiceNames, ctx.alloc());
+  public CompletableFuture<AggregatedHttpResponse> getRemoteServiceNames(
+    @Param("serviceName") String serviceName, ServiceRequestContext ctx) {
+    return query(ctx, () -> {
+      List<String> remoteServiceNames =
+        storage.serviceAndSpanNames().getRemoteServiceNames(serviceName).execute();
+      return maybeCacheNames(serviceCount > 3, remoteServiceNames, ctx.alloc());
+    });
   }
 
   @Get("/api/v2/traces")
-  @Blocking
-  public AggregatedHttpResponse getTraces(
+  public CompletableFuture<AggregatedHttpResponse> getTraces(
     @Param("serviceName") Optional<String> serviceName,
     @Param("remoteServiceName") Optional<String> remoteServiceName,
     @Param("spanName") Optional<String> spanName,
@@ -129,8 +138,8 @@ public class ZipkinQueryApiV2 {
     @Param("maxDuration") Optional<Long> maxDuration,
     @Param("endTs") Optional<Long> endTs,
     @Param("lookback") Optional<Long> lookback,
-    @Default("10") @Param("limit") int limit)
-    throws IOException {
+    @Default("10") @Param("limit") int limit,
+    ServiceRequestContext ctx) {
     QueryRequest queryRequest =
       QueryRequest.newBuilder()
         .serviceName(serviceName.orElse(null))
@@ -144,42 +153,79 @@ public class ZipkinQueryApiV2 {
         .limit(limit)
         .build();
 
-    List<List<Span>> traces = storage.spanStore().getTraces(queryRequest).execute();
-    return jsonResponse(writeTraces(SpanBytesEncoder.JSON_V2, traces));
+    return query(ctx, () -> {
+      List<List<Span>> traces = storage.spanStore().getTraces(queryRequest).execute();
+      return jsonResponse(writeTraces(SpanBytesEncoder.JSON_V2, traces));
+    });
   }
 
   @Get("/api/v2/trace/{traceId}")
-  @Blocking
-  public AggregatedHttpResponse getTrace(@Param("traceId") String traceId) throws IOException {
-    traceId = traceId != null ? traceId.trim() : null;
-    traceId = Span.normalizeTraceId(traceId);
-    List<Span> trace = storage.traces().getTrace(traceId).execute();
-    if (trace.isEmpty()) {
-      return AggregatedHttpResponse.of(NOT_FOUND, ANY_TEXT_TYPE, traceId + " not found");
-    }
-    return jsonResponse(SpanBytesEncoder.JSON_V2.encodeList(trace));
+  public CompletableFuture<AggregatedHttpResponse> getTrace(@Param("traceId") String traceId,
+    ServiceRequestContext ctx) {
+    String normalized = Span.normalizeTraceId(traceId != null ? traceId.trim() : null);
+    return query(ctx, () -> {
+      List<Span> trace = storage.traces().getTrace(normalized).execute();
+      if (trace.isEmpty()) {
+        return AggregatedHttpResponse.of(NOT_FOUND, ANY_TEXT_TYPE, normalized + " not found");
+      }
+      return jsonResponse(SpanBytesEncoder.JSON_V2.encodeList(trace));
+    });
   }
 
   @Get("/api/v2/traceMany")
-  @Blocking
-  public AggregatedHttpResponse getTraces(@Param("traceIds") String traceIds) throws IOException {
+  public CompletableFuture<AggregatedHttpResponse> getTraces(@Param("traceIds") String traceIds,
+    ServiceRequestContext ctx) {
     if (traceIds.isEmpty()) {
-      return AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "traceIds parameter is empty");
+      return completedFuture(
+        AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "traceIds parameter is empty"));
     }
 
     Set<String> normalized = new LinkedHashSet<>();
     for (String traceId : traceIds.split(",", 1000)) {
       if (normalized.add(Span.normalizeTraceId(traceId))) continue;
-      return AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "redundant traceId: " + traceId);
+      return completedFuture(
+        AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE, "redundant traceId: " + traceId));
     }
 
     if (normalized.size() == 1) {
-      return AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE,
-        "Use /api/v2/trace/{traceId} endpoint to retrieve a single trace");
+      return completedFuture(AggregatedHttpResponse.of(BAD_REQUEST, ANY_TEXT_TYPE,
+        "Use /api/v2/trace/{traceId} endpoint to retrieve a single trace"));
     }
 
-    List<List<Span>> traces = storage.traces().getTraces(normalized).execute();
-    return jsonResponse(writeTraces(SpanBytesEncoder.JSON_V2, traces));
+    return query(ctx, () -> {
+      List<List<Span>> traces = storage.traces().getTraces(normalized).execute();
+      return jsonResponse(writeTraces(SpanBytesEncoder.JSON_V2, traces));
+    });
+  }
+
+  interface Query {
+    AggregatedHttpResponse execute() throws IOException;
+  }
+
+  /**
+   * Storage calls block, so run them on the query bulkhead. A full queue responds with 503, which
+   * clients know to retry later.
+   */
+  static CompletableFuture<AggregatedHttpResponse> query(Executor executor, Query query) {
+    CompletableFuture<AggregatedHttpResponse> result = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          result.complete(query.execute());
+        } catch (Throwable t) {
+          propagateIfFatal(t);
+          result.completeExceptionally(t);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.complete(AggregatedHttpResponse.of(SERVICE_UNAVAILABLE, ANY_TEXT_TYPE,
+        "Too many queries waiting for storage"));
+    }
+    return result;
+  }
+
+  CompletableFuture<AggregatedHttpResponse> query(ServiceRequestContext ctx, Query query) {
+    return query(bulkheads.query(ctx), query);
   }
 
   static AggregatedHttpResponse jsonResponse(byte[] body) {
@@ -189,17 +235,19 @@ public class ZipkinQueryApiV2 {
   }
 
   @Get("/api/v2/autocompleteKeys")
-  @Blocking
-  public AggregatedHttpResponse getAutocompleteKeys(ServiceRequestContext ctx) {
-    return maybeCacheNames(true, autocompleteKeys, ctx.alloc());
+  public CompletableFuture<AggregatedHttpResponse> getAutocompleteKeys(
+    ServiceRequestContext ctx) {
+    // Keys are configured, so there is no need to wait for a thread of the query bulkhead
+    return CompletableFuture.completedFuture(maybeCacheNames(true, autocompleteKeys, ctx.alloc()));
   }
 
   @Get("/api/v2/autocompleteValues")
-  @Blocking
-  public AggregatedHttpResponse getAutocompleteValues(
-    @Param("key") String key, ServiceRequestContext ctx) throws IOException {
-    List<String> values = storage.autocompleteTags().getValues(key).execute();
-    return maybeCacheNames(values.size() > 3, values, ctx.alloc());
+  public CompletableFuture<AggregatedHttpResponse> getAutocompleteValues(
+    @Param("key") String key, ServiceRequestContext ctx) {
+    return query(ctx, () -> {
+      List<String> values = storage.autocompleteTags().getValues(key).execute();
+      return maybeCacheNames(values.size() > 3, values, ctx.alloc());
+    });
   }
 
   /**
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.file.Paths;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import zipkin2.collector.DiskSpool;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Spools batches the HTTP and gRPC collectors could not store to local disk, and replays them once
+ * storage is healthy. Message-based transports, like Kafka, already retain data in their broker, so
+ * they do not use this.
+ */
+@ConditionalOnProperty(name = "zipkin.collector.spool.enabled")
+class ZipkinSpoolConfiguration {
+
+  @Bean(destroyMethod = "close") DiskSpool diskSpool(StorageComponent storage,
+    MeterRegistry registry,
+    @Value("${zipkin.collector.spool.directory}") String directory,
+    @Value("${zipkin.collector.spool.max-bytes:1073741824}") long maxBytes,
+    @Value("${zipkin.collector.spool.segment-bytes:67108864}") int segmentBytes,
+    @Value("${zipkin.collector.spool.replay-rate:100}") int replayRate) {
+    DiskSpool spool = DiskSpool.newBuilder(Paths.get(directory))
+      .storage(storage)
+      .maxBytes(maxBytes)
+      .segmentBytes(segmentBytes)
+      .replayMessagesPerSecond(replayRate)
+      .build();
+
+    Gauge.builder("zipkin_collector.spool.bytes", spool, DiskSpool::spooledBytes)
+      .description("bytes spooled to disk, waiting to be replayed into storage")
+      .baseUnit("bytes")
+      .register(registry);
+    Gauge.builder("zipkin_collector.spool.messages", spool, DiskSpool::spooledMessages)
+      .description("messages spooled to disk, waiting to be replayed into storage")
+      .register(registry);
+    FunctionCounter.builder("zipkin_collector.spool.replayed_messages", spool,
+      DiskSpool::replayedMessages)
+      .description("cumulative amount of spooled messages replayed into storage")
+      .register(registry);
+    FunctionCounter.builder("zipkin_collector.spool.replayed_spans", spool,
+      DiskSpool::replayedSpans)
+      .description("cumulative amount of spooled spans replayed into storage")
+      .register(registry);
+    FunctionCounter.builder("zipkin_collector.spool.dropped_spans", spool,
+      DiskSpool::droppedSpans)
+      .description("cumulative amount of spooled spans skipped as storage repeatedly rejected them")
+      .register(registry);
+    return spool.start();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.spring.ArmeriaServerConfigurator;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * Replaces Armeria's blocking task executor with a {@link ThreadPerTaskExecutor}, which uses virtual
+ * threads on JRE 21+ and otherwise platform threads started on demand. This covers all code that
+ * hops off the event loop to call storage: {@code @Blocking} query handlers, the HTTP and gRPC
+ * collectors and the health check, all of which keep trace context via {@link
+ * com.linecorp.armeria.server.ServiceRequestContext#blockingTaskExecutor()}.
+ *
+ * <p>Storage that has its own executor, such as MySQL, keeps using it.
+ */
+@ConditionalOnProperty(name = "zipkin.blocking.virtual-threads", havingValue = "true")
+class ZipkinVirtualThreadsConfiguration {
+
+  @Bean(destroyMethod = "shutdown") ThreadPerTaskExecutor blockingTaskExecutor(
+    MeterRegistry registry,
+    @Value("${zipkin.blocking.max-concurrency:1000}") int maxConcurrency) {
+    ThreadPerTaskExecutor executor = ThreadPerTaskExecutor.create("zipkin-blocking-", maxConcurrency);
+    Gauge.builder("zipkin_blocking.active", executor, ThreadPerTaskExecutor::activeCount)
+      .description("count of blocking tasks running")
+      .register(registry);
+    Gauge.builder("zipkin_blocking.pending", executor, ThreadPerTaskExecutor::pendingCount)
+      .description("count of blocking tasks waiting for a permit")
+      .register(registry);
+    return executor;
+  }
+
+  @Bean ArmeriaServerConfigurator blockingTaskExecutorConfigurator(
+    ThreadPerTaskExecutor blockingTaskExecutor) {
+    return sb -> sb.blockingTaskExecutor(blockingTaskExecutor, false); // Spring shuts it down
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.github.luben.zstd.ZstdDirectBufferDecompressingStream;
+import com.github.luben.zstd.util.Native;
+import com.linecorp.armeria.common.ContentTooLargeException;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.encoding.StreamDecoder;
+import com.linecorp.armeria.common.encoding.StreamDecoderFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import zipkin2.internal.Nullable;
+
+/**
+ * Decompresses zstd frames as they arrive. This uses zstd-jni, which is optional as it includes
+ * native code. Unlike the other decoders, output is checked against the limit as it is produced,
+ * as zstd can expand a small slice of input much more than deflate can.
+ *
+ * <p>The native stream is released by {@link #finish()}, or by {@link #close()} when the body
+ * won't be finished.
+ */
+final class ZstdStreamDecoder implements StreamDecoder, AutoCloseable {
+  static final int INPUT_BYTES = 2 * RequestDecompressor.SLICE_BYTES;
+  static final int OUTPUT_BYTES = 64 * 1024;
+
+  /** Output is copied out before returning, so the native buffer is reused by a thread. */
+  static final ThreadLocal<ByteBuffer> OUTPUT =
+    ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(OUTPUT_BYTES));
+
+  /** Returns false when zstd-jni isn't on the classpath, or can't load for this platform. */
+  static boolean isAvailable() {
+    try {
+      Native.load();
+      return true;
+    } catch (LinkageError | RuntimeException e) {
+      return false;
+    }
+  }
+
+  static StreamDecoderFactory factory(int maxBytes) {
+    return new StreamDecoderFactory() {
+      @Override public String encodingHeaderValue() {
+        return "zstd";
+      }
+
+      @Override public StreamDecoder newDecoder(ByteBufAllocator alloc) {
+        return new ZstdStreamDecoder(alloc, maxBytes);
+      }
+
+      @Override public String toString() {
+        return "zstd";
+      }
+    };
+  }
+
+  final ByteBufAllocator alloc;
+  final int maxBytes;
+  /** Holds input not yet consumed by the stream, which reads it between position and limit. */
+  final ByteBuffer input = (ByteBuffer) ByteBuffer.allocateDirect(INPUT_BYTES).limit(0);
+  ZstdDirectBufferDecompressingStream stream = new ZstdDirectBufferDecompressingStream(input);
+  long decompressedBytes;
+  boolean hasInput;
+
+  ZstdStreamDecoder(ByteBufAllocator alloc, int maxBytes) {
+    this.alloc = alloc;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override public HttpData decode(HttpData compressed) {
+    ByteBuf out = null;
+    try (HttpData data = compressed) {
+      ByteBuf in = data.byteBuf();
+      hasInput |= in.isReadable();
+      while (in.isReadable()) {
+        input.compact(); // position is now the end of unconsumed input
+        int length = Math.min(input.remaining(), in.readableBytes());
+        input.limit(input.position() + length);
+        in.readBytes(input);
+        input.flip();
+        out = drain(out);
+      }
+      return out != null ? HttpData.wrap(out) : HttpData.empty();
+    } catch (IOException | RuntimeException e) {
+      if (out != null) out.release();
+      close();
+      throw e instanceof IOException ? new UncheckedIOException((IOException) e)
+        : (RuntimeException) e;
+    }
+  }
+
+  /**
+   * Input is consumed eagerly, so there's no more output to return.
+   *
+   * @throws DecompressionException if the last frame is incomplete
+   */
+  @Override public HttpData finish() {
+    try {
+      // The stream only ends when a frame ends with the input, so otherwise it was truncated
+      if (hasInput && stream.hasRemaining()) throw new DecompressionException("truncated");
+    } finally {
+      close();
+    }
+    return HttpData.empty();
+  }
+
+  @Nullable ByteBuf drain(@Nullable ByteBuf out) throws IOException {
+    boolean newStream = false;
+    while (true) {
+      int position = input.position();
+      ByteBuffer output = OUTPUT.get();
+      output.clear();
+      int produced = stream.read(output);
+      if (produced > 0) {
+        decompressedBytes += produced;
+        if (maxBytes > 0 && decompressedBytes > maxBytes) throw ContentTooLargeException.get();
+        output.flip();
+        if (out == null) out = alloc.buffer(produced);
+        out.writeBytes(output);
+        newStream = false;
+        continue; // there may be more output buffered
+      }
+      if (!input.hasRemaining()) return out; // wait for more input
+      if (input.position() != position) continue;
+      // The stream won't read past the end of a frame that ended with the input. Use a new stream
+      // for the next frame.
+      if (newStream) throw new IOException("zstd stream made no progress");
+      stream.close();
+      stream = new ZstdDirectBufferDecompressingStream(input);
+      newStream = true;
+    }
+  }
+
+  @Override public void close() {
+    try {
+      stream.close();
+    } catch (IOException ignored) {
+      // EmptyCatch ignored
+    }
+  }
+}
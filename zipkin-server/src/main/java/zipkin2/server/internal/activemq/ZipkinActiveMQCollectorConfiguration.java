@@ -13,6 +13,7 @@
  */
 package zipkin2.server.internal.activemq;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -22,6 +23,7 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.collector.activemq.ActiveMQCollector;
 import zipkin2.storage.StorageComponent;
 
@@ -36,8 +38,12 @@ public class ZipkinActiveMQCollectorConfiguration {
     ZipkinActiveMQCollectorProperties properties,
     CollectorSampler sampler,
     CollectorMetrics metrics,
-    StorageComponent storage) {
-    return properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    StorageComponent storage,
+    ObjectProvider<SpanProcessor> processors) {
+    ActiveMQCollector.Builder builder =
+      properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage);
+    processors.orderedStream().forEach(builder::addProcessor);
+    return builder.build();
   }
 
   /**
@@ -35,6 +35,12 @@ class ZipkinActiveMQCollectorProperties {
   /** Number of concurrent span consumers */
   private Integer concurrency;
 
+  /** Maximum number of messages stored together and committed after storage */
+  private Integer batchSize;
+
+  /** Number of messages the broker sends each consumer before they are acknowledged */
+  private Integer prefetch;
+
   /** Login user of the broker. */
   private String username;
 
@@ -81,6 +87,22 @@ class ZipkinActiveMQCollectorProperties {
     this.concurrency = concurrency;
   }
 
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public Integer getPrefetch() {
+    return prefetch;
+  }
+
+  public void setPrefetch(Integer prefetch) {
+    this.prefetch = prefetch;
+  }
+
   public String getUsername() {
     return username;
   }
@@ -100,6 +122,7 @@ class ZipkinActiveMQCollectorProperties {
   public ActiveMQCollector.Builder toBuilder() {
     final ActiveMQCollector.Builder result = ActiveMQCollector.builder();
     if (concurrency != null) result.concurrency(concurrency);
+    if (batchSize != null) result.batchSize(batchSize);
     if (queue != null) result.queue(queue);
 
     ActiveMQConnectionFactory connectionFactory;
@@ -110,6 +133,7 @@ class ZipkinActiveMQCollectorProperties {
     }
     connectionFactory.setClientIDPrefix(clientIdPrefix);
     connectionFactory.setConnectionIDPrefix(connectionIdPrefix);
+    if (prefetch != null) connectionFactory.getPrefetchPolicy().setQueuePrefetch(prefetch);
     result.connectionFactory(connectionFactory);
     return result;
   }
@@ -23,8 +23,11 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import zipkin2.Component;
+import zipkin2.server.internal.Bulkheads;
 import zipkin2.server.internal.JsonUtil;
 
 import static zipkin2.server.internal.ZipkinHttpConfiguration.MEDIA_TYPE_ACTUATOR;
@@ -33,9 +36,11 @@ import static zipkin2.server.internal.health.ComponentHealth.STATUS_UP;
 
 public class ZipkinHealthController {
   final List<Component> components;
+  final Bulkheads bulkheads;
 
-  ZipkinHealthController(List<Component> components) {
+  ZipkinHealthController(List<Component> components, Bulkheads bulkheads) {
     this.components = components;
+    this.bulkheads = bulkheads;
   }
 
   @Get("/actuator/health")
@@ -52,25 +57,26 @@ public class ZipkinHealthController {
   CompletableFuture<HttpResponse> health(ServiceRequestContext ctx, MediaType mediaType) {
     CompletableFuture<HttpResponse> responseFuture = new CompletableFuture<>();
     ctx.whenRequestTimingOut().handle((unused, unused2) -> {
-      try {
-        String healthJson = writeJsonError("Timed out computing health status. "
-          + "This often means your storage backend is unreachable.");
-        responseFuture.complete(newHealthResponse(STATUS_DOWN, mediaType, healthJson));
-      } catch (Throwable e) {
-        // Shouldn't happen since we serialize to an array.
-        responseFuture.completeExceptionally(e);
-      }
+      completeDown(responseFuture, mediaType, "Timed out computing health status. "
+        + "This often means your storage backend is unreachable.");
       return null;
     });
 
-    List<CompletableFuture<ComponentHealth>> futures =  components.stream()
-      .map(component ->
-        CompletableFuture.supplyAsync(
-          () -> ComponentHealth.ofComponent(component),
-          // Computing health of a component may block so we make sure to invoke in the blocking
-          // executor.
-          ctx.blockingTaskExecutor()))
-      .collect(Collectors.toList());
+    Executor executor = bulkheads.health(ctx);
+    List<CompletableFuture<ComponentHealth>> futures;
+    try {
+      futures = components.stream()
+        .map(component ->
+          CompletableFuture.supplyAsync(
+            () -> ComponentHealth.ofComponent(component),
+            // Computing health of a component may block so we make sure to invoke in the blocking
+            // executor.
+            executor))
+        .collect(Collectors.toList());
+    } catch (RejectedExecutionException e) { // the health bulkhead is full
+      completeDown(responseFuture, mediaType, "Too many health checks waiting for storage");
+      return responseFuture;
+    }
 
     CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
       .handle((unused, t) -> {
@@ -89,6 +95,17 @@ public class ZipkinHealthController {
     return responseFuture;
   }
 
+  static void completeDown(CompletableFuture<HttpResponse> responseFuture, MediaType mediaType,
+    String error) {
+    try {
+      String healthJson = writeJsonError(error);
+      responseFuture.complete(newHealthResponse(STATUS_DOWN, mediaType, healthJson));
+    } catch (Throwable e) {
+      // Shouldn't happen since we serialize to an array.
+      responseFuture.completeExceptionally(e);
+    }
+  }
+
   static HttpResponse newHealthResponse(List<ComponentHealth> healths, MediaType mediaType) {
 
     String overallStatus = STATUS_UP;
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.common.TopicPartition;
+import zipkin2.collector.kafka.KafkaConsumerMetrics;
+import zipkin2.server.internal.MicrometerCollectorMetrics;
+
+/**
+ * Follows the same naming convention as {@link MicrometerCollectorMetrics}. Lag is a gauge per
+ * partition, registered when the partition is first assigned and removed when it is revoked.
+ */
+final class MicrometerKafkaConsumerMetrics implements KafkaConsumerMetrics {
+  final MeterRegistry registry;
+  final Map<TopicPartition, Lag> lags = new ConcurrentHashMap<>();
+  final Timer pollToStoreDuration;
+  final Counter pauses;
+
+  MicrometerKafkaConsumerMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    pollToStoreDuration = Timer.builder("zipkin_collector.kafka.poll_to_store_duration")
+      .description("time from polling records until storage accepted their spans")
+      .publishPercentileHistogram()
+      .minimumExpectedValue(Duration.ofMillis(1))
+      .maximumExpectedValue(Duration.ofSeconds(30))
+      .register(registry);
+    pauses = Counter.builder("zipkin_collector.kafka.pauses")
+      .description("cumulative times consumption paused, as storage was behind or failed")
+      .register(registry);
+  }
+
+  @Override public void recordLag(TopicPartition partition, long lag) {
+    lags.computeIfAbsent(partition, Lag::new).value.set(lag);
+  }
+
+  @Override public void removeLag(TopicPartition partition) {
+    Lag lag = lags.remove(partition);
+    if (lag != null) registry.remove(lag.gauge);
+  }
+
+  @Override public void recordPollToStoreNanos(long nanos) {
+    pollToStoreDuration.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override public void incrementPauses() {
+    pauses.increment();
+  }
+
+  final class Lag {
+    final AtomicLong value = new AtomicLong();
+    final Gauge gauge;
+
+    Lag(TopicPartition partition) {
+      gauge = Gauge.builder("zipkin_collector.kafka.lag", value, AtomicLong::get)
+        .description("records in a partition after the position of the consumer")
+        .tag("topic", partition.topic())
+        .tag("partition", String.valueOf(partition.partition()))
+        .register(registry);
+    }
+  }
+}
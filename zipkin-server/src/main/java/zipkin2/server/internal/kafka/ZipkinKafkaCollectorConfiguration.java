@@ -13,6 +13,8 @@
  */
 package zipkin2.server.internal.kafka;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -22,6 +24,7 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.collector.kafka.KafkaCollector;
 import zipkin2.storage.StorageComponent;
 
@@ -39,8 +42,14 @@ public class ZipkinKafkaCollectorConfiguration { // makes simple type name uniqu
       ZipkinKafkaCollectorProperties properties,
       CollectorSampler sampler,
       CollectorMetrics metrics,
-      StorageComponent storage) {
-    return properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+      StorageComponent storage,
+      ObjectProvider<SpanProcessor> processors,
+      ObjectProvider<MeterRegistry> registry) {
+    KafkaCollector.Builder builder = properties.toBuilder();
+    builder.sampler(sampler).metrics(metrics).storage(storage);
+    registry.ifAvailable(r -> builder.consumerMetrics(new MicrometerKafkaConsumerMetrics(r)));
+    processors.orderedStream().forEach(builder::addProcessor);
+    return builder.build();
   }
   /**
    * This condition passes when {@link ZipkinKafkaCollectorProperties#getBootstrapServers()} is set
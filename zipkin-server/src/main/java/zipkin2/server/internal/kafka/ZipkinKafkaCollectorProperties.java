@@ -28,6 +28,10 @@ class ZipkinKafkaCollectorProperties {
   private String topic;
   /** Number of Kafka consumer threads to run. */
   private Integer streams;
+  /** Polls each consumer thread stores at the same time, before committing their offsets. */
+  private Integer maxPollsInFlight;
+  /** Threads that decode records, shared by consumer threads. 0 decodes on the consumer thread. */
+  private Integer decodeThreads;
   /** Additional Kafka consumer configuration. */
   private Map<String, String> overrides = new LinkedHashMap<>();
 
@@ -63,6 +67,22 @@ class ZipkinKafkaCollectorProperties {
     this.streams = streams;
   }
 
+  public Integer getMaxPollsInFlight() {
+    return maxPollsInFlight;
+  }
+
+  public void setMaxPollsInFlight(Integer maxPollsInFlight) {
+    this.maxPollsInFlight = maxPollsInFlight;
+  }
+
+  public Integer getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  public void setDecodeThreads(Integer decodeThreads) {
+    this.decodeThreads = decodeThreads;
+  }
+
   public Map<String, String> getOverrides() {
     return overrides;
   }
@@ -77,6 +97,8 @@ class ZipkinKafkaCollectorProperties {
     if (groupId != null) result.groupId(groupId);
     if (topic != null) result.topic(topic);
     if (streams != null) result.streams(streams);
+    if (maxPollsInFlight != null) result.maxPollsInFlight(maxPollsInFlight);
+    if (decodeThreads != null) result.decodeThreads(decodeThreads);
     if (overrides != null) result.overrides(overrides);
     return result;
   }
@@ -18,6 +18,7 @@ import java.util.concurrent.Executor;
 import javax.sql.DataSource;
 import org.jooq.ExecuteListenerProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
@@ -38,7 +39,8 @@ public class ZipkinMySQLStorageConfiguration {
   @Autowired(required = false) ZipkinMySQLStorageProperties mysql;
   @Autowired(required = false) ExecuteListenerProvider mysqlListener;
 
-  @Bean @ConditionalOnMissingBean
+  // By name, as other executors, such as the blocking task executor, aren't meant for MySQL
+  @Bean @ConditionalOnMissingBean(name = "mysqlExecutor")
   Executor mysqlExecutor() {
     ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
     executor.setThreadNamePrefix("ZipkinMySQLStorage-");
@@ -52,7 +54,7 @@ public class ZipkinMySQLStorageConfiguration {
   }
 
   @Bean StorageComponent storage(
-    Executor mysqlExecutor,
+    @Qualifier("mysqlExecutor") Executor mysqlExecutor,
     DataSource mysqlDataSource,
     @Value("${zipkin.storage.strict-trace-id:true}") boolean strictTraceId,
     @Value("${zipkin.storage.search-enabled:true}") boolean searchEnabled,
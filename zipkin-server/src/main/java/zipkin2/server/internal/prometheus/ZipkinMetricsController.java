@@ -25,16 +25,21 @@ import io.micrometer.core.instrument.MeterRegistry;
 import io.prometheus.client.CollectorRegistry;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Optional;
+import zipkin2.collector.ServiceCounters;
 import zipkin2.server.internal.JsonUtil;
 
 public class ZipkinMetricsController {
 
   final MeterRegistry meterRegistry;
   final CollectorRegistry collectorRegistry;
+  final Optional<ServiceCounters> serviceCounters;
 
-  ZipkinMetricsController(MeterRegistry meterRegistry, CollectorRegistry collectorRegistry) {
+  ZipkinMetricsController(MeterRegistry meterRegistry, CollectorRegistry collectorRegistry,
+    Optional<ServiceCounters> serviceCounters) {
     this.meterRegistry = meterRegistry;
     this.collectorRegistry = collectorRegistry;
+    this.serviceCounters = serviceCounters;
   }
 
   // Extracts Zipkin metrics to provide backward compatibility
@@ -61,4 +66,25 @@ public class ZipkinMetricsController {
     generator.flush(); // instead of using try/finally as extra indent causes lines to wrap
     return HttpResponse.of(HttpStatus.OK, MediaType.JSON, writer.toString());
   }
+
+  // Lists collector counts by service, with the noisiest services first
+  @Get("/metrics/services")
+  public HttpResponse fetchServiceMetrics() throws IOException {
+    if (!serviceCounters.isPresent()) return HttpResponse.of(HttpStatus.NOT_FOUND);
+
+    StringWriter writer = new StringWriter();
+    JsonGenerator generator = JsonUtil.createGenerator(writer);
+    generator.writeStartArray();
+    for (ServiceCounters.Counters counters : serviceCounters.get().list()) {
+      generator.writeStartObject();
+      generator.writeStringField("serviceName", counters.serviceName());
+      generator.writeNumberField("spans", counters.spans());
+      generator.writeNumberField("bytes", counters.bytes());
+      generator.writeNumberField("spansDropped", counters.spansDropped());
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+    generator.flush();
+    return HttpResponse.of(HttpStatus.OK, MediaType.JSON, writer.toString());
+  }
 }
@@ -16,6 +16,7 @@ package zipkin2.server.internal.rabbitmq;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -25,6 +26,7 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.collector.rabbitmq.RabbitMQCollector;
 import zipkin2.storage.StorageComponent;
 
@@ -39,9 +41,13 @@ public class ZipkinRabbitMQCollectorConfiguration {
       ZipkinRabbitMQCollectorProperties properties,
       CollectorSampler sampler,
       CollectorMetrics metrics,
-      StorageComponent storage)
+      StorageComponent storage,
+      ObjectProvider<SpanProcessor> processors)
       throws NoSuchAlgorithmException, KeyManagementException, URISyntaxException {
-    return properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    RabbitMQCollector.Builder builder =
+      properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage);
+    processors.orderedStream().forEach(builder::addProcessor);
+    return builder.build();
   }
   /**
    * This condition passes when {@link ZipkinRabbitMQCollectorProperties#getAddresses()} or {@link
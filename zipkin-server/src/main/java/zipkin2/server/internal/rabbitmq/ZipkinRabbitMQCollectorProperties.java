@@ -31,6 +31,8 @@ class ZipkinRabbitMQCollectorProperties {
   private List<String> addresses;
   /** Number of concurrent consumers */
   private Integer concurrency = 1;
+  /** Messages each consumer receives before acknowledging any. 0 acknowledges on delivery. */
+  private Integer prefetchCount;
   /** TCP connection timeout in milliseconds */
   private Integer connectionTimeout;
   /** RabbitMQ user password */
@@ -65,6 +67,14 @@ class ZipkinRabbitMQCollectorProperties {
     this.concurrency = concurrency;
   }
 
+  public Integer getPrefetchCount() {
+    return prefetchCount;
+  }
+
+  public void setPrefetchCount(Integer prefetchCount) {
+    this.prefetchCount = prefetchCount;
+  }
+
   public Integer getConnectionTimeout() {
     return connectionTimeout;
   }
@@ -127,6 +137,7 @@ class ZipkinRabbitMQCollectorProperties {
     final RabbitMQCollector.Builder result = RabbitMQCollector.builder();
     ConnectionFactory connectionFactory = new ConnectionFactory();
     if (concurrency != null) result.concurrency(concurrency);
+    if (prefetchCount != null) result.prefetchCount(prefetchCount);
     if (connectionTimeout != null) connectionFactory.setConnectionTimeout(connectionTimeout);
     if (queue != null) result.queue(queue);
 
@@ -13,12 +13,14 @@
  */
 package zipkin2.server.internal.scribe;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.SpanProcessor;
 import zipkin2.collector.scribe.ScribeCollector;
 import zipkin2.storage.StorageComponent;
 
@@ -35,15 +37,21 @@ public class ZipkinScribeCollectorConfiguration {
   ScribeCollector scribe(
     @Value("${zipkin.collector.scribe.category:zipkin}") String category,
     @Value("${zipkin.collector.scribe.port:9410}") int port,
+    @Value("${zipkin.collector.scribe.max-connections:0}") int maxConnections,
+    @Value("${zipkin.collector.scribe.max-in-flight-per-connection:128}") int maxInFlight,
     CollectorSampler sampler,
     CollectorMetrics metrics,
-    StorageComponent storage) {
-    return ScribeCollector.newBuilder()
+    StorageComponent storage,
+    ObjectProvider<SpanProcessor> processors) {
+    ScribeCollector.Builder builder = ScribeCollector.newBuilder()
       .category(category)
       .port(port)
+      .maxConnections(maxConnections)
+      .maxInFlightPerConnection(maxInFlight)
       .sampler(sampler)
       .metrics(metrics)
-      .storage(storage)
-      .build();
+      .storage(storage);
+    processors.orderedStream().forEach(builder::addProcessor);
+    return builder.build();
   }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Holds spans waiting for a storage permit as a PROTO3 encoded, pooled direct buffer. This is
+ * usually several times smaller than the decoded spans, and isn't on the heap. The spans are
+ * decoded and passed to the consumer when the call runs.
+ *
+ * <p>The buffer is released when the call runs or is canceled.
+ */
+final class EncodedSpansCall extends Call.Base<Void> {
+  static EncodedSpansCall create(SpanConsumer consumer, List<Span> spans, ByteBufAllocator alloc,
+    AtomicLong queuedBytes) {
+    byte[] encoded = SpanBytesEncoder.PROTO3.encodeList(spans);
+    ByteBuf buffer = alloc.directBuffer(encoded.length).writeBytes(encoded);
+    return new EncodedSpansCall(consumer, buffer, spans.size(), queuedBytes);
+  }
+
+  final SpanConsumer consumer;
+  final ByteBuf encoded;
+  final int spanCount;
+  final AtomicLong queuedBytes;
+  final AtomicBoolean released = new AtomicBoolean();
+  volatile Call<Void> accept; // set when decoded
+
+  EncodedSpansCall(SpanConsumer consumer, ByteBuf encoded, int spanCount, AtomicLong queuedBytes) {
+    this.consumer = consumer;
+    this.encoded = encoded;
+    this.spanCount = spanCount;
+    this.queuedBytes = queuedBytes;
+    queuedBytes.addAndGet(encoded.readableBytes());
+  }
+
+  @Override protected Void doExecute() throws IOException {
+    return decodeAndAccept().execute();
+  }
+
+  @Override protected void doEnqueue(Callback<Void> callback) {
+    Call<Void> accept;
+    try {
+      accept = decodeAndAccept();
+    } catch (RuntimeException | Error e) { // unexpected as we encoded it
+      propagateIfFatal(e);
+      callback.onError(e);
+      return;
+    }
+    accept.enqueue(callback);
+  }
+
+  /** Decodes and releases the buffer, or throws if already released by cancel. */
+  Call<Void> decodeAndAccept() {
+    if (!released.compareAndSet(false, true)) throw new IllegalStateException("Canceled");
+    List<Span> spans;
+    try {
+      spans = SpanBytesDecoder.PROTO3.decodeList(encoded.nioBuffer());
+    } finally {
+      release();
+    }
+    return accept = consumer.accept(spans);
+  }
+
+  @Override protected void doCancel() {
+    if (released.compareAndSet(false, true)) release();
+    Call<Void> accept = this.accept;
+    if (accept != null) accept.cancel();
+  }
+
+  void release() {
+    queuedBytes.addAndGet(-encoded.readableBytes());
+    encoded.release();
+  }
+
+  /** Clones share the buffer, so can only be made before this call runs. */
+  @Override public Call<Void> clone() {
+    if (released.get()) throw new IllegalStateException("spans were already released");
+    return new EncodedSpansCall(consumer, encoded.retainedDuplicate(), spanCount, queuedBytes);
+  }
+
+  @Override public String toString() {
+    return "EncodedSpansCall{spanCount=" + spanCount + ", bytes=" + encoded.readableBytes() + "}";
+  }
+}
@@ -14,9 +14,11 @@
 package zipkin2.server.internal.throttle;
 
 import com.netflix.concurrency.limits.limiter.AbstractLimiter;
+import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import zipkin2.server.internal.MicrometerCollectorMetrics;
 
 /** Follows the same naming convention as {@link MicrometerCollectorMetrics} */
@@ -36,6 +38,50 @@ final class MicrometerThrottleMetrics {
       .register(registryInstance);
   }
 
+  void bind(PermitDispatcher dispatcher) {
+    Gauge.builder("zipkin_storage.throttle.concurrency", () -> dispatcher.limit)
+      .description("number of permits for running storage requests")
+      .register(registryInstance);
+    Gauge.builder("zipkin_storage.throttle.queue_size", dispatcher::queueSize)
+      .description("number of items queued waiting for access to storage")
+      .register(registryInstance);
+  }
+
+  void bindQueuedBytes(AtomicLong queuedBytes) {
+    Gauge.builder("zipkin_storage.throttle.queued_bytes", queuedBytes::get)
+      .description("size of encoded spans waiting for access to storage")
+      .baseUnit("bytes")
+      .register(registryInstance);
+  }
+
+  void bind(PriorityLaneQueue queue) {
+    for (int lane = 0; lane < PriorityLaneQueue.LANE_NAMES.length; lane++) {
+      int index = lane;
+      String name = PriorityLaneQueue.LANE_NAMES[lane];
+      Gauge.builder("zipkin_storage.throttle.lane.queue_size", () -> queue.size(index))
+        .description("number of items in a lane waiting for access to storage")
+        .tag("lane", name)
+        .register(registryInstance);
+      FunctionCounter.builder("zipkin_storage.throttle.lane.rejections", queue,
+        q -> q.rejections(index))
+        .description("cumulative amount of items rejected because their lane was full")
+        .tag("lane", name)
+        .register(registryInstance);
+    }
+  }
+
+  void bind(QueryThrottle throttle) {
+    Gauge.builder("zipkin_query.throttle.concurrency", throttle.limiter::getLimit)
+      .description("number of query requests allowed to run at the same time")
+      .register(registryInstance);
+    Gauge.builder("zipkin_query.throttle.in_flight_requests", throttle.limiter::getInflight)
+      .description("number of query requests running")
+      .register(registryInstance);
+    Gauge.builder("zipkin_query.throttle.queue_size", throttle::queueSize)
+      .description("number of query requests waiting to run")
+      .register(registryInstance);
+  }
+
   void bind(AbstractLimiter limiter) {
     // This value should parallel (zipkin_storage.throttle.queue_size + zipkin_storage.throttle.concurrency)
     // It is tracked to make sure it doesn't perpetually increase.  If it does then we're not resolving LimitListeners.
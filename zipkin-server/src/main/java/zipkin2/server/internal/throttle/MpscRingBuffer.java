@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for many producers and a single consumer at a time. Each slot has a
+ * sequence number, which tells a producer if the slot is free and the consumer if it was written.
+ * Producers only contend on a compare-and-set of the producer index.
+ */
+final class MpscRingBuffer<E> {
+  final int mask;
+  final AtomicReferenceArray<E> elements;
+  final AtomicLongArray sequences;
+  final AtomicLong producerIndex = new AtomicLong();
+  volatile long consumerIndex; // only written by the consumer
+
+  /** The capacity is rounded up to a power of two. */
+  MpscRingBuffer(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    mask = size - 1;
+    elements = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) sequences.set(i, i);
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  /** Returns false if full. */
+  boolean offer(E element) {
+    if (element == null) throw new NullPointerException("element == null");
+    while (true) {
+      long index = producerIndex.get();
+      int slot = (int) index & mask;
+      long available = sequences.get(slot) - index;
+      if (available < 0) return false; // the consumer hasn't read this slot since the last lap
+      if (available == 0 && producerIndex.compareAndSet(index, index + 1)) {
+        elements.lazySet(slot, element);
+        sequences.set(slot, index + 1); // publishes the element to the consumer
+        return true;
+      }
+      // otherwise, another producer claimed the slot
+    }
+  }
+
+  /** Returns null if empty. Must not be called concurrently. */
+  E poll() {
+    long index = consumerIndex;
+    int slot = (int) index & mask;
+    if (sequences.get(slot) != index + 1) return null; // not yet written
+    E result = elements.get(slot);
+    elements.lazySet(slot, null);
+    sequences.set(slot, index + mask + 1); // free for the producer of the next lap
+    consumerIndex = index + 1;
+    return result;
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  int size() {
+    long size = producerIndex.get() - consumerIndex;
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+}
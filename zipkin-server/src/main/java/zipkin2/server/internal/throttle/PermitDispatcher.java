@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import zipkin2.Call;
+
+import static zipkin2.server.internal.throttle.ThrottledStorageComponent.STORAGE_THROTTLE_MAX_QUEUE_SIZE;
+
+/**
+ * Alternative to a {@link java.util.concurrent.ThreadPoolExecutor} for the throttle, which doesn't
+ * hand off a storage call to another thread, or block a thread until the call completes.
+ *
+ * <p>A task runs on the calling thread when a permit is available. Otherwise, it waits in a {@link
+ * MpscRingBuffer}, and runs on the thread that releases the next permit. A task must call {@link
+ * #release()} when its storage call completes, not when it returns. When storage calls are
+ * asynchronous, this means tasks run on the threads of the caller or the storage client. When they
+ * are synchronous, the thread completing a call keeps running waiting tasks, like a worker.
+ *
+ * <p>The count of permits is the current {@link com.netflix.concurrency.limits.Limit}, which is
+ * updated by {@link #accept(Integer)} instead of resizing a thread pool.
+ */
+final class PermitDispatcher implements Executor, Consumer<Integer> {
+  final MpscRingBuffer<Runnable> waiting;
+  final int maxQueueSize; // the ring's capacity is rounded up to a power of two
+  final AtomicInteger inFlight = new AtomicInteger();
+  final AtomicInteger drainers = new AtomicInteger(); // serializes the consumer of waiting
+  volatile int limit;
+  volatile boolean closed;
+
+  PermitDispatcher(int limit, int maxQueueSize) {
+    this.limit = limit;
+    this.maxQueueSize = maxQueueSize;
+    this.waiting = new MpscRingBuffer<>(Math.max(1, maxQueueSize));
+  }
+
+  /** Runs the task when there is a permit, or throws if the queue is full. */
+  @Override public void execute(Runnable task) {
+    if (closed) throw new RejectedExecutionException("closed");
+    // Only skip the queue when it is empty, so that waiting tasks run first.
+    if (waiting.isEmpty() && tryAcquire()) {
+      run(task);
+      return;
+    }
+    if (waiting.size() >= maxQueueSize || !waiting.offer(task)) {
+      throw STORAGE_THROTTLE_MAX_QUEUE_SIZE;
+    }
+    drain(); // in case a permit was released since it was checked
+  }
+
+  /** Called when a task's storage call completes. */
+  void release() {
+    inFlight.decrementAndGet();
+    drain();
+  }
+
+  /** Called when the limit changes */
+  @Override public void accept(Integer newLimit) {
+    limit = newLimit;
+    drain();
+  }
+
+  boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit) return false;
+      if (inFlight.compareAndSet(current, current + 1)) return true;
+    }
+  }
+
+  /**
+   * Runs waiting tasks while there are permits. Only one thread drains at a time: others increment
+   * {@link #drainers} so that the draining thread loops again. This also prevents recursion when a
+   * synchronous storage call releases its permit before its task returns.
+   */
+  void drain() {
+    if (drainers.getAndIncrement() != 0) return;
+    int missed = 1;
+    do {
+      while (!closed && !waiting.isEmpty() && tryAcquire()) {
+        Runnable next = waiting.poll();
+        if (next == null) { // a producer claimed the slot but hasn't written it yet
+          inFlight.decrementAndGet();
+          break;
+        }
+        run(next);
+      }
+      missed = drainers.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  /** Tasks handle their own errors, but this prevents one from breaking the drain loop. */
+  static void run(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+    }
+  }
+
+  int queueSize() {
+    return waiting.size();
+  }
+
+  /** Like {@link java.util.concurrent.ThreadPoolExecutor#shutdownNow()}, waiting tasks are dropped */
+  void close() {
+    closed = true;
+  }
+
+  @Override public String toString() {
+    return "PermitDispatcher{limit=" + limit + ", inFlight=" + inFlight.get() + "}";
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import zipkin2.Span;
+
+/**
+ * Decides which span batches go in the priority lane of the {@link ThrottledStorageComponent}.
+ * Under overload, batches in the default lane are rejected first.
+ *
+ * <p>Register a bean of this type to replace the {@link #create(Collection) default}.
+ */
+public interface PriorityClassifier {
+  /**
+   * Returns a classifier that prioritizes a batch with any span that is debug, has an "error" tag,
+   * or whose local service name is one of the given services.
+   */
+  static PriorityClassifier create(Collection<String> services) {
+    return new DefaultPriorityClassifier(services);
+  }
+
+  boolean isPriority(List<Span> spans);
+}
+
+final class DefaultPriorityClassifier implements PriorityClassifier {
+  final Set<String> services;
+
+  DefaultPriorityClassifier(Collection<String> services) {
+    this.services = new LinkedHashSet<>(services);
+  }
+
+  @Override public boolean isPriority(List<Span> spans) {
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      if (Boolean.TRUE.equals(span.debug())) return true;
+      if (span.tags().containsKey("error")) return true;
+      if (!services.isEmpty() && services.contains(span.localServiceName())) return true;
+    }
+    return false;
+  }
+
+  @Override public String toString() {
+    return "DefaultPriorityClassifier{services=" + services + "}";
+  }
+}
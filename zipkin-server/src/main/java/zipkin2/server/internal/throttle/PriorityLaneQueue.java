@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of the throttle's executor with separately bounded lanes, so that a full default lane
+ * doesn't reject priority work. Tasks are placed in a lane by {@link #executor(Executor, int)}.
+ *
+ * <p>Dequeue is weighted: up to {@link #priorityWeight} priority tasks are taken for each default
+ * task, so that the default lane isn't starved.
+ */
+final class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+  static final int PRIORITY = 0, DEFAULT = 1;
+  static final String[] LANE_NAMES = {"priority", "default"};
+
+  /** Returns an executor that places tasks in the given lane of this queue. */
+  static Executor executor(Executor delegate, int lane) {
+    return command -> delegate.execute(new LaneTask(lane, command));
+  }
+
+  final ArrayDeque<Runnable>[] lanes;
+  final int[] capacities;
+  final AtomicLong[] rejections = {new AtomicLong(), new AtomicLong()};
+  final int priorityWeight;
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition notEmpty = lock.newCondition();
+  int priorityStreak; // guarded by lock
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  PriorityLaneQueue(int priorityCapacity, int defaultCapacity, int priorityWeight) {
+    if (priorityCapacity < 1) throw new IllegalArgumentException("priorityCapacity < 1");
+    if (defaultCapacity < 1) throw new IllegalArgumentException("defaultCapacity < 1");
+    if (priorityWeight < 1) throw new IllegalArgumentException("priorityWeight < 1");
+    this.lanes = new ArrayDeque[] {new ArrayDeque<>(), new ArrayDeque<>()};
+    this.capacities = new int[] {priorityCapacity, defaultCapacity};
+    this.priorityWeight = priorityWeight;
+  }
+
+  static int lane(Object task) {
+    return task instanceof LaneTask ? ((LaneTask) task).lane : DEFAULT;
+  }
+
+  int size(int lane) {
+    lock.lock();
+    try {
+      return lanes[lane].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long rejections(int lane) {
+    return rejections[lane].get();
+  }
+
+  @Override public boolean offer(Runnable task) {
+    if (task == null) throw new NullPointerException("task == null");
+    int lane = lane(task);
+    lock.lock();
+    try {
+      if (lanes[lane].size() >= capacities[lane]) {
+        rejections[lane].incrementAndGet();
+        return false;
+      }
+      lanes[lane].add(task);
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Doesn't wait for capacity: the throttle rejects instead of blocking callers. */
+  @Override public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+    return offer(task);
+  }
+
+  @Override public void put(Runnable task) {
+    if (!offer(task)) throw new IllegalStateException("lane full");
+  }
+
+  @Override public Runnable poll() {
+    lock.lock();
+    try {
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public Runnable take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      Runnable result;
+      while ((result = dequeue()) == null) notEmpty.await();
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      Runnable result;
+      while ((result = dequeue()) == null) {
+        if (nanos <= 0L) return null;
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Call while holding the lock. */
+  Runnable dequeue() {
+    ArrayDeque<Runnable> priority = lanes[PRIORITY], normal = lanes[DEFAULT];
+    if (!priority.isEmpty() && (priorityStreak < priorityWeight || normal.isEmpty())) {
+      priorityStreak++;
+      return priority.poll();
+    }
+    priorityStreak = 0;
+    return normal.poll();
+  }
+
+  @Override public Runnable peek() {
+    lock.lock();
+    try {
+      Runnable result = lanes[PRIORITY].peek();
+      return result != null ? result : lanes[DEFAULT].peek();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public boolean remove(Object task) {
+    lock.lock();
+    try {
+      return lanes[lane(task)].remove(task);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int size() {
+    lock.lock();
+    try {
+      return lanes[PRIORITY].size() + lanes[DEFAULT].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int remainingCapacity() {
+    lock.lock();
+    try {
+      return capacities[PRIORITY] - lanes[PRIORITY].size()
+        + capacities[DEFAULT] - lanes[DEFAULT].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    if (c == this) throw new IllegalArgumentException("c == this");
+    lock.lock();
+    try {
+      int count = 0;
+      for (Runnable next; count < maxElements && (next = dequeue()) != null; count++) c.add(next);
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns a snapshot, in priority order. */
+  @Override public Iterator<Runnable> iterator() {
+    lock.lock();
+    try {
+      List<Runnable> result = new ArrayList<>(lanes[PRIORITY]);
+      result.addAll(lanes[DEFAULT]);
+      return result.iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  static final class LaneTask implements Runnable {
+    final int lane;
+    final Runnable delegate;
+
+    LaneTask(int lane, Runnable delegate) {
+      this.lane = lane;
+      this.delegate = delegate;
+    }
+
+    @Override public void run() {
+      delegate.run();
+    }
+
+    @Override public String toString() {
+      return delegate.toString();
+    }
+  }
+}
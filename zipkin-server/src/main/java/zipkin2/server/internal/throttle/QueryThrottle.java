@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.logging.RequestLog;
+import com.linecorp.armeria.server.DecoratingHttpServiceFunction;
+import com.linecorp.armeria.server.HttpService;
+import com.linecorp.armeria.server.ServiceRequestContext;
+import com.netflix.concurrency.limits.Limit;
+import com.netflix.concurrency.limits.Limiter.Listener;
+import com.netflix.concurrency.limits.limit.Gradient2Limit;
+import com.netflix.concurrency.limits.limiter.AbstractLimiter;
+import com.netflix.concurrency.limits.limiter.SimpleLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits concurrent requests to the query API, separately from the {@link
+ * ThrottledStorageComponent} limit of writes. Otherwise, a burst of searches, each fanning out into
+ * many storage requests, can overload storage and starve ingestion.
+ *
+ * <p>The limit adapts to the latency of queries, like the write throttle. Requests over the limit
+ * wait in a bounded queue, without using a thread. When that is full, the response is 503, instead
+ * of a blocking task that would wait for storage.
+ */
+public final class QueryThrottle implements DecoratingHttpServiceFunction {
+  final AbstractLimiter<Void> limiter;
+  final int maxQueueSize;
+  final Queue<Waiting> waiting = new ConcurrentLinkedQueue<>();
+  final AtomicInteger waitingCount = new AtomicInteger();
+  final Counter requests, requestsRejected, requestsDropped;
+
+  public QueryThrottle(MeterRegistry registry, int minConcurrency, int maxConcurrency,
+    int maxQueueSize) {
+    if (maxQueueSize < 0) throw new IllegalArgumentException("maxQueueSize < 0");
+    this.maxQueueSize = maxQueueSize;
+    Limit limit = Gradient2Limit.newBuilder()
+      .minLimit(minConcurrency)
+      .initialLimit(minConcurrency)
+      .maxConcurrency(maxConcurrency)
+      .queueSize(0)
+      .build();
+    this.limiter = SimpleLimiter.newBuilder().limit(limit).build();
+
+    requests = Counter.builder("zipkin_query.throttle.requests")
+      .description("cumulative amount of query requests")
+      .register(registry);
+    requestsRejected = Counter.builder("zipkin_query.throttle.requests_rejected")
+      .description("cumulative amount of query requests rejected because the queue was full")
+      .register(registry);
+    requestsDropped = Counter.builder("zipkin_query.throttle.requests_dropped")
+      .description("cumulative amount of query requests that failed due to storage capacity")
+      .register(registry);
+    new MicrometerThrottleMetrics(registry).bind(this);
+  }
+
+  @SuppressWarnings("FutureReturnValueIgnored") // no known action to take following .thenRun
+  @Override public HttpResponse serve(HttpService delegate, ServiceRequestContext ctx,
+    HttpRequest req) throws Exception {
+    requests.increment();
+    Optional<Listener> listener = limiter.acquire(null);
+    if (listener.isPresent()) return serve(delegate, ctx, req, listener.get());
+
+    if (waitingCount.incrementAndGet() > maxQueueSize) {
+      waitingCount.decrementAndGet();
+      requestsRejected.increment();
+      return HttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+    Waiting next = new Waiting(delegate, ctx, req);
+    waiting.offer(next);
+    // Requests that time out or are cancelled while waiting shouldn't take the place of others
+    ctx.log().whenComplete().thenRun(() -> {
+      if (waiting.remove(next)) waitingCount.decrementAndGet();
+    });
+    serveWaiting(); // in case a request completed since the limiter was checked
+    return HttpResponse.from(next.response);
+  }
+
+  @SuppressWarnings("FutureReturnValueIgnored") // no known action to take following .thenAccept
+  HttpResponse serve(HttpService delegate, ServiceRequestContext ctx, HttpRequest req,
+    Listener listener) throws Exception {
+    ctx.log().whenComplete().thenAccept(log -> {
+      release(listener, log);
+      serveWaiting();
+    });
+    return delegate.serve(ctx, req);
+  }
+
+  void release(Listener listener, RequestLog log) {
+    HttpStatus status = log.responseHeaders().status();
+    if (status.equals(HttpStatus.SERVICE_UNAVAILABLE)
+      || status.equals(HttpStatus.GATEWAY_TIMEOUT)) {
+      requestsDropped.increment(); // includes timeouts
+      listener.onDropped();
+    } else if (status.isServerError() || log.responseCause() != null) {
+      listener.onIgnore();
+    } else {
+      listener.onSuccess();
+    }
+  }
+
+  /** Serves waiting requests on their event loop, while the limiter allows. */
+  void serveWaiting() {
+    while (!waiting.isEmpty()) {
+      Optional<Listener> listener = limiter.acquire(null);
+      if (!listener.isPresent()) return;
+
+      Waiting next = waiting.poll();
+      if (next == null) { // another thread served it
+        listener.get().onIgnore();
+        return;
+      }
+      waitingCount.decrementAndGet();
+      if (next.ctx.isTimedOut() || next.ctx.isCancelled()) {
+        listener.get().onIgnore();
+        continue;
+      }
+      next.ctx.eventLoop().execute(() -> {
+        try {
+          next.response.complete(serve(next.delegate, next.ctx, next.req, listener.get()));
+        } catch (Throwable t) {
+          next.response.completeExceptionally(t);
+        }
+      });
+    }
+  }
+
+  int queueSize() {
+    return waitingCount.get();
+  }
+
+  @Override public String toString() {
+    return "QueryThrottle{limit=" + limiter.getLimit() + ", maxQueueSize=" + maxQueueSize + "}";
+  }
+
+  static final class Waiting {
+    final HttpService delegate;
+    final ServiceRequestContext ctx;
+    final HttpRequest req;
+    final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+
+    Waiting(HttpService delegate, ServiceRequestContext ctx, HttpRequest req) {
+      this.delegate = delegate;
+      this.ctx = ctx;
+      this.req = req;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Merges span batches waiting for a permit of the {@link ThrottledStorageComponent}. When storage
+ * is slow, the queue otherwise fills with many small batches, each paying the full overhead of a
+ * storage request.
+ *
+ * <p>When a {@link ThrottledCall} of a {@link CoalescingCall} gets a permit, it claims batches
+ * still waiting, up to {@link #maxSpans} in total, and stores them in one request. The result of
+ * that request is passed to the callback of each claimed call. Claimed calls keep their place in
+ * the executor queue, but skip storage when they get a permit.
+ */
+final class SpanCoalescer {
+  final StorageComponent storage;
+  final int maxSpans;
+  final Queue<CoalescingCall> waiting = new ConcurrentLinkedQueue<>();
+
+  SpanCoalescer(StorageComponent storage, int maxSpans) {
+    this.storage = storage;
+    this.maxSpans = maxSpans;
+  }
+
+  CoalescingCall accept(List<Span> spans) {
+    return new CoalescingCall(this, spans);
+  }
+
+  /** Stores spans of this call, and possibly those of others waiting for a permit. */
+  static final class CoalescingCall extends Call.Base<Void> {
+    final SpanCoalescer coalescer;
+    final List<Span> spans;
+    final AtomicBoolean claimed = new AtomicBoolean();
+    volatile Callback<Void> callback; // set before this call is waiting
+
+    CoalescingCall(SpanCoalescer coalescer, List<Span> spans) {
+      this.coalescer = coalescer;
+      this.spans = spans;
+    }
+
+    /** Allows another call to store these spans before this call gets a permit. */
+    void waitForPermit(Callback<Void> callback) {
+      this.callback = callback;
+      coalescer.waiting.offer(this);
+    }
+
+    /** Returns false if these spans were stored by another call. */
+    boolean claim() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      return coalescer.storage.spanConsumer().accept(spans).execute();
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      List<Span> merged = null;
+      List<Callback<Void>> callbacks = null;
+      int spanCount = spans.size();
+      for (CoalescingCall next; (next = coalescer.waiting.poll()) != null; ) {
+        if (next.claimed.get()) continue; // got its own permit or stored by another call
+        if (spanCount + next.spans.size() > coalescer.maxSpans) break; // will store on its own
+        if (!next.claim()) continue;
+
+        if (merged == null) {
+          merged = new ArrayList<>(spans);
+          callbacks = new ArrayList<>();
+        }
+        merged.addAll(next.spans);
+        callbacks.add(next.callback);
+        spanCount += next.spans.size();
+      }
+
+      if (merged == null) {
+        coalescer.storage.spanConsumer().accept(spans).enqueue(callback);
+        return;
+      }
+      callbacks.add(callback); // last, as it releases the permit
+      FanOutCallback fanOut = new FanOutCallback(callbacks);
+      try {
+        coalescer.storage.spanConsumer().accept(merged).enqueue(fanOut);
+      } catch (Throwable t) { // claimed calls skip storage, so would otherwise never complete
+        Call.propagateIfFatal(t);
+        fanOut.onError(t);
+      }
+    }
+
+    @Override public CoalescingCall clone() {
+      return new CoalescingCall(coalescer, spans);
+    }
+
+    @Override public String toString() {
+      return "CoalescingCall{spans=" + spans.size() + "}";
+    }
+  }
+
+  static final class FanOutCallback implements Callback<Void> {
+    final List<Callback<Void>> callbacks;
+
+    FanOutCallback(List<Callback<Void>> callbacks) {
+      this.callbacks = callbacks;
+    }
+
+    @Override public void onSuccess(Void value) {
+      for (Callback<Void> callback : callbacks) {
+        try {
+          callback.onSuccess(value);
+        } catch (Throwable t) { // don't prevent other callbacks
+          Call.propagateIfFatal(t);
+        }
+      }
+    }
+
+    @Override public void onError(Throwable t) {
+      for (Callback<Void> callback : callbacks) {
+        try {
+          callback.onError(t);
+        } catch (Throwable e) { // don't prevent other callbacks
+          Call.propagateIfFatal(e);
+        }
+      }
+    }
+  }
+}
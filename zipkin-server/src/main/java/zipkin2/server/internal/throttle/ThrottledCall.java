@@ -18,13 +18,17 @@ import com.netflix.concurrency.limits.Limiter;
 import com.netflix.concurrency.limits.Limiter.Listener;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import zipkin2.Call;
 import zipkin2.Callback;
+import zipkin2.internal.Nullable;
+import zipkin2.server.internal.throttle.SpanCoalescer.CoalescingCall;
 
 import static com.linecorp.armeria.common.util.Exceptions.clearTrace;
 
@@ -38,6 +42,9 @@ import static com.linecorp.armeria.common.util.Exceptions.clearTrace;
  * unbounded ones can lead to heap exhaustion and {@link OutOfMemoryError OOM errors}.</li>
  * </ol>
  *
+ * <p>When the executor is a {@link PermitDispatcher}, the call isn't awaited. Instead, the permit
+ * is released when the call completes.
+ *
  * @see ThrottledStorageComponent
  */
 final class ThrottledCall extends Call.Base<Void> {
@@ -62,16 +69,27 @@ final class ThrottledCall extends Call.Base<Void> {
   final Limiter<Void> limiter;
   final LimiterMetrics limiterMetrics;
   final Predicate<Throwable> isOverCapacity;
+  @Nullable final PermitDispatcher dispatcher;
   final CountDownLatch latch = new CountDownLatch(1);
   Throwable throwable; // thread visibility guaranteed by the countdown latch
 
   ThrottledCall(Call<Void> delegate, Executor executor, Limiter<Void> limiter,
     LimiterMetrics limiterMetrics, Predicate<Throwable> isOverCapacity) {
+    this(delegate, executor, limiter, limiterMetrics, isOverCapacity, null);
+  }
+
+  /**
+   * @param executor the dispatcher, if present, possibly wrapped to propagate the trace context
+   */
+  ThrottledCall(Call<Void> delegate, Executor executor, Limiter<Void> limiter,
+    LimiterMetrics limiterMetrics, Predicate<Throwable> isOverCapacity,
+    @Nullable PermitDispatcher dispatcher) {
     this.delegate = delegate;
     this.executor = executor;
     this.limiter = limiter;
     this.limiterMetrics = limiterMetrics;
     this.isOverCapacity = isOverCapacity;
+    this.dispatcher = dispatcher;
   }
 
   /**
@@ -97,8 +115,12 @@ final class ThrottledCall extends Call.Base<Void> {
 
   // When handling enqueue, we don't block the calling thread. Any exception goes to the callback.
   @Override protected void doEnqueue(Callback<Void> callback) {
-    Listener limiterListener =
-      limiter.acquire(null).orElseThrow(() -> STORAGE_THROTTLE_MAX_CONCURRENCY);
+    Optional<Listener> acquired = limiter.acquire(null);
+    if (!acquired.isPresent()) {
+      delegate.cancel(); // releases any resources held while waiting, such as encoded spans
+      throw STORAGE_THROTTLE_MAX_CONCURRENCY;
+    }
+    Listener limiterListener = acquired.get();
 
     limiterMetrics.requests.increment();
     EnqueueAndAwait enqueueAndAwait = new EnqueueAndAwait(callback, limiterListener);
@@ -107,16 +129,22 @@ final class ThrottledCall extends Call.Base<Void> {
       executor.execute(enqueueAndAwait);
     } catch (RuntimeException | Error t) { // possibly rejected, but from the executor, not storage!
       propagateIfFatal(t);
+      delegate.cancel();
       callback.onError(t);
       // Ignoring in all cases here because storage itself isn't saying we need to throttle. Though
       // we may still be write bound, but a drop in concurrency won't necessarily help.
       limiterListener.onIgnore();
       throw t; // allows blocking calls to see the exception
     }
+
+    if (delegate instanceof CoalescingCall) {
+      ((CoalescingCall) delegate).waitForPermit(enqueueAndAwait);
+    }
   }
 
   @Override public Call<Void> clone() {
-    return new ThrottledCall(delegate.clone(), executor, limiter, limiterMetrics, isOverCapacity);
+    return new ThrottledCall(
+      delegate.clone(), executor, limiter, limiterMetrics, isOverCapacity, dispatcher);
   }
 
   @Override public String toString() {
@@ -127,6 +155,7 @@ final class ThrottledCall extends Call.Base<Void> {
   final class EnqueueAndAwait implements Runnable, Callback<Void> {
     final Callback<Void> callback;
     final Listener limiterListener;
+    final AtomicBoolean holdsPermit = new AtomicBoolean(); // only used with the dispatcher
 
     EnqueueAndAwait(Callback<Void> callback, Listener limiterListener) {
       this.callback = callback;
@@ -144,19 +173,35 @@ final class ThrottledCall extends Call.Base<Void> {
      * also invoke {@link #onError(Throwable)}.
      */
     @Override public void run() {
-      if (delegate.isCanceled()) return;
+      if (dispatcher != null) holdsPermit.set(true);
+      // When spans were stored with another call's, that call completes this one's callback.
+      if (delegate.isCanceled()
+        || (delegate instanceof CoalescingCall && !((CoalescingCall) delegate).claim())) {
+        releasePermit();
+        return;
+      }
       try {
         delegate.enqueue(this);
 
         // Need to wait here since the callback call will run asynchronously also.
-        // This ensures we don't exceed our throttle/queue limits.
-        await(latch);
+        // This ensures we don't exceed our throttle/queue limits. The dispatcher doesn't need to
+        // wait, as the permit is released by the callback instead.
+        if (dispatcher == null) await(latch);
       } catch (Throwable t) { // edge case: error during enqueue!
         propagateIfFatal(t);
         callback.onError(t);
+        releasePermit();
       }
     }
 
+    /**
+     * Idempotent, as the callback of a call stored with another's can happen before or after its
+     * task runs.
+     */
+    void releasePermit() {
+      if (dispatcher != null && holdsPermit.compareAndSet(true, false)) dispatcher.release();
+    }
+
     @Override public void onSuccess(Void value) {
       try {
         // usually we don't add metrics like this,
@@ -166,6 +211,7 @@ final class ThrottledCall extends Call.Base<Void> {
         callback.onSuccess(value);
       } finally {
         latch.countDown();
+        releasePermit();
       }
     }
 
@@ -184,6 +230,7 @@ final class ThrottledCall extends Call.Base<Void> {
         callback.onError(t);
       } finally {
         latch.countDown();
+        releasePermit();
       }
     }
 
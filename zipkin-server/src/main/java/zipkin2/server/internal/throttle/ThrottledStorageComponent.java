@@ -23,9 +23,9 @@ import com.netflix.concurrency.limits.limit.Gradient2Limit;
 import com.netflix.concurrency.limits.limiter.AbstractLimiter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.netty.buffer.PooledByteBufAllocator;
 import java.io.IOException;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
@@ -33,6 +33,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import zipkin2.Call;
@@ -54,8 +55,19 @@ import static com.linecorp.armeria.common.util.Exceptions.clearTrace;
  * <li>Optionally act as a buffer so that a fixed number requests can be queued for execution when
  * the throttle allows for it.  This optional queue must be bounded in order to avoid running out of
  * memory from infinitely queueing.</li>
+ * <li>Optionally merge span batches waiting in that queue, so that fewer, larger requests are made
+ * when storage is slow. See {@link SpanCoalescer}.</li>
+ * <li>Optionally reserve a separately bounded lane of that queue for span batches chosen by a
+ * {@link PriorityClassifier}, so that they aren't rejected because the default lane is full. See
+ * {@link PriorityLaneQueue}.</li>
  * </ul>
  *
+ * <p>Requests run on a thread pool resized to the limit, or optionally a {@link PermitDispatcher},
+ * which starts them on the calling thread when there's a permit.
+ *
+ * <p>Create this with {@link #newBuilder()}, usually via {@link
+ * ZipkinStorageThrottleProperties#toBuilder()}.
+ *
  * @see ThrottledSpanConsumer
  */
 public final class ThrottledStorageComponent extends ForwardingStorageComponent {
@@ -70,23 +82,177 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
   final @Nullable Tracer tracer;
   final @Nullable CurrentTraceContext currentTraceContext;
   final AbstractLimiter<Void> limiter;
-  final ThreadPoolExecutor executor;
+  final @Nullable ThreadPoolExecutor executor; // null when there's a dispatcher
+  final @Nullable PermitDispatcher dispatcher;
   final LimiterMetrics limiterMetrics;
+  final @Nullable SpanCoalescer coalescer;
+  final @Nullable PriorityClassifier priorityClassifier;
+  final @Nullable AtomicLong queuedBytes; // non-null when queuing encoded spans
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    StorageComponent delegate;
+    MeterRegistry registry;
+    @Nullable Tracing tracing;
+    int minConcurrency = 10, maxConcurrency = 200, maxQueueSize = 1000, coalesceMaxSpans;
+    int priorityQueueSize, priorityWeight = 4;
+    @Nullable PriorityClassifier priorityClassifier;
+    boolean permitDispatcher, queueEncoded;
 
-  public ThrottledStorageComponent(StorageComponent delegate, MeterRegistry registry,
-    @Nullable Tracing tracing, int minConcurrency, int maxConcurrency, int maxQueueSize) {
-    this.delegate = Objects.requireNonNull(delegate);
+    /** The storage whose span consumer is throttled. */
+    public Builder delegate(StorageComponent delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+      return this;
+    }
+
+    public Builder meterRegistry(MeterRegistry registry) {
+      if (registry == null) throw new NullPointerException("registry == null");
+      this.registry = registry;
+      return this;
+    }
+
+    /** When present, storage requests are traced. */
+    public Builder tracing(@Nullable Tracing tracing) {
+      this.tracing = tracing;
+      return this;
+    }
+
+    /** Minimum storage requests to run at the same time. Defaults to 10. */
+    public Builder minConcurrency(int minConcurrency) {
+      if (minConcurrency <= 0) throw new IllegalArgumentException("minConcurrency <= 0");
+      this.minConcurrency = minConcurrency;
+      return this;
+    }
+
+    /** Maximum storage requests to run at the same time. Defaults to 200. */
+    public Builder maxConcurrency(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /** Storage requests to queue while waiting for the limit. 0 = no queue. Defaults to 1000. */
+    public Builder maxQueueSize(int maxQueueSize) {
+      if (maxQueueSize < 0) throw new IllegalArgumentException("maxQueueSize < 0");
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /**
+     * When positive, queued span batches are merged into requests of up to this many spans. This
+     * requires decoded spans in the queue. Defaults to 0.
+     */
+    public Builder coalesceMaxSpans(int coalesceMaxSpans) {
+      if (coalesceMaxSpans < 0) throw new IllegalArgumentException("coalesceMaxSpans < 0");
+      this.coalesceMaxSpans = coalesceMaxSpans;
+      return this;
+    }
+
+    /**
+     * When positive, batches the {@link #priorityClassifier(PriorityClassifier) classifier}
+     * prioritizes are queued in a lane of this size, separate from the {@link #maxQueueSize} of
+     * other batches. This requires a thread pool. Defaults to 0.
+     */
+    public Builder priorityQueueSize(int priorityQueueSize) {
+      if (priorityQueueSize < 0) throw new IllegalArgumentException("priorityQueueSize < 0");
+      this.priorityQueueSize = priorityQueueSize;
+      return this;
+    }
+
+    /** Priority batches to run for each other batch, when both are queued. Defaults to 4. */
+    public Builder priorityWeight(int priorityWeight) {
+      if (priorityWeight <= 0) throw new IllegalArgumentException("priorityWeight <= 0");
+      this.priorityWeight = priorityWeight;
+      return this;
+    }
+
+    /** Chooses batches for the priority lane. Required when {@link #priorityQueueSize} is set. */
+    public Builder priorityClassifier(PriorityClassifier priorityClassifier) {
+      if (priorityClassifier == null) {
+        throw new NullPointerException("priorityClassifier == null");
+      }
+      this.priorityClassifier = priorityClassifier;
+      return this;
+    }
+
+    /**
+     * True to use a {@link PermitDispatcher} instead of a thread pool. This doesn't support
+     * priority lanes. Defaults to false.
+     */
+    public Builder permitDispatcher(boolean permitDispatcher) {
+      this.permitDispatcher = permitDispatcher;
+      return this;
+    }
+
+    /**
+     * True to hold spans waiting for storage as {@link EncodedSpansCall encoded buffers}. This
+     * doesn't support coalescing, which merges spans while they wait. Defaults to false.
+     */
+    public Builder queueEncoded(boolean queueEncoded) {
+      this.queueEncoded = queueEncoded;
+      return this;
+    }
+
+    /** Fails on settings that don't work together, before any thread or meter is created. */
+    public ThrottledStorageComponent build() {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      if (registry == null) throw new NullPointerException("registry == null");
+      if (maxConcurrency < minConcurrency) {
+        throw new IllegalArgumentException("maxConcurrency < minConcurrency");
+      }
+      if (permitDispatcher && priorityQueueSize > 0) {
+        throw new IllegalArgumentException("priorityQueueSize requires a thread pool");
+      }
+      if (queueEncoded && coalesceMaxSpans > 0) {
+        throw new IllegalArgumentException("coalesceMaxSpans requires decoded spans in the queue");
+      }
+      if (priorityQueueSize > 0 && priorityClassifier == null) {
+        throw new NullPointerException("priorityClassifier == null");
+      }
+      return new ThrottledStorageComponent(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  ThrottledStorageComponent(Builder builder) {
+    this.delegate = builder.delegate;
+    this.queuedBytes = builder.queueEncoded ? new AtomicLong() : null;
+    this.priorityClassifier = builder.priorityQueueSize > 0 ? builder.priorityClassifier : null;
+    this.coalescer = builder.coalesceMaxSpans > 0
+      ? new SpanCoalescer(delegate, builder.coalesceMaxSpans) : null;
+    Tracing tracing = builder.tracing;
     this.tracer = tracing != null ? tracing.tracer() : null;
     this.currentTraceContext = tracing != null ? tracing.currentTraceContext() : null;
+    int minConcurrency = builder.minConcurrency, maxQueueSize = builder.maxQueueSize;
+    int priorityQueueSize = builder.priorityQueueSize, priorityWeight = builder.priorityWeight;
 
     Limit limit = Gradient2Limit.newBuilder()
       .minLimit(minConcurrency)
       // Limiter will trend towards min until otherwise necessary so may as well start there
       .initialLimit(minConcurrency)
-      .maxConcurrency(maxConcurrency)
+      .maxConcurrency(builder.maxConcurrency)
       .queueSize(0)
       .build();
-    this.limiter = new Builder().limit(limit).build();
+    this.limiter = new LimiterBuilder().limit(limit).build();
+
+    MeterRegistry registry = builder.registry;
+    MicrometerThrottleMetrics metrics = new MicrometerThrottleMetrics(registry);
+    metrics.bind(limiter);
+    if (queuedBytes != null) metrics.bindQueuedBytes(queuedBytes);
+    limiterMetrics = new LimiterMetrics(registry);
+    if (builder.permitDispatcher) {
+      executor = null;
+      dispatcher = new PermitDispatcher(limit.getLimit(), maxQueueSize);
+      limit.notifyOnChange(dispatcher);
+      metrics.bind(dispatcher);
+      return;
+    }
+    dispatcher = null;
 
     // The size of the thread pool is managed by the limiter, so we initialize it with the lower
     // bound (current limit), and later use change notification to resize it.
@@ -95,7 +261,9 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
       limit.getLimit(),
       0,
       TimeUnit.DAYS,
-      createQueue(maxQueueSize),
+      priorityQueueSize > 0
+        ? new PriorityLaneQueue(priorityQueueSize, Math.max(1, maxQueueSize), priorityWeight)
+        : createQueue(maxQueueSize),
       new NamedThreadFactory("zipkin-throttle-pool") {
         @Override public Thread newThread(Runnable runnable) {
           return super.newThread(new Runnable() {
@@ -115,11 +283,10 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
       });
     limit.notifyOnChange(new ThreadPoolExecutorResizer(executor));
 
-    MicrometerThrottleMetrics metrics = new MicrometerThrottleMetrics(registry);
     metrics.bind(executor);
-    metrics.bind(limiter);
-
-    limiterMetrics = new LimiterMetrics(registry);
+    if (executor.getQueue() instanceof PriorityLaneQueue) {
+      metrics.bind((PriorityLaneQueue) executor.getQueue());
+    }
   }
 
   @Override protected StorageComponent delegate() {
@@ -131,7 +298,8 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
   }
 
   @Override public void close() throws IOException {
-    executor.shutdownNow();
+    if (executor != null) executor.shutdownNow();
+    if (dispatcher != null) dispatcher.close();
     delegate.close();
   }
 
@@ -141,7 +309,12 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
 
   static final class ThrottledSpanConsumer implements SpanConsumer {
     final SpanConsumer delegate;
+    @Nullable final SpanCoalescer coalescer;
     final Executor executor;
+    @Nullable final Executor priorityExecutor;
+    @Nullable final PermitDispatcher dispatcher;
+    @Nullable final PriorityClassifier priorityClassifier;
+    @Nullable final AtomicLong queuedBytes;
     final Limiter<Void> limiter;
     final LimiterMetrics limiterMetrics;
     final Predicate<Throwable> isOverCapacity;
@@ -149,9 +322,20 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
 
     ThrottledSpanConsumer(ThrottledStorageComponent throttledStorage) {
       this.delegate = throttledStorage.delegate.spanConsumer();
-      this.executor = throttledStorage.currentTraceContext != null
-        ? throttledStorage.currentTraceContext.executor(throttledStorage.executor)
-        : throttledStorage.executor;
+      this.coalescer = throttledStorage.coalescer;
+      this.priorityClassifier = throttledStorage.priorityClassifier;
+      if (priorityClassifier != null) {
+        this.executor = wrap(throttledStorage,
+          PriorityLaneQueue.executor(throttledStorage.executor, PriorityLaneQueue.DEFAULT));
+        this.priorityExecutor = wrap(throttledStorage,
+          PriorityLaneQueue.executor(throttledStorage.executor, PriorityLaneQueue.PRIORITY));
+      } else {
+        this.executor = wrap(throttledStorage, throttledStorage.dispatcher != null
+          ? throttledStorage.dispatcher : throttledStorage.executor);
+        this.priorityExecutor = null;
+      }
+      this.dispatcher = throttledStorage.dispatcher;
+      this.queuedBytes = throttledStorage.queuedBytes;
       this.limiter = throttledStorage.limiter;
       this.limiterMetrics = throttledStorage.limiterMetrics;
       this.isOverCapacity = throttledStorage::isOverCapacity;
@@ -159,8 +343,19 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
     }
 
     @Override public Call<Void> accept(List<Span> spans) {
+      Call<Void> accept;
+      if (coalescer != null) {
+        accept = coalescer.accept(spans);
+      } else if (queuedBytes != null) {
+        accept =
+          EncodedSpansCall.create(delegate, spans, PooledByteBufAllocator.DEFAULT, queuedBytes);
+      } else {
+        accept = delegate.accept(spans);
+      }
+      Executor executor = priorityClassifier != null && priorityClassifier.isPriority(spans)
+        ? priorityExecutor : this.executor;
       Call<Void> result = new ThrottledCall(
-        delegate.accept(spans), executor, limiter, limiterMetrics, isOverCapacity);
+        accept, executor, limiter, limiterMetrics, isOverCapacity, dispatcher);
 
       return tracer != null ? new TracedCall<>(tracer, result, "throttled-accept-spans") : result;
     }
@@ -168,6 +363,13 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
     @Override public String toString() {
       return "Throttled(" + delegate + ")";
     }
+
+    /** The lane is placed under the trace context, so that the queue can see it. */
+    static Executor wrap(ThrottledStorageComponent throttledStorage, Executor executor) {
+      return throttledStorage.currentTraceContext != null
+        ? throttledStorage.currentTraceContext.executor(executor)
+        : executor;
+    }
   }
 
   static BlockingQueue<Runnable> createQueue(int maxSize) {
@@ -212,12 +414,12 @@ public final class ThrottledStorageComponent extends ForwardingStorageComponent
     }
   }
 
-  static final class Builder extends AbstractLimiter.Builder<Builder> {
+  static final class LimiterBuilder extends AbstractLimiter.Builder<LimiterBuilder> {
     NonLimitingLimiter build() {
       return new NonLimitingLimiter(this);
     }
 
-    @Override protected Builder self() {
+    @Override protected LimiterBuilder self() {
       return this;
     }
   }
@@ -13,6 +13,8 @@
  */
 package zipkin2.server.internal.throttle;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 @ConfigurationProperties("zipkin.storage.throttle")
@@ -31,6 +33,30 @@ public final class ZipkinStorageThrottleProperties {
    * Maximum number of storage requests to buffer while waiting for open Thread. 0 = no buffering.
    */
   private int maxQueueSize;
+  /**
+   * Maximum number of spans to store in one request, when merging batches waiting for an open
+   * Thread. 0 = no merging.
+   */
+  private int coalesceMaxSpans;
+  /**
+   * Maximum number of priority storage requests to buffer, separately from maxQueueSize. Requests
+   * with debug or error spans, or spans of {@link #priorityServices} are priority. 0 = no lanes.
+   */
+  private int priorityQueueSize;
+  /** Number of priority requests to run for each other request, when both are buffered. */
+  private int priorityWeight = 4;
+  /** Services whose spans are priority, regardless of debug or error. */
+  private List<String> priorityServices = new ArrayList<>();
+  /**
+   * "executor" runs requests on a thread pool resized to the limit. "dispatcher" starts them on the
+   * calling thread when there is a permit, and is best when storage calls are asynchronous.
+   */
+  private String dispatcher = "executor";
+  /**
+   * When true, spans waiting for storage are held PROTO3 encoded in pooled direct buffers, and
+   * decoded when they run.
+   */
+  private boolean queueEncoded;
 
   public boolean isEnabled() {
     return enabled;
@@ -63,4 +89,73 @@ public final class ZipkinStorageThrottleProperties {
   public void setMaxQueueSize(int maxQueueSize) {
     this.maxQueueSize = maxQueueSize;
   }
+
+  public int getCoalesceMaxSpans() {
+    return coalesceMaxSpans;
+  }
+
+  public void setCoalesceMaxSpans(int coalesceMaxSpans) {
+    this.coalesceMaxSpans = coalesceMaxSpans;
+  }
+
+  public int getPriorityQueueSize() {
+    return priorityQueueSize;
+  }
+
+  public void setPriorityQueueSize(int priorityQueueSize) {
+    this.priorityQueueSize = priorityQueueSize;
+  }
+
+  public int getPriorityWeight() {
+    return priorityWeight;
+  }
+
+  public void setPriorityWeight(int priorityWeight) {
+    this.priorityWeight = priorityWeight;
+  }
+
+  public boolean isQueueEncoded() {
+    return queueEncoded;
+  }
+
+  public void setQueueEncoded(boolean queueEncoded) {
+    this.queueEncoded = queueEncoded;
+  }
+
+  public String getDispatcher() {
+    return dispatcher;
+  }
+
+  public void setDispatcher(String dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  public List<String> getPriorityServices() {
+    return priorityServices;
+  }
+
+  public void setPriorityServices(List<String> priorityServices) {
+    this.priorityServices = priorityServices;
+  }
+
+  /** Settings that don't work together fail when the builder builds, so before the server starts. */
+  public ThrottledStorageComponent.Builder toBuilder() {
+    return ThrottledStorageComponent.newBuilder()
+      .minConcurrency(minConcurrency)
+      .maxConcurrency(maxConcurrency)
+      .maxQueueSize(maxQueueSize)
+      .coalesceMaxSpans(coalesceMaxSpans)
+      .priorityQueueSize(priorityQueueSize)
+      .priorityWeight(priorityWeight)
+      .priorityClassifier(PriorityClassifier.create(priorityServices))
+      .permitDispatcher(isPermitDispatcher(dispatcher))
+      .queueEncoded(queueEncoded);
+  }
+
+  static boolean isPermitDispatcher(String dispatcher) {
+    if ("dispatcher".equals(dispatcher)) return true;
+    if ("executor".equals(dispatcher)) return false;
+    throw new IllegalArgumentException(
+      "zipkin.storage.throttle.dispatcher must be executor or dispatcher, not " + dispatcher);
+  }
 }
@@ -52,6 +52,8 @@ public class ZipkinActiveMQCollectorPropertiesOverrideTest {
       parameters("client-id-prefix", "zipkin-prod", b -> b.connectionFactory.getClientIDPrefix()),
       parameters("queue", "zapkin", b -> b.queue),
       parameters("concurrency", 2, b -> b.concurrency),
+      parameters("batch-size", 100, b -> b.batchSize),
+      parameters("prefetch", 200, b -> b.connectionFactory.getPrefetchPolicy().getQueuePrefetch()),
       parameters("username", "u", b -> b.connectionFactory.getUserName()),
       parameters("password", "p", b -> b.connectionFactory.getPassword())
     );
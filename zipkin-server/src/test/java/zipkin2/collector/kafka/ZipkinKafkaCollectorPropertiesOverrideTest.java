@@ -53,6 +53,8 @@ public class ZipkinKafkaCollectorPropertiesOverrideTest {
         parameters("group-id", "zapkin", b -> b.properties.getProperty("group.id")),
         parameters("topic", "zapkin", b -> b.topic),
         parameters("streams", 2, b -> b.streams),
+        parameters("max-polls-in-flight", 2, b -> b.maxPollsInFlight),
+        parameters("decode-threads", 2, b -> b.decodeThreads),
         parameters(
             "overrides.auto.offset.reset",
             "latest",
@@ -52,6 +52,7 @@ public class ZipkinRabbitMQCollectorPropertiesOverrideTest {
         // this unit test. Better to make a separate one than force-fit!
         parameters("addresses", "localhost:5671", builder -> builder.addresses[0].toString()),
         parameters("concurrency", 2, builder -> builder.concurrency),
+        parameters("prefetchCount", 100, builder -> builder.prefetchCount),
         parameters(
             "connectionTimeout",
             30_000,
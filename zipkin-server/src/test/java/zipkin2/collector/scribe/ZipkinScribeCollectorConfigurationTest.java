@@ -57,6 +57,20 @@ public class ZipkinScribeCollectorConfigurationTest {
       .isEqualTo(9999);
   }
 
+  @Test public void canOverrideProperty_limits() {
+    TestPropertyValues.of(
+      "zipkin.collector.scribe.enabled:true",
+      "zipkin.collector.scribe.port:9999",
+      "zipkin.collector.scribe.max-connections:10",
+      "zipkin.collector.scribe.max-in-flight-per-connection:4")
+      .applyTo(context);
+    refreshContext();
+
+    NettyScribeServer server = context.getBean(ScribeCollector.class).server;
+    assertThat(server.maxConnections).isEqualTo(10);
+    assertThat(server.maxInFlightPerConnection).isEqualTo(4);
+  }
+
   public void refreshContext() {
     context.register(
       PropertyPlaceholderAutoConfiguration.class,
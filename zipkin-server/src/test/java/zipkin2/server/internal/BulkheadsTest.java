@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.server.internal.Bulkheads.Bulkhead;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class BulkheadsTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  Bulkheads bulkheads = Bulkheads.create(registry, 1, 1, 0, 1, 0, 1);
+
+  @After public void close() {
+    bulkheads.close();
+  }
+
+  @Test public void zeroThreads_sharesBlockingTaskExecutor() {
+    assertThat(bulkheads.query).isNotNull();
+    assertThat(bulkheads.collector).isNull();
+    assertThat(bulkheads.health).isNull();
+  }
+
+  @Test public void invalid() {
+    assertThatThrownBy(() -> Bulkhead.create(registry, "query", -1, 1))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("query threads < 0");
+    assertThatThrownBy(() -> Bulkhead.create(registry, "query", 1, 0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("query queueSize < 1");
+  }
+
+  @Test public void recordsQueueTime() {
+    bulkheads.query.execute(() -> {
+    });
+
+    await().untilAsserted(() -> assertThat(
+      registry.get("zipkin_bulkhead.queue_time").tag("pool", "query").timer().count())
+      .isEqualTo(1));
+  }
+
+  @Test public void rejectsWhenQueueFull() throws Exception {
+    CountDownLatch running = new CountDownLatch(1), unblock = new CountDownLatch(1);
+    try {
+      bulkheads.query.execute(() -> {
+        running.countDown();
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      running.await();
+      bulkheads.query.execute(() -> {
+      }); // queued
+
+      assertThat(registry.get("zipkin_bulkhead.active_threads").tag("pool", "query")
+        .gauge().value()).isEqualTo(1.0);
+      assertThat(registry.get("zipkin_bulkhead.queue_size").tag("pool", "query")
+        .gauge().value()).isEqualTo(1.0);
+      assertThatThrownBy(() -> bulkheads.query.execute(() -> {
+      })).isInstanceOf(RejectedExecutionException.class);
+      assertThat(registry.get("zipkin_bulkhead.rejections").tag("pool", "query")
+        .counter().count()).isEqualTo(1.0);
+    } finally {
+      unblock.countDown();
+    }
+  }
+
+  @Test public void query_rejected_serviceUnavailable() throws Exception {
+    assertThat(ZipkinQueryApiV2.query(command -> {
+      throw new RejectedExecutionException();
+    }, () -> null).get().status().code()).isEqualTo(503);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.RequestHeaders;
+import com.linecorp.armeria.server.ServiceRequestContext;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DurableRequestsTest {
+  DurableRequests durableRequests = new DurableRequests(2, 1000L);
+
+  @Test public void isDurable() {
+    assertThat(DurableRequests.isDurable(headers("true"))).isTrue();
+    assertThat(DurableRequests.isDurable(headers("TRUE"))).isTrue();
+    assertThat(DurableRequests.isDurable(headers("false"))).isFalse();
+    assertThat(DurableRequests.isDurable(RequestHeaders.of(HttpMethod.POST, "/api/v2/spans")))
+      .isFalse();
+  }
+
+  @Test public void tryAcquire_limitsInFlight() {
+    ServiceRequestContext first = newContext();
+    assertThat(durableRequests.tryAcquire(first)).isTrue();
+    assertThat(durableRequests.tryAcquire(newContext())).isTrue();
+    assertThat(durableRequests.tryAcquire(newContext())).isFalse();
+    assertThat(durableRequests.inFlight.get()).isEqualTo(2);
+
+    first.logBuilder().endRequest();
+    first.logBuilder().endResponse();
+
+    assertThat(durableRequests.inFlight.get()).isEqualTo(1);
+    assertThat(durableRequests.tryAcquire(newContext())).isTrue();
+  }
+
+  static RequestHeaders headers(String durable) {
+    return RequestHeaders.of(HttpMethod.POST, "/api/v2/spans", DurableRequests.HEADER, durable);
+  }
+
+  static ServiceRequestContext newContext() {
+    return ServiceRequestContext.of(HttpRequest.of(headers("true")));
+  }
+}
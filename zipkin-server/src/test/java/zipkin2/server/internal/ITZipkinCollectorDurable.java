@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static java.util.Arrays.asList;
+import static okhttp3.Protocol.H2_PRIOR_KNOWLEDGE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.server.internal.ITZipkinServer.url;
+
+/** Durable requests are only answered once spans are stored, so there's no need to await them. */
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "spring.config.name=zipkin-server",
+    "zipkin.collector.grpc.enabled=true",
+    "zipkin.collector.http.streaming-batch-bytes=1024"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinCollectorDurable {
+  @Autowired InMemoryStorage storage;
+  @Autowired Server server;
+
+  OkHttpClient client = new OkHttpClient.Builder().protocols(asList(H2_PRIOR_KNOWLEDGE)).build();
+
+  @Before public void init() {
+    storage.clear();
+  }
+
+  @Test public void http() throws IOException {
+    Response response = client.newCall(new Request.Builder()
+      .url(url(server, "/api/v2/spans"))
+      .header("zipkin-durable", "true")
+      .post(RequestBody.create(SpanBytesEncoder.JSON_V2.encodeList(TRACE),
+        MediaType.get("application/json")))
+      .build())
+      .execute();
+
+    assertThat(response.code()).isEqualTo(202);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+
+  @Test public void http_malformed() throws IOException {
+    Response response = client.newCall(new Request.Builder()
+      .url(url(server, "/api/v2/spans"))
+      .header("zipkin-durable", "true")
+      .post(RequestBody.create("[{\"traceId\":".getBytes(), MediaType.get("application/json")))
+      .build())
+      .execute();
+
+    assertThat(response.code()).isEqualTo(400);
+  }
+
+  @Test public void grpc() throws IOException {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    Buffer requestBody = new Buffer()
+      .writeByte(0 /* compressedFlag */)
+      .writeInt(message.length)
+      .write(message);
+
+    Response response = client.newCall(new Request.Builder()
+      .url(url(server, "/zipkin.proto3.SpanService/Report"))
+      .header("te", "trailers")
+      .header("zipkin-durable", "true")
+      .post(RequestBody.create(requestBody.readByteArray(), MediaType.get("application/grpc")))
+      .build())
+      .execute();
+
+    response.body().bytes(); // trailers are read after the body
+    assertThat(response.trailers().get("grpc-status")).isEqualTo("0");
+    assertThat(storage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+}
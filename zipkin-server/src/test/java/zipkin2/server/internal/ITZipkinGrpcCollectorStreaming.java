@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpRequestWriter;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.RequestHeaders;
+import com.linecorp.armeria.common.grpc.protocol.GrpcHeaderNames;
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "spring.config.name=zipkin-server",
+    "zipkin.collector.grpc.enabled=true",
+    "zipkin.collector.grpc.stream.max-in-flight-messages=2",
+    "zipkin.collector.grpc.stream.ack-every-messages=2"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinGrpcCollectorStreaming {
+  @Autowired InMemoryStorage storage;
+  @Autowired Server server;
+  @Autowired MeterRegistry registry;
+
+  @Before public void init() {
+    storage.clear();
+  }
+
+  @Test public void reportStream() {
+    HttpRequestWriter request = newRequest();
+    for (int i = 1; i <= 5; i++) {
+      request.write(frame(SpanBytesEncoder.PROTO3.encodeList(
+        Collections.singletonList(CLIENT_SPAN.toBuilder().id(i).build()))));
+    }
+    request.close();
+
+    AggregatedHttpResponse response = execute(request);
+
+    assertThat(response.content().length()).isEqualTo(2 * 5); // two empty ReportResponses
+    assertThat(response.trailers().get(GrpcHeaderNames.GRPC_STATUS)).isEqualTo("0");
+    // messages are only accepted once stored, so there's no need to await them
+    assertThat(storage.acceptedSpanCount()).isEqualTo(5);
+  }
+
+  @Test public void reportStream_emptyIsOk() {
+    HttpRequestWriter request = newRequest();
+    request.close();
+
+    AggregatedHttpResponse response = execute(request);
+
+    assertThat(response.content().isEmpty()).isTrue();
+    assertThat(response.trailers().get(GrpcHeaderNames.GRPC_STATUS)).isEqualTo("0");
+  }
+
+  @Test public void reportStream_malformed() {
+    double messagesDropped = messagesDropped();
+    HttpRequestWriter request = newRequest();
+    request.write(frame(new byte[] {1, 2, 3}));
+    request.close();
+
+    AggregatedHttpResponse response = execute(request);
+
+    assertThat(response.trailers().get(GrpcHeaderNames.GRPC_STATUS))
+      .isEqualTo("3"); // INVALID_ARGUMENT
+    assertThat(storage.acceptedSpanCount()).isZero();
+    assertThat(messagesDropped()).isEqualTo(messagesDropped + 1);
+  }
+
+  double messagesDropped() {
+    return registry.counter("zipkin_collector.messages_dropped", "transport", "grpc").count();
+  }
+
+  HttpRequestWriter newRequest() {
+    return HttpRequest.streaming(RequestHeaders.builder(HttpMethod.POST,
+      "/zipkin.proto3.SpanService/ReportStream")
+      .contentType(MediaType.parse("application/grpc+proto"))
+      .add("te", "trailers")
+      .build());
+  }
+
+  AggregatedHttpResponse execute(HttpRequest request) {
+    return WebClient.of("h2c://localhost:" + server.activeLocalPort())
+      .execute(request).aggregate().join();
+  }
+
+  static HttpData frame(byte[] message) {
+    ByteBuffer frame = ByteBuffer.allocate(5 + message.length);
+    frame.put((byte) 0 /* compressedFlag */).putInt(message.length).put(message);
+    return HttpData.wrap(frame.array());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.github.luben.zstd.Zstd;
+import com.linecorp.armeria.server.Server;
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static zipkin2.TestObjects.TRACE;
+import static zipkin2.server.internal.RequestDecompressorTest.gzip;
+
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "zipkin.collector.http.max-decompressed-bytes=1048576",
+    "spring.config.name=zipkin-server"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinHttpCollectorEncodings {
+  static final byte[] JSON = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+  @Autowired InMemoryStorage storage;
+  @Autowired Server server;
+
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(true).build();
+
+  @Before public void init() {
+    storage.clear();
+  }
+
+  @Test public void zstd() throws Exception {
+    assertThat(post("zstd", Zstd.compress(JSON)).code()).isEqualTo(202);
+    awaitSpans(TRACE.size());
+  }
+
+  @Test public void snappy() throws Exception {
+    assertThat(post("snappy", RequestDecompressorTest.snappy(JSON)).code()).isEqualTo(202);
+    awaitSpans(TRACE.size());
+  }
+
+  @Test public void unsupported() throws Exception {
+    Response response = post("br", JSON);
+
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).isEqualTo("Unsupported Content-Encoding: br\n");
+  }
+
+  @Test public void tooLarge() throws Exception {
+    Response response = post("gzip", gzip(new byte[2 * 1024 * 1024]));
+
+    assertThat(response.code()).isEqualTo(413);
+  }
+
+  void awaitSpans(int count) {
+    await().untilAsserted( // wait for spans to be stored asynchronously
+      () -> assertThat(storage.acceptedSpanCount()).isEqualTo(count));
+  }
+
+  Response post(String encoding, byte[] body) throws IOException {
+    return client.newCall(new Request.Builder().url(url("/api/v2/spans"))
+      .header("Content-Encoding", encoding)
+      .post(RequestBody.create(body, MediaType.get("application/json"))).build()).execute();
+  }
+
+  String url(String path) {
+    return "http://localhost:" + server.activeLocalPort() + path;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.GzipSink;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "zipkin.collector.http.streaming-batch-bytes=1024",
+    "spring.config.name=zipkin-server"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinHttpCollectorStreaming {
+  @Autowired InMemoryStorage storage;
+  @Autowired Server server;
+  @Autowired MeterRegistry registry;
+
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(true).build();
+
+  @Before public void init() {
+    storage.clear();
+  }
+
+  @Test public void json() throws Exception {
+    Response response = post(SpanBytesEncoder.JSON_V2.encodeList(TRACE), "application/json", false);
+
+    assertThat(response.code()).isEqualTo(202);
+    awaitSpans(TRACE.size());
+  }
+
+  @Test public void json_gzip() throws Exception {
+    Response response = post(SpanBytesEncoder.JSON_V2.encodeList(TRACE), "application/json", true);
+
+    assertThat(response.code()).isEqualTo(202);
+    awaitSpans(TRACE.size());
+  }
+
+  @Test public void proto3() throws Exception {
+    Response response =
+      post(SpanBytesEncoder.PROTO3.encodeList(TRACE), "application/x-protobuf", false);
+
+    assertThat(response.code()).isEqualTo(202);
+    awaitSpans(TRACE.size());
+  }
+
+  /** Larger than a batch, so spans are decoded before the body is read completely. */
+  @Test public void largeMessage() throws Exception {
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      spans.add(CLIENT_SPAN.toBuilder().id(i).build());
+    }
+
+    Response response = post(SpanBytesEncoder.JSON_V2.encodeList(spans), "application/json", true);
+
+    assertThat(response.code()).isEqualTo(202);
+    awaitSpans(1000);
+  }
+
+  /** Batches are an implementation detail, so metrics describe the whole message. */
+  @Test public void largeMessage_countedOnce() throws Exception {
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      spans.add(CLIENT_SPAN.toBuilder().id(i).build());
+    }
+    DistributionSummary spansPerMessage = registry.get("zipkin_collector.spans_per_message")
+      .tag("transport", "http").summary();
+    long messageCount = spansPerMessage.count();
+    double spanCount = spansPerMessage.totalAmount();
+
+    post(SpanBytesEncoder.PROTO3.encodeList(spans), "application/x-protobuf", false);
+
+    assertThat(spansPerMessage.count()).isEqualTo(messageCount + 1);
+    assertThat(spansPerMessage.totalAmount()).isEqualTo(spanCount + 1000);
+  }
+
+  @Test public void malformedSpan_droppedOnce() throws Exception {
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= 100; i++) {
+      spans.add(CLIENT_SPAN.toBuilder().id(i).build());
+    }
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    String malformed = new String(json, UTF_8).replace("\"id\":\"", "\"id\":\"zz");
+    double messagesDropped =
+      registry.counter("zipkin_collector.messages_dropped", "transport", "http").count();
+
+    Response response = post(malformed.getBytes(UTF_8), "application/json", false);
+
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(registry.counter("zipkin_collector.messages_dropped", "transport", "http").count())
+      .isEqualTo(messagesDropped + 1);
+  }
+
+  @Test public void emptyBody() throws Exception {
+    assertThat(post(new byte[0], "application/json", false).code()).isEqualTo(202);
+    assertThat(post("[]".getBytes(), "application/json", false).code()).isEqualTo(202);
+  }
+
+  @Test public void malformed() throws Exception {
+    Response response = post("[{\"traceId\":".getBytes(), "application/json", false);
+
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).isEqualTo("Expected a JSON_V2 encoded list\n");
+  }
+
+  @Test public void malformedGzip() throws Exception {
+    Buffer body = new Buffer().writeUtf8("notgzip");
+    Response response = client.newCall(new Request.Builder()
+      .url(url("/api/v2/spans"))
+      .header("Content-Encoding", "gzip")
+      .post(RequestBody.create(body.readByteArray(), MediaType.get("application/json")))
+      .build()).execute();
+
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).isEqualTo("Cannot gunzip spans");
+  }
+
+  @Test public void v1FormatOnV2Endpoint() throws Exception {
+    Response response =
+      post(SpanBytesEncoder.JSON_V1.encodeList(TRACE), "application/json", false);
+
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string())
+      .isEqualTo("Expected a JSON_V2 encoded list, but received: JSON_V1\n");
+  }
+
+  /** The response waits for storage, so there's no need to poll. */
+  void awaitSpans(int count) {
+    assertThat(storage.acceptedSpanCount()).isEqualTo(count);
+  }
+
+  Response post(byte[] body, String contentType, boolean gzip) throws IOException {
+    Request.Builder request = new Request.Builder().url(url("/api/v2/spans"));
+    if (gzip) {
+      Buffer gzipped = new Buffer();
+      try (GzipSink sink = new GzipSink(gzipped)) {
+        sink.write(new Buffer().write(body), body.length);
+      }
+      body = gzipped.readByteArray();
+      request.header("Content-Encoding", "gzip");
+    }
+    return client.newCall(
+      request.post(RequestBody.create(body, MediaType.get(contentType))).build()).execute();
+  }
+
+  String url(String path) {
+    return "http://localhost:" + server.activeLocalPort() + path;
+  }
+}
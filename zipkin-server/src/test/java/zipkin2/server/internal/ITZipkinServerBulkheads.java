@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.CheckResult;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.TRACE;
+
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "zipkin.bulkhead.query.threads=1",
+    "zipkin.bulkhead.collector.threads=1",
+    "zipkin.bulkhead.health.threads=1",
+    "zipkin.bulkhead.health.queue-size=1",
+    "spring.config.name=zipkin-server"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinServerBulkheads {
+  InMemoryStorage delegate = InMemoryStorage.newBuilder().build();
+  List<String> threads = new CopyOnWriteArrayList<>();
+
+  @MockBean StorageComponent storage;
+  @Autowired Server server;
+  @Autowired MeterRegistry registry;
+
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(true).build();
+  CountDownLatch unblock = new CountDownLatch(1);
+
+  @Before public void init() {
+    when(storage.spanConsumer()).thenAnswer(i -> {
+      threads.add(Thread.currentThread().getName());
+      return delegate.spanConsumer();
+    });
+    when(storage.serviceAndSpanNames()).thenAnswer(i -> {
+      threads.add(Thread.currentThread().getName());
+      return delegate.serviceAndSpanNames();
+    });
+    when(storage.check()).thenAnswer(i -> {
+      threads.add(Thread.currentThread().getName());
+      return CheckResult.OK;
+    });
+  }
+
+  @Test public void storageCallsRunOnTheirBulkhead() throws Exception {
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+    assertThat(post("/api/v2/spans", body).code()).isEqualTo(202);
+
+    assertThat(get("/api/v2/services").body().string())
+      .isEqualTo("[\"backend\",\"frontend\"]");
+
+    assertThat(get("/health").code()).isEqualTo(200);
+
+    assertThat(threads).hasSize(3);
+    assertThat(threads.get(0)).startsWith("zipkin-collector");
+    assertThat(threads.get(1)).startsWith("zipkin-query");
+    assertThat(threads.get(2)).startsWith("zipkin-health");
+  }
+
+  /** Ensures health checks of one test don't run during another. */
+  @After public void release() {
+    unblock.countDown();
+    await().until(() ->
+      registry.get("zipkin_bulkhead.queue_size").tag("pool", "health").gauge().value() == 0.0
+        && registry.get("zipkin_bulkhead.active_threads").tag("pool", "health").gauge().value()
+        == 0.0);
+  }
+
+  @Test public void healthBulkheadFull_isDown() throws Exception {
+    AtomicInteger checks = new AtomicInteger();
+    when(storage.check()).thenAnswer(i -> {
+      checks.incrementAndGet();
+      unblock.await();
+      return CheckResult.OK;
+    });
+    client.newCall(new Request.Builder().url(url("/health")).build()).enqueue(NOOP_CALLBACK);
+    await().until(() -> checks.get() == 1); // the only thread is now blocked
+    client.newCall(new Request.Builder().url(url("/health")).build()).enqueue(NOOP_CALLBACK);
+    await().until(() ->
+      registry.get("zipkin_bulkhead.queue_size").tag("pool", "health").gauge().value() == 1.0);
+
+    // Rejected without waiting on storage
+    Response rejected = get("/health");
+    assertThat(rejected.code()).isEqualTo(503);
+    assertThat(rejected.body().string()).contains("Too many health checks waiting for storage");
+  }
+
+  @Test public void bulkheadsAreMetered() throws Exception {
+    assertThat(get("/api/v2/services").code()).isEqualTo(200);
+
+    assertThat(registry.get("zipkin_bulkhead.queue_time").tag("pool", "query").timer().count())
+      .isPositive();
+    assertThat(registry.get("zipkin_bulkhead.active_threads").tag("pool", "collector").gauge())
+      .isNotNull();
+  }
+
+  static final Callback NOOP_CALLBACK = new Callback() {
+    @Override public void onFailure(Call call, IOException e) {
+    }
+
+    @Override public void onResponse(Call call, Response response) {
+      response.close();
+    }
+  };
+
+  Response get(String path) throws IOException {
+    return client.newCall(new Request.Builder().url(url(path)).build()).execute();
+  }
+
+  Response post(String path, byte[] body) throws IOException {
+    return client.newCall(new Request.Builder()
+      .url(url(path))
+      .post(RequestBody.create(body))
+      .build()).execute();
+  }
+
+  String url(String path) {
+    return "http://localhost:" + server.activeLocalPort() + path;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.ServiceAndSpanNames;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "zipkin.query.throttle.enabled=true",
+    "zipkin.query.throttle.min-concurrency=1",
+    "zipkin.query.throttle.max-concurrency=1",
+    "zipkin.query.throttle.max-queue-size=1",
+    "spring.config.name=zipkin-server"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinServerQueryThrottle {
+  @MockBean StorageComponent storage;
+  @Autowired Server server;
+  @Autowired MeterRegistry registry;
+
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(true).build();
+  CountDownLatch unblock = new CountDownLatch(1);
+  AtomicInteger storageCalls = new AtomicInteger();
+
+  @Before public void init() {
+    ServiceAndSpanNames names = InMemoryStorage.newBuilder().build().serviceAndSpanNames();
+    ServiceAndSpanNames blocking = new ServiceAndSpanNames() {
+      @Override public zipkin2.Call<List<String>> getServiceNames() {
+        storageCalls.incrementAndGet();
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return names.getServiceNames();
+      }
+
+      @Override public zipkin2.Call<List<String>> getRemoteServiceNames(String serviceName) {
+        return names.getRemoteServiceNames(serviceName);
+      }
+
+      @Override public zipkin2.Call<List<String>> getSpanNames(String serviceName) {
+        return names.getSpanNames(serviceName);
+      }
+    };
+    when(storage.serviceAndSpanNames()).thenReturn(blocking);
+  }
+
+  @After public void release() {
+    unblock.countDown();
+  }
+
+  @Test public void overLimit_queuesThenRejects() throws Exception {
+    CompletableFuture<Response> running = get("/api/v2/services");
+    await().until(() -> storageCalls.get() == 1);
+    CompletableFuture<Response> queued = get("/api/v2/services");
+    await().until(() -> registry.get("zipkin_query.throttle.queue_size").gauge().value() == 1.0);
+
+    // Rejected without waiting on storage
+    Response rejected = get("/api/v2/services").get(5, TimeUnit.SECONDS);
+    assertThat(rejected.code()).isEqualTo(503);
+    assertThat(queued).isNotDone();
+    assertThat(storageCalls).hasValue(1);
+
+    unblock.countDown();
+    assertThat(running.get(5, TimeUnit.SECONDS).code()).isEqualTo(200);
+    assertThat(queued.get(5, TimeUnit.SECONDS).code()).isEqualTo(200);
+    assertThat(storageCalls).hasValue(2);
+    assertThat(registry.get("zipkin_query.throttle.requests_rejected").counter().count())
+      .isEqualTo(1.0);
+  }
+
+  /** Requests that give up while queued shouldn't cause others to be rejected. */
+  @Test public void cancelledWhileQueued_leavesQueue() throws Exception {
+    CompletableFuture<Response> running = get("/api/v2/services");
+    await().until(() -> storageCalls.get() == 1);
+    Call cancelled = newCall("/api/v2/services");
+    enqueue(cancelled);
+    await().until(() -> registry.get("zipkin_query.throttle.queue_size").gauge().value() == 1.0);
+
+    cancelled.cancel();
+    await().until(() -> registry.get("zipkin_query.throttle.queue_size").gauge().value() == 0.0);
+
+    CompletableFuture<Response> queued = get("/api/v2/services");
+    unblock.countDown();
+    assertThat(running.get(5, TimeUnit.SECONDS).code()).isEqualTo(200);
+    assertThat(queued.get(5, TimeUnit.SECONDS).code()).isEqualTo(200);
+    assertThat(storageCalls).hasValue(2);
+  }
+
+  CompletableFuture<Response> get(String path) {
+    return enqueue(newCall(path));
+  }
+
+  Call newCall(String path) {
+    return client.newCall(new Request.Builder()
+      .url("http://localhost:" + server.activeLocalPort() + path)
+      .build());
+  }
+
+  CompletableFuture<Response> enqueue(Call call) {
+    CompletableFuture<Response> result = new CompletableFuture<>();
+    call.enqueue(new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+        result.completeExceptionally(e);
+      }
+
+      @Override public void onResponse(Call call, Response response) {
+        result.complete(response);
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.TRACE;
+
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.NONE, // RANDOM_PORT requires spring-web
+  properties = {
+    "server.port=0",
+    "zipkin.blocking.virtual-threads=true",
+    "spring.config.name=zipkin-server"
+  }
+)
+@RunWith(SpringRunner.class)
+public class ITZipkinServerVirtualThreads {
+  InMemoryStorage delegate = InMemoryStorage.newBuilder().build();
+  List<String> threads = new CopyOnWriteArrayList<>();
+
+  @MockBean StorageComponent storage;
+  @Autowired Server server;
+
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(true).build();
+
+  @Before public void init() {
+    when(storage.spanConsumer()).thenAnswer(i -> {
+      threads.add(Thread.currentThread().getName());
+      return delegate.spanConsumer();
+    });
+    when(storage.serviceAndSpanNames()).thenAnswer(i -> {
+      threads.add(Thread.currentThread().getName());
+      return delegate.serviceAndSpanNames();
+    });
+  }
+
+  @Test public void storageCallsRunOnBlockingTaskExecutor() throws Exception {
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+    assertThat(post("/api/v2/spans", body).code()).isEqualTo(202);
+
+    assertThat(get("/api/v2/services").body().string())
+      .isEqualTo("[\"backend\",\"frontend\"]");
+
+    assertThat(threads)
+      .hasSize(2)
+      .allMatch(name -> name.startsWith("zipkin-blocking-"));
+  }
+
+  Response get(String path) throws IOException {
+    return client.newCall(new Request.Builder().url(url(path)).build()).execute();
+  }
+
+  Response post(String path, byte[] body) throws IOException {
+    return client.newCall(new Request.Builder()
+      .url(url(path))
+      .post(RequestBody.create(body))
+      .build()).execute();
+  }
+
+  String url(String path) {
+    return "http://localhost:" + server.activeLocalPort() + path;
+  }
+}
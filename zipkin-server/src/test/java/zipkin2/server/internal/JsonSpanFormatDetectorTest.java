@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+public class JsonSpanFormatDetectorTest {
+  @Test public void v2() {
+    assertThat(detect(SpanBytesEncoder.JSON_V2.encodeList(TRACE)))
+      .isEqualTo(SpanBytesDecoder.JSON_V2);
+  }
+
+  @Test public void v1() {
+    assertThat(detect(SpanBytesEncoder.JSON_V1.encodeList(TRACE)))
+      .isEqualTo(SpanBytesDecoder.JSON_V1);
+  }
+
+  @Test public void v1_binaryAnnotations() {
+    assertThat(detect(("[{\"traceId\":\"1\",\"id\":\"1\",\"name\":\"get\",\"binaryAnnotations\":"
+      + "[{\"key\":\"lc\",\"value\":\"\",\"endpoint\":{\"serviceName\":\"app\"}}]}]")))
+      .isEqualTo(SpanBytesDecoder.JSON_V1);
+  }
+
+  /** v2 annotations only have a timestamp and value */
+  @Test public void v2_annotationsOnly() {
+    assertThat(detect("[{\"traceId\":\"1\",\"id\":\"1\",\"annotations\":"
+      + "[{\"timestamp\":1,\"value\":\"endpoint\"},{\"timestamp\":2,\"value\":\"{\\\"\"}]}]"))
+      .isNull();
+  }
+
+  @Test public void undecided_nameOnly() {
+    assertThat(detect("[{\"traceId\":\"1\",\"id\":\"1\",\"name\":\"tags\"}]")).isNull();
+  }
+
+  @Test public void ignoresFieldNamesInValues() {
+    Span span = Span.newBuilder().traceId("1").id("1").name("\"binaryAnnotations\":")
+      .addAnnotation(1L, "\"endpoint\":").build();
+
+    assertThat(detect(SpanBytesEncoder.JSON_V2.encodeList(asList(span, CLIENT_SPAN))))
+      .isNull(); // only the first span is read
+  }
+
+  @Test public void whitespace() {
+    assertThat(detect(" [ {\n \"traceId\" : \"1\" ,\n \"tags\" : {} } ] "))
+      .isEqualTo(SpanBytesDecoder.JSON_V2);
+  }
+
+  @Test public void malformed() {
+    assertThat(detect("")).isNull();
+    assertThat(detect("[")).isNull();
+    assertThat(detect("[]")).isNull();
+    assertThat(detect("{\"tags\":{}}")).isNull();
+    assertThat(detect("[{\"traceId\":")).isNull();
+    assertThat(detect("[{\"traceId\" \"1\"}]")).isNull();
+    assertThat(detect("[{\"annotations\":[{\"timestamp\":1")).isNull();
+  }
+
+  static SpanBytesDecoder detect(String json) {
+    return detect(json.getBytes());
+  }
+
+  static SpanBytesDecoder detect(byte[] json) {
+    return JsonSpanFormatDetector.detect(ByteBuffer.wrap(json));
+  }
+}
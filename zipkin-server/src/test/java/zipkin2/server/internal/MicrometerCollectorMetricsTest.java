@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import zipkin2.collector.ServiceCounters;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MicrometerCollectorMetricsTest {
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  ServiceCounters services = ServiceCounters.create(1,
+    (name, counters) -> MicrometerCollectorMetrics.registerServiceMeters(registry, counters),
+    (name, counters) -> MicrometerCollectorMetrics.removeServiceMeters(registry, counters));
+
+  @Test public void evictedServiceMetersAreRemoved() {
+    services.incrementSpans("frontend", 1, 10);
+    services.incrementSpans("backend", 2, 10);
+
+    services.rebalance();
+
+    assertThat(registry.find("zipkin_collector.service.spans").tag("service", "frontend").meters())
+      .isEmpty();
+    assertThat(registry.get("zipkin_collector.service.spans").tag("service", "backend")
+      .functionCounter().count()).isZero();
+    assertThat(registry.get("zipkin_collector.service.spans").tag("service", "OTHER")
+      .functionCounter().count()).isEqualTo(3.0);
+    assertThat(registry.getMeters()).hasSize(6); // three meters for backend and OTHER
+  }
+}
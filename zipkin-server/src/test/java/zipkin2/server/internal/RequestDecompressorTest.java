@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.github.luben.zstd.Zstd;
+import com.linecorp.armeria.common.ContentTooLargeException;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.encoding.StreamDecoderFactory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.SnappyFrameDecoder;
+import io.netty.handler.codec.compression.SnappyFrameEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.TRACE;
+
+public class RequestDecompressorTest {
+  static final byte[] JSON = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  RequestDecompressor decompressor =
+    RequestDecompressor.create(Collections.emptyList(), 1024 * 1024, registry);
+
+  @Test public void encodings() {
+    assertThat(decompressor.encodings())
+      .containsExactly("gzip", "x-gzip", "deflate", "snappy", "zstd");
+  }
+
+  @Test public void notCompressed() {
+    assertThat(decompressor.newDecompression(null, ByteBufAllocator.DEFAULT)).isNull();
+    assertThat(decompressor.newDecompression("identity", ByteBufAllocator.DEFAULT)).isNull();
+  }
+
+  @Test public void unsupported() {
+    assertThatThrownBy(() -> decompressor.newDecompression("br", ByteBufAllocator.DEFAULT))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Unsupported Content-Encoding: br\n");
+  }
+
+  @Test public void gzip() throws IOException {
+    assertDecompresses("gzip", gzip(JSON));
+    assertDecompresses("x-gzip", gzip(JSON));
+    assertDecompresses("GZIP", gzip(JSON)); // case-insensitive
+  }
+
+  @Test public void deflate() throws IOException {
+    assertDecompresses("deflate", deflate(JSON, false));
+    assertDecompresses("deflate", deflate(JSON, true));
+  }
+
+  @Test public void snappy() {
+    assertDecompresses("snappy", snappy(JSON));
+  }
+
+  @Test public void zstd() {
+    assertDecompresses("zstd", Zstd.compress(JSON));
+  }
+
+  /** Concatenated frames are valid zstd */
+  @Test public void zstd_multipleFrames() {
+    byte[] first = Zstd.compress(Arrays.copyOf(JSON, 100));
+    byte[] second = Zstd.compress(Arrays.copyOfRange(JSON, 100, JSON.length));
+    byte[] compressed = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, compressed, first.length, second.length);
+
+    assertDecompresses("zstd", compressed);
+  }
+
+  @Test public void recordsMetrics() throws IOException {
+    byte[] compressed = gzip(JSON);
+    decompressor.newDecompression("gzip", ByteBufAllocator.DEFAULT)
+      .decompress(HttpData.wrap(compressed)).close();
+
+    assertThat(registry.get("zipkin_collector.http.compression_ratio").tag("encoding", "gzip")
+      .summary().mean()).isEqualTo((double) JSON.length / compressed.length);
+    assertThat(registry.get("zipkin_collector.http.decompression_duration").tag("encoding", "gzip")
+      .timer().count()).isEqualTo(1);
+  }
+
+  @Test public void malformed() {
+    assertThatThrownBy(() -> decompress("gzip", "notgzip, but longer than a header".getBytes()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Cannot gunzip spans");
+    assertThatThrownBy(() -> decompress("zstd", "notzstd".getBytes()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Cannot decompress zstd spans");
+  }
+
+  @Test public void truncated() throws IOException {
+    byte[] compressed = gzip(JSON);
+
+    assertThatThrownBy(() -> decompress("gzip", Arrays.copyOf(compressed, compressed.length - 4)))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Cannot gunzip spans");
+    assertThatThrownBy(() -> decompress("gzip", "notgzip".getBytes())) // shorter than a header
+      .isInstanceOf(IllegalArgumentException.class);
+
+    byte[] zstd = Zstd.compress(JSON);
+    assertThatThrownBy(() -> decompress("zstd", Arrays.copyOf(zstd, zstd.length - 4)))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Cannot decompress zstd spans");
+  }
+
+  @Test public void abort_closesZstdStream() {
+    RequestDecompressor.Decompression decompression =
+      decompressor.newDecompression("zstd", ByteBufAllocator.DEFAULT);
+    byte[] compressed = Zstd.compress(JSON);
+    decompression.decode(HttpData.wrap(compressed, 0, compressed.length / 2)).close();
+
+    decompression.abort();
+
+    ZstdStreamDecoder decoder = (ZstdStreamDecoder) decompression.decoder;
+    assertThatThrownBy(() -> decoder.stream.read(ZstdStreamDecoder.OUTPUT.get()))
+      .hasMessage("Stream closed");
+  }
+
+  /** A zip bomb fails before much more than the limit is decompressed. */
+  @Test public void tooLarge() throws IOException {
+    byte[] zeros = new byte[64 * 1024 * 1024];
+    for (String encoding : Arrays.asList("gzip", "deflate", "snappy", "zstd")) {
+      byte[] compressed = encoding.equals("gzip") ? gzip(zeros)
+        : encoding.equals("deflate") ? deflate(zeros, false)
+        : encoding.equals("snappy") ? snappy(zeros)
+        : Zstd.compress(zeros);
+      RequestDecompressor.Decompression decompression =
+        decompressor.newDecompression(encoding, ByteBufAllocator.DEFAULT);
+
+      assertThatThrownBy(() -> decompression.decompress(HttpData.wrap(compressed)))
+        .isInstanceOf(ContentTooLargeException.class);
+      assertThat(decompression.decompressedBytes)
+        .isLessThan(1024 * 1024 + RequestDecompressor.SLICE_BYTES * 1100);
+    }
+  }
+
+  @Test public void customEncoding() {
+    StreamDecoderFactory custom =
+      RequestDecompressor.netty("x-snappy-framed", SnappyFrameDecoder::new);
+    decompressor = RequestDecompressor.create(Collections.singletonList(custom), 0, null);
+
+    assertDecompresses("x-snappy-framed", snappy(JSON));
+  }
+
+  void assertDecompresses(String encoding, byte[] compressed) {
+    assertThat(decompress(encoding, compressed)).isEqualTo(JSON);
+
+    // Also check when the body arrives in chunks
+    RequestDecompressor.Decompression decompression =
+      decompressor.newDecompression(encoding, ByteBufAllocator.DEFAULT);
+    ByteBuf result = Unpooled.buffer();
+    for (int i = 0; i < compressed.length; i += 7) {
+      int length = Math.min(7, compressed.length - i);
+      try (HttpData data = decompression.decode(HttpData.wrap(compressed, i, length))) {
+        result.writeBytes(data.array());
+      }
+    }
+    try (HttpData data = decompression.finish()) {
+      result.writeBytes(data.array());
+    }
+    assertThat(ByteBufUtil.getBytes(result)).isEqualTo(JSON);
+  }
+
+  byte[] decompress(String encoding, byte[] compressed) {
+    try (HttpData data = decompressor.newDecompression(encoding, ByteBufAllocator.DEFAULT)
+      .decompress(HttpData.wrap(compressed))) {
+      return data.array();
+    }
+  }
+
+  static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] deflate(byte[] bytes, boolean raw) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (OutputStream deflate = new DeflaterOutputStream(out, new Deflater(9, raw))) {
+      deflate.write(bytes);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] snappy(byte[] bytes) {
+    EmbeddedChannel channel = new EmbeddedChannel(new SnappyFrameEncoder());
+    channel.writeOutbound(Unpooled.wrappedBuffer(bytes));
+    channel.finish();
+    ByteBuf result = Unpooled.buffer();
+    for (ByteBuf buf; (buf = channel.readOutbound()) != null; buf.release()) {
+      result.writeBytes(buf);
+    }
+    return ByteBufUtil.getBytes(result);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.Collector;
+import zipkin2.storage.InMemoryStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+import static org.awaitility.Awaitility.await;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.TRACE;
+
+public class SpanDecodePoolTest {
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  Collector collector = Collector.newBuilder(getClass()).storage(storage).build();
+  List<String> storageThreads = new ArrayList<>();
+  SpanDecodePool pool = SpanDecodePool.create(1024, 64 * 1024, 2);
+
+  @After public void close() {
+    pool.close();
+  }
+
+  @Test public void smallMessage_decodesOnCallingThread() throws Exception {
+    ByteBuf message = Unpooled.wrappedBuffer(SpanBytesEncoder.PROTO3.encodeList(TRACE));
+
+    accept(message, SpanBytesDecoder.PROTO3);
+
+    assertThat(storageThreads).containsExactly(Thread.currentThread().getName());
+    assertThat(storage.acceptedSpanCount()).isEqualTo(TRACE.size());
+    assertThat(message.refCnt()).isZero();
+  }
+
+  @Test public void largeMessage_decodesOnPool() throws Exception {
+    List<Span> spans = spans(100);
+    ByteBuf message = Unpooled.wrappedBuffer(SpanBytesEncoder.JSON_V2.encodeList(spans));
+
+    accept(message, SpanBytesDecoder.JSON_V2);
+
+    assertThat(storageThreads).allMatch(name -> name.startsWith("zipkin-decode-"));
+    assertThat(storage.getTrace(CLIENT_SPAN.traceId()).execute())
+      .containsExactlyInAnyOrderElementsOf(spans);
+    awaitReleased(message);
+  }
+
+  @Test public void veryLargeMessage_decodesInParallel() throws Exception {
+    List<Span> spans = spans(5000);
+    ByteBuf message = Unpooled.wrappedBuffer(SpanBytesEncoder.PROTO3.encodeList(spans));
+    assertThat(message.readableBytes()).isGreaterThan(2 * SpanDecodePool.MIN_PART_BYTES);
+
+    List<Span> decoded = pool.pool.submit(
+      () -> pool.decodeParallel(SpanBytesDecoder.PROTO3, message)).get(10, TimeUnit.SECONDS);
+
+    assertThat(decoded).containsExactlyElementsOf(spans); // in original order
+  }
+
+  @Test public void veryLargeMessage_malformed() {
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(spans(5000));
+    ByteBuf message = Unpooled.wrappedBuffer(Arrays.copyOf(json, json.length - 10)); // truncated
+
+    assertThatThrownBy(() -> accept(message, SpanBytesDecoder.JSON_V2))
+      .isInstanceOf(ExecutionException.class)
+      .hasCauseInstanceOf(IllegalArgumentException.class);
+    awaitReleased(message);
+  }
+
+  /** Decode errors in a part should read the same as when decoding inline. */
+  @Test public void unwrapJoinException() {
+    ForkJoinTask<?> part = pool.pool.submit(() -> {
+      throw new IllegalArgumentException("Malformed reading List<Span> from json");
+    });
+    await().until(part::isDone);
+
+    RuntimeException joined = catchThrowableOfType(part::join, IllegalArgumentException.class);
+    assertThat(joined).hasMessageStartingWith("java.lang.IllegalArgumentException"); // a copy
+
+    assertThat(SpanDecodePool.unwrapJoinException(joined))
+      .isSameAs(joined.getCause())
+      .hasMessage("Malformed reading List<Span> from json");
+  }
+
+  @Test public void unwrapJoinException_notCopy() {
+    IllegalArgumentException e =
+      new IllegalArgumentException("Malformed", new IllegalArgumentException("cause"));
+
+    assertThat(SpanDecodePool.unwrapJoinException(e)).isSameAs(e);
+  }
+
+  void accept(ByteBuf message, SpanBytesDecoder decoder) throws Exception {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    pool.acceptSpans(collector, message, decoder, new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        result.complete(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.completeExceptionally(t);
+      }
+    }, command -> {
+      storageThreads.add(Thread.currentThread().getName());
+      command.run();
+    }, null);
+    result.get(10, TimeUnit.SECONDS);
+  }
+
+  /** The callback can complete before the message is released by the decode thread. */
+  static void awaitReleased(ByteBuf message) {
+    await().untilAsserted(() -> assertThat(message.refCnt()).isZero());
+  }
+
+  static List<Span> spans(int count) {
+    List<Span> spans = new ArrayList<>();
+    for (int i = 1; i <= count; i++) spans.add(CLIENT_SPAN.toBuilder().id(i).build());
+    return spans;
+  }
+}
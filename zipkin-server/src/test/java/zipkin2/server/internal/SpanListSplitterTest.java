@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.TRACE;
+
+public class SpanListSplitterTest {
+  List<byte[]> batches = new ArrayList<>();
+
+  @Test public void json_oneBatch() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+    split(SpanBytesDecoder.JSON_V2, Integer.MAX_VALUE, message, 7);
+
+    assertThat(batches).hasSize(1);
+    assertThat(decodeBatches(SpanBytesDecoder.JSON_V2)).isEqualTo(TRACE);
+  }
+
+  @Test public void json_batchPerSpan() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+    split(SpanBytesDecoder.JSON_V2, 1, message, 7);
+
+    assertThat(batches).hasSize(TRACE.size());
+    assertThat(decodeBatches(SpanBytesDecoder.JSON_V2)).isEqualTo(TRACE);
+  }
+
+  @Test public void json_ignoresBracesInStrings() {
+    Span span = TRACE.get(0).toBuilder().name("get /{id}").putTag("json", "{\"a\":\"\\\"}\"").build();
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(Arrays.asList(span, span));
+
+    split(SpanBytesDecoder.JSON_V2, 1, message, 3);
+
+    assertThat(decodeBatches(SpanBytesDecoder.JSON_V2)).containsExactly(span, span);
+  }
+
+  @Test public void json_whitespace() {
+    String span = new String(SpanBytesEncoder.JSON_V2.encode(TRACE.get(0)));
+    byte[] message = (" [\n " + span + " ,\n" + span + "\n] ").getBytes();
+
+    split(SpanBytesDecoder.JSON_V2, 1, message, 5);
+
+    assertThat(decodeBatches(SpanBytesDecoder.JSON_V2)).containsExactly(TRACE.get(0), TRACE.get(0));
+  }
+
+  @Test public void json_empty() {
+    split(SpanBytesDecoder.JSON_V2, 1, new byte[0], 1);
+    split(SpanBytesDecoder.JSON_V2, 1, "[]".getBytes(), 1);
+
+    assertThat(batches).isEmpty();
+  }
+
+  @Test public void json_notList() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encode(TRACE.get(0));
+
+    assertThatThrownBy(() -> split(SpanBytesDecoder.JSON_V2, 1, message, 7))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Expected a JSON_V2 encoded list\n");
+  }
+
+  @Test public void json_truncated() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+    assertThatThrownBy(() -> split(SpanBytesDecoder.JSON_V2, 1,
+      Arrays.copyOf(message, message.length - 1), 7))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Expected a JSON_V2 encoded list\n");
+  }
+
+  @Test public void proto3_oneBatch() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+
+    split(SpanBytesDecoder.PROTO3, Integer.MAX_VALUE, message, 7);
+
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0)).isEqualTo(message);
+  }
+
+  @Test public void proto3_batchPerSpan() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+
+    split(SpanBytesDecoder.PROTO3, 1, message, 1);
+
+    assertThat(batches).hasSize(TRACE.size());
+    assertThat(decodeBatches(SpanBytesDecoder.PROTO3)).isEqualTo(TRACE);
+  }
+
+  @Test public void proto3_empty() {
+    split(SpanBytesDecoder.PROTO3, 1, new byte[0], 1);
+
+    assertThat(batches).isEmpty();
+  }
+
+  @Test public void proto3_json() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+    assertThatThrownBy(() -> split(SpanBytesDecoder.PROTO3, 1, message, 7))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Expected a PROTO3 encoded list\n");
+  }
+
+  @Test public void proto3_truncated() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+
+    assertThatThrownBy(() -> split(SpanBytesDecoder.PROTO3, 1,
+      Arrays.copyOf(message, message.length - 1), 7))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Expected a PROTO3 encoded list\n");
+  }
+
+  @Test public void split_json() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+
+    SpanListSplitter splitter =
+      SpanListSplitter.split(SpanBytesDecoder.JSON_V2, Unpooled.wrappedBuffer(message), 1);
+    for (int i = 0; i < splitter.batchCount; i++) addBatch(splitter.batch(i));
+
+    assertThat(batches).hasSize(TRACE.size());
+    assertThat(decodeBatches(SpanBytesDecoder.JSON_V2)).isEqualTo(TRACE);
+  }
+
+  @Test public void split_proto3() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+
+    SpanListSplitter splitter =
+      SpanListSplitter.split(SpanBytesDecoder.PROTO3, Unpooled.wrappedBuffer(message), 100);
+    for (int i = 0; i < splitter.batchCount; i++) addBatch(splitter.batch(i));
+
+    assertThat(batches).hasSizeBetween(2, TRACE.size() - 1);
+    assertThat(decodeBatches(SpanBytesDecoder.PROTO3)).isEqualTo(TRACE);
+  }
+
+  /** Ensures the buffer doesn't hold spans already passed to the consumer. */
+  @Test public void compactsAfterBatch() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    SpanListSplitter splitter = SpanListSplitter.create(SpanBytesDecoder.PROTO3, 1);
+
+    splitter.write(Unpooled.wrappedBuffer(message), this::addBatch);
+    splitter.write(Unpooled.wrappedBuffer(message, 0, 1), this::addBatch);
+
+    assertThat(splitter.length).isEqualTo(1);
+  }
+
+  void addBatch(ByteBuffer batch) {
+    byte[] bytes = new byte[batch.remaining()];
+    batch.get(bytes);
+    batches.add(bytes);
+  }
+
+  void split(SpanBytesDecoder decoder, int batchBytes, byte[] message, int chunkSize) {
+    SpanListSplitter splitter = SpanListSplitter.create(decoder, batchBytes);
+    for (int i = 0; i < message.length; i += chunkSize) {
+      int length = Math.min(chunkSize, message.length - i);
+      splitter.write(Unpooled.wrappedBuffer(message, i, length), this::addBatch);
+    }
+    splitter.finish(this::addBatch);
+  }
+
+  List<Span> decodeBatches(SpanBytesDecoder decoder) {
+    List<Span> result = new ArrayList<>();
+    for (byte[] batch : batches) decoder.decodeList(batch, result);
+    return result;
+  }
+}
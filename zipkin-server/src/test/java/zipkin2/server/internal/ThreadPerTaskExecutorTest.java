@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class ThreadPerTaskExecutorTest {
+  // Platform threads, so that this runs before JRE 21
+  AtomicInteger threadNumber = new AtomicInteger();
+  ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(
+    r -> new Thread(r, "test-blocking-" + threadNumber.getAndIncrement()), 2, false);
+
+  @After public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void create_fallsBackToPlatformThreads() throws Exception {
+    assumeTrue(ThreadPerTaskExecutor.virtualThreadFactory("test-blocking-") == null);
+
+    ThreadPerTaskExecutor platform = ThreadPerTaskExecutor.create("test-blocking-", 2);
+    try {
+      assertThat(platform.virtual).isFalse();
+      assertThat(platform.submit(() -> Thread.currentThread().isDaemon()).get(1, TimeUnit.SECONDS))
+        .isTrue();
+      assertThat(platform.submit(() -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS))
+        .startsWith("test-blocking-");
+    } finally {
+      platform.shutdownNow();
+    }
+  }
+
+  @Test public void runsTasks() throws Exception {
+    assertThat(executor.submit(() -> Thread.currentThread().getName()).get(1, TimeUnit.SECONDS))
+      .startsWith("test-blocking-");
+  }
+
+  @Test public void queuesTasksOverMaxConcurrency() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      executor.execute(() -> {
+        started.countDown();
+        awaitUninterruptibly(release);
+      });
+    }
+
+    assertThat(started.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(executor.activeCount()).isEqualTo(2);
+    assertThat(executor.pendingCount()).isEqualTo(1);
+
+    release.countDown(); // completing a task starts the pending one
+    assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  /** Platform threads are expensive to start, so a finishing thread runs the pending tasks. */
+  @Test public void pendingTasksReuseThreads() throws Exception {
+    CountDownLatch release = new CountDownLatch(1), done = new CountDownLatch(10);
+    for (int i = 0; i < 2; i++) executor.execute(() -> awaitUninterruptibly(release));
+    for (int i = 0; i < 10; i++) executor.execute(done::countDown);
+    assertThat(executor.pendingCount()).isEqualTo(10);
+
+    release.countDown();
+    assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(threadNumber).hasValue(2);
+  }
+
+  @Test public void schedulesTasks() throws Exception {
+    CountDownLatch ran = new CountDownLatch(1);
+    executor.schedule(ran::countDown, 10, TimeUnit.MILLISECONDS);
+
+    assertThat(ran.await(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test public void schedulesCallables() throws Exception {
+    ScheduledFuture<String> result =
+      executor.schedule(() -> Thread.currentThread().getName(), 10, TimeUnit.MILLISECONDS);
+
+    assertThat(result.get(1, TimeUnit.SECONDS)).startsWith("test-blocking-");
+  }
+
+  @Test public void fixedDelay_doesntHoldScheduler() throws Exception {
+    CountDownLatch release = new CountDownLatch(1), ran = new CountDownLatch(2);
+    ScheduledFuture<?> periodic = executor.scheduleWithFixedDelay(() -> {
+      ran.countDown();
+      awaitUninterruptibly(release);
+    }, 0, 1, TimeUnit.MILLISECONDS);
+
+    CountDownLatch delayed = new CountDownLatch(1);
+    executor.schedule(delayed::countDown, 10, TimeUnit.MILLISECONDS);
+    assertThat(delayed.await(1, TimeUnit.SECONDS)).isTrue();
+
+    release.countDown(); // the next run is scheduled once the last completes
+    assertThat(ran.await(1, TimeUnit.SECONDS)).isTrue();
+    periodic.cancel(false);
+    assertThat(periodic.isCancelled()).isTrue();
+  }
+
+  @Test public void shutdown_awaitsRunningTasks() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(() -> awaitUninterruptibly(release));
+
+    executor.shutdown();
+    assertThatThrownBy(() -> executor.execute(() -> {
+    })).isInstanceOf(RejectedExecutionException.class);
+    assertThat(executor.awaitTermination(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    release.countDown();
+    assertThat(executor.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
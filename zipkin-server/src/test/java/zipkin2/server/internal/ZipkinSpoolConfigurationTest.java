@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import zipkin2.collector.DiskSpool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ZipkinSpoolConfigurationTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+  @After public void close() {
+    context.close();
+  }
+
+  @Test(expected = NoSuchBeanDefinitionException.class)
+  public void doesntProvideSpool_byDefault() {
+    refreshContext();
+
+    context.getBean(DiskSpool.class);
+  }
+
+  @Test public void providesSpool_whenEnabled() throws Exception {
+    File directory = folder.newFolder("spool");
+    TestPropertyValues.of(
+      "zipkin.collector.spool.enabled:true",
+      "zipkin.collector.spool.directory:" + directory,
+      "zipkin.collector.spool.max-bytes:1024")
+      .applyTo(context);
+    refreshContext();
+
+    DiskSpool spool = context.getBean(DiskSpool.class);
+    assertThat(spool).hasToString("DiskSpool{directory=" + directory + ", maxBytes=1024}");
+  }
+
+  void refreshContext() {
+    context.register(
+      PropertyPlaceholderAutoConfiguration.class,
+      ZipkinSpoolConfiguration.class,
+      NoOpMeterRegistryConfiguration.class,
+      InMemoryConfiguration.class);
+    context.refresh();
+  }
+}
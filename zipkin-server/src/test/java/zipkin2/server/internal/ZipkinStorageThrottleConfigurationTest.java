@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import zipkin2.Span;
+import zipkin2.server.internal.throttle.PriorityClassifier;
+import zipkin2.server.internal.throttle.ThrottledStorageComponent;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ZipkinStorageThrottleConfigurationTest {
+  AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+  @After public void close() {
+    context.close();
+  }
+
+  @Test public void doesntThrottle_byDefault() {
+    refreshContext();
+
+    assertThat(context.getBean(StorageComponent.class))
+      .isNotInstanceOf(ThrottledStorageComponent.class);
+  }
+
+  @Test public void priorityServices() {
+    TestPropertyValues.of(
+      "zipkin.storage.throttle.enabled:true",
+      "zipkin.storage.throttle.min-concurrency:1",
+      "zipkin.storage.throttle.max-concurrency:2",
+      "zipkin.storage.throttle.max-queue-size:10",
+      "zipkin.storage.throttle.priority-queue-size:10",
+      "zipkin.storage.throttle.priority-services:frontend,backend")
+      .applyTo(context);
+    refreshContext();
+
+    StorageComponent storage = context.getBean(StorageComponent.class);
+    assertThat(storage).isInstanceOf(ThrottledStorageComponent.class)
+      .extracting("priorityClassifier")
+      .hasToString("DefaultPriorityClassifier{services=[frontend, backend]}");
+  }
+
+  /** The environment variable defaults to an empty string */
+  @Test public void priorityServices_empty() {
+    TestPropertyValues.of(
+      "zipkin.storage.throttle.enabled:true",
+      "zipkin.storage.throttle.min-concurrency:1",
+      "zipkin.storage.throttle.max-concurrency:2",
+      "zipkin.storage.throttle.priority-queue-size:10",
+      "zipkin.storage.throttle.priority-services:")
+      .applyTo(context);
+    refreshContext();
+
+    assertThat(context.getBean(StorageComponent.class))
+      .extracting("priorityClassifier")
+      .hasToString("DefaultPriorityClassifier{services=[]}");
+  }
+
+  @Test public void priorityClassifier_canOverride() {
+    TestPropertyValues.of(
+      "zipkin.storage.throttle.enabled:true",
+      "zipkin.storage.throttle.min-concurrency:1",
+      "zipkin.storage.throttle.max-concurrency:2",
+      "zipkin.storage.throttle.priority-queue-size:10")
+      .applyTo(context);
+    context.register(CustomClassifier.class);
+    refreshContext();
+
+    assertThat(context.getBean(StorageComponent.class))
+      .extracting("priorityClassifier")
+      .isSameAs(CustomClassifier.SERVER_SPANS);
+  }
+
+  @Test public void dispatcher_doesntSupportPriorityLanes() {
+    TestPropertyValues.of(
+      "zipkin.storage.throttle.enabled:true",
+      "zipkin.storage.throttle.min-concurrency:1",
+      "zipkin.storage.throttle.max-concurrency:2",
+      "zipkin.storage.throttle.priority-queue-size:10",
+      "zipkin.storage.throttle.dispatcher:dispatcher")
+      .applyTo(context);
+
+    assertThatThrownBy(this::refreshContext)
+      .hasRootCauseInstanceOf(IllegalArgumentException.class)
+      .getRootCause()
+      .hasMessage("priorityQueueSize requires a thread pool");
+  }
+
+  @Configuration
+  static class CustomClassifier {
+    static final PriorityClassifier SERVER_SPANS = new PriorityClassifier() {
+      @Override public boolean isPriority(List<Span> spans) {
+        return spans.stream().anyMatch(s -> s.kind() == Span.Kind.SERVER);
+      }
+    };
+
+    @Bean PriorityClassifier priorityClassifier() {
+      return SERVER_SPANS;
+    }
+  }
+
+  void refreshContext() {
+    context.register(
+      PropertyPlaceholderAutoConfiguration.class,
+      ZipkinConfiguration.ThrottledStorageComponentEnhancer.class,
+      NoOpMeterRegistryConfiguration.class,
+      InMemoryConfiguration.class);
+    context.refresh();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ZipkinVirtualThreadsConfigurationTest {
+  AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+  @After public void close() {
+    context.close();
+  }
+
+  @Test(expected = NoSuchBeanDefinitionException.class)
+  public void doesntProvideExecutor_byDefault() {
+    refreshContext();
+
+    context.getBean(ThreadPerTaskExecutor.class);
+  }
+
+  @Test public void providesExecutor_whenEnabled() {
+    TestPropertyValues.of(
+      "zipkin.blocking.virtual-threads:true",
+      "zipkin.blocking.max-concurrency:50")
+      .applyTo(context);
+    refreshContext();
+
+    assertThat(context.getBean(ThreadPerTaskExecutor.class).maxConcurrency)
+      .isEqualTo(50);
+  }
+
+  @Test public void usesPlatformThreads_beforeJre21() {
+    assumeTrue(ThreadPerTaskExecutor.virtualThreadFactory("test-") == null);
+    TestPropertyValues.of("zipkin.blocking.virtual-threads:true").applyTo(context);
+    refreshContext();
+
+    assertThat(context.getBean(ThreadPerTaskExecutor.class).virtual).isFalse();
+  }
+
+  void refreshContext() {
+    context.register(
+      PropertyPlaceholderAutoConfiguration.class,
+      ZipkinVirtualThreadsConfiguration.class,
+      NoOpMeterRegistryConfiguration.class);
+    context.refresh();
+  }
+}
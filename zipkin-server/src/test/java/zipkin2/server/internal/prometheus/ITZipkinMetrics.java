@@ -110,6 +110,35 @@ public class ITZipkinMetrics {
         .doesNotContain("uri=\"/zipkin/api/v2/services\"");
   }
 
+  @Test void collectorHistograms_prometheus() throws Exception {
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(asList(LOTS_OF_SPANS[0]));
+    assertThat(post("/api/v2/spans", body).isSuccessful())
+      .isTrue();
+
+    assertThat(scrape())
+      .contains("zipkin_collector_spans_per_message_bucket{transport=\"http\"")
+      .contains("zipkin_collector_bytes_per_message_bytes_bucket{transport=\"http\"")
+      .contains("zipkin_collector_decode_duration_seconds_bucket{transport=\"http\"")
+      .contains("zipkin_collector_sample_duration_seconds_bucket{transport=\"http\"")
+      .contains("zipkin_collector_storage_duration_seconds_bucket{transport=\"http\"");
+  }
+
+  @Test void serviceMetrics() throws Exception {
+    Span span = LOTS_OF_SPANS[0];
+    byte[] body = SpanBytesEncoder.JSON_V2.encodeList(asList(span));
+    assertThat(post("/api/v2/spans", body).isSuccessful())
+      .isTrue();
+
+    assertThat(scrape())
+      .contains("zipkin_collector_service_spans_total{service=\"" + span.localServiceName())
+      .contains("zipkin_collector_service_bytes_total{service=\"" + span.localServiceName())
+      .contains("zipkin_collector_service_spans_dropped_total{service=\"OTHER\",}");
+
+    assertThat(getAsString("/metrics/services"))
+      .contains("\"serviceName\" : \"" + span.localServiceName() + "\"")
+      .contains("\"serviceName\" : \"OTHER\"");
+  }
+
   @Test void jvmMetrics_prometheus() throws Exception {
     assertThat(scrape())
         .contains("jvm_memory_max_bytes")
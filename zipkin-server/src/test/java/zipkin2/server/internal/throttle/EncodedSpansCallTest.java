@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.TRACE;
+
+public class EncodedSpansCallTest {
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  AtomicLong queuedBytes = new AtomicLong();
+  EncodedSpansCall call = EncodedSpansCall.create(
+    storage.spanConsumer(), TRACE, UnpooledByteBufAllocator.DEFAULT, queuedBytes);
+
+  @Test public void create_encodesProto3() {
+    assertThat(call.encoded.isDirect()).isTrue();
+    assertThat(queuedBytes.get())
+      .isEqualTo(SpanBytesEncoder.PROTO3.encodeList(TRACE).length);
+  }
+
+  @Test public void execute_decodesAndReleases() throws Exception {
+    call.execute();
+
+    assertThat(storage.getTraces()).containsExactly(TRACE);
+    assertThat(call.encoded.refCnt()).isZero();
+    assertThat(queuedBytes.get()).isZero();
+  }
+
+  @Test public void enqueue_decodesAndReleases() {
+    call.enqueue(ThrottledCall.NOOP_CALLBACK);
+
+    assertThat(storage.getTraces()).containsExactly(TRACE);
+    assertThat(call.encoded.refCnt()).isZero();
+  }
+
+  @Test public void cancel_releases() {
+    call.cancel();
+
+    assertThat(call.encoded.refCnt()).isZero();
+    assertThat(queuedBytes.get()).isZero();
+    assertThatThrownBy(call::execute).hasMessage("Canceled");
+  }
+
+  @Test public void clone_sharesBuffer() throws Exception {
+    Call<Void> clone = call.clone();
+    assertThat(queuedBytes.get())
+      .isEqualTo(2L * SpanBytesEncoder.PROTO3.encodeList(TRACE).length);
+
+    call.execute();
+    assertThat(call.encoded.refCnt()).isOne();
+
+    clone.execute();
+    assertThat(call.encoded.refCnt()).isZero();
+    assertThat(queuedBytes.get()).isZero();
+    assertThat(storage.acceptedSpanCount()).isEqualTo(TRACE.size() * 2);
+  }
+
+  @Test public void clone_afterRun() throws Exception {
+    call.execute();
+
+    assertThatThrownBy(call::clone).isInstanceOf(IllegalStateException.class);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MpscRingBufferTest {
+  MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(3);
+
+  @Test public void capacity_roundsUpToPowerOfTwo() {
+    assertThat(ring.capacity()).isEqualTo(4);
+    assertThat(new MpscRingBuffer<>(4).capacity()).isEqualTo(4);
+    assertThat(new MpscRingBuffer<>(1).capacity()).isEqualTo(1);
+  }
+
+  @Test public void capacity_mustBePositive() {
+    assertThatThrownBy(() -> new MpscRingBuffer<>(0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("capacity < 1");
+  }
+
+  @Test public void poll_empty() {
+    assertThat(ring.isEmpty()).isTrue();
+    assertThat(ring.poll()).isNull();
+  }
+
+  @Test public void offer_falseWhenFull() {
+    for (int i = 0; i < 4; i++) assertThat(ring.offer(i)).isTrue();
+
+    assertThat(ring.offer(4)).isFalse();
+    assertThat(ring.size()).isEqualTo(4);
+  }
+
+  @Test public void poll_inOrderAcrossLaps() {
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 3; i++) ring.offer(lap * 10 + i);
+      for (int i = 0; i < 3; i++) assertThat(ring.poll()).isEqualTo(lap * 10 + i);
+    }
+    assertThat(ring.isEmpty()).isTrue();
+  }
+
+  @Test public void offer_concurrentProducers() throws Exception {
+    MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4000);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> producers = new ArrayList<>();
+    for (int p = 0; p < 4; p++) {
+      int producer = p;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 0; i < 1000; i++) ring.offer(producer * 1000 + i);
+      });
+      thread.start();
+      producers.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : producers) thread.join();
+
+    List<Integer> polled = new ArrayList<>();
+    for (Integer next; (next = ring.poll()) != null; ) polled.add(next);
+    assertThat(polled).hasSize(4000).doesNotHaveDuplicates();
+  }
+}
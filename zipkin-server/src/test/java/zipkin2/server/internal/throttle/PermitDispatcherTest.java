@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PermitDispatcherTest {
+  PermitDispatcher dispatcher = new PermitDispatcher(1, 2);
+  List<String> ran = new ArrayList<>();
+
+  @Test public void execute_runsOnCallingThreadWithPermit() {
+    dispatcher.execute(() -> ran.add(Thread.currentThread().getName()));
+
+    assertThat(ran).containsExactly(Thread.currentThread().getName());
+    assertThat(dispatcher.inFlight.get()).isEqualTo(1);
+  }
+
+  @Test public void execute_queuesWithoutPermit() {
+    dispatcher.execute(() -> ran.add("1"));
+    dispatcher.execute(() -> ran.add("2"));
+
+    assertThat(ran).containsExactly("1");
+    assertThat(dispatcher.queueSize()).isEqualTo(1);
+  }
+
+  @Test public void release_runsNextInOrder() {
+    dispatcher.execute(() -> ran.add("1"));
+    dispatcher.execute(() -> ran.add("2"));
+    dispatcher.execute(() -> ran.add("3"));
+
+    dispatcher.release();
+    assertThat(ran).containsExactly("1", "2");
+
+    dispatcher.release();
+    assertThat(ran).containsExactly("1", "2", "3");
+    assertThat(dispatcher.queueSize()).isZero();
+  }
+
+  /** A synchronous call releases its permit before its task returns. */
+  @Test public void release_insideTask_doesntRecurse() {
+    int[] depth = {0};
+    for (int i = 0; i < 3; i++) {
+      dispatcher.execute(() -> {
+        ran.add("depth " + ++depth[0]);
+        dispatcher.release();
+        depth[0]--;
+      });
+    }
+
+    assertThat(ran).containsExactly("depth 1", "depth 1", "depth 1");
+    assertThat(dispatcher.inFlight.get()).isZero();
+  }
+
+  @Test public void execute_rejectsWhenQueueFull() {
+    dispatcher.execute(() -> ran.add("1"));
+    dispatcher.execute(() -> ran.add("2"));
+    dispatcher.execute(() -> ran.add("3"));
+
+    assertThatThrownBy(() -> dispatcher.execute(() -> ran.add("4")))
+      .isSameAs(ThrottledStorageComponent.STORAGE_THROTTLE_MAX_QUEUE_SIZE);
+  }
+
+  @Test public void execute_zeroQueueSize_rejectsWithoutPermit() {
+    PermitDispatcher dispatcher = new PermitDispatcher(1, 0);
+    dispatcher.execute(() -> ran.add("1"));
+
+    assertThatThrownBy(() -> dispatcher.execute(() -> ran.add("2")))
+      .isSameAs(ThrottledStorageComponent.STORAGE_THROTTLE_MAX_QUEUE_SIZE);
+  }
+
+  @Test public void accept_limitIncrease_runsWaiting() {
+    dispatcher.execute(() -> ran.add("1"));
+    dispatcher.execute(() -> ran.add("2"));
+
+    dispatcher.accept(2);
+
+    assertThat(ran).containsExactly("1", "2");
+    assertThat(dispatcher.inFlight.get()).isEqualTo(2);
+  }
+
+  @Test public void accept_limitDecrease_waitsForPermits() {
+    dispatcher.accept(2);
+    dispatcher.execute(() -> ran.add("1"));
+    dispatcher.execute(() -> ran.add("2"));
+    dispatcher.execute(() -> ran.add("3"));
+
+    dispatcher.accept(1);
+    dispatcher.release();
+    assertThat(ran).containsExactly("1", "2");
+
+    dispatcher.release();
+    assertThat(ran).containsExactly("1", "2", "3");
+  }
+
+  @Test public void execute_continuesAfterTaskError() {
+    dispatcher.execute(() -> ran.add("1"));
+    dispatcher.execute(() -> {
+      throw new IllegalStateException();
+    });
+    dispatcher.execute(() -> ran.add("3"));
+
+    dispatcher.release();
+    dispatcher.release();
+    assertThat(ran).containsExactly("1", "3");
+  }
+
+  @Test public void close_rejects() {
+    dispatcher.close();
+
+    assertThatThrownBy(() -> dispatcher.execute(() -> ran.add("1")))
+      .isInstanceOf(RejectedExecutionException.class);
+  }
+}
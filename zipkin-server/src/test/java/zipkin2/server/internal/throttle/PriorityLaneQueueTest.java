@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.server.internal.throttle.PriorityLaneQueue.LaneTask;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.server.internal.throttle.PriorityLaneQueue.DEFAULT;
+import static zipkin2.server.internal.throttle.PriorityLaneQueue.PRIORITY;
+
+public class PriorityLaneQueueTest {
+  PriorityLaneQueue queue = new PriorityLaneQueue(2, 2, 2);
+
+  @Test public void lanesAreBoundedSeparately() {
+    assertThat(queue.offer(task(DEFAULT))).isTrue();
+    assertThat(queue.offer(task(DEFAULT))).isTrue();
+    assertThat(queue.offer(task(DEFAULT))).isFalse();
+
+    // the default lane being full doesn't affect the priority lane
+    assertThat(queue.offer(task(PRIORITY))).isTrue();
+    assertThat(queue.offer(task(PRIORITY))).isTrue();
+    assertThat(queue.offer(task(PRIORITY))).isFalse();
+
+    assertThat(queue.size()).isEqualTo(4);
+    assertThat(queue.size(PRIORITY)).isEqualTo(2);
+    assertThat(queue.remainingCapacity()).isZero();
+    assertThat(queue.rejections(DEFAULT)).isEqualTo(1);
+    assertThat(queue.rejections(PRIORITY)).isEqualTo(1);
+  }
+
+  @Test public void unknownTasksAreDefault() {
+    queue.offer(() -> {
+    });
+
+    assertThat(queue.size(DEFAULT)).isEqualTo(1);
+  }
+
+  @Test public void weightedDequeue() {
+    queue = new PriorityLaneQueue(10, 10, 2);
+    List<LaneTask> priority = new ArrayList<>(), normal = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      priority.add(task(PRIORITY));
+      normal.add(task(DEFAULT));
+      queue.offer(normal.get(i));
+      queue.offer(priority.get(i));
+    }
+
+    assertThat(drain()).containsExactly(
+      priority.get(0), priority.get(1), normal.get(0),
+      priority.get(2), priority.get(3), normal.get(1),
+      normal.get(2), normal.get(3)
+    );
+  }
+
+  @Test public void poll_timesOut() throws Exception {
+    assertThat(queue.poll(1, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test public void remove() {
+    LaneTask task = task(PRIORITY);
+    queue.offer(task);
+
+    assertThat(queue.remove(task)).isTrue();
+    assertThat(queue).isEmpty();
+  }
+
+  @Test public void iterator_priorityFirst() {
+    LaneTask normal = task(DEFAULT), priority = task(PRIORITY);
+    queue.offer(normal);
+    queue.offer(priority);
+
+    assertThat(queue).containsExactly(priority, normal);
+  }
+
+  @Test public void weight_atLeastOne() {
+    assertThatThrownBy(() -> new PriorityLaneQueue(1, 1, 0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("priorityWeight < 1");
+  }
+
+  List<Runnable> drain() {
+    List<Runnable> result = new ArrayList<>();
+    queue.drainTo(result);
+    return result;
+  }
+
+  static LaneTask task(int lane) {
+    return new LaneTask(lane, () -> {
+    });
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal.throttle;
+
+import com.linecorp.armeria.common.metric.NoopMeterRegistry;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.ForwardingStorageComponent;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+public class SpanCoalescerTest {
+  static final Span SPAN1 = CLIENT_SPAN.toBuilder().id(1).build();
+  static final Span SPAN2 = CLIENT_SPAN.toBuilder().id(2).build();
+  static final Span SPAN3 = CLIENT_SPAN.toBuilder().id(3).build();
+  static final Span SPAN4 = CLIENT_SPAN.toBuilder().id(4).build();
+
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  BlockingStorage blocking = new BlockingStorage(storage);
+  ThrottledStorageComponent throttle;
+
+  @After public void close() throws IOException {
+    blocking.unblock.countDown();
+    if (throttle != null) throttle.close();
+  }
+
+  /** A concurrency of one ensures later calls queue while the first is blocked. */
+  ThrottledStorageComponent throttle(int coalesceMaxSpans) {
+    return throttle = ThrottledStorageComponent.newBuilder()
+      .delegate(blocking)
+      .meterRegistry(NoopMeterRegistry.get())
+      .minConcurrency(1)
+      .maxConcurrency(1)
+      .maxQueueSize(10)
+      .coalesceMaxSpans(coalesceMaxSpans)
+      .build();
+  }
+
+  @Test public void coalesceMaxSpans_notNegative() {
+    assertThatThrownBy(() -> throttle(-1))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("coalesceMaxSpans < 0");
+  }
+
+  @Test public void disabledByDefault() {
+    assertThat(ThrottledStorageComponent.newBuilder()
+      .delegate(storage)
+      .meterRegistry(NoopMeterRegistry.get())
+      .build().coalescer).isNull();
+  }
+
+  @Test public void mergesQueuedBatches() throws Exception {
+    throttle(10);
+
+    CompletableFuture<Void> first = accept(SPAN1);
+    await().until(() -> blocking.requests.size() == 1); // first is now blocking the only thread
+    CompletableFuture<Void> second = accept(SPAN2), third = accept(SPAN3, SPAN4);
+    blocking.unblock.countDown();
+
+    first.get(10, TimeUnit.SECONDS);
+    second.get(10, TimeUnit.SECONDS);
+    third.get(10, TimeUnit.SECONDS);
+    assertThat(blocking.requests).containsExactly(
+      singletonList(SPAN1),
+      asList(SPAN2, SPAN3, SPAN4)
+    );
+    assertThat(storage.getTrace(CLIENT_SPAN.traceId()).execute()).hasSize(4);
+  }
+
+  @Test public void mergesUpToMaxSpans() throws Exception {
+    throttle(2);
+
+    CompletableFuture<Void> first = accept(SPAN1);
+    await().until(() -> blocking.requests.size() == 1);
+    CompletableFuture<Void> second = accept(SPAN2), third = accept(SPAN3), fourth = accept(SPAN4);
+    blocking.unblock.countDown();
+
+    CompletableFuture.allOf(first, second, third, fourth).get(10, TimeUnit.SECONDS);
+    assertThat(blocking.requests).containsExactly(
+      singletonList(SPAN1),
+      asList(SPAN2, SPAN3),
+      singletonList(SPAN4)
+    );
+  }
+
+  @Test public void fansOutErrors() throws Exception {
+    throttle(10);
+    blocking.error = new IllegalStateException("storage is down");
+
+    CompletableFuture<Void> first = accept(SPAN1);
+    await().until(() -> blocking.requests.size() == 1);
+    CompletableFuture<Void> second = accept(SPAN2), third = accept(SPAN3);
+    blocking.unblock.countDown();
+
+    for (CompletableFuture<Void> result : asList(first, second, third)) {
+      assertThatThrownBy(() -> result.get(10, TimeUnit.SECONDS))
+        .hasCause(blocking.error);
+    }
+    assertThat(blocking.requests).hasSize(2);
+  }
+
+  @Test public void fansOutSynchronousErrors() throws Exception {
+    throttle(10);
+    blocking.mergedError = new IllegalStateException("mapping error");
+
+    CompletableFuture<Void> first = accept(SPAN1);
+    await().until(() -> blocking.requests.size() == 1);
+    CompletableFuture<Void> second = accept(SPAN2), third = accept(SPAN3);
+    blocking.unblock.countDown();
+
+    first.get(10, TimeUnit.SECONDS);
+    for (CompletableFuture<Void> result : asList(second, third)) {
+      assertThatThrownBy(() -> result.get(10, TimeUnit.SECONDS))
+        .hasCause(blocking.mergedError);
+    }
+    assertThat(blocking.requests).hasSize(1);
+  }
+
+  CompletableFuture<Void> accept(Span... spans) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    throttle.spanConsumer().accept(asList(spans)).enqueue(new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        result.complete(value);
+      }
+
+      @Override public void onError(Throwable t) {
+        result.completeExceptionally(t);
+      }
+    });
+    return result;
+  }
+
+  /** Records each request, and blocks storage until {@link #unblock} is counted down. */
+  static final class BlockingStorage extends ForwardingStorageComponent {
+    final StorageComponent delegate;
+    final List<List<Span>> requests = new ArrayList<>();
+    final CountDownLatch unblock = new CountDownLatch(1);
+    volatile RuntimeException error;
+    /** Thrown when accepting more than one span, as opposed to when executing. */
+    volatile RuntimeException mergedError;
+
+    BlockingStorage(StorageComponent delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override protected StorageComponent delegate() {
+      return delegate;
+    }
+
+    @Override public SpanConsumer spanConsumer() {
+      return spans -> {
+        if (mergedError != null && spans.size() > 1) throw mergedError;
+        return newCall(spans);
+      };
+    }
+
+    Call<Void> newCall(List<Span> spans) {
+      return new Call.Base<Void>() {
+        @Override protected Void doExecute() throws IOException {
+          synchronized (requests) {
+            requests.add(spans);
+          }
+          try {
+            unblock.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          if (error != null) throw error;
+          return delegate.spanConsumer().accept(spans).execute();
+        }
+
+        @Override protected void doEnqueue(Callback<Void> callback) {
+          try {
+            callback.onSuccess(doExecute());
+          } catch (Throwable t) {
+            callback.onError(t);
+          }
+        }
+
+        @Override public Call<Void> clone() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+}
@@ -15,16 +15,26 @@ package zipkin2.server.internal.throttle;
 
 import brave.Tracing;
 import com.linecorp.armeria.common.metric.NoopMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import zipkin2.Call;
 import zipkin2.Component;
+import zipkin2.Span;
 import zipkin2.internal.Nullable;
 import zipkin2.server.internal.throttle.ThrottledStorageComponent.ThrottledSpanConsumer;
+import zipkin2.storage.ForwardingStorageComponent;
 import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.StorageComponent;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.CLIENT_SPAN;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -34,25 +44,29 @@ public class ThrottledStorageComponentTest {
   InMemoryStorage delegate = InMemoryStorage.newBuilder().build();
   @Nullable Tracing tracing;
   NoopMeterRegistry registry = NoopMeterRegistry.get();
+  ThrottledStorageComponent.Builder builder = ThrottledStorageComponent.newBuilder()
+    .delegate(delegate)
+    .meterRegistry(registry)
+    .tracing(tracing)
+    .minConcurrency(1)
+    .maxConcurrency(2)
+    .maxQueueSize(1);
 
   @Test public void spanConsumer_isProxied() {
-    ThrottledStorageComponent throttle =
-      new ThrottledStorageComponent(delegate, registry, tracing, 1, 2, 1);
+    ThrottledStorageComponent throttle = builder.build();
 
     assertThat(ThrottledSpanConsumer.class)
       .isSameAs(throttle.spanConsumer().getClass());
   }
 
   @Test public void createComponent_withZeroSizedQueue() {
-    int queueSize = 0;
-    new ThrottledStorageComponent(delegate, registry, tracing, 1, 2, queueSize);
+    builder.maxQueueSize(0).build();
     // no exception == pass
   }
 
   @Test public void createComponent_withNegativeQueue() {
     expectedException.expect(IllegalArgumentException.class);
-    int queueSize = -1;
-    new ThrottledStorageComponent(delegate, registry, tracing, 1, 2, queueSize);
+    builder.maxQueueSize(-1);
   }
 
   /**
@@ -62,14 +76,165 @@ public class ThrottledStorageComponentTest {
    * information.
    */
   @Test public void toStringContainsOnlySummaryInformation() {
-    assertThat(new ThrottledStorageComponent(delegate, registry, tracing, 1, 2, 1))
+    assertThat(builder.build())
       .hasToString("Throttled{InMemoryStorage{}}");
   }
 
   @Test public void delegatesCheck() {
     StorageComponent mock = mock(StorageComponent.class);
 
-    new ThrottledStorageComponent(mock, registry, tracing, 1, 2, 1).check();
+    builder.delegate(mock).build().check();
     verify(mock, times(1)).check();
   }
+
+  @Test public void priorityClassifier_default() {
+    PriorityClassifier classifier = PriorityClassifier.create(asList("backend"));
+    Span span = CLIENT_SPAN.toBuilder().clearTags().build();
+
+    assertThat(classifier.isPriority(asList(span))).isFalse();
+    assertThat(classifier.isPriority(asList(span, span.toBuilder().debug(true).build())))
+      .isTrue();
+    assertThat(classifier.isPriority(asList(span.toBuilder().putTag("error", "").build())))
+      .isTrue();
+    assertThat(classifier.isPriority(asList(span.toBuilder()
+      .localEndpoint(CLIENT_SPAN.remoteEndpoint()).build()))).isTrue();
+  }
+
+  @Test public void priorityLane_acceptsWhenDefaultLaneFull() throws Exception {
+    CountDownLatch unblock = new CountDownLatch(1);
+    StorageComponent blocking = new ForwardingStorageComponent() {
+      @Override protected StorageComponent delegate() {
+        return delegate;
+      }
+
+      @Override public SpanConsumer spanConsumer() {
+        return spans -> Call.create((Void) null).map(v -> {
+          try {
+            unblock.await();
+          } catch (InterruptedException e) { // closed
+            Thread.currentThread().interrupt();
+          }
+          return v;
+        });
+      }
+    };
+    Span error = CLIENT_SPAN.toBuilder().putTag("error", "").build();
+    Span normal = CLIENT_SPAN.toBuilder().clearTags().build();
+    SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+    try (ThrottledStorageComponent throttle = builder.delegate(blocking).meterRegistry(meters)
+      .maxConcurrency(1)
+      .priorityQueueSize(1)
+      .priorityClassifier(PriorityClassifier.create(Collections.emptyList()))
+      .build()) {
+      SpanConsumer consumer = throttle.spanConsumer();
+      consumer.accept(asList(normal)).enqueue(ThrottledCall.NOOP_CALLBACK); // running
+      consumer.accept(asList(normal)).enqueue(ThrottledCall.NOOP_CALLBACK); // queued
+
+      assertThatThrownBy(() -> consumer.accept(asList(normal)).enqueue(ThrottledCall.NOOP_CALLBACK))
+        .isSameAs(ThrottledStorageComponent.STORAGE_THROTTLE_MAX_QUEUE_SIZE);
+      consumer.accept(asList(error)).enqueue(ThrottledCall.NOOP_CALLBACK); // priority lane
+
+      assertThat(meters.get("zipkin_storage.throttle.lane.queue_size").tag("lane", "priority")
+        .gauge().value()).isEqualTo(1.0);
+      assertThat(meters.get("zipkin_storage.throttle.lane.rejections").tag("lane", "default")
+        .functionCounter().count()).isEqualTo(1.0);
+    } finally {
+      unblock.countDown();
+    }
+  }
+
+  @Test public void permitDispatcher_stores() throws Exception {
+    try (ThrottledStorageComponent throttle = builder.permitDispatcher(true).build()) {
+      assertThat(throttle.executor).isNull();
+
+      throttle.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+
+      assertThat(delegate.acceptedSpanCount()).isEqualTo(1);
+      assertThat(throttle.dispatcher.inFlight.get()).isZero();
+    }
+  }
+
+  @Test public void permitDispatcher_doesntSupportPriorityLanes() {
+    builder.permitDispatcher(true)
+      .priorityQueueSize(1)
+      .priorityClassifier(PriorityClassifier.create(Collections.emptyList()));
+
+    assertThatThrownBy(builder::build)
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("priorityQueueSize requires a thread pool");
+  }
+
+  @Test public void queueEncoded_stores() throws Exception {
+    SimpleMeterRegistry meters = new SimpleMeterRegistry();
+    try (ThrottledStorageComponent throttle =
+      builder.meterRegistry(meters).queueEncoded(true).build()) {
+      throttle.spanConsumer().accept(asList(CLIENT_SPAN)).execute();
+
+      assertThat(delegate.acceptedSpanCount()).isEqualTo(1);
+      assertThat(meters.get("zipkin_storage.throttle.queued_bytes").gauge().value()).isZero();
+    }
+  }
+
+  @Test public void queueEncoded_releasesRejected() throws Exception {
+    CountDownLatch running = new CountDownLatch(1), unblock = new CountDownLatch(1);
+    StorageComponent blocking = new ForwardingStorageComponent() {
+      @Override protected StorageComponent delegate() {
+        return delegate;
+      }
+
+      @Override public SpanConsumer spanConsumer() {
+        return spans -> Call.create((Void) null).map(v -> {
+          running.countDown();
+          try {
+            unblock.await();
+          } catch (InterruptedException e) { // closed
+            Thread.currentThread().interrupt();
+          }
+          return v;
+        });
+      }
+    };
+
+    try (ThrottledStorageComponent throttle =
+      builder.delegate(blocking).maxConcurrency(1).queueEncoded(true).build()) {
+      SpanConsumer consumer = throttle.spanConsumer();
+      consumer.accept(asList(CLIENT_SPAN)).enqueue(ThrottledCall.NOOP_CALLBACK);
+      running.await(); // the first call released its buffer when it started
+      consumer.accept(asList(CLIENT_SPAN)).enqueue(ThrottledCall.NOOP_CALLBACK); // queued
+      long queued = throttle.queuedBytes.get();
+      assertThat(queued).isPositive();
+
+      assertThatThrownBy(() -> consumer.accept(asList(CLIENT_SPAN))
+        .enqueue(ThrottledCall.NOOP_CALLBACK))
+        .isSameAs(ThrottledStorageComponent.STORAGE_THROTTLE_MAX_QUEUE_SIZE);
+      assertThat(throttle.queuedBytes.get()).isEqualTo(queued);
+    } finally {
+      unblock.countDown();
+    }
+  }
+
+  @Test public void queueEncoded_doesntSupportCoalescing() {
+    builder.queueEncoded(true).coalesceMaxSpans(100);
+
+    assertThatThrownBy(builder::build)
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("coalesceMaxSpans requires decoded spans in the queue");
+  }
+
+  @Test public void priorityLane_requiresClassifier() {
+    builder.priorityQueueSize(1);
+
+    assertThatThrownBy(builder::build)
+      .isInstanceOf(NullPointerException.class)
+      .hasMessage("priorityClassifier == null");
+  }
+
+  @Test public void maxConcurrency_atLeastMin() {
+    builder.minConcurrency(3);
+
+    assertThatThrownBy(builder::build)
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("maxConcurrency < minConcurrency");
+  }
 }
@@ -14,6 +14,7 @@
 package zipkin2.storage.mysql.v1;
 
 import com.zaxxer.hikari.HikariDataSource;
+import java.util.concurrent.Executor;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
@@ -21,6 +22,9 @@ import org.junit.rules.ExpectedException;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import zipkin2.server.internal.mysql.Access;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -59,6 +63,26 @@ public class ZipkinMySQLStorageConfigurationTest {
     assertThat(context.getBean(MySQLStorage.class)).isNotNull();
   }
 
+  @Configuration
+  static class OtherExecutorConfiguration {
+    @Bean Executor blockingTaskExecutor() {
+      return Runnable::run;
+    }
+  }
+
+  /** MySQL keeps its own pool, even when another executor, such as for blocking tasks, exists. */
+  @Test
+  public void usesOwnExecutor_whenOtherExecutorPresent() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of("zipkin.storage.type:mysql").applyTo(context);
+    Access.registerMySQL(context);
+    context.register(OtherExecutorConfiguration.class);
+    context.refresh();
+
+    assertThat(context.getBean("mysqlExecutor")).isInstanceOf(ThreadPoolTaskExecutor.class);
+    assertThat(context.getBean(MySQLStorage.class)).isNotNull();
+  }
+
   @Test
   public void canOverridesProperty_username() {
     context = new AnnotationConfigApplicationContext();